@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -13,6 +15,9 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeBuilder;
+import simpledb.index.HashFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
@@ -489,10 +494,79 @@ public class Parser {
         return curtrans;
     }
 
+    // Zql does not parse DDL, so CREATE INDEX is recognized here:
+    // CREATE INDEX name ON table [USING BTREE | HASH] (field, ...) [INCLUDE (field, ...)] [WITH (FILLFACTOR = percent)]
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)(?:\\s+using\\s+(btree|hash))?"
+                    + "\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\)"
+                    + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?"
+                    + "(?:\\s+with\\s*\\(\\s*fillfactor\\s*=\\s*(\\d+)\\s*\\))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
     public void processNextStatement(String s) {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (m.matches()) {
+            handleCreateIndex(m.group(1), m.group(2), m.group(3), m.group(4), m.group(5), m.group(6));
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
+    /**
+     * Build an index on a table in a transaction of its own, and attach it
+     * to the table.  The index is built from a snapshot of the table, so
+     * queries, inserts and deletes carry on during the build; writers only
+     * wait while the changes they made meanwhile are applied and the index
+     * is attached, until the build commits.
+     *
+     * @param method "btree" or "hash", or null for a B+ tree
+     * @param field the comma-separated fields to index
+     * @param include the comma-separated fields to include in the entries
+     *            of the index, or null for none
+     * @param fillFactor the percentage of each page to fill, or null for
+     *            the default; a hash index ignores it
+     */
+    public void handleCreateIndex(String name, String table, String method, String field, String include,
+            String fillFactor) {
+        if (inUserTrans) {
+            System.out.println("CREATE INDEX cannot run inside a transaction");
+            return;
+        }
+        Transaction t = new Transaction();
+        try {
+            t.start();
+            try {
+                int tableid = Database.getCatalog().getTableId(table);
+                TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+                int[] keyFields = fieldIndexes(td, field);
+                int[] includeFields = include == null ? new int[0] : fieldIndexes(td, include);
+                double ff = fillFactor == null ? BTreeBuilder.DEFAULT_FILL_FACTOR
+                        : Integer.parseInt(fillFactor) / 100.0;
+                File file = BTreeBuilder.indexFile(tableid, name);
+                SecondaryIndex index = "hash".equalsIgnoreCase(method)
+                        ? HashFile.createIndex(t.getId(), tableid, keyFields, includeFields, name, file)
+                        : BTreeBuilder.createIndex(t.getId(), tableid, keyFields, includeFields, name, file, ff);
+                t.commit();
+                System.out.println("Created index " + name + " on " + table + "(" + field
+                        + ") with " + index.getFile().numPages() + " pages.");
+            } catch (Exception e) {
+                t.abort();
+                System.out.println("Could not create index " + name + ": " + e.getMessage());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return the indexes in td of a comma-separated list of field names */
+    private static int[] fieldIndexes(TupleDesc td, String names) {
+        String[] split = names.trim().split("\\s*,\\s*");
+        int[] fields = new int[split.length];
+        for (int i = 0; i < split.length; i++)
+            fields[i] = td.fieldNameToIndex(split[i]);
+        return fields;
+    }
+
     public void processNextStatement(InputStream is) {
         try {
             ZqlParser p = new ZqlParser(is);
@@ -503,7 +577,8 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a query on its own reads a snapshot without taking locks
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -567,7 +642,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -669,8 +744,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(new String(statementBytes, StandardCharsets.UTF_8));
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
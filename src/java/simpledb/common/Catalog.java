@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -7,9 +8,14 @@ import simpledb.storage.TupleDesc;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,6 +32,9 @@ public class Catalog {
     private ConcurrentHashMap<String, Integer> _tableIds; // maps table name to table id
     private ConcurrentHashMap<Integer, String> _tableNames; // maps table id to table name
     private ConcurrentHashMap<Integer, String> _primaryKeys; // maps table id to primary key
+    private Set<Integer> _readOnly; // tables that only a standby may change
+    private ConcurrentHashMap<Integer, List<SecondaryIndex>> _indexes; // maps table id to its indexes
+    private volatile File _schemaFile; // the catalog file that was loaded, which new indexes are added to
 
     /**
      * Constructor.
@@ -37,6 +46,8 @@ public class Catalog {
         _tableIds = new ConcurrentHashMap<String, Integer>();
         _tableNames = new ConcurrentHashMap<Integer, String>();
         _primaryKeys = new ConcurrentHashMap<Integer, String>();
+        _readOnly = ConcurrentHashMap.newKeySet();
+        _indexes = new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
     }
 
     /**
@@ -166,6 +177,95 @@ public class Catalog {
         return _tableNames.get(id);
     }
 
+    /**
+     * Mark a table read-only: the BufferPool refuses to insert into or
+     * delete from it.  Tables kept up to date by a
+     * {@link simpledb.storage.Standby} are read-only.
+     */
+    public void setReadOnly(int tableid, boolean readOnly) {
+        if (readOnly)
+            _readOnly.add(tableid);
+        else
+            _readOnly.remove(tableid);
+    }
+
+    public boolean isReadOnly(int tableid) {
+        return _readOnly.contains(tableid);
+    }
+
+    /**
+     * Add an index on a table.  The tree of the index is added as a table
+     * of its own, so that its pages can be found by its id, and then the
+     * index becomes one of the table's indexes in a single step: the
+     * BufferPool keeps it up to date from then on.  The caller must hold a
+     * lock on the table that keeps writers out until the index is added, or
+     * the index will miss their changes.
+     * <p>
+     * If the catalog was read from a file, the index is added to the file
+     * too, so that it is attached again when the file is loaded after a
+     * restart, before the log is recovered.  Its file must then be next to
+     * the catalog file, named after the index, like the files of the tables.
+     *
+     * @param tableid the table the index is on
+     * @param index   the index
+     * @param name    the name of the index
+     * @throws IOException if the index could not be added to the catalog file
+     */
+    public void addIndex(int tableid, SecondaryIndex index, String name) throws IOException {
+        File schemaFile = _schemaFile;
+        if (schemaFile != null)
+            saveIndex(schemaFile, tableid, index, name);
+        attachIndex(tableid, index, name);
+    }
+
+    private void attachIndex(int tableid, SecondaryIndex index, String name) {
+        addTable(index.getFile(), name);
+        // 列表不可变，整体替换，这样维护索引的事务不会看到一半的修改
+        _indexes.merge(tableid, Collections.singletonList(index), (old, added) -> {
+            List<SecondaryIndex> indexes = new ArrayList<>(old);
+            indexes.addAll(added);
+            return Collections.unmodifiableList(indexes);
+        });
+    }
+
+    /**
+     * Append a line for an index to a catalog file, in the form
+     * index name on table using btree|hash (field, ...) [include (field, ...)]
+     */
+    private void saveIndex(File schemaFile, int tableid, SecondaryIndex index, String name) throws IOException {
+        TupleDesc td = getTupleDesc(tableid);
+        StringBuilder line = new StringBuilder();
+        line.append("index ").append(name).append(" on ").append(getTableName(tableid))
+                .append(" using ").append(index.isOrdered() ? "btree" : "hash")
+                .append(" (").append(fieldNames(td, index.keyFields())).append(")");
+        if (index.includeFields().length > 0)
+            line.append(" include (").append(fieldNames(td, index.includeFields())).append(")");
+        boolean newline = false;
+        if (schemaFile.length() > 0) {
+            try (RandomAccessFile f = new RandomAccessFile(schemaFile, "r")) {
+                f.seek(f.length() - 1);
+                newline = f.read() != '\n';
+            }
+        }
+        try (Writer out = new FileWriter(schemaFile, true)) {
+            if (newline)
+                out.write('\n');
+            out.write(line.append('\n').toString());
+        }
+    }
+
+    private static String fieldNames(TupleDesc td, int[] fields) {
+        StringJoiner names = new StringJoiner(", ");
+        for (int f : fields)
+            names.add(td.getFieldName(f));
+        return names.toString();
+    }
+
+    /** @return the indexes on a table */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return _indexes.getOrDefault(tableid, Collections.emptyList());
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
@@ -173,11 +273,21 @@ public class Catalog {
         _tableIds.clear();
         _tableNames.clear();
         _primaryKeys.clear();
+        _readOnly.clear();
+        _indexes.clear();
+        _schemaFile = null;
     }
 
+    // index name on table using btree|hash (field, ...) [include (field, ...)]
+    private static final Pattern INDEX_ENTRY = Pattern.compile(
+            "\\s*index\\s+(\\w+)\\s+on\\s+(\\w+)\\s+using\\s+(btree|hash)\\s*\\(([^)]*)\\)"
+                    + "(?:\\s*include\\s*\\(([^)]*)\\))?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the
-     * database.
+     * database, and attaches the indexes listed in it to their tables.
+     * Indexes added later are appended to the file.
      * 
      * @param catalogFile
      */
@@ -187,6 +297,11 @@ public class Catalog {
         try {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
             while ((line = br.readLine()) != null) {
+                Matcher m = INDEX_ENTRY.matcher(line);
+                if (m.matches()) {
+                    loadIndex(baseFolder, m);
+                    continue;
+                }
                 // assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 // System.out.println("TABLE NAME: " + name);
@@ -225,9 +340,31 @@ public class Catalog {
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
         }
+        _schemaFile = new File(catalogFile);
+    }
+
+    /** Attach an index listed in the catalog file to its table */
+    private void loadIndex(String baseFolder, Matcher m) {
+        String name = m.group(1);
+        int tableid = getTableId(m.group(2));
+        TupleDesc td = getTupleDesc(tableid);
+        int[] keyFields = fieldIndexes(td, m.group(4));
+        int[] includeFields = m.group(5) == null ? new int[0] : fieldIndexes(td, m.group(5));
+        SecondaryIndex index = SecondaryIndex.open(new File(baseFolder + "/" + name + ".dat"), tableid,
+                keyFields, includeFields, m.group(3).equalsIgnoreCase("btree"));
+        attachIndex(tableid, index, name);
+        System.out.println("Added index : " + name + " on " + m.group(2) + "(" + m.group(4).trim() + ")");
+    }
+
+    private static int[] fieldIndexes(TupleDesc td, String names) {
+        String[] split = names.trim().split("\\s*,\\s*");
+        int[] fields = new int[split.length];
+        for (int i = 0; i < split.length; i++)
+            fields[i] = td.fieldNameToIndex(split[i]);
+        return fields;
     }
 }
@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.index.IndexPageCodecs;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -17,6 +18,11 @@ import java.util.concurrent.atomic.AtomicReference;
  * @Threadsafe
  */
 public class Database {
+    static {
+        // the page types of simpledb.index can be logged before any of their files is opened
+        IndexPageCodecs.register();
+    }
+
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
@@ -72,6 +78,10 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // the old log's checkpointer must not touch the files the new one recovers from
+        LogFile old = _instance.get()._logfile;
+        if (old != null)
+            old.stopCheckpointer();
         _instance.set(new Database());
     }
 
@@ -0,0 +1,65 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+/**
+ * IndexOnlyScan is an IndexScan that answers from the entries of the index
+ * alone, without reading the table.  Its tuples hold only the fields the
+ * index covers: the indexed field, then the included fields (see
+ * SecondaryIndex#coveredFields), so it can replace a scan of the table when
+ * the query references no other field of it.
+ */
+public class IndexOnlyScan extends IndexScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param tid        the transaction this scan is running as a part of
+     * @param index      the index to read
+     * @param pred       the predicate on the indexed field, or null to read
+     *                   all the entries
+     * @param tableAlias the alias of the table, see SeqScan
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, IndexPredicate pred, String tableAlias) {
+        super(tid, index, pred, tableAlias);
+    }
+
+    /**
+     * @param tid        the transaction this scan is running as a part of
+     * @param index      the index to read
+     * @param preds      the predicates on the indexed field, see IndexScan
+     * @param descending true to read the entries in reverse order of the index
+     * @param tableAlias the alias of the table, see SeqScan
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, List<IndexPredicate> preds, boolean descending,
+                         String tableAlias) {
+        super(tid, index, preds, descending, tableAlias);
+    }
+
+    @Override
+    protected DbFileIterator iterator() {
+        return getIndex().scanCovered(getTransactionId(), getPredicates(), isDescending());
+    }
+
+    /**
+     * @return the fields the index covers, with field names prefixed with the
+     *         tableAlias, as for SeqScan
+     */
+    @Override
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = getIndex().coveredDesc();
+        Type[] typeAr = new Type[td.numFields()];
+        String[] fieldAr = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            typeAr[i] = td.getFieldType(i);
+            fieldAr[i] = getAlias() + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan is an access method that reads the tuples of a table whose
+ * indexed field satisfies a predicate through a SecondaryIndex, in the order
+ * of the index, instead of reading the whole table.  Its tuples are those a
+ * SeqScan of the table would return, and have the same TupleDesc.
+ * <p>
+ * On an ordered index, a scan may also read the tuples between two bounds,
+ * e.g. a &gt; 10 AND a &lt;= 20, and in reverse order, which answers an ORDER
+ * BY ... DESC on the indexed field without sorting.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId _tid;
+    private final SecondaryIndex _index;
+    private final IndexPredicate _pred;
+    private final List<IndexPredicate> _preds;
+    private final boolean _descending;
+    private final String _tableAlias;
+    private DbFileIterator _iterator;
+
+    /**
+     * @param tid        the transaction this scan is running as a part of
+     * @param index      the index to read
+     * @param pred       the predicate on the indexed field
+     * @param tableAlias the alias of the table, see SeqScan
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate pred, String tableAlias) {
+        this(tid, index, pred == null ? Collections.emptyList() : Collections.singletonList(pred), false, tableAlias);
+    }
+
+    /**
+     * @param tid        the transaction this scan is running as a part of
+     * @param index      the index to read
+     * @param preds      the predicates on the indexed field, all of which the
+     *                   tuples satisfy, or none to read all of them; more than
+     *                   one needs an ordered index
+     * @param descending true to read the tuples in reverse order of the index,
+     *                   which needs an ordered index
+     * @param tableAlias the alias of the table, see SeqScan
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, List<IndexPredicate> preds, boolean descending,
+                     String tableAlias) {
+        _tid = tid;
+        _index = index;
+        _preds = Collections.unmodifiableList(preds);
+        _pred = preds.isEmpty() ? null : preds.get(0);
+        _descending = descending;
+        _tableAlias = tableAlias;
+    }
+
+    /** @return the name of the table the operator scans in the catalog */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(_index.getTableId());
+    }
+
+    /** @return the index the operator reads */
+    public SecondaryIndex getIndex() {
+        return _index;
+    }
+
+    /** @return the predicate on the indexed field, the first one if there are several */
+    public IndexPredicate getPredicate() {
+        return _pred;
+    }
+
+    /** @return the predicates on the indexed field */
+    public List<IndexPredicate> getPredicates() {
+        return _preds;
+    }
+
+    /** @return true if the scan reads the tuples in reverse order of the index */
+    public boolean isDescending() {
+        return _descending;
+    }
+
+    /** @return the alias of the table the operator scans */
+    public String getAlias() {
+        return _tableAlias;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    protected TransactionId getTransactionId() {
+        return _tid;
+    }
+
+    /** @return an iterator over the tuples the scan returns, not yet open */
+    protected DbFileIterator iterator() {
+        return _index.lookup(_tid, _preds, _descending);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        _iterator = iterator();
+        _iterator.open();
+    }
+
+    /**
+     * @return the TupleDesc of the table, with field names prefixed with the
+     *         tableAlias, as for SeqScan
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(_index.getTableId());
+        Type[] typeAr = new Type[td.numFields()];
+        String[] fieldAr = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            typeAr[i] = td.getFieldType(i);
+            fieldAr[i] = _tableAlias + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (_iterator == null) { // 还没有open
+            return false;
+        }
+        return _iterator.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (_iterator == null) {
+            throw new NoSuchElementException();
+        }
+        return _iterator.next();
+    }
+
+    public void close() {
+        if (_iterator != null) {
+            _iterator.close();
+        }
+        _iterator = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        _iterator.rewind();
+    }
+}
@@ -0,0 +1,650 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * BTreeBuilder builds a B+ tree index on a live table without inserting the
+ * tuples one at a time.
+ * <p>
+ * The index entries (or, for a clustered tree, copies of the tuples) are
+ * sorted on the key field with an external merge sort: runs of at most runSize tuples are sorted in memory and spilled to
+ * temporary files, then merged in one pass.  The sorted stream is packed
+ * into leaf pages from left to right, and the internal levels are built
+ * bottom-up on top of them, every page filled to the fill factor.  Since the
+ * number of tuples is known before the first page is written, the shape of
+ * the whole tree is known in advance: each page is written exactly once,
+ * straight to the new file, with its parent and sibling pointers set.  The
+ * last two pages of a level are balanced so that neither is less than half
+ * full.
+ * <p>
+ * The pages of a tree with normalized keys may be compressed, so how many
+ * tuples or entries fit in one is only known by adding them. Such a tree is
+ * built a page at a time instead, each one filled to the fill factor of its
+ * empty slots, and the parent pointers of a level are set once the level above
+ * it is built.
+ * <p>
+ * A transaction that reads a snapshot reads the table without locks; any other
+ * takes a shared lock on the whole table before reading it, and holds it until
+ * it completes, so writers wait for the whole build.  createIndex builds from a
+ * snapshot, so that writers carry on during the sort and the packing of the
+ * pages, and then applies the changes made to the table since (see
+ * SecondaryIndex#createOnline).  Writers only wait while the last of those
+ * changes are applied and the index is attached in the Catalog; from then on
+ * the BufferPool keeps it up to date.
+ *
+ * @see BTreeFileEncoder for building a tree offline from a text file
+ */
+public class BTreeBuilder {
+
+	/** Fill factor of the pages of a new index: room is left for inserts */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** Number of tuples sorted in memory at a time */
+	public static final int DEFAULT_RUN_SIZE = 100000;
+
+	/**
+	 * Build a secondary index on a table and attach it to the table in the Catalog.
+	 *
+	 * @param tid - the transaction building the index; it locks the table only to
+	 * apply the last changes made during the build and attach the index, and
+	 * holds the lock until it completes
+	 * @param tableid - the table to index, which must be a HeapFile
+	 * @param keyField - the field of the table the index is keyed on
+	 * @param name - the name of the index in the Catalog
+	 * @param file - the file for the index, which must not exist yet or be empty
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the index
+	 */
+	public static SecondaryIndex createIndex(TransactionId tid, int tableid, int keyField, String name,
+			File file, double fillFactor)
+					throws DbException, IOException, TransactionAbortedException {
+		return createIndex(tid, tableid, new int[] { keyField }, new int[0], name, file, fillFactor);
+	}
+
+	/**
+	 * Build a secondary index on one or more fields of a table, that may include
+	 * other fields of the table in its entries, and attach it to the table in the
+	 * Catalog.
+	 *
+	 * @param keyFields - the fields of the table the index is keyed on, most
+	 * significant first
+	 * @param includeFields - the fields of the table to copy into each entry
+	 * @see #createIndex(TransactionId, int, int, String, File, double)
+	 */
+	public static SecondaryIndex createIndex(TransactionId tid, int tableid, int[] keyFields, int[] includeFields,
+			String name, File file, double fillFactor)
+					throws DbException, IOException, TransactionAbortedException {
+		return SecondaryIndex.createOnline(tid, tableid, name, snapshot ->
+				buildIndex(snapshot, tableid, keyFields, includeFields, file, fillFactor, DEFAULT_RUN_SIZE));
+	}
+
+	/**
+	 * Build a secondary index on a table, without attaching it to the table.
+	 *
+	 * @param tid - the transaction reading the table; unless it reads a
+	 * snapshot, it holds a shared lock on the table until it completes
+	 * @param tableid - the table to index, which must be a HeapFile
+	 * @param keyField - the field of the table the index is keyed on
+	 * @param file - the file for the index, which must not exist yet or be empty
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runSize - the number of entries to sort in memory at a time
+	 * @return the index
+	 */
+	public static SecondaryIndex buildIndex(TransactionId tid, int tableid, int keyField, File file,
+			double fillFactor, int runSize)
+					throws DbException, IOException, TransactionAbortedException {
+		return buildIndex(tid, tableid, new int[] { keyField }, new int[0], file, fillFactor, runSize);
+	}
+
+	/**
+	 * Build a secondary index on one or more fields of a table, that may include
+	 * other fields of the table in its entries, without attaching it to the table.
+	 *
+	 * @param keyFields - the fields of the table the index is keyed on, most
+	 * significant first
+	 * @param includeFields - the fields of the table to copy into each entry
+	 * @see #buildIndex(TransactionId, int, int, File, double, int)
+	 */
+	public static SecondaryIndex buildIndex(TransactionId tid, int tableid, int[] keyFields, int[] includeFields,
+			File file, double fillFactor, int runSize)
+					throws DbException, IOException, TransactionAbortedException {
+		if(!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			// the tuples of a BTreeFile move when its pages split or merge
+			throw new DbException("secondary indexes can only be built on heap files");
+		}
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		TupleDesc entryDesc = SecondaryIndex.entryDesc(td, keyFields, includeFields);
+		BTreeFile bf = new BTreeFile(file, SecondaryIndex.entryKey(entryDesc, keyFields.length), entryDesc);
+		SecondaryIndex index = new SecondaryIndex(bf, tableid, keyFields, includeFields);
+		write(tid, tableid, bf, index::entryFor, fillFactor, runSize);
+		return index;
+	}
+
+	/**
+	 * @return the file for an index with the given name, next to the table's file
+	 */
+	public static File indexFile(int tableid, String name) {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		File dir = null;
+		if(table instanceof HeapFile) {
+			dir = ((HeapFile) table).getFile().getAbsoluteFile().getParentFile();
+		}
+		else if(table instanceof BTreeFile) {
+			dir = ((BTreeFile) table).getFile().getAbsoluteFile().getParentFile();
+		}
+		return new File(dir, name + ".dat");
+	}
+
+	/**
+	 * Build a B+ tree file holding copies of the tuples of a table, without adding
+	 * it to the Catalog.
+	 *
+	 * @param tid - the transaction reading the table; it holds a shared lock on
+	 * the table until it completes
+	 * @param tableid - the table to read
+	 * @param keyField - the field the tree is keyed on
+	 * @param file - the file for the tree, which must not exist yet or be empty
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runSize - the number of tuples to sort in memory at a time
+	 * @return the B+ tree file
+	 */
+	public static BTreeFile build(TransactionId tid, int tableid, int keyField, File file,
+			double fillFactor, int runSize)
+					throws DbException, IOException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(file, keyField, Database.getCatalog().getTupleDesc(tableid));
+		write(tid, tableid, bf, t -> t, fillFactor, runSize);
+		return bf;
+	}
+
+	/**
+	 * Sort what is to be stored in the tree for each tuple of a table, and write
+	 * the tree.
+	 *
+	 * @param stored - maps a tuple of the table to the tuple the tree holds for it
+	 */
+	private static void write(TransactionId tid, int tableid, BTreeFile bf, Function<Tuple, Tuple> stored,
+			double fillFactor, int runSize)
+					throws DbException, IOException, TransactionAbortedException {
+		File file = bf.getFile();
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if(file.exists() && file.length() > 0) {
+			throw new DbException("index file " + file + " already exists");
+		}
+		TupleDesc td = bf.getTupleDesc();
+		KeyDesc key = bf.getKeyDesc();
+		BufferPool bp = Database.getBufferPool();
+		if(!bp.getVersionStore().hasSnapshot(tid)) {
+			bp.getLockManager().acquireTable(tid, tableid, false);
+		}
+		List<File> runs = new ArrayList<>();
+		boolean built = false;
+		try {
+			List<Tuple> last = new ArrayList<>();
+			int count = sortRuns(tid, tableid, stored, key, runSize, runs, last);
+			Iterator<Tuple> sorted = runs.isEmpty() ? last.iterator() : new RunMerger(runs, td, key);
+			new Packer(bf, td, key, fillFactor).write(sorted, count);
+			if(sorted instanceof RunMerger) {
+				((RunMerger) sorted).close();
+			}
+			built = true;
+		} finally {
+			for(File run : runs) {
+				run.delete();
+			}
+			if(!built) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Read the table and write out sorted runs of at most runSize tuples to be
+	 * stored. If the table fits in one run, nothing is written and the run is left
+	 * in last.
+	 *
+	 * @return the number of tuples in the table
+	 */
+	private static int sortRuns(TransactionId tid, int tableid, Function<Tuple, Tuple> stored, KeyDesc key,
+			int runSize, List<File> runs, List<Tuple> last)
+					throws DbException, IOException, TransactionAbortedException {
+		Comparator<Tuple> cmp = key.tupleComparator();
+		DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		it.open();
+		int count = 0;
+		try {
+			while(it.hasNext()) {
+				last.add(stored.apply(it.next()));
+				count++;
+				if(last.size() == runSize) {
+					last.sort(cmp);
+					runs.add(spill(last));
+					last.clear();
+				}
+			}
+		} finally {
+			it.close();
+		}
+		last.sort(cmp);
+		if(!runs.isEmpty() && !last.isEmpty()) {
+			runs.add(spill(last));
+		}
+		return count;
+	}
+
+	private static File spill(List<Tuple> run) throws IOException {
+		File f = File.createTempFile("btreerun", ".tmp");
+		f.deleteOnExit();
+		try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			for(Tuple t : run) {
+				for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+					t.getField(i).serialize(dos);
+				}
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Merges sorted runs into one sorted stream of tuples. Ties are broken by run,
+	 * so equal keys come out in the order they were read.
+	 */
+	private static class RunMerger implements Iterator<Tuple> {
+		private final TupleDesc td;
+		private final DataInputStream[] in;
+		private final PriorityQueue<Object[]> heap; // {tuple, run}
+
+		RunMerger(List<File> runs, TupleDesc td, KeyDesc key) throws IOException {
+			this.td = td;
+			Comparator<Tuple> cmp = key.tupleComparator();
+			heap = new PriorityQueue<>(runs.size(), (a, b) -> {
+				int c = cmp.compare((Tuple) a[0], (Tuple) b[0]);
+				return c != 0 ? c : Integer.compare((Integer) a[1], (Integer) b[1]);
+			});
+			in = new DataInputStream[runs.size()];
+			for(int i = 0; i < in.length; i++) {
+				in[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i))));
+				advance(i);
+			}
+		}
+
+		private void advance(int run) throws IOException {
+			if(in[run].available() == 0) {
+				return;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(in[run]));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run: " + e.getMessage());
+			}
+			heap.add(new Object[] { t, run });
+		}
+
+		public boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		public Tuple next() {
+			Object[] top = heap.poll();
+			if(top == null) {
+				throw new NoSuchElementException();
+			}
+			try {
+				advance((Integer) top[1]);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return (Tuple) top[0];
+		}
+
+		void close() throws IOException {
+			for(DataInputStream s : in) {
+				s.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes a tree of a known number of tuples, arriving in key order, page by page.
+	 * Leaves get page numbers 1 to n from left to right, each internal level the
+	 * numbers after those of the level below it, and the root the last one.
+	 */
+	private static class Packer {
+		private final BTreeFile bf;
+		private final TupleDesc td;
+		private final KeyDesc key;
+		private final double fillFactor;
+		private final int pageSize = BufferPool.getPageSize();
+		private final Type[] types;
+
+		Packer(BTreeFile bf, TupleDesc td, KeyDesc key, double fillFactor) {
+			this.bf = bf;
+			this.td = td;
+			this.key = key;
+			this.fillFactor = fillFactor;
+			types = new Type[td.numFields()];
+			for(int i = 0; i < types.length; i++) {
+				types[i] = td.getFieldType(i);
+			}
+		}
+
+		void write(Iterator<Tuple> tuples, int count) throws DbException, IOException {
+			if(count == 0) {
+				// BTreeFile sets up an empty tree in an empty file
+				new FileOutputStream(bf.getFile()).close();
+				return;
+			}
+			if(key.isNormalized()) {
+				try(RandomAccessFile rf = new RandomAccessFile(bf.getFile(), "rw")) {
+					writeFilled(rf, tuples);
+				}
+				return;
+			}
+			int nrecords = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+			int nentries = (pageSize * 8 - (2 * BTreePage.INDEX_SIZE + 1) * 8 - 1)
+					/ ((key.getLen() + BTreePage.INDEX_SIZE) * 8 + 1);
+
+			// page sizes of each level: tuples per leaf, then children per internal page
+			List<int[]> levels = new ArrayList<>();
+			levels.add(pageSizes(count, nrecords, nrecords / 2));
+			while(levels.get(levels.size() - 1).length > 1) {
+				int children = levels.get(levels.size() - 1).length;
+				levels.add(pageSizes(children, nentries + 1, nentries / 2 + 1));
+			}
+			int[] first = new int[levels.size()]; // first page number of each level
+			first[0] = 1;
+			for(int l = 1; l < levels.size(); l++) {
+				first[l] = first[l - 1] + levels.get(l - 1).length;
+			}
+
+			try(RandomAccessFile rf = new RandomAccessFile(bf.getFile(), "rw")) {
+				int root = first[levels.size() - 1];
+				int rootCategory = levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+				rf.write(BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0));
+
+				// the first key under each page of the level last written
+				List<Field> keys = writeLeaves(rf, tuples, levels, first);
+				for(int l = 1; l < levels.size(); l++) {
+					keys = writeInternal(rf, keys, l, levels, first);
+				}
+			}
+		}
+
+		/**
+		 * @return the sizes of the pages needed to hold n items with at most
+		 * capacity items per page, filled to the fill factor, where no page but a
+		 * lone root may hold fewer than minimum
+		 */
+		private int[] pageSizes(int n, int capacity, int minimum) {
+			int per = Math.max(1, Math.min(capacity, (int) (capacity * fillFactor)));
+			int pages = (n + per - 1) / per;
+			int[] sizes = new int[pages];
+			Arrays.fill(sizes, per);
+			sizes[pages - 1] = n - per * (pages - 1);
+			if(pages > 1 && sizes[pages - 1] < minimum) {
+				int both = per + sizes[pages - 1];
+				if(both <= capacity) {
+					sizes = Arrays.copyOf(sizes, pages - 1);
+					sizes[pages - 2] = both;
+				}
+				else {
+					sizes[pages - 2] = both - both / 2;
+					sizes[pages - 1] = both / 2;
+				}
+			}
+			return sizes;
+		}
+
+		/** @return the number of the parent of each page of level l */
+		private int[] parents(int l, List<int[]> levels, int[] first) {
+			int[] parents = new int[levels.get(l).length];
+			if(l + 1 < levels.size()) {
+				int child = 0;
+				int[] up = levels.get(l + 1);
+				for(int p = 0; p < up.length; p++) {
+					for(int c = 0; c < up[p]; c++) {
+						parents[child++] = first[l + 1] + p;
+					}
+				}
+			}
+			return parents; // 0 is the root pointer
+		}
+
+		private List<Field> writeLeaves(RandomAccessFile rf, Iterator<Tuple> tuples,
+				List<int[]> levels, int[] first) throws IOException {
+			int[] sizes = levels.get(0);
+			int[] parents = parents(0, levels, first);
+			List<Field> keys = new ArrayList<>(sizes.length);
+			List<Tuple> page = new ArrayList<>();
+			for(int i = 0; i < sizes.length; i++) {
+				page.clear();
+				for(int t = 0; t < sizes[i]; t++) {
+					page.add(tuples.next());
+				}
+				keys.add(key.keyOf(page.get(0)));
+				ByteBuffer data = ByteBuffer.wrap(BTreeFileEncoder.convertToLeafPage(page, pageSize,
+						types.length, types, key));
+				data.putInt(0, parents[i]);
+				data.putInt(4, i == 0 ? 0 : first[0] + i - 1);
+				data.putInt(8, i == sizes.length - 1 ? 0 : first[0] + i + 1);
+				writePage(rf, first[0] + i, data.array());
+			}
+			return keys;
+		}
+
+		private List<Field> writeInternal(RandomAccessFile rf, List<Field> childKeys, int l,
+				List<int[]> levels, int[] first) throws IOException {
+			int[] sizes = levels.get(l);
+			int[] parents = parents(l, levels, first);
+			int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			List<Field> keys = new ArrayList<>(sizes.length);
+			int child = 0;
+			for(int i = 0; i < sizes.length; i++) {
+				keys.add(childKeys.get(child));
+				List<BTreeEntry> entries = new ArrayList<>();
+				for(int c = 1; c < sizes[i]; c++) {
+					int left = first[l - 1] + child + c - 1;
+					entries.add(new BTreeEntry(childKeys.get(child + c),
+							new BTreePageId(bf.getId(), left, childCategory),
+							new BTreePageId(bf.getId(), left + 1, childCategory)));
+				}
+				child += sizes[i];
+				ByteBuffer data = ByteBuffer.wrap(BTreeFileEncoder.convertToInternalPage(entries, pageSize,
+						key.getLen(), childCategory));
+				data.putInt(0, parents[i]);
+				writePage(rf, first[l] + i, data.array());
+			}
+			return keys;
+		}
+
+		/**
+		 * @return true if no more should be added to a page
+		 */
+		private boolean filled(BTreePage page, int max) {
+			int empty = page.getNumEmptySlots();
+			return empty == 0 || max - empty >= max * fillFactor;
+		}
+
+		private BTreeLeafPage leafPage(int pgNo) throws IOException {
+			return new BTreeLeafPage(new BTreePageId(bf.getId(), pgNo, BTreePageId.LEAF),
+					BTreePage.createEmptyPageData(), key, td);
+		}
+
+		private BTreeInternalPage internalPage(int pgNo) throws IOException {
+			return new BTreeInternalPage(new BTreePageId(bf.getId(), pgNo, BTreePageId.INTERNAL),
+					BTreePage.createEmptyPageData(), key, td);
+		}
+
+		/**
+		 * Write a tree a page at a time: the leaves from the sorted tuples, then
+		 * each internal level from the pages below it, until a level has one page.
+		 */
+		private void writeFilled(RandomAccessFile rf, Iterator<Tuple> tuples) throws DbException, IOException {
+			// the page number of each leaf, and the key separating it from the one before
+			List<Integer> children = new ArrayList<>();
+			List<Field> separators = new ArrayList<>();
+			Field lastKey = null;
+
+			// a leaf is written once the next one is full, so that the last two can
+			// be balanced
+			BTreeLeafPage prev = null;
+			BTreeLeafPage page = leafPage(1);
+			while(tuples.hasNext()) {
+				Tuple next = tuples.next();
+				// the tuple gets a record id on the page, so it must not be the table's
+				Tuple t = new Tuple(td);
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, next.getField(i));
+				}
+				if(filled(page, page.getMaxTuples())) {
+					if(prev != null) {
+						lastKey = writeLeaf(rf, prev, lastKey, children, separators);
+					}
+					prev = page;
+					page = leafPage(prev.getId().getPageNumber() + 1);
+					prev.setRightSiblingId(page.getId());
+					page.setLeftSiblingId(prev.getId());
+				}
+				page.insertTuple(t);
+			}
+			if(prev != null) {
+				if(page.getNumEmptySlots() > page.getMaxTuples() - page.getMaxTuples() / 2) {
+					while(page.getNumEmptySlots() - prev.getNumEmptySlots() > 1) {
+						Tuple t = prev.reverseIterator().next();
+						prev.deleteTuple(t);
+						page.insertTuple(t);
+					}
+				}
+				lastKey = writeLeaf(rf, prev, lastKey, children, separators);
+			}
+			writeLeaf(rf, page, lastKey, children, separators);
+
+			int childCategory = BTreePageId.LEAF;
+			int nextPage = page.getId().getPageNumber() + 1;
+			while(children.size() > 1) {
+				// the pages of the level, and the index of the first child of each
+				List<BTreeInternalPage> pages = new ArrayList<>();
+				List<Integer> starts = new ArrayList<>();
+				BTreeInternalPage internal = internalPage(nextPage++);
+				int start = 0;
+				for(int c = 1; c < children.size(); c++) {
+					if(internal.getNumEntries() > 0 && filled(internal, internal.getMaxEntries())) {
+						pages.add(internal);
+						starts.add(start);
+						internal = internalPage(nextPage++);
+						start = c;
+						continue;
+					}
+					internal.insertEntry(entry(children, separators, c, childCategory));
+				}
+				pages.add(internal);
+				starts.add(start);
+				balanceLast(pages, starts, children, separators, childCategory);
+
+				// set the parent pointers of the level below
+				List<Integer> parentChildren = new ArrayList<>();
+				List<Field> parentSeparators = new ArrayList<>();
+				for(int p = 0; p < pages.size(); p++) {
+					int end = p + 1 < pages.size() ? starts.get(p + 1) : children.size();
+					for(int c = starts.get(p); c < end; c++) {
+						setParent(rf, children.get(c), pages.get(p).getId().getPageNumber());
+					}
+					parentChildren.add(pages.get(p).getId().getPageNumber());
+					parentSeparators.add(separators.get(starts.get(p)));
+				}
+				for(BTreeInternalPage p : pages) {
+					writePage(rf, p.getId().getPageNumber(), p.getPageData());
+				}
+				children = parentChildren;
+				separators = parentSeparators;
+				childCategory = BTreePageId.INTERNAL;
+			}
+
+			rf.seek(0);
+			rf.write(BTreeFileEncoder.convertToRootPtrPage(children.get(0), childCategory, 0));
+		}
+
+		/**
+		 * Write a leaf and note its number and the key that separates it from the
+		 * leaf before it.
+		 *
+		 * @return the last key of the leaf
+		 */
+		private Field writeLeaf(RandomAccessFile rf, BTreeLeafPage leaf, Field lastKey,
+				List<Integer> children, List<Field> separators) throws IOException {
+			children.add(leaf.getId().getPageNumber());
+			separators.add(key.separator(lastKey, key.keyOf(leaf.iterator().next())));
+			writePage(rf, leaf.getId().getPageNumber(), leaf.getPageData());
+			return key.keyOf(leaf.reverseIterator().next());
+		}
+
+		/** @return the entry for child c and the one before it */
+		private BTreeEntry entry(List<Integer> children, List<Field> separators, int c, int childCategory) {
+			return new BTreeEntry(separators.get(c),
+					new BTreePageId(bf.getId(), children.get(c - 1), childCategory),
+					new BTreePageId(bf.getId(), children.get(c), childCategory));
+		}
+
+		/**
+		 * If the last page of a level is less than half full, spread the children
+		 * of the last two pages over both again, half of the empty slots each.
+		 */
+		private void balanceLast(List<BTreeInternalPage> pages, List<Integer> starts,
+				List<Integer> children, List<Field> separators, int childCategory)
+						throws DbException, IOException {
+			int n = pages.size();
+			BTreeInternalPage last = pages.get(n - 1);
+			int max = last.getMaxEntries();
+			if(n < 2 || (last.getNumEntries() > 0 && last.getNumEmptySlots() <= max - max / 2)) {
+				return;
+			}
+			BTreeInternalPage before = pages.get(n - 2);
+			int used = 2 * max - before.getNumEmptySlots() - last.getNumEmptySlots();
+			BTreeInternalPage left = internalPage(before.getId().getPageNumber());
+			BTreeInternalPage right = internalPage(last.getId().getPageNumber());
+			int c = starts.get(n - 2) + 1;
+			// keep at least one entry for the right page
+			while(c < children.size() - 1 && max - left.getNumEmptySlots() < used / 2) {
+				left.insertEntry(entry(children, separators, c++, childCategory));
+			}
+			starts.set(n - 1, c);
+			for(c++; c < children.size(); c++) {
+				right.insertEntry(entry(children, separators, c, childCategory));
+			}
+			pages.set(n - 2, left);
+			pages.set(n - 1, right);
+		}
+
+		/** Set the parent pointer of a page already written, the first int of the page */
+		private void setParent(RandomAccessFile rf, int pgNo, int parent) throws IOException {
+			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * pageSize);
+			rf.writeInt(parent);
+		}
+
+		private void writePage(RandomAccessFile rf, int pgNo, byte[] data) throws IOException {
+			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * pageSize);
+			rf.write(data);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -10,6 +11,7 @@ import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.storage.*;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -26,12 +28,37 @@ import simpledb.transaction.TransactionId;
  * @see BTreeRootPtrPage#BTreeRootPtrPage
  * @author Becca Taft
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements IndexFile {
 
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final KeyDesc keyDesc;
+
+	/**
+	 * The right-most leaf as last seen by an insert, so that inserts of increasing keys
+	 * (auto-increment ids, timestamps) can go straight to it instead of descending from
+	 * the root. It is only a hint: see findTailLeafPage for how it is checked.
+	 */
+	private volatile TailHint tailHint;
+
+	/**
+	 * The number of times a freed page number was handed out again. Page ids carry the
+	 * category of the page, so a leaf that was freed and reused as an internal or header
+	 * page cannot be recognized by looking at it; a hint taken before a reuse is not trusted.
+	 */
+	private final AtomicInteger pageReuses = new AtomicInteger();
+
+	private static final class TailHint {
+		final BTreePageId pid;
+		final int pageReuses;
+
+		TailHint(BTreePageId pid, int pageReuses) {
+			this.pid = pid;
+			this.pageReuses = pageReuses;
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,9 +69,23 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new KeyDesc(td, key), td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on one or more fields, e.g. (tenant_id, created_at).
+	 * The tuples are kept in the order of the first field, then the second, and so on.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the fields which the index is keyed on, see KeyDesc
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, KeyDesc key, TupleDesc td) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = key.fields()[0];
+		this.keyDesc = key;
 		this.td = td;
 	}
 
@@ -117,9 +158,9 @@ public class BTreeFile implements DbFile {
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyDesc);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    return new BTreeLeafPage(id, pageBuf, keyDesc);
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     return new BTreeHeaderPage(id, pageBuf);
                 }
@@ -162,50 +203,288 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, the first one if
+	 * it is keyed on several
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns the key of this B+ tree
+	 */
+	public KeyDesc getKeyDesc() {
+		return keyDesc;
+	}
+
+	/**
+	 * A B+ tree keeps its tuples in key order.
+	 */
+	public boolean isOrdered() {
+		return true;
+	}
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f. It locks the internal nodes along the path to
+	 * the leaf node with READ_ONLY permission, and locks the leaf node with permission perm.
+	 * 
+	 * The internal nodes are locked by lock coupling: the lock on a node is released as
+	 * soon as its child on the path is locked, unless the transaction held it before (or
+	 * has dirtied it), so readers and writers of different leaves only briefly share the
+	 * upper levels of the tree. While the child is locked, no split or merge can move the
+	 * part of the tree the search is heading for.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
+	 * If last is true, it finds the right-most page possibly containing f instead, or the
+	 * right-most leaf page if f is null -- used by descending scans.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param last - true to find the right-most leaf page possibly containing f
+	 * @param from - the page pid was read from, whose lock should be released once pid is
+	 * locked, or null if there is none to release
+	 * @return the left-most (or right-most) leaf page possibly containing the key field f
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+                                       Field f, boolean last, PageId from)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		BufferPool bp = Database.getBufferPool();
+		while(true) {
+			boolean held = isHeld(tid, dirtypages, pid);
+			Page page = getPage(tid, dirtypages, pid,
+					pid.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY);
+			if(from != null) {
+				bp.unsafeReleasePage(tid, from);
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				return (BTreeLeafPage) page;
+			}
+			from = held ? null : pid;
+			pid = last ? lastChildFor((BTreeInternalPage) page, f) : childFor((BTreeInternalPage) page, f);
+		}
+	}
+
+	/**
+	 * @return true if the transaction already holds a lock on the page that a search
+	 * must not release
+	 */
+	private static boolean isHeld(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) {
+		return tid == null || dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * @return the child of an internal page on the way to the left-most leaf possibly
+	 * containing f, or to the left-most leaf if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * @return the child of an internal page on the way to the right-most leaf possibly
+	 * containing f, or to the right-most leaf if f is null: keys equal to f may be in the
+	 * children to the right of an entry with key f
+	 */
+	private static BTreePageId lastChildFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f != null && f.compare(Op.LESS_THAN, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Find and lock the leaf page for f starting at the root pointer, when there is no
+	 * dirtypages HashMap. Used by the BTreeFile iterators; the leaf is locked READ_ONLY
+	 * and the lock on the root pointer is released like those on the internal nodes.
+	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field, boolean, PageId)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, f, false);
+	}
+
+	/**
+	 * Find and lock the left-most or the right-most leaf page for f, like
+	 * findLeafPage(TransactionId, Field).
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for
+	 * @param last - true for the right-most leaf page possibly containing f
+	 * @return the left-most or right-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f, boolean last)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = isHeld(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_ONLY, f, last,
+				held ? null : rootPtrId);
+	}
+
+	/**
+	 * Returns the ids of the leaves to the right of a leaf, in order, as far as they can be
+	 * read from its parent and from the next internal page under the same grandparent, so
+	 * that a scan can read them ahead. If op is not null, the scan stops at the first key
+	 * that does not satisfy op bound (LESS_THAN or LESS_THAN_OR_EQ), and only the leaves
+	 * whose separator on the left satisfies it are returned: the scan reaches all of them,
+	 * since all the keys left of such a separator satisfy it too.
+	 *
+	 * If reverse is true, the scan goes from right to left instead: the leaves to the left
+	 * of leaf are returned, from right to left, and a bound (GREATER_THAN or
+	 * GREATER_THAN_OR_EQ) is checked against the separators on their right.
+	 *
+	 * The internal pages are locked and released like in findLeafPage, and are not read if
+	 * another transaction may be changing them. The ids are only a hint, which the scan
+	 * checks against the sibling pointers of the leaves as it reaches them.
+	 *
+	 * @param tid - the transaction id
+	 * @param leaf - the leaf the scan is on
+	 * @param reverse - true if the scan goes from right to left
+	 * @param op - the operator of the bound the scan stops at, or null if it has none
+	 * @param bound - the bound the scan stops at
+	 * @return the ids of the leaves the scan will read after leaf, or some of them
+	 */
+	List<BTreePageId> leavesAfter(TransactionId tid, BTreeLeafPage leaf, boolean reverse, Op op, Field bound)
+			throws DbException, TransactionAbortedException {
+		List<BTreePageId> ids = new ArrayList<>();
+		BTreePageId parentId = leaf.getParentId();
+		BTreeInternalPage parent = readHint(tid, parentId);
+		if(parent == null || !childrenAfter(parent, leaf.getId(), reverse, op, bound, ids)) {
+			return ids;
+		}
+		// the scan goes on past the last child of the parent, into the next internal page
+		BTreeInternalPage grandparent = readHint(tid, parent.getParentId());
+		List<BTreePageId> next = new ArrayList<>();
+		if(grandparent != null) {
+			childrenAfter(grandparent, parentId, reverse, op, bound, next);
+		}
+		if(!next.isEmpty()) {
+			BTreeInternalPage uncle = readHint(tid, next.get(0));
+			if(uncle != null) {
+				childrenAfter(uncle, null, reverse, op, bound, ids);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Read an internal page for leavesAfter, unless it is not an internal page or another
+	 * transaction may be changing it.
+	 *
+	 * @return the page, or null
+	 */
+	private BTreeInternalPage readHint(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		if(pid.pgcateg() != BTreePageId.INTERNAL
+				|| (tid != null && bp.getLockManager().hasOtherWriters(tid, pid))) {
+			return null;
+		}
+		boolean held = isHeld(tid, Collections.emptyMap(), pid);
+		Page page = bp.getPage(tid, pid, Permissions.READ_ONLY);
+		if(!held) {
+			bp.unsafeReleasePage(tid, pid);
+		}
+		return (BTreeInternalPage) page;
+	}
+
+	/**
+	 * Add the children of an internal page to the right of child (all of them if child is
+	 * null) to ids, in order, up to the first whose separator on the left does not satisfy
+	 * op bound. If reverse is true, add those to the left of child instead, from right to
+	 * left, up to the first whose separator on the right does not satisfy op bound.
+	 *
+	 * @return true if all the children after child were added, false if some were not or
+	 * child is not a child of the page
+	 */
+	private static boolean childrenAfter(BTreeInternalPage page, BTreePageId child, boolean reverse, Op op,
+			Field bound, List<BTreePageId> ids) {
+		Iterator<BTreeEntry> it = reverse ? page.reverseIterator() : page.iterator();
+		if(!it.hasNext()) {
+			return false;
+		}
+		BTreeEntry e = it.next();
+		BTreePageId first = reverse ? e.getRightChild() : e.getLeftChild();
+		boolean found = child == null || first.equals(child);
+		if(child == null) {
+			ids.add(first);
+		}
+		while(true) {
+			BTreePageId next = reverse ? e.getLeftChild() : e.getRightChild();
+			if(!found) {
+				found = next.equals(child);
+			}
+			else if(op != null && !e.getKey().compare(op, bound)) {
+				return false;
+			}
+			else {
+				ids.add(next);
+			}
+			if(!it.hasNext()) {
+				return found;
+			}
+			e = it.next();
+		}
+	}
+
+	/**
+	 * Find and lock the right-most leaf page with read-write permission without descending
+	 * from the root, if the tail hint is still good and a tuple with key field f belongs in
+	 * it. The hint is good if, once the page is locked, no freed page has been reused since
+	 * the hint was taken (so the page is still a leaf of this tree), the page has no right
+	 * sibling, its first key is not greater than f and it has an empty slot: a split needs
+	 * the parents of the page, which are locked on the way down from the root.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the key field of the tuple to be inserted
+	 * @return the right-most leaf page, or null if the tree has to be searched from the root
+	 */
+	private BTreeLeafPage findTailLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Field f)
+			throws DbException, TransactionAbortedException {
+		TailHint hint = tailHint;
+		if(hint == null || hint.pageReuses != pageReuses.get()) {
+			return null;
+		}
+		BufferPool bp = Database.getBufferPool();
+		boolean held = isHeld(tid, dirtypages, hint.pid);
+		BTreeLeafPage page = (BTreeLeafPage) (dirtypages.containsKey(hint.pid) ? dirtypages.get(hint.pid)
+				: bp.getPage(tid, hint.pid, Permissions.READ_WRITE));
+		// while waiting for the lock, the page may have been freed and reused
+		if(hint.pageReuses != pageReuses.get() || page.getRightSiblingId() != null
+				|| page.getNumTuples() == 0 || page.getNumEmptySlots() == 0
+				|| f.compare(Op.LESS_THAN, keyDesc.keyOf(page.iterator().next()))) {
+			if(!held) {
+				bp.unsafeReleasePage(tid, hint.pid);
+			}
+			return null;
+		}
+		return (BTreeLeafPage) getPage(tid, dirtypages, hint.pid, Permissions.READ_WRITE);
 	}
 
 	/**
@@ -215,6 +494,15 @@ public class BTreeFile implements DbFile {
 	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
 	 * pointers as needed.  
 	 * 
+	 * The upper half of the tuples moves to the new page, except when the right-most leaf is
+	 * split for a key no smaller than any on it: then keys are most likely being appended in
+	 * increasing order, nothing will be inserted into the left page any more, and only a tenth
+	 * of the tuples moves, so that the left page stays 90% full. Halves and tenths are of the
+	 * empty slots the tuples free, which a compressed page counts in its bytes.
+	 * 
+	 * With normalized keys, the key copied up is the shortest one between the last key of the
+	 * left page and the first key of the new page (see KeyDesc#separator).
+	 * 
 	 * Return the leaf page into which a new tuple with key field "field" should be inserted.
 	 * 
 	 * @param tid - the transaction id
@@ -231,16 +519,43 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page, or the upper tenth when appending
+		Iterator<Tuple> it = page.reverseIterator();
+		boolean append = page.getRightSiblingId() == null
+				&& field.compare(Op.GREATER_THAN_OR_EQ, keyDesc.keyOf(page.reverseIterator().next()));
+		int emptySlots = page.getNumEmptySlots();
+		int used = page.getMaxTuples() - emptySlots;
+		int freed = append ? Math.max(1, used / 10) : used / 2;
+		Deque<Tuple> moving = new ArrayDeque<>();
+		while(page.getNumEmptySlots() - emptySlots < freed) {
+			Tuple t = it.next();
+			page.deleteTuple(t);
+			moving.addFirst(t);
+		}
+		for(Tuple t : moving) {
+			newPage.insertTuple(t);
+		}
+
+		// link the new page into the leaf chain
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field midKey = keyDesc.separator(keyDesc.keyOf(page.reverseIterator().next()),
+				keyDesc.keyOf(moving.getFirst()));
+		BTreeInternalPage parent = getParentForEntry(tid, dirtypages, page, midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN_OR_EQ, midKey) ? newPage : page;
 	}
 	
 	/**
@@ -268,16 +583,33 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// the upper half of the entries moves to the new page, and the entry below
+		// them is pushed up into the parent
+		int emptySlots = page.getNumEmptySlots();
+		int freed = (page.getMaxEntries() - emptySlots) / 2;
+		Deque<BTreeEntry> moving = new ArrayDeque<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(page.getNumEmptySlots() - emptySlots < freed) {
+			BTreeEntry e = it.next();
+			page.deleteKeyAndRightChild(e);
+			moving.addFirst(e);
+		}
+		BTreeEntry mid = it.next();
+		page.deleteKeyAndRightChild(mid);
+		for(BTreeEntry e : moving) {
+			newPage.insertEntry(e);
+		}
+
+		BTreeInternalPage parent = getParentForEntry(tid, dirtypages, page, mid.getKey());
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		parent.insertEntry(mid);
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		return field.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -332,6 +664,26 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Get the parent of a page that is being split ready to accept the entry for the new
+	 * page to its right.  If the parent has to be split as well, the page can end up in
+	 * either half: updateParentPointers moves its parent pointer along, so the page is
+	 * asked for its parent afterwards.  With duplicate keys the key alone cannot tell
+	 * which half that is.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page being split, locked with read-write permission
+	 * @param field - the key of the entry which will be inserted
+	 * @return the parent page of page, with at least one empty slot
+	 * @see #getParentWithEmptySlots(TransactionId, Map, BTreePageId, Field)
+	 */
+	private BTreeInternalPage getParentForEntry(TransactionId tid, Map<PageId, Page> dirtypages,
+			BTreePage page, Field field) throws DbException, IOException, TransactionAbortedException {
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
+		return (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 * 
@@ -407,6 +759,9 @@ public class BTreeFile implements DbFile {
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				// mark the page right away: if the transaction is aborted half way through
+				// a split or merge, rollback must restore every page it may have changed
+				p.markDirty(true, tid);
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -426,35 +781,183 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = keyDesc.keyOf(t);
+
+		// appending to the right-most leaf does not need the upper levels of the tree,
+		// unless the leaf has to be split
+		BTreeLeafPage tailPage = findTailLeafPage(tid, dirtypages, key);
+		if(tailPage != null) {
+			tailPage.insertTuple(t);
+			setTailHint(tailPage);
+			return new ArrayList<>(dirtypages.values());
+		}
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = isHeld(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
+			held = true;
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+		// find and lock the left-most leaf page corresponding to the key field. If it is
+		// full, lock the path to it again for the split, from the top down, and split it
+		BTreeLeafPage leafPage = findLeafWithRoom(tid, dirtypages, rootId, key, held ? null : rootPtrId);
+		if(leafPage == null) {
+			leafPage = lockPathForSplit(tid, dirtypages, key, false);
+			if(leafPage == null) {
+				leafPage = lockPathForSplit(tid, dirtypages, key, true);
+			}
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+			}
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
+		setTailHint(leafPage);
 
         return new ArrayList<>(dirtypages.values());
 	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f with
+	 * read-write permission, if it has an empty slot. The internal nodes are locked
+	 * READ_ONLY and released by lock coupling, like in findLeafPage. A full leaf is
+	 * released again, unless the transaction held it before, since splitting it needs
+	 * its parents.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the root page
+	 * @param f - the key field of the tuple to be inserted
+	 * @param from - the page pid was read from, whose lock should be released once pid is
+	 * locked, or null if there is none to release
+	 * @return the leaf page, or null if it is full
+	 */
+	private BTreeLeafPage findLeafWithRoom(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid,
+			Field f, PageId from) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		while(true) {
+			boolean held = isHeld(tid, dirtypages, pid);
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			// the leaf is not marked dirty until it is known to have room: a page marked
+			// dirty must stay locked, or rollback could overwrite the changes of others
+			Page page = leaf && !held ? bp.getPage(tid, pid, Permissions.READ_WRITE)
+					: getPage(tid, dirtypages, pid, leaf ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+			if(from != null) {
+				bp.unsafeReleasePage(tid, from);
+			}
+			if(leaf) {
+				if(((BTreeLeafPage) page).getNumEmptySlots() > 0) {
+					return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				}
+				if(!held) {
+					bp.unsafeReleasePage(tid, pid);
+				}
+				return null;
+			}
+			from = held ? null : pid;
+			pid = childFor((BTreeInternalPage) page, f);
+		}
+	}
+
+	/**
+	 * Lock the path from the root to the left-most leaf page possibly containing the key
+	 * field f with read-write permission, for a split of the leaf (lock crabbing). A page
+	 * with an empty slot takes the entry for a split of its child without being split
+	 * itself, so once such a page is locked, the locks on the pages above it are released
+	 * again, unless the transaction held them before. The split then finds every page it
+	 * changes already locked: all locks are taken from the top down, in the order searches
+	 * take them, so a split never waits for a page above one it holds.
+	 * 
+	 * The root pointer changes only if the root is split. It is locked READ_ONLY and kept,
+	 * since allocating pages reads it, unless the root is full: then the caller has to
+	 * start again with rootPtrWrite set, which locks the root pointer with read-write
+	 * permission.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the key field of the tuple to be inserted
+	 * @param rootPtrWrite - true to lock the root pointer with read-write permission
+	 * @return the leaf page, or null if the root is full and rootPtrWrite is false
+	 */
+	private BTreeLeafPage lockPathForSplit(TransactionId tid, Map<PageId, Page> dirtypages, Field f,
+			boolean rootPtrWrite) throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = isHeld(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) (rootPtrWrite ? lockForWrite(tid, dirtypages, rootPtrId)
+				: getRootPtrPage(tid, dirtypages));
+		BTreePageId pid = rootPtr.getRootId();
+		// the pages locked on the way down that the split may still change
+		List<BTreePageId> locked = new ArrayList<>();
+		while(true) {
+			boolean held = isHeld(tid, dirtypages, pid);
+			BTreePage page = (BTreePage) lockForWrite(tid, dirtypages, pid);
+			if(page.getNumEmptySlots() > 0) {
+				for(BTreePageId id : locked) {
+					bp.unsafeReleasePage(tid, id);
+				}
+				locked.clear();
+			}
+			else if(!rootPtrWrite && pid.equals(rootPtr.getRootId())) {
+				if(!held) {
+					bp.unsafeReleasePage(tid, pid);
+				}
+				if(!rootPtrHeld) {
+					bp.unsafeReleasePage(tid, rootPtrId);
+				}
+				return null;
+			}
+			if(!held) {
+				locked.add(pid);
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			}
+			pid = childFor((BTreeInternalPage) page, f);
+		}
+	}
+
+	/**
+	 * Lock a page with read-write permission without marking it dirty, so that the lock
+	 * can be released again if the page is not changed after all.
+	 */
+	private Page lockForWrite(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		return Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Remember a leaf page the caller has just inserted into, if it is the right-most leaf.
+	 * The page is locked with read-write permission, so it cannot have been freed.
+	 */
+	private void setTailHint(BTreeLeafPage page) {
+		if(page.getRightSiblingId() == null) {
+			TailHint hint = tailHint;
+			if(hint == null || !hint.pid.equals(page.getId()) || hint.pageReuses != pageReuses.get()) {
+				tailHint = new TailHint(page.getId(), pageReuses.get());
+			}
+		}
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
 	 * Otherwise merge with one of the siblings. Update pointers as needed.
 	 * 
+	 * The parent, the siblings and the pages above that may change too are already locked,
+	 * from the top down (see lockPathForMerge).
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param page - the page which is less than half full
@@ -532,7 +1035,7 @@ public class BTreeFile implements DbFile {
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(parent.hasRoomForKey()) {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
 			}
 		}
@@ -543,7 +1046,7 @@ public class BTreeFile implements DbFile {
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(parent.hasRoomForKey()) {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
@@ -552,7 +1055,7 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
-	 * tuple in the right-hand page.
+	 * tuple in the right-hand page, or with normalized keys, separates the two pages.
 	 * 
 	 * @param page - the leaf page which is less than half full
 	 * @param sibling - the sibling which has tuples to spare
@@ -564,11 +1067,21 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// take the tuples next to the page, the first ones of a right sibling, the
+		// last ones of a left sibling, until the two have as many empty slots
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(page.getNumEmptySlots() - sibling.getNumEmptySlots() > 1) {
+			Tuple t = it.next();
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key in the parent separates the two pages
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(keyDesc.separator(keyDesc.keyOf(left.reverseIterator().next()),
+				keyDesc.keyOf(right.iterator().next())));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -606,7 +1119,7 @@ public class BTreeFile implements DbFile {
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(parent.hasRoomForKey()) {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
 			}
 		}
@@ -617,7 +1130,7 @@ public class BTreeFile implements DbFile {
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(parent.hasRoomForKey()) {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 		}
@@ -643,11 +1156,22 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// rotate the entries through the parent: the parent's key comes down in
+		// front of the page, and the last key of the left sibling goes up, until
+		// the two pages have as many empty slots
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		Field key = parentEntry.getKey();
+		while(page.getNumEmptySlots() - leftSibling.getNumEmptySlots() > 1) {
+			BTreeEntry e = it.next();
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(key, e.getRightChild(), firstChild));
+			firstChild = e.getRightChild();
+			key = e.getKey();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -670,11 +1194,22 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// rotate the entries through the parent: the parent's key comes down at
+		// the end of the page, and the first key of the right sibling goes up,
+		// until the two pages have as many empty slots
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		Field key = parentEntry.getKey();
+		while(page.getNumEmptySlots() - rightSibling.getNumEmptySlots() > 1) {
+			BTreeEntry e = it.next();
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(key, lastChild, e.getLeftChild()));
+			lastChild = e.getLeftChild();
+			key = e.getKey();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -698,13 +1233,26 @@ public class BTreeFile implements DbFile {
 	public void mergeLeafPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> moving = new ArrayList<>(rightPage.getNumTuples());
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page from the leaf chain
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -730,14 +1278,23 @@ public class BTreeFile implements DbFile {
 	public void mergeInternalPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<BTreeEntry> moving = new ArrayList<>(rightPage.getNumEntries());
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// pull the parent's key down between the two halves
+		BTreePageId lastChild = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, moving.get(0).getLeftChild()));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -767,7 +1324,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -801,10 +1358,29 @@ public class BTreeFile implements DbFile {
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		BufferPool bp = Database.getBufferPool();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		// the leaf is only locked with read-write permission once it is known to stay at
+		// least half full: one that may not is released again, unless the transaction
+		// held it before, and locked from the top down along with the pages a merge changes
+		boolean held = isHeld(tid, dirtypages, pageId);
+		BTreeLeafPage page = (BTreeLeafPage) bp.getPage(tid, pageId, Permissions.READ_ONLY);
+		if(!mayUnderflow(page)) {
+			page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+			return new ArrayList<>(dirtypages.values());
+		}
+		if(!held) {
+			bp.unsafeReleasePage(tid, pageId);
+		}
+
+		List<BTreePageId> locked = new ArrayList<>();
+		page = lockPathForMerge(tid, dirtypages, pageId, false, locked);
+		while(page == null) {
+			page = lockPathForMerge(tid, dirtypages, pageId, true, locked);
+		}
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -813,10 +1389,168 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+		// the pages locked for a merge or a steal that did not happen
+		for(BTreePageId id : locked) {
+			if(!dirtypages.containsKey(id)) {
+				bp.unsafeReleasePage(tid, id);
+			}
+		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * @return true if deleting one tuple or entry from the page may leave it less than
+	 * half full, so that it steals from or merges with a sibling. The root is never less
+	 * than half full.
+	 */
+	private static boolean mayUnderflow(BTreePage page) {
+		if(page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			return false;
+		}
+		int max = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).getMaxTuples()
+				: ((BTreeInternalPage) page).getMaxEntries();
+		return page.getNumEmptySlotsAfterDelete() > max - max/2;
+	}
+
+	/**
+	 * Lock the path from the root to a leaf page with read-write permission, for a delete
+	 * from the leaf that may leave it less than half full, along with the pages a steal or
+	 * a merge changes: at each level the sibling the page steals from or merges with, and
+	 * next to a leaf, the leaf after the two in the sibling chain. A page that stays at
+	 * least half full when it loses an entry is not changed by what happens below it, so
+	 * once such a page is locked, the locks on the pages above it and on its siblings are
+	 * released again, unless the transaction held them before. All locks are taken from
+	 * the top down, and from left to right on each level, like lockPathForSplit takes them:
+	 * a merge never waits for a page above one it holds. Only the children whose parent
+	 * pointers an internal merge or steal moves are locked below the pages it holds, when
+	 * it moves them.
+	 * 
+	 * The path is read from the parent pointers of the pages, each locked only while its
+	 * pointer is read, and checked against the child pointers as the pages are locked. The root pointer changes if the
+	 * root loses its last entry, and when the first page of the file is freed, since that
+	 * adds the first header page. It is locked READ_ONLY and kept, unless either may
+	 * happen: then the caller has to start again with rootPtrWrite set. The caller also
+	 * starts again if the tree changed under the path.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param leafId - the leaf page a tuple is to be deleted from
+	 * @param rootPtrWrite - true to lock the root pointer with read-write permission
+	 * @param locked - the pages locked that the transaction did not hold before are added
+	 * to it, so that those the delete does not change can be released
+	 * @return the leaf page, or null if the caller has to start again
+	 */
+	private BTreeLeafPage lockPathForMerge(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId leafId,
+			boolean rootPtrWrite, List<BTreePageId> locked)
+					throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		LinkedList<BTreePageId> path = new LinkedList<>();
+		for(BTreePageId pid = leafId; pid.pgcateg() != BTreePageId.ROOT_PTR; ) {
+			path.addFirst(pid);
+			boolean held = isHeld(tid, dirtypages, pid);
+			BTreePage page = (BTreePage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+			if(!held) {
+				bp.unsafeReleasePage(tid, pid);
+			}
+			pid = page.getParentId();
+		}
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = isHeld(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) (rootPtrWrite ? lockForWrite(tid, dirtypages, rootPtrId)
+				: getRootPtrPage(tid, dirtypages));
+		if(!rootPtrHeld) {
+			locked.add(rootPtrId);
+		}
+		// the pages locked on the way down that the delete may still change
+		List<BTreePageId> keep = new ArrayList<>();
+		BTreeInternalPage parent = null;
+		for(BTreePageId pid : path) {
+			BTreeEntry leftEntry = null;
+			BTreeEntry rightEntry = null;
+			boolean linked = parent == null ? pid.equals(rootPtr.getRootId()) : false;
+			if(parent != null) {
+				Iterator<BTreeEntry> ite = parent.iterator();
+				while(ite.hasNext()) {
+					BTreeEntry e = ite.next();
+					if(e.getLeftChild().equals(pid)) {
+						rightEntry = e;
+						linked = true;
+						break;
+					}
+					else if(e.getRightChild().equals(pid)) {
+						leftEntry = e;
+						linked = true;
+					}
+				}
+			}
+			if(!linked) {
+				releaseAll(tid, locked);
+				return null;
+			}
+			if(leftEntry != null) {
+				lockOnPath(tid, dirtypages, leftEntry.getLeftChild(), keep, locked);
+			}
+			BTreePage page = (BTreePage) lockOnPath(tid, dirtypages, pid, keep, locked);
+			if(parent == null && !rootPtrWrite && page instanceof BTreeInternalPage
+					&& (rootPtr.getHeaderId() == null || ((BTreeInternalPage) page).getNumEntries() <= 1)) {
+				releaseAll(tid, locked);
+				return null;
+			}
+			if(!mayUnderflow(page)) {
+				for(Iterator<BTreePageId> it = keep.iterator(); it.hasNext(); ) {
+					BTreePageId id = it.next();
+					if(!id.equals(pid)) {
+						bp.unsafeReleasePage(tid, id);
+						locked.remove(id);
+						it.remove();
+					}
+				}
+			}
+			else {
+				BTreePage right = page;
+				if(leftEntry == null && rightEntry != null) {
+					right = (BTreePage) lockOnPath(tid, dirtypages, rightEntry.getRightChild(), keep, locked);
+				}
+				if(right instanceof BTreeLeafPage && ((BTreeLeafPage) right).getRightSiblingId() != null) {
+					lockOnPath(tid, dirtypages, ((BTreeLeafPage) right).getRightSiblingId(), keep, locked);
+				}
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			}
+			parent = (BTreeInternalPage) page;
+		}
+		releaseAll(tid, locked);
+		return null;
+	}
+
+	/**
+	 * Lock a page for lockPathForMerge with read-write permission, and remember it in keep,
+	 * and in locked if the transaction did not hold it before.
+	 */
+	private Page lockOnPath(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid,
+			List<BTreePageId> keep, List<BTreePageId> locked) throws DbException, TransactionAbortedException {
+		boolean held = isHeld(tid, dirtypages, pid);
+		Page page = lockForWrite(tid, dirtypages, pid);
+		if(!held) {
+			keep.add(pid);
+			locked.add(pid);
+		}
+		return page;
+	}
+
+	/**
+	 * Release the locks on the pages of a path that lockPathForMerge has to lock again.
+	 */
+	private static void releaseAll(TransactionId tid, List<BTreePageId> locked) {
+		for(BTreePageId id : locked) {
+			Database.getBufferPool().unsafeReleasePage(tid, id);
+		}
+		locked.clear();
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -886,6 +1620,7 @@ public class BTreeFile implements DbFile {
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
 				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				pageReuses.incrementAndGet();
 			}
 		}
 
@@ -1041,6 +1776,26 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples whose key satisfies all of a few predicates, in key order or in
+	 * reverse key order. The scan reads only the leaves between the bounds the
+	 * predicates set on the key, and stops at the first key past the bound it goes
+	 * towards, so a caller that stops early, e.g. after the first few tuples of an ORDER
+	 * BY ... DESC, reads only the leaves it needed.
+	 * 
+	 * @param tid - the transaction id
+	 * @param preds - the predicates on the key, none for all the tuples
+	 * @param descending - true to return the tuples in reverse key order
+	 * @return an iterator for the filtered tuples
+	 */
+	@Override
+	public DbFileIterator indexIterator(TransactionId tid, List<IndexPredicate> preds, boolean descending) {
+		if(preds.isEmpty() && !descending) {
+			return iterator(tid);
+		}
+		return new BTreeSearchIterator(this, tid, preds, descending);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1056,65 +1811,245 @@ public class BTreeFile implements DbFile {
 }
 
 /**
- * Helper class that implements the Java Iterator for tuples on a BTreeFile
+ * Base of the iterators over the leaves of a BTreeFile: walks the leaves from left to
+ * right by following the right sibling pointers, or from right to left by following the
+ * left sibling pointers, and reads the next few leaves ahead with
+ * BufferPool#prefetchPages, taking their ids from the parents of the leaves (see
+ * BTreeFile#leavesAfter). The tuples of a leaf can also be read in one batch.
+ * <p>
+ * Writers lock neighbouring leaves from left to right, so a scan from right to left never
+ * waits for a left sibling while it holds the leaf it is on (see lockLeftSibling).
  */
-class BTreeFileIterator extends AbstractDbFileIterator {
+abstract class BTreeLeafIterator extends AbstractDbFileIterator {
+
+	/** The number of leaves read ahead of the one a scan is on */
+	static final int PREFETCH_DEPTH = 8;
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	/** set by readFromLeaf once no tuple further on can match */
+	boolean done = false;
 
 	final TransactionId tid;
 	final BTreeFile f;
+	/** true if the leaves are read from right to left, and their tuples from last to first */
+	final boolean reverse;
 
-	/**
-	 * Constructor for this iterator
-	 * @param f - the BTreeFile containing the tuples
-	 * @param tid - the transaction id
-	 */
-	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+	/** the ids of the leaves expected after curp; those from next on are not reached yet */
+	private List<BTreePageId> ahead = new ArrayList<>();
+	private int next = 0;
+	/** the parent of the leaf the ids were last taken from the parent of */
+	private BTreePageId aheadParent = null;
+
+	BTreeLeafIterator(BTreeFile f, TransactionId tid, boolean reverse) {
 		this.f = f;
 		this.tid = tid;
+		this.reverse = reverse;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Start the iteration on a leaf.
+	 * @param readAhead - true to read the next leaves ahead right away, false to wait
+	 * until the scan goes on to the next leaf (a lookup of a key often does not)
 	 */
-	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+	void start(BTreeLeafPage leaf, boolean readAhead) throws DbException, TransactionAbortedException {
+		curp = leaf;
+		it = reverse ? leaf.reverseIterator() : leaf.iterator();
+		done = false;
+		ahead = new ArrayList<>();
+		next = 0;
+		aheadParent = null;
+		if(readAhead) {
+			readAhead();
+		}
+	}
+
+	/**
+	 * @return the next tuple of the current leaf that the iterator returns, or null if
+	 * there is none (then done is set if there is none on the next leaves either)
+	 */
+	abstract Tuple readFromLeaf();
+
+	/**
+	 * The operator and value of the bound the scan stops at (see BTreeFile#leavesAfter):
+	 * the keys of the tuples the iterator returns are bounded from above, or from below if
+	 * the scan goes from right to left, or null if they are not.
+	 */
+	Op boundOp() {
+		return null;
+	}
+
+	Field bound() {
+		return null;
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
+	 * from the next page by following the sibling pointer.
 	 * 
 	 * @return the next tuple, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
+		while(curp != null) {
+			Tuple t = readFromLeaf();
+			if(t != null) {
+				return t;
+			}
+			if(done) {
+				return null;
+			}
+			nextLeaf();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the next tuples of the iteration in one batch: the next one, and the rest
+	 * of those on the same leaf.
+	 * 
+	 * @return the next tuples, or an empty list if there are no more
+	 */
+	public List<Tuple> nextBatch() throws DbException, TransactionAbortedException {
+		List<Tuple> batch = new ArrayList<>();
+		if(!hasNext()) {
+			return batch;
+		}
+		batch.add(next());
+		Tuple t;
+		while((t = readFromLeaf()) != null) {
+			batch.add(t);
+		}
+		return batch;
+	}
 
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
+	private void nextLeaf() throws DbException, TransactionAbortedException {
+		BTreePageId nextp = reverse ? curp.getLeftSiblingId() : curp.getRightSiblingId();
+		if(nextp == null) {
+			curp = null;
+			it = null;
+			return;
+		}
+		BTreeLeafPage leaf;
+		if(reverse) {
+			leaf = lockLeftSibling(nextp);
+			if(leaf == null) {
 				curp = null;
+				it = null;
+				return;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
+			nextp = leaf.getId();
+		}
+		else {
+			leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+		}
+		if(next < ahead.size() && ahead.get(next).equals(nextp)) {
+			next++;
+		}
+		else {
+			// the tree changed since the ids were read; read them again from the parent
+			ahead = new ArrayList<>();
+			next = 0;
+			aheadParent = null;
+		}
+		curp = leaf;
+		it = reverse ? curp.reverseIterator() : curp.iterator();
+		readAhead();
+	}
+
+	/**
+	 * Lock the left sibling of the current leaf for a scan from right to left. If another
+	 * transaction holds it, the scan does not wait for it while holding the current leaf,
+	 * as a writer that splits or merges the left sibling may be waiting for the current
+	 * leaf in turn. It lets go of the current leaf instead, waits for the left sibling and
+	 * then locks the current leaf again, in the order the writers use. The scan goes on if
+	 * the current leaf still holds the tuples it already returned; if they changed, another
+	 * transaction wrote into the range the scan has read, and the scan is aborted. If the
+	 * left sibling is no longer the one next to the current leaf (it split or merged in the
+	 * meantime), the scan tries again with the new left sibling.
+	 * <p>
+	 * The current leaf is only let go of if the transaction holds just a shared lock on it;
+	 * otherwise the scan waits for the left sibling like a scan from left to right.
+	 * 
+	 * @param left - the id of the left sibling of curp
+	 * @return the left sibling of curp, locked with read-only permission, or null if curp
+	 * has become the left-most leaf
+	 */
+	private BTreeLeafPage lockLeftSibling(BTreePageId left) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreeLeafPage leaf = (BTreeLeafPage) bp.tryGetPage(tid, left, Permissions.READ_ONLY);
+		if(leaf != null) {
+			return leaf;
+		}
+		BTreePageId cur = curp.getId();
+		if(bp.getLockManager().getMode(tid, cur) != LockManager.Mode.S) {
+			return (BTreeLeafPage) bp.getPage(tid, left, Permissions.READ_ONLY);
+		}
+		List<Tuple> read = new ArrayList<>();
+		curp.iterator().forEachRemaining(read::add);
+		while(true) {
+			bp.unsafeReleasePage(tid, cur);
+			boolean held = bp.holdsLock(tid, left);
+			leaf = (BTreeLeafPage) bp.getPage(tid, left, Permissions.READ_ONLY);
+			BTreeLeafPage page = (BTreeLeafPage) bp.getPage(tid, cur, Permissions.READ_ONLY);
+			if(!sameTuples(read, page)) {
+				throw new TransactionAbortedException();
+			}
+			if(left.equals(page.getLeftSiblingId())) {
+				return leaf;
+			}
+			if(!held) {
+				bp.unsafeReleasePage(tid, left);
+			}
+			left = page.getLeftSiblingId();
+			if(left == null) {
+				return null;
+			}
+			leaf = (BTreeLeafPage) bp.tryGetPage(tid, left, Permissions.READ_ONLY);
+			if(leaf != null) {
+				return leaf;
 			}
 		}
+	}
 
-		if (it == null)
-			return null;
-		return it.next();
+	/**
+	 * @return true if the tuples on page are the tuples in read, in the same slots
+	 */
+	private static boolean sameTuples(List<Tuple> read, BTreeLeafPage page) {
+		Iterator<Tuple> it = page.iterator();
+		for(Tuple t : read) {
+			if(!it.hasNext()) {
+				return false;
+			}
+			Tuple u = it.next();
+			if(!t.getRecordId().equals(u.getRecordId())) {
+				return false;
+			}
+			Iterator<Field> a = t.fields();
+			Iterator<Field> b = u.fields();
+			while(a.hasNext()) {
+				if(!b.hasNext() || !a.next().equals(b.next())) {
+					return false;
+				}
+			}
+		}
+		return !it.hasNext();
+	}
+
+	/**
+	 * Prefetch the next PREFETCH_DEPTH leaves, first taking more ids from the parent of the
+	 * current leaf if few are left, unless they were last taken from the same parent (then
+	 * they are all there is).
+	 */
+	private void readAhead() throws DbException, TransactionAbortedException {
+		if(ahead.size() - next < PREFETCH_DEPTH && !curp.getParentId().equals(aheadParent)) {
+			aheadParent = curp.getParentId();
+			ahead = f.leavesAfter(tid, curp, reverse, boundOp(), bound());
+			next = 0;
+		}
+		if(next < ahead.size()) {
+			Database.getBufferPool().prefetchPages(ahead.subList(next, Math.min(ahead.size(), next + PREFETCH_DEPTH)));
+		}
 	}
 
 	/**
@@ -1136,105 +2071,164 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 }
 
 /**
- * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * Helper class that implements the Java Iterator for tuples on a BTreeFile
  */
-class BTreeSearchIterator extends AbstractDbFileIterator {
+class BTreeFileIterator extends BTreeLeafIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		super(f, tid, false);
+	}
 
-	final TransactionId tid;
-	final BTreeFile f;
-	final IndexPredicate ipred;
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		start(f.findLeafPage(tid, null), true);
+	}
+
+	Tuple readFromLeaf() {
+		return it.hasNext() ? it.next() : null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File: the tuples whose key satisfies all of a few predicates, in key
+ * order or in reverse key order.
+ * <p>
+ * The predicates are reduced to a lower bound (GREATER_THAN, GREATER_THAN_OR_EQ, and
+ * EQUALS as GREATER_THAN_OR_EQ), an upper bound (LESS_THAN, LESS_THAN_OR_EQ, and
+ * EQUALS as LESS_THAN_OR_EQ), the tightest of each kind, and the others, which are only
+ * checked on each tuple. The scan starts at the leaf of the bound it starts from, if
+ * any, and stops at the first key past the other one, without reading the leaves
+ * beyond it.
+ */
+class BTreeSearchIterator extends BTreeLeafIterator {
+
+	final KeyDesc keyDesc;
+	/** the bounds, or null if the keys are not bounded on that side */
+	IndexPredicate lower = null;
+	IndexPredicate upper = null;
+	/** the predicates that are neither bounds */
+	final List<IndexPredicate> others = new ArrayList<>();
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
-	 * @param ipred - the predicate to filter on
+	 * @param ipred - the predicate to filter on; on a tree keyed on several fields or
+	 * on a string, its field is a key of the tree or a prefix of one (see KeyDesc#key),
+	 * or a value of the first field of the key
 	 */
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
-		this.f = f;
-		this.tid = tid;
-		this.ipred = ipred;
+		this(f, tid, Collections.singletonList(ipred), false);
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param preds - the predicates to filter on, as for a single one; none for all the
+	 * tuples
+	 * @param descending - true to return the tuples in reverse key order
 	 */
-	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, List<IndexPredicate> preds, boolean descending) {
+		super(f, tid, descending);
+		this.keyDesc = f.getKeyDesc();
+		for(IndexPredicate pred : preds) {
+			Field field = keyDesc.normalize(pred.getField());
+			switch (pred.getOp()) {
+			case EQUALS:
+				lower = tighter(lower, new IndexPredicate(Op.GREATER_THAN_OR_EQ, field), Op.GREATER_THAN);
+				upper = tighter(upper, new IndexPredicate(Op.LESS_THAN_OR_EQ, field), Op.LESS_THAN);
+				break;
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQ:
+				lower = tighter(lower, new IndexPredicate(pred.getOp(), field), Op.GREATER_THAN);
+				break;
+			case LESS_THAN:
+			case LESS_THAN_OR_EQ:
+				upper = tighter(upper, new IndexPredicate(pred.getOp(), field), Op.LESS_THAN);
+				break;
+			default:
+				others.add(new IndexPredicate(pred.getOp(), field));
+			}
 		}
-		else {
-			curp = f.findLeafPage(tid, root, null);
+	}
+
+	/**
+	 * @return the tighter of two bounds on the same side, beyond being GREATER_THAN for
+	 * a lower bound and LESS_THAN for an upper one
+	 */
+	private static IndexPredicate tighter(IndexPredicate b1, IndexPredicate b2, Op beyond) {
+		if(b1 == null || b2.getField().compare(beyond, b1.getField())) {
+			return b2;
 		}
-		it = curp.iterator();
+		if(b1.getField().compare(beyond, b2.getField())) {
+			return b1;
+		}
+		// the same value: a strict bound is tighter
+		return b1.getOp() == beyond ? b1 : b2;
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
-	 * 
-	 * @return the next tuple matching the predicate, or null if none exists
+	 * Open this iterator by getting an iterator on the leaf page of the bound the scan
+	 * starts from, or on the first (or last) leaf page if there is none
 	 */
-	@Override
-	protected Tuple readNext() throws TransactionAbortedException, DbException,
-	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
-			}
+	public void open() throws DbException, TransactionAbortedException {
+		IndexPredicate from = reverse ? upper : lower;
+		start(f.findLeafPage(tid, from == null ? null : from.getField(), reverse), false);
+	}
 
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+	/**
+	 * Read the next tuple of the current leaf matching the predicates.
+	 * 
+	 * @return the next tuple matching the predicates, or null if none exists on the leaf
+	 */
+	Tuple readFromLeaf() {
+		IndexPredicate from = reverse ? upper : lower;
+		IndexPredicate to = reverse ? lower : upper;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			Field key = keyDesc.keyOf(t);
+			if(to != null && !key.compare(to.getOp(), to.getField())) {
+				// the keys only get further from the bound the scan stops at, so we
+				// have hit the end
+				done = true;
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			if(from != null && !key.compare(from.getOp(), from.getField())) {
+				// the keys before the bound the scan starts from, on its leaf
+				continue;
+			}
+			if(matchesOthers(key)) {
+				return t;
 			}
 		}
-
 		return null;
 	}
 
-	/**
-	 * rewind this iterator back to the beginning of the tuples
-	 */
-	public void rewind() throws DbException, TransactionAbortedException {
-		close();
-		open();
+	private boolean matchesOthers(Field key) {
+		for(IndexPredicate pred : others) {
+			if(!key.compare(pred.getOp(), pred.getField())) {
+				return false;
+			}
+		}
+		return true;
 	}
 
-	/**
-	 * close the iterator
-	 */
-	public void close() {
-		super.close();
-		it = null;
+	Op boundOp() {
+		IndexPredicate to = reverse ? lower : upper;
+		return to == null ? null : to.getOp();
+	}
+
+	Field bound() {
+		IndexPredicate to = reverse ? lower : upper;
+		return to == null ? null : to.getField();
 	}
 }
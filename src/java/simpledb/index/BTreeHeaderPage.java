@@ -6,7 +6,7 @@ import simpledb.common.Type;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
-import simpledb.storage.Page;
+import simpledb.storage.SlottedPage;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -20,7 +20,7 @@ import java.util.Arrays;
  * @see BufferPool
  *
  */
-public class BTreeHeaderPage implements Page {
+public class BTreeHeaderPage implements SlottedPage {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
 	
@@ -35,6 +35,7 @@ public class BTreeHeaderPage implements Page {
 
 	byte[] oldData;
 	private final Byte oldDataLock= (byte) 0;
+	private volatile long lsn;
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -296,6 +297,46 @@ public class BTreeHeaderPage implements Page {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	public int getSlotCount() {
+		return numSlots;
+	}
+
+	/**
+	 * A header slot is a single bit, so its contents are empty.
+	 */
+	public byte[] getSlot(int i) {
+		return new byte[0];
+	}
+
+	public void putSlot(int i, byte[] data) {
+		markSlotUsed(i, true);
+	}
+
+	public void clearSlot(int i) {
+		markSlotUsed(i, false);
+	}
+
+	/**
+	 * The page state of a header page is its next and previous pointers.
+	 */
+	public byte[] getPageState() {
+		return java.nio.ByteBuffer.allocate(2 * INDEX_SIZE).putInt(nextPage).putInt(prevPage).array();
+	}
+
+	public void setPageState(byte[] state) {
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(state);
+		nextPage = buf.getInt();
+		prevPage = buf.getInt();
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * get the index of the first empty slot
 	 * @return the index of the first empty slot or -1 if none exists
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.TupleDesc;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -27,7 +28,10 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
-	
+	private final int maxEntries;
+	private final boolean compressed;
+	private int usedBytes = -1; // of the entries of a compressed page, -1 if not known
+
 	private int childCategory; // either leaf or internal
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
@@ -43,7 +47,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getMaxEntries() - getNumEmptySlots() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -62,6 +66,15 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A page of a tree with normalized keys is compressed, unless the page size
+	 * is too small for it to pay off. Its header has more slots, and its entries
+	 * follow the header in slot order, without gaps:
+	 * <pre>
+	 *     parent, child category, header, child 0, (key, child)...
+	 * </pre>
+	 * where each key is front coded against the key before it (see
+	 * {@link PrefixCoding}). The number of entries it holds then depends on
+	 * their keys; see {@link #getMaxEntries()}.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,8 +84,39 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new KeyDesc(Database.getCatalog().getTupleDesc(id.getTableId()), key));
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a tree keyed on one or more fields.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the key of the tree
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, KeyDesc key) throws IOException {
+		this(id, data, key, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a tree that is not in the catalog.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 */
+	BTreeInternalPage(BTreePageId id, byte[] data, KeyDesc key, TupleDesc td) throws IOException {
+		super(id, key, td);
+		int fixedEntries = getFixedEntries();
+		this.compressed = key.isNormalized() && fixedEntries >= MIN_COMPRESSED_ENTRIES;
+		if(compressed) {
+			// an entry takes at least two varints and a child pointer
+			this.numSlots = Math.min(COMPRESSED_SLOTS_FACTOR * fixedEntries,
+					BufferPool.getPageSize() / (INDEX_SIZE + 2)) + 1;
+			this.maxEntries = (getCapacity() - 2 * getMaxEntrySize()) / getEntrySize();
+		}
+		else {
+			this.numSlots = fixedEntries + 1;
+			this.maxEntries = fixedEntries;
+		}
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -91,6 +135,26 @@ public class BTreeInternalPage extends BTreePage {
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		if(compressed) {
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			Arrays.fill(children, -1);
+			int child = dis.readInt();
+			if(isSlotUsed(0))
+				children[0] = child;
+			byte[] prev = null;
+			for (int i=1; i<numSlots; i++) {
+				if(!isSlotUsed(i))
+					continue;
+				prev = PrefixCoding.read(dis, prev, keyDesc.getLen());
+				keys[i] = keyDesc.fromBytes(prev);
+				children[i] = dis.readInt();
+			}
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
@@ -118,9 +182,22 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * <p>
+	 * A compressed page holds as many entries as fit in its bytes, so this is the
+	 * number of entries of the size of an uncompressed one it holds, on top of
+	 * room for one more entry of the largest size, which keeps an insert into a
+	 * page with empty slots from overflowing it. Its empty slots are counted in
+	 * the same unit.
  	 */
-	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return the number of entries of an uncompressed page
+	 */
+	private int getFixedEntries() {
+		int keySize = keyDesc.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -133,13 +210,93 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return the number of bytes of a compressed page for the entries with keys
+	 */
+	private int getCapacity() {
+		// parent pointer, child page category, header and the child of slot 0
+		return BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - getHeaderSize();
+	}
+
+	/**
+	 * @return the size of an uncompressed entry, the unit of the entries of a
+	 * compressed page
+	 */
+	private int getEntrySize() {
+		return keyDesc.getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the most bytes an entry of a compressed page takes
+	 */
+	private int getMaxEntrySize() {
+		return PrefixCoding.maxSize(keyDesc.getLen()) + INDEX_SIZE;
+	}
+
+	private static byte[] bytes(Field key) {
+		return ((NormalizedKey) key).bytes();
+	}
+
+	/**
+	 * @return the number of bytes the entries with keys of a compressed page take
+	 */
+	private int getUsedBytes() {
+		if(usedBytes < 0) {
+			int used = 0;
+			byte[] prev = null;
+			for(int i = 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					used += PrefixCoding.size(prev, bytes(keys[i]), true) + INDEX_SIZE;
+					prev = bytes(keys[i]);
+				}
+			}
+			usedBytes = used;
+		}
+		return usedBytes;
+	}
+
+	/**
+	 * @return the number of bytes a compressed page grows by if key is put right
+	 * after the key of slot before, or replaces the key of slot replaced if it is
+	 * not -1
+	 */
+	private int getSizeChange(int before, Field key, int replaced) {
+		byte[] prev = before > 0 ? bytes(keys[before]) : null;
+		byte[] k = bytes(key);
+		byte[] old = prev;
+		int change = PrefixCoding.size(prev, k, true);
+		if(replaced == -1) {
+			change += INDEX_SIZE;
+		}
+		else {
+			old = bytes(keys[replaced]);
+			change -= PrefixCoding.size(prev, old, true);
+		}
+		for(int i = (replaced == -1 ? before : replaced) + 1; i < numSlots; i++) {
+			if(isSlotUsed(i)) {
+				byte[] next = bytes(keys[i]);
+				change += PrefixCoding.size(k, next, true) - PrefixCoding.size(old, next, true);
+				break;
+			}
+		}
+		return change;
+	}
+
+	/**
+	 * @return true if any key of the tree can replace a key of this page, as
+	 * stealing from a child does. Always true for an uncompressed page.
+	 */
+	public boolean hasRoomForKey() {
+		return !compressed || getCapacity() - getUsedBytes() >= getMaxEntrySize();
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -149,7 +306,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyDesc);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +329,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keyDesc.getLen(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +342,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = keyDesc.parse(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -266,6 +423,27 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if(compressed) {
+			try {
+				dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+				byte[] prev = null;
+				for (int i=1; i<numSlots; i++) {
+					if(!isSlotUsed(i))
+						continue;
+					PrefixCoding.write(dos, prev, bytes(keys[i]), true);
+					dos.writeInt(children[i]);
+					prev = bytes(keys[i]);
+				}
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(baos.size() > len)
+				throw new IllegalStateException("compressed page " + pid + " overflows");
+			byte[] data = baos.toByteArray();
+			return Arrays.copyOf(data, len);
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -273,7 +451,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keyDesc.getLen(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +498,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keyDesc.getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -356,6 +534,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		usedBytes = -1;
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -413,6 +592,18 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if(compressed) {
+			int before = 0;
+			for(int i = rid.getTupleNumber() - 1; i > 0; i--) {
+				if(isSlotUsed(i)) {
+					before = i;
+					break;
+				}
+			}
+			if(getUsedBytes() + getSizeChange(before, e.getKey(), rid.getTupleNumber()) > getCapacity())
+				throw new DbException("no room for key " + e.getKey() + " in updateEntry");
+			usedBytes = -1;
+		}
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -445,7 +636,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!keyDesc.accepts(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -461,7 +652,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
+			usedBytes = -1;
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -485,6 +677,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
+		int replacedChild = -1;
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
 				if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
@@ -498,6 +691,7 @@ public class BTreeInternalPage extends BTreePage {
 					}
 					lessOrEqKey = i;
 					if(children[i] == e.getRightChild().getPageNumber()) {
+						replacedChild = children[i];
 						children[i] = e.getLeftChild().getPageNumber();
 					}
 				}
@@ -525,6 +719,15 @@ public class BTreeInternalPage extends BTreePage {
 					" left and right keys");
 		}
 
+		if(compressed) {
+			if(getUsedBytes() + getSizeChange(lessOrEqKey, e.getKey(), -1) > getCapacity()) {
+				if(replacedChild != -1)
+					children[lessOrEqKey] = replacedChild;
+				throw new DbException("called insertEntry on page with no room for key " + e.getKey());
+			}
+			usedBytes = -1;
+		}
+
 		// shift entries back or forward to fill empty slot and make room for new entry
 		// while keeping entries in sorted order
 		int goodSlot = -1;
@@ -566,13 +769,38 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumFreeSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page, in entries of the size of
+	 * an uncompressed one for a compressed page.
+	 * @see #getMaxEntries()
 	 */
 	public int getNumEmptySlots() {
+		if(!compressed)
+			return getNumFreeSlots();
+		int free = getCapacity() - getUsedBytes() - 2 * getMaxEntrySize();
+		int byBytes = free <= 0 ? 0 : free / getEntrySize();
+		int bySlots = (int) ((long) getNumFreeSlots() * maxEntries / (numSlots - 1));
+		return Math.min(byBytes, bySlots);
+	}
+
+	// see BTreePage.java for javadocs
+	public int getNumEmptySlotsAfterDelete() {
+		if(!compressed)
+			return getNumFreeSlots() + 1;
+		// the entry deleted frees at most getMaxEntrySize() bytes
+		int free = getCapacity() - getUsedBytes() - getMaxEntrySize();
+		int byBytes = free <= 0 ? 0 : free / getEntrySize();
+		int bySlots = (int) ((long) (getNumFreeSlots() + 1) * maxEntries / (numSlots - 1));
+		return Math.min(byBytes, bySlots);
+	}
+
+	/**
+	 * Returns the number of slots of the header that are not used.
+	 */
+	private int getNumFreeSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -605,6 +833,65 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	public int getSlotCount() {
+		return numSlots;
+	}
+
+	/**
+	 * A slot is serialized as its key followed by its child pointer. Slot 0
+	 * has no key, so its key bytes are zero.
+	 */
+	public byte[] getSlot(int i) {
+		if (!isSlotUsed(i))
+			throw new IllegalArgumentException("slot " + i + " is empty");
+		int keySize = keyDesc.getLen();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(keySize + INDEX_SIZE);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			if (i == 0)
+				dos.write(new byte[keySize]);
+			else
+				keys[i].serialize(dos);
+			dos.writeInt(children[i]);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public void putSlot(int i, byte[] data) {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			Field key = keyDesc.parse(dis);
+			keys[i] = (i == 0) ? null : key;
+			children[i] = dis.readInt();
+		} catch (java.text.ParseException | IOException e) {
+			throw new IllegalArgumentException("malformed slot data", e);
+		}
+		markSlotUsed(i, true);
+		usedBytes = -1;
+	}
+
+	public void clearSlot(int i) {
+		markSlotUsed(i, false);
+		usedBytes = -1;
+	}
+
+	/**
+	 * The page state of an internal page is its parent pointer and the
+	 * category of its children.
+	 */
+	public byte[] getPageState() {
+		return java.nio.ByteBuffer.allocate(INDEX_SIZE + 1)
+				.putInt(parent).put((byte) childCategory).array();
+	}
+
+	public void setPageState(byte[] state) {
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(state);
+		parent = buf.getInt();
+		childCategory = buf.get();
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -745,7 +1032,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getSlotCount() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -765,8 +1052,16 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the closest used slot before this one,
+				// which is not entry - 1 once an entry has been deleted
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					--prev;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
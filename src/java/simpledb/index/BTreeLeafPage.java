@@ -23,25 +23,36 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
+	private final int maxTuples;
+	private final byte[][] records; // of a compressed page, else null
+	private int usedBytes = -1; // of the records of a compressed page, -1 if not known
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	/**
+	 * Check that the tuples are in key order and between the bounds. The keys are
+	 * those of the tree, see KeyDesc#keyOf; fieldid is its first field.
+	 */
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
+		assert(fieldid == keyField);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = keyDesc.keyOf(t);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        // the right-most leaf may be less than half full after an append split
+        assert !checkoccupancy || depth <= 0 || getRightSiblingId() == null
+                || (getMaxTuples() - getNumEmptySlots() >= getMaxTuples() / 2);
 	}
 
 	/**
@@ -57,6 +68,16 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * A page of a tree with normalized keys is compressed, unless the page size
+	 * is too small for it to pay off. Its header has more slots, and its tuples
+	 * follow the header in slot order, without gaps, each one as a record that is
+	 * front coded against the record before it (see {@link PrefixCoding}). A
+	 * record has the fields of the key first, in key order, then the other
+	 * fields; an int is 4 bytes and a string is its bytes without padding, with
+	 * the lengths of the strings in the last bytes of the record. Tuples with the
+	 * same first fields of the key so share the bytes of those fields. The number
+	 * of tuples the page holds then depends on the tuples; see
+	 * {@link #getMaxTuples()}.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +87,40 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxTuples();
+		this(id, data, new KeyDesc(Database.getCatalog().getTupleDesc(id.getTableId()), key));
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a tree keyed on one or more fields.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the key of the tree
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, KeyDesc key) throws IOException {
+		this(id, data, key, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a tree that is not in the catalog.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 */
+	BTreeLeafPage(BTreePageId id, byte[] data, KeyDesc key, TupleDesc td) throws IOException {
+		super(id, key, td);
+		int fixedTuples = getFixedTuples();
+		if(key.isNormalized() && fixedTuples >= MIN_COMPRESSED_ENTRIES) {
+			// a record takes at least two varints
+			this.numSlots = Math.min(COMPRESSED_SLOTS_FACTOR * fixedTuples,
+					(BufferPool.getPageSize() - 3 * INDEX_SIZE) / 2);
+			this.maxTuples = (getCapacity() - 2 * getMaxRecordSize()) / td.getSize();
+			this.records = new byte[numSlots][];
+		}
+		else {
+			this.numSlots = fixedTuples;
+			this.maxTuples = fixedTuples;
+			this.records = null;
+		}
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -98,6 +151,21 @@ public class BTreeLeafPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		tuples = new Tuple[numSlots];
+		if(records != null) {
+			byte[] prev = null;
+			for (int i=0; i<numSlots; i++) {
+				if(!isSlotUsed(i))
+					continue;
+				prev = PrefixCoding.read(dis, prev, -1);
+				records[i] = prev;
+				tuples[i] = unpack(prev);
+				tuples[i].setRecordId(new RecordId(pid, i));
+			}
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		try{
 			// allocate and read the actual records of this page
 			for (int i=0; i<tuples.length; i++)
@@ -112,8 +180,20 @@ public class BTreeLeafPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of tuples this page can hold.
+	 * <p>
+	 * A compressed page holds as many tuples as fit in its bytes, so this is the
+	 * number of uncompressed tuples it holds, on top of room for one more record
+	 * of the largest size, which keeps an insert into a page with empty slots from
+	 * overflowing it. Its empty slots are counted in the same unit.
+	 */
+	public int getMaxTuples() {
+		return maxTuples;
+	}
+
+	/**
+	 * @return the number of tuples of an uncompressed page
 	 */
-	public int getMaxTuples() {        
+	private int getFixedTuples() {
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8;
@@ -124,13 +204,128 @@ public class BTreeLeafPage extends BTreePage {
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		int tuplesPerPage = numSlots;
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return the number of bytes of a compressed page for its records
+	 */
+	private int getCapacity() {
+		// parent and sibling pointers, and the header
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - getHeaderSize();
+	}
+
+	/**
+	 * @return the most bytes a record of a compressed page takes
+	 */
+	private int getMaxRecordSize() {
+		return PrefixCoding.maxSize(td.getSize());
+	}
+
+	/**
+	 * @return the number of bytes the records of a compressed page take
+	 */
+	private int getUsedBytes() {
+		if(usedBytes < 0) {
+			int used = 0;
+			byte[] prev = null;
+			for(int i = 0; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					used += PrefixCoding.size(prev, records[i], false);
+					prev = records[i];
+				}
+			}
+			usedBytes = used;
+		}
+		return usedBytes;
+	}
+
+	/**
+	 * @return the record of a tuple on a compressed page
+	 */
+	private byte[] pack(Tuple t) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		List<Integer> lengths = new ArrayList<>();
+		try {
+			for(int f : packOrder()) {
+				Field field = t.getField(f);
+				if(field.getType() == Type.INT_TYPE) {
+					dos.writeInt(((IntField) field).getValue());
+				}
+				else {
+					// the bytes StringField.serialize writes, without the length and padding
+					String v = ((StringField) field).getValue();
+					if(v.length() > Type.STRING_LEN) {
+						v = v.substring(0, Type.STRING_LEN);
+					}
+					dos.writeBytes(v);
+					lengths.add(v.length());
+				}
+			}
+			for(int len : lengths) {
+				dos.writeByte(len);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the tuple of a record written by {@link #pack}
+	 */
+	private Tuple unpack(byte[] record) throws IOException {
+		int[] order = packOrder();
+		int strings = 0;
+		for(int f : order) {
+			if(td.getFieldType(f) == Type.STRING_TYPE) {
+				strings++;
+			}
+		}
+		int nextLength = record.length - strings;
+		Tuple t = new Tuple(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record, 0, nextLength));
+		for(int f : order) {
+			if(td.getFieldType(f) == Type.INT_TYPE) {
+				t.setField(f, new IntField(dis.readInt()));
+			}
+			else {
+				byte[] bs = new byte[record[nextLength++] & 0xff];
+				dis.readFully(bs);
+				t.setField(f, new StringField(new String(bs), Type.STRING_LEN));
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * @return the fields of a tuple in the order of its record: the fields of
+	 * the key, then the others
+	 */
+	private int[] packOrder() {
+		int[] order = new int[td.numFields()];
+		int[] keyFields = keyDesc.fields();
+		boolean[] inKey = new boolean[order.length];
+		int n = 0;
+		for(int f : keyFields) {
+			if(!inKey[f]) {
+				inKey[f] = true;
+				order[n++] = f;
+			}
+		}
+		for(int f = 0; f < order.length; f++) {
+			if(!inKey[f]) {
+				order[n++] = f;
+			}
+		}
+		return order;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -140,7 +335,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyDesc);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -236,6 +431,24 @@ public class BTreeLeafPage extends BTreePage {
             }
         }
 
+		if(records != null) {
+			try {
+				byte[] prev = null;
+				for (int i=0; i<numSlots; i++) {
+					if(!isSlotUsed(i))
+						continue;
+					PrefixCoding.write(dos, prev, records[i], false);
+					prev = records[i];
+				}
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(baos.size() > len)
+				throw new IllegalStateException("compressed page " + pid + " overflows");
+			return Arrays.copyOf(baos.toByteArray(), len);
+		}
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -298,6 +511,7 @@ public class BTreeLeafPage extends BTreePage {
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
 		markSlotUsed(rid.getTupleNumber(), false);
+		usedBytes = -1;
 		t.setRecordId(null);
 	}
 
@@ -325,16 +539,31 @@ public class BTreeLeafPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
+		// find the last key less than or equal to the key being inserted, from the
+		// end, where tuples inserted in key order go
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
+		Field key = keyDesc.keyOf(t);
+		for (int i=numSlots-1; i>=0; i--) {
+			if(isSlotUsed(i) && keyDesc.keyOf(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key)) {
+				lessOrEqKey = i;
+				break;
+			}
+		}
+
+		byte[] record = null;
+		if(records != null) {
+			record = pack(t);
+			byte[] prev = lessOrEqKey >= 0 ? records[lessOrEqKey] : null;
+			int change = PrefixCoding.size(prev, record, false);
+			for(int i = lessOrEqKey + 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					change += PrefixCoding.size(record, records[i], false) - PrefixCoding.size(prev, records[i], false);
+					break;
+				}
 			}
+			if(getUsedBytes() + change > getCapacity())
+				throw new DbException("called addTuple on page with no room for the tuple.");
+			usedBytes = -1;
 		}
 
 		// shift records back or forward to fill empty slot and make room for new record
@@ -359,6 +588,8 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		if(records != null)
+			records[goodSlot] = record;
 	}
 
 	/**
@@ -371,6 +602,8 @@ public class BTreeLeafPage extends BTreePage {
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
+			if(records != null)
+				records[to] = records[from];
 			markSlotUsed(from, false);
 		}
 	}
@@ -441,13 +674,38 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return numSlots - getNumFreeSlots();
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page, in uncompressed tuples for
+	 * a compressed page.
+	 * @see #getMaxTuples()
 	 */
 	public int getNumEmptySlots() {
+		if(records == null)
+			return getNumFreeSlots();
+		int free = getCapacity() - getUsedBytes() - 2 * getMaxRecordSize();
+		int byBytes = free <= 0 ? 0 : free / td.getSize();
+		int bySlots = (int) ((long) getNumFreeSlots() * maxTuples / numSlots);
+		return Math.min(byBytes, bySlots);
+	}
+
+	// see BTreePage.java for javadocs
+	public int getNumEmptySlotsAfterDelete() {
+		if(records == null)
+			return getNumFreeSlots() + 1;
+		// the record deleted frees at most getMaxRecordSize() bytes
+		int free = getCapacity() - getUsedBytes() - getMaxRecordSize();
+		int byBytes = free <= 0 ? 0 : free / td.getSize();
+		int bySlots = (int) ((long) (getNumFreeSlots() + 1) * maxTuples / numSlots);
+		return Math.min(byBytes, bySlots);
+	}
+
+	/**
+	 * Returns the number of slots of the header that are not used.
+	 */
+	private int getNumFreeSlots() {
 		int cnt = 0;
 		for(int i=0; i<numSlots; i++)
 			if(!isSlotUsed(i))
@@ -478,6 +736,68 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	public int getSlotCount() {
+		return numSlots;
+	}
+
+	/**
+	 * A slot is serialized as the fields of its tuple, td.getSize() bytes.
+	 */
+	public byte[] getSlot(int i) {
+		if (!isSlotUsed(i))
+			throw new IllegalArgumentException("slot " + i + " is empty");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(dos);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public void putSlot(int i, byte[] data) {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		Tuple t = new Tuple(td);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				t.setField(j, td.getFieldType(j).parse(dis));
+		} catch (java.text.ParseException e) {
+			throw new IllegalArgumentException("malformed slot data", e);
+		}
+		t.setRecordId(new RecordId(pid, i));
+		tuples[i] = t;
+		if(records != null)
+			records[i] = pack(t);
+		markSlotUsed(i, true);
+		usedBytes = -1;
+	}
+
+	public void clearSlot(int i) {
+		markSlotUsed(i, false);
+		usedBytes = -1;
+	}
+
+	public boolean holdsTuples() {
+		return true;
+	}
+
+	/**
+	 * The page state of a leaf is its parent and sibling pointers.
+	 */
+	public byte[] getPageState() {
+		return java.nio.ByteBuffer.allocate(3 * INDEX_SIZE)
+				.putInt(parent).putInt(leftSibling).putInt(rightSibling).array();
+	}
+
+	public void setPageState(byte[] state) {
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(state);
+		parent = buf.getInt();
+		leftSibling = buf.getInt();
+		rightSibling = buf.getInt();
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -578,7 +898,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.getSlotCount() - 1;
 	}
 
 	public boolean hasNext() {
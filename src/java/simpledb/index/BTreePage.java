@@ -5,7 +5,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
-import simpledb.storage.Page;
+import simpledb.storage.SlottedPage;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -17,19 +17,34 @@ import simpledb.transaction.TransactionId;
  * @see BufferPool
  *
  */
-public abstract class BTreePage implements Page {
+public abstract class BTreePage implements SlottedPage {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
+	/**
+	 * The pages of a tree with normalized keys are compressed if an uncompressed
+	 * page would hold at least this many entries: below that, the bytes kept free
+	 * for the longest entry cost more than compression saves.
+	 */
+	protected final static int MIN_COMPRESSED_ENTRIES = 8;
+
+	/**
+	 * A compressed page has this many times the slots of an uncompressed one, the
+	 * most short entries it is expected to hold.
+	 */
+	protected final static int COMPRESSED_SLOTS_FACTOR = 16;
+
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final KeyDesc keyDesc;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
+	protected volatile long lsn; // kept in memory only, the page format has no room for it
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -55,9 +70,30 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new KeyDesc(Database.getCatalog().getTupleDesc(id.getTableId()), key));
+	}
+
+	/**
+	 * @param id - the id of this page
+	 * @param key - the key of the tree, whose first field is keyField
+	 */
+	public BTreePage(BTreePageId id, KeyDesc key) {
+		this(id, key, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * A page of a tree that is not in the catalog yet, e.g. while BTreeBuilder
+	 * writes it.
+	 *
+	 * @param id - the id of this page
+	 * @param key - the key of the tree
+	 * @param td - the descriptor of the tuples of the tree
+	 */
+	BTreePage(BTreePageId id, KeyDesc key, TupleDesc td) {
 		this.pid = id;
-		this.keyField = key;
-		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.keyDesc = key;
+		this.keyField = key.fields()[0];
+		this.td = td;
 	}
 
 	/**
@@ -134,10 +170,24 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
 	public abstract int getNumEmptySlots();
+
+	/**
+	 * Returns the most empty slots this page can have once one tuple or entry is
+	 * deleted from it.
+	 */
+	public abstract int getNumEmptySlotsAfterDelete();
 	
 	/**
 	 * Returns true if associated slot on this page is filled.
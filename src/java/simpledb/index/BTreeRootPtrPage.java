@@ -2,7 +2,7 @@ package simpledb.index;
 
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
-import simpledb.storage.Page;
+import simpledb.storage.SlottedPage;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -13,7 +13,7 @@ import java.io.*;
  *
  * @see BufferPool
  */
-public class BTreeRootPtrPage implements Page {
+public class BTreeRootPtrPage implements SlottedPage {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
@@ -27,6 +27,7 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	private volatile long lsn;
 
 	/**
 	 * Constructor.
@@ -216,6 +217,48 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * The root pointer page has no slots; all of it is page state.
+	 */
+	public int getSlotCount() {
+		return 0;
+	}
+
+	public boolean isSlotUsed(int i) {
+		return false;
+	}
+
+	public byte[] getSlot(int i) {
+		throw new IllegalArgumentException("root pointer page has no slots");
+	}
+
+	public void putSlot(int i, byte[] data) {
+		throw new IllegalArgumentException("root pointer page has no slots");
+	}
+
+	public void clearSlot(int i) {
+		throw new IllegalArgumentException("root pointer page has no slots");
+	}
+
+	public byte[] getPageState() {
+		return getPageData();
+	}
+
+	public void setPageState(byte[] state) {
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(state);
+		root = buf.getInt();
+		rootCategory = buf.get();
+		header = buf.getInt();
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
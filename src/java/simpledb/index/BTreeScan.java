@@ -24,7 +24,8 @@ public class BTreeScan implements OpIterator {
 	private boolean isOpen = false;
 	private final TransactionId tid;
 	private TupleDesc myTd;
-	private IndexPredicate ipred = null;
+	private final List<IndexPredicate> preds;
+	private final boolean descending;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -49,8 +50,32 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias,
+				ipred == null ? Collections.emptyList() : Collections.singletonList(ipred), false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table that reads the tuples whose key
+	 * satisfies all of a few predicates, e.g. a range, in key order or in reverse key
+	 * order.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table, as for the other constructor
+	 * @param preds
+	 *            the predicates on the key, none for all the tuples
+	 * @param descending
+	 *            true to return the tuples in reverse key order
+	 * @see BTreeFile#indexIterator(TransactionId, List, boolean)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, List<IndexPredicate> preds,
+			boolean descending) {
 		this.tid = tid;
-		this.ipred = ipred;
+		this.preds = preds;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -87,12 +112,7 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-		}
-		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
-		}
+		this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, preds, descending);
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -145,6 +165,24 @@ public class BTreeScan implements OpIterator {
 		return it.next();
 	}
 
+	/**
+	 * Returns the next tuples of the scan in one batch: the next one, and the rest of
+	 * those on the same leaf page. While the scan works through a batch, the next leaves
+	 * are being read ahead.
+	 *
+	 * @return the next tuples, or an empty list if there are no more
+	 */
+	public List<Tuple> nextBatch() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (it instanceof BTreeLeafIterator)
+			return ((BTreeLeafIterator) it).nextBatch();
+		List<Tuple> batch = new ArrayList<>();
+		if (it.hasNext())
+			batch.add(it.next());
+		return batch;
+	}
+
 	public void close() {
 		it.close();
 		isOpen = false;
@@ -0,0 +1,90 @@
+package simpledb.index;
+
+import simpledb.storage.Field;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over the keys of a sorted run of an LsmFile: mightContain
+ * answers false for most keys that were never added, so that a lookup of a
+ * key skips the runs that do not have it without reading any of their pages,
+ * and never answers false for a key that was added.
+ * <p>
+ * The filter has bitsPerKey bits for each key and sets k = bitsPerKey * ln 2
+ * of them per key, which gives a false positive rate of about 0.6185^bitsPerKey
+ * (1% for 10 bits per key). The k bit positions are derived from two hashes of
+ * the key (double hashing).
+ */
+public class BloomFilter {
+
+	private final long[] bits;
+	private final int numBits;
+	private final int k;
+
+	/**
+	 * Create an empty filter for the given number of keys.
+	 */
+	public BloomFilter(int numKeys, int bitsPerKey) {
+		this.numBits = Math.max(64, numKeys * bitsPerKey);
+		this.bits = new long[(numBits + 63) / 64];
+		this.k = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+	}
+
+	private BloomFilter(long[] bits, int numBits, int k) {
+		this.bits = bits;
+		this.numBits = numBits;
+		this.k = k;
+	}
+
+	public void add(Field key) {
+		int h1 = HashFile.hash(key);
+		int h2 = Integer.rotateLeft(h1, 15) * 0x9e3779b9 | 1;
+		for (int i = 0; i < k; i++) {
+			int bit = Math.floorMod(h1 + i * h2, numBits);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false if the key was not added to the filter, or true if it
+	 * may have been
+	 */
+	public boolean mightContain(Field key) {
+		int h1 = HashFile.hash(key);
+		int h2 = Integer.rotateLeft(h1, 15) * 0x9e3779b9 | 1;
+		for (int i = 0; i < k; i++) {
+			int bit = Math.floorMod(h1 + i * h2, numBits);
+			if ((bits[bit >>> 6] & 1L << bit) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the size of the filter in bytes, as written by write
+	 */
+	public int size() {
+		return 8 + bits.length * 8;
+	}
+
+	public void write(DataOutputStream dos) throws IOException {
+		dos.writeInt(numBits);
+		dos.writeInt(k);
+		for (long b : bits) {
+			dos.writeLong(b);
+		}
+	}
+
+	public static BloomFilter read(DataInputStream dis) throws IOException {
+		int numBits = dis.readInt();
+		int k = dis.readInt();
+		long[] bits = new long[(numBits + 63) / 64];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = dis.readLong();
+		}
+		return new BloomFilter(bits, numBits, k);
+	}
+}
@@ -0,0 +1,427 @@
+package simpledb.index;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of HashBucketPage stores data for one bucket page of a
+ * HashFile, or for one overflow page of a bucket.
+ * <p>
+ * A bucket holds the tuples whose hash ends with the local depth bits of the
+ * bucket (see #getBits), in no particular order. When they do not fit in the
+ * bucket page, the rest are kept in overflow pages chained from it.
+ *
+ * @see HashFile
+ */
+public class HashBucketPage implements SlottedPage {
+
+	private final static int INDEX_SIZE = 4;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private final int numSlots;
+
+	private int localDepth;
+	private int bits;
+	private int next; // overflow page or 0
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+	private volatile long lsn;
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the local depth of the bucket, the hash
+	 * bits of the bucket and the page number of the next overflow page (0 if
+	 * there is none), each an int, followed by a set of header bytes indicating
+	 * the slots of the page that are in use and the tuple slots. The number of
+	 * tuples is equal to:
+	 * <p>
+	 *      floor((BufferPool.getPageSize()*8 - 3 * INDEX_SIZE * 8) / (tuple size * 8 + 1))
+	 * <p>
+	 * where tuple size is the size of tuples in this database table, which can
+	 * be determined via {@link Catalog#getTupleDesc}. An overflow page has the
+	 * local depth and bits of its bucket.
+	 * @see Database#getCatalog
+	 * @see Catalog#getTupleDesc
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		bits = dis.readInt();
+		next = dis.readInt();
+
+		header = new byte[getHeaderSize()];
+		for (int i=0; i<header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i=0; i<tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int extraBits = 3 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	private int getHeaderSize() {
+		int hb = numSlots / 8;
+		if (hb * 8 < numSlots) hb++;
+		return hb;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized(oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		if (!isSlotUsed(slotId)) {
+			try {
+				dis.readFully(new byte[td.getSize()]);
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading empty tuple");
+			}
+			return null;
+		}
+
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				t.setField(j, td.getFieldType(j).parse(dis));
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(bits);
+			dos.writeInt(next);
+			dos.write(header);
+
+			byte[] emptySlot = new byte[td.getSize()];
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(emptySlot);
+					continue;
+				}
+				for (int j=0; j<td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+
+			// padding
+			dos.write(new byte[len - baos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage, of a bucket of depth 0.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * @return the local depth of the bucket: the number of low bits of the hash
+	 * that all its tuples share
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	/**
+	 * @return the low local depth bits of the hashes of the tuples of the bucket
+	 */
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * Set which tuples belong in the bucket: those whose hash ends with the low
+	 * localDepth bits of bits.
+	 */
+	public void setBucket(int localDepth, int bits) {
+		this.localDepth = localDepth;
+		this.bits = bits & HashFile.mask(localDepth);
+	}
+
+	/**
+	 * @return true if a tuple with this hash belongs in the bucket
+	 */
+	public boolean covers(int hash) {
+		return (hash & HashFile.mask(localDepth)) == bits;
+	}
+
+	/**
+	 * @return the id of the next overflow page of the bucket, or null if none exists
+	 */
+	public HashPageId getNextId() {
+		if (next == 0)
+			return null;
+		return new HashPageId(pid.getTableId(), next, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the id of the next overflow page of the bucket
+	 * @param id - the id of the overflow page, or null for none
+	 * @throws DbException if the id is invalid
+	 */
+	public void setNextId(HashPageId id) throws DbException {
+		if (id == null) {
+			next = 0;
+			return;
+		}
+		if (id.getTableId() != pid.getTableId())
+			throw new DbException("table id mismatch in setNextId");
+		if (id.pgcateg() != HashPageId.BUCKET)
+			throw new DbException("an overflow page must be a bucket page");
+		next = id.getPageNumber();
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.getTupleNumber()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.getTupleNumber(), false);
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the first empty slot of the page; the tuple
+	 * is updated to reflect that it is now stored on this page.
+	 * @throws DbException if the page is full or tupledesc is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for (int i=0; i<numSlots; i++)
+			if (!isSlotUsed(i))
+				cnt++;
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		return (header[headerbyte] & (1 << headerbit)) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		if (value)
+			header[headerbyte] |= 1 << headerbit;
+		else
+			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	}
+
+	public int getSlotCount() {
+		return numSlots;
+	}
+
+	/**
+	 * A slot is serialized as the fields of its tuple, td.getSize() bytes.
+	 */
+	public byte[] getSlot(int i) {
+		if (!isSlotUsed(i))
+			throw new IllegalArgumentException("slot " + i + " is empty");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(dos);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public void putSlot(int i, byte[] data) {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		Tuple t = new Tuple(td);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				t.setField(j, td.getFieldType(j).parse(dis));
+		} catch (java.text.ParseException e) {
+			throw new IllegalArgumentException("malformed slot data", e);
+		}
+		t.setRecordId(new RecordId(pid, i));
+		tuples[i] = t;
+		markSlotUsed(i, true);
+	}
+
+	public void clearSlot(int i) {
+		markSlotUsed(i, false);
+	}
+
+	public boolean holdsTuples() {
+		return true;
+	}
+
+	/** The page state is the local depth, the bits and the overflow pointer. */
+	public byte[] getPageState() {
+		return ByteBuffer.allocate(3 * INDEX_SIZE).putInt(localDepth).putInt(bits).putInt(next).array();
+	}
+
+	public void setPageState(byte[] state) {
+		ByteBuffer buf = ByteBuffer.wrap(state);
+		localDepth = buf.getInt();
+		bits = buf.getInt();
+		next = buf.getInt();
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		return new Iterator<Tuple>() {
+			int i = 0;
+
+			public boolean hasNext() {
+				while (i < numSlots && !isSlotUsed(i))
+					i++;
+				return i < numSlots;
+			}
+
+			public Tuple next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return tuples[i++];
+			}
+		};
+	}
+}
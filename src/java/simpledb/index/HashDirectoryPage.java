@@ -0,0 +1,190 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.SlottedPage;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * HashDirectoryPage is a page of page numbers of a HashFile. The meta page of
+ * the file, page 0, is one: its depth is the global depth of the file, and its
+ * entries are the page numbers of the directory pages. The directory pages are
+ * the others: their entries are the page numbers of the buckets, for
+ * consecutive hash values, and their depth is not used.
+ *
+ * @see HashFile
+ */
+public class HashDirectoryPage implements SlottedPage {
+
+	private final static int INDEX_SIZE = 4;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private int depth;
+	private final int[] entries;
+
+	private byte[] oldData;
+	private volatile long lsn;
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is an int for the depth, followed by as
+	 * many int page numbers as fit in the rest of the page:
+	 * <p>
+	 *      floor((BufferPool.getPageSize() - 4) / 4)
+	 * <p>
+	 * An entry of 0 is empty, since page 0 is always the meta page.
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.entries = new int[getNumEntries()];
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		depth = dis.readInt();
+		for (int i=0; i<entries.length; i++)
+			entries[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of entries of a directory page
+	 */
+	public static int getNumEntries() {
+		return (BufferPool.getPageSize() - INDEX_SIZE) / INDEX_SIZE;
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+		buf.putInt(depth);
+		for (int entry : entries)
+			buf.putInt(entry);
+		return buf.array();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashDirectoryPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			return new HashDirectoryPage(pid, oldData);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the global depth of the file, on the meta page
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Set the global depth of the file, on the meta page
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * @return the page number in entry i, or 0 if it is empty
+	 */
+	public int getEntry(int i) {
+		return entries[i];
+	}
+
+	/**
+	 * Set entry i to a page number
+	 */
+	public void setEntry(int i, int pgNo) {
+		entries[i] = pgNo;
+	}
+
+	/**
+	 * The slots of a directory page are its entries, used if not empty.
+	 */
+	public int getSlotCount() {
+		return entries.length;
+	}
+
+	public boolean isSlotUsed(int i) {
+		return entries[i] != 0;
+	}
+
+	public byte[] getSlot(int i) {
+		if (!isSlotUsed(i))
+			throw new IllegalArgumentException("slot " + i + " is empty");
+		return ByteBuffer.allocate(INDEX_SIZE).putInt(entries[i]).array();
+	}
+
+	public void putSlot(int i, byte[] data) {
+		entries[i] = ByteBuffer.wrap(data).getInt();
+	}
+
+	public void clearSlot(int i) {
+		entries[i] = 0;
+	}
+
+	/** The page state is the depth. */
+	public byte[] getPageState() {
+		return ByteBuffer.allocate(INDEX_SIZE).putInt(depth).array();
+	}
+
+	public void setPageState(byte[] state) {
+		depth = ByteBuffer.wrap(state).getInt();
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+}
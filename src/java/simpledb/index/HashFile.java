@@ -0,0 +1,815 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores an extendible hash
+ * table. The tuples are kept in buckets by the hash of their key, so finding
+ * the tuples with a given key reads one bucket page (and its overflow pages if
+ * it has any), whatever the size of the file; unlike a B+ tree, it cannot find
+ * the tuples of a range of keys.
+ * <p>
+ * Page 0 of the file is the meta page, which holds the global depth g of the
+ * directory and the page numbers of the directory pages. The directory maps
+ * each value of the low g bits of a hash to a bucket; a bucket of local depth l
+ * holds the tuples whose hash ends with its l bits, so 2^(g-l) consecutive
+ * entries of the directory point to it. The meta and directory pages are small
+ * and read by every lookup, so they stay in the BufferPool: a lookup reads one
+ * page from disk.
+ * <p>
+ * When a bucket is full, it is split in two on the next bit of the hash,
+ * doubling the directory first if its local depth is the global depth. When
+ * its tuples all have the same hash, e.g. duplicates of a key, splitting would
+ * not help, and an overflow page is chained to it instead. Buckets are not
+ * merged when tuples are deleted, and pages are never freed.
+ *
+ * @see HashDirectoryPage#HashDirectoryPage
+ * @see HashBucketPage#HashBucketPage
+ */
+public class HashFile implements IndexFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final KeyDesc keyDesc;
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file
+	 * @param key - the fields which the file is keyed on, see KeyDesc
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, KeyDesc key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyDesc = key;
+		this.td = td;
+	}
+
+	/**
+	 * Constructs a hash file keyed on one field.
+	 *
+	 * @param key - the field which the file is keyed on
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this(f, new KeyDesc(td, key), td);
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile: the hash of the absolute
+	 * file name of the file underlying it.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the key of this hash file
+	 */
+	public KeyDesc getKeyDesc() {
+		return keyDesc;
+	}
+
+	/**
+	 * A hash file keeps its tuples in no particular order.
+	 */
+	public boolean isOrdered() {
+		return false;
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the meta and
+	 * directory pages.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] pageBuf = new byte[BufferPool.getPageSize()];
+		try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+			rf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+			int retval = rf.read(pageBuf, 0, pageBuf.length);
+			if (retval == -1) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			if (retval < pageBuf.length) {
+				throw new IllegalArgumentException("Unable to read "
+						+ BufferPool.getPageSize() + " bytes from HashFile");
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			if (id.pgcateg() == HashPageId.BUCKET) {
+				return new HashBucketPage(id, pageBuf);
+			}
+			return new HashDirectoryPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * @return a mask of the low depth bits of a hash
+	 */
+	static int mask(int depth) {
+		return depth >= 32 ? -1 : (1 << depth) - 1;
+	}
+
+	/**
+	 * @return the number of entries of a directory page that are used: the
+	 * largest power of two that fits, so that a directory of 2^g entries fills
+	 * whole pages once it needs more than one
+	 */
+	static int entriesPerPage() {
+		return Integer.highestOneBit(HashDirectoryPage.getNumEntries());
+	}
+
+	/**
+	 * @return the largest global depth: a directory of 2^depth entries fills
+	 * every directory page the meta page has room for
+	 */
+	static int maxDepth() {
+		int pages = Integer.highestOneBit(HashDirectoryPage.getNumEntries());
+		return Integer.numberOfTrailingZeros(entriesPerPage()) + Integer.numberOfTrailingZeros(pages);
+	}
+
+	/**
+	 * @return the hash of a key, which must be a whole key of this file; the
+	 * hashCode of the key is mixed so that its low bits depend on all of it
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int hashOf(Tuple t) {
+		return hash(keyDesc.keyOf(t));
+	}
+
+	private HashPageId metaId() {
+		return new HashPageId(tableid, 0, HashPageId.META);
+	}
+
+	private HashPageId bucketId(int pgNo) {
+		return new HashPageId(tableid, pgNo, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 *
+	 * @see BTreeFile#getPage(TransactionId, Map, BTreePageId, Permissions)
+	 */
+	private Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE) {
+			p.markDirty(true, tid);
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * @return true if the transaction already holds a lock on the page that a
+	 * lookup must not release
+	 */
+	private static boolean isHeld(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) {
+		return tid == null || dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Get a read lock on the meta page. Create the meta page, the first
+	 * directory page and the first bucket if necessary.
+	 */
+	private HashDirectoryPage getMetaPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			if (f.length() == 0) {
+				HashDirectoryPage meta = new HashDirectoryPage(metaId(), HashDirectoryPage.createEmptyPageData());
+				meta.setEntry(0, 1);
+				HashDirectoryPage dir = new HashDirectoryPage(new HashPageId(tableid, 1, HashPageId.DIRECTORY),
+						HashDirectoryPage.createEmptyPageData());
+				dir.setEntry(0, 2);
+				try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+					bw.write(meta.getPageData());
+					bw.write(dir.getPageData());
+					bw.write(HashBucketPage.createEmptyPageData());
+				}
+			}
+		}
+		return (HashDirectoryPage) getPage(tid, dirtypages, metaId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * @return the id of the directory page holding entry d of the directory
+	 */
+	private HashPageId directoryId(HashDirectoryPage meta, int d) {
+		return new HashPageId(tableid, meta.getEntry(d / entriesPerPage()), HashPageId.DIRECTORY);
+	}
+
+	/**
+	 * Finds and locks the bucket page for a hash, with permission perm. The meta
+	 * and directory pages are locked READ_ONLY on the way, and released once the
+	 * bucket is locked unless the transaction held them before: a split changes
+	 * the directory while it holds the bucket it splits, so the directory cannot
+	 * change under the lookup before the bucket is locked.
+	 */
+	private HashBucketPage findBucket(TransactionId tid, Map<PageId, Page> dirtypages, int hash, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		HashPageId metaId = metaId();
+		boolean metaHeld = isHeld(tid, dirtypages, metaId);
+		HashDirectoryPage meta = getMetaPage(tid, dirtypages);
+		int d = hash & mask(meta.getDepth());
+		HashPageId dirId = directoryId(meta, d);
+		boolean dirHeld = isHeld(tid, dirtypages, dirId);
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, dirId, Permissions.READ_ONLY);
+		if (!metaHeld) {
+			bp.unsafeReleasePage(tid, metaId);
+		}
+		HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages,
+				bucketId(dir.getEntry(d % entriesPerPage())), perm);
+		if (!dirHeld) {
+			bp.unsafeReleasePage(tid, dirId);
+		}
+		if (!bucket.covers(hash)) {
+			throw new DbException("directory entry " + d + " of hash file " + tableid
+					+ " points to bucket " + bucket.getId().getPageNumber() + " of another hash");
+		}
+		return bucket;
+	}
+
+	/**
+	 * Insert a tuple into this HashFile, in the bucket of its hash. May split
+	 * the bucket, and double the directory, if the bucket is full.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		int hash = hashOf(t);
+		while (true) {
+			HashBucketPage bucket = findBucket(tid, dirtypages, hash, Permissions.READ_WRITE);
+			HashBucketPage page = findRoom(tid, dirtypages, bucket);
+			if (page != null) {
+				page.insertTuple(t);
+				break;
+			}
+			if (bucket.getLocalDepth() < maxDepth() && splittable(tid, dirtypages, bucket, hash)) {
+				splitBucket(tid, dirtypages, bucket);
+				continue;
+			}
+			HashBucketPage overflow = getEmptyPage(tid, dirtypages);
+			overflow.setBucket(bucket.getLocalDepth(), bucket.getBits());
+			overflow.setNextId(bucket.getNextId());
+			bucket.setNextId(overflow.getId());
+			overflow.insertTuple(t);
+			break;
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * @return the first page of the chain of a bucket with an empty slot, locked
+	 * with read-write permission, or null if they are all full
+	 */
+	private HashBucketPage findRoom(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage bucket)
+			throws DbException, TransactionAbortedException {
+		HashBucketPage page = bucket;
+		while (true) {
+			if (page.getNumEmptySlots() > 0) {
+				return (HashBucketPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+			}
+			HashPageId next = page.getNextId();
+			if (next == null) {
+				return null;
+			}
+			page = (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * @return true if splitting a full bucket can make room for a tuple with the
+	 * given hash: its tuples and the new one do not all have the same hash
+	 */
+	private boolean splittable(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage bucket, int hash)
+			throws DbException, TransactionAbortedException {
+		int m = mask(maxDepth());
+		for (HashBucketPage page = bucket; page != null; page = next(tid, dirtypages, page, Permissions.READ_ONLY)) {
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext()) {
+				if (((hashOf(it.next()) ^ hash) & m) != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next page of the chain of a bucket, locked with permission perm,
+	 * or null if page is the last one
+	 */
+	private HashBucketPage next(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage page,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		HashPageId next = page.getNextId();
+		return next == null ? null : (HashBucketPage) getPage(tid, dirtypages, next, perm);
+	}
+
+	/**
+	 * Split a bucket on the next bit of the hash: the tuples whose hash has that
+	 * bit set move to a new bucket, and the entries of the directory for them
+	 * point to it. If the local depth of the bucket is the global depth, the
+	 * directory is doubled first. The pages of the chain of the bucket stay in
+	 * it, some of them possibly empty.
+	 *
+	 * @param bucket - the bucket to split, locked with read-write permission
+	 */
+	private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage bucket)
+			throws DbException, IOException, TransactionAbortedException {
+		int l = bucket.getLocalDepth();
+		HashDirectoryPage meta = getMetaPage(tid, dirtypages);
+		if (l == meta.getDepth()) {
+			meta = doubleDirectory(tid, dirtypages);
+		}
+
+		HashBucketPage sibling = getEmptyPage(tid, dirtypages);
+		int bits = bucket.getBits();
+		sibling.setBucket(l + 1, bits | 1 << l);
+		List<Tuple> moved = new ArrayList<>();
+		for (HashBucketPage page = bucket; page != null; page = next(tid, dirtypages, page, Permissions.READ_WRITE)) {
+			page.setBucket(l + 1, bits);
+			List<Tuple> tuples = new ArrayList<>();
+			page.iterator().forEachRemaining(tuples::add);
+			for (Tuple t : tuples) {
+				if (!page.covers(hashOf(t))) {
+					page.deleteTuple(t);
+					moved.add(t);
+				}
+			}
+		}
+		HashBucketPage last = sibling;
+		for (Tuple t : moved) {
+			if (last.getNumEmptySlots() == 0) {
+				HashBucketPage overflow = getEmptyPage(tid, dirtypages);
+				overflow.setBucket(l + 1, sibling.getBits());
+				last.setNextId(overflow.getId());
+				last = overflow;
+			}
+			last.insertTuple(t);
+		}
+
+		// point the entries of the directory for the new bucket to it
+		int size = 1 << meta.getDepth();
+		for (int d = sibling.getBits(); d < size; d += 1 << (l + 1)) {
+			HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, directoryId(meta, d),
+					Permissions.READ_WRITE);
+			dir.setEntry(d % entriesPerPage(), sibling.getId().getPageNumber());
+		}
+	}
+
+	/**
+	 * Double the directory: entry d + 2^g is a copy of entry d, for every entry d
+	 * of a directory of global depth g. Once the directory takes more than one
+	 * page, this adds as many directory pages as it has.
+	 *
+	 * @return the meta page, locked with read-write permission
+	 */
+	private HashDirectoryPage doubleDirectory(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		HashDirectoryPage meta = (HashDirectoryPage) getPage(tid, dirtypages, metaId(), Permissions.READ_WRITE);
+		int size = 1 << meta.getDepth();
+		int perPage = entriesPerPage();
+		if (size < perPage) {
+			HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, directoryId(meta, 0),
+					Permissions.READ_WRITE);
+			for (int d = 0; d < size; d++) {
+				dir.setEntry(d + size, dir.getEntry(d));
+			}
+		}
+		else {
+			int pages = size / perPage;
+			for (int i = 0; i < pages; i++) {
+				HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+						new HashPageId(tableid, meta.getEntry(i), HashPageId.DIRECTORY), Permissions.READ_ONLY);
+				HashDirectoryPage copy = (HashDirectoryPage) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY);
+				for (int j = 0; j < perPage; j++) {
+					copy.setEntry(j, dir.getEntry(j));
+				}
+				meta.setEntry(pages + i, copy.getId().getPageNumber());
+			}
+		}
+		meta.setDepth(meta.getDepth() + 1);
+		return meta;
+	}
+
+	private HashBucketPage getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		return (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Append an empty page to the file, and return it locked with read-write
+	 * permission.
+	 *
+	 * @param pgcateg - the HashPageId category of the new page, DIRECTORY or BUCKET
+	 */
+	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		int emptyPageNo;
+		synchronized(this) {
+			try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+				bw.write(HashBucketPage.createEmptyPageData());
+			}
+			emptyPageNo = numPages() - 1;
+		}
+		HashPageId newPageId = new HashPageId(tableid, emptyPageNo, pgcateg);
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Delete a tuple from this HashFile. The page it is on is not freed, even if
+	 * it is left empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		PageId rpid = t.getRecordId().getPageId();
+		if (rpid.getTableId() != tableid) {
+			throw new DbException("tried to delete tuple of table " + rpid.getTableId() + " from hash file " + tableid);
+		}
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, bucketId(rpid.getPageNumber()),
+				Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Get the tuples whose key satisfies a predicate. An EQUALS predicate on a
+	 * whole key reads the bucket of the key; any other predicate reads the
+	 * whole file.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key
+	 * @return an iterator for the matching tuples, in no particular order
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashSearchIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, bucket by bucket. This
+	 * method will acquire a read lock on the pages of the file, and may block
+	 * until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid);
+	}
+
+	/**
+	 * @return the bucket page with the given hash, locked with read-only permission
+	 */
+	HashBucketPage findBucket(TransactionId tid, int hash)
+			throws DbException, TransactionAbortedException {
+		try {
+			return findBucket(tid, new HashMap<>(), hash, Permissions.READ_ONLY);
+		} catch (IOException e) {
+			throw new DbException("could not create hash file " + f + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the first page of the chain of the bucket at entry d of the
+	 * directory if d is the lowest entry pointing to it, or else null; or null
+	 * too if d is past the end of the directory
+	 */
+	HashBucketPage bucketAt(TransactionId tid, int d)
+			throws DbException, TransactionAbortedException {
+		HashDirectoryPage meta;
+		try {
+			meta = getMetaPage(tid, new HashMap<>());
+		} catch (IOException e) {
+			throw new DbException("could not create hash file " + f + ": " + e.getMessage());
+		}
+		if (d >= 1 << meta.getDepth()) {
+			return null;
+		}
+		BufferPool bp = Database.getBufferPool();
+		HashDirectoryPage dir = (HashDirectoryPage) bp.getPage(tid, directoryId(meta, d), Permissions.READ_ONLY);
+		HashBucketPage bucket = (HashBucketPage) bp.getPage(tid, bucketId(dir.getEntry(d % entriesPerPage())),
+				Permissions.READ_ONLY);
+		return bucket.getBits() == d ? bucket : null;
+	}
+
+	/**
+	 * @return the global depth of the directory
+	 */
+	int getDepth(TransactionId tid) throws DbException, TransactionAbortedException {
+		try {
+			return getMetaPage(tid, new HashMap<>()).getDepth();
+		} catch (IOException e) {
+			throw new DbException("could not create hash file " + f + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Build a secondary hash index on one or more fields of a table, and attach
+	 * it to the table in the Catalog. Its entries are those of a B+ tree index
+	 * (see SecondaryIndex#entryDesc); they are inserted one by one, in the order
+	 * of a snapshot of the table, as changes of the transaction, so if it aborts
+	 * the index is left empty. Writers carry on during the build, and the changes
+	 * they make meanwhile are applied before the index is attached (see
+	 * SecondaryIndex#createOnline).
+	 *
+	 * @param tid - the transaction building the index; it locks the table only to
+	 * apply the last changes made during the build and attach the index
+	 * @param tableid - the table to index, which must be a HeapFile
+	 * @param keyFields - the fields of the table the index is keyed on
+	 * @param includeFields - the fields of the table to copy into each entry
+	 * @param name - the name of the index in the Catalog
+	 * @param file - the file for the index, which must not exist yet or be empty
+	 * @return the index
+	 * @see BTreeBuilder#createIndex(TransactionId, int, int[], int[], String, File, double)
+	 */
+	public static SecondaryIndex createIndex(TransactionId tid, int tableid, int[] keyFields, int[] includeFields,
+			String name, File file)
+					throws DbException, IOException, TransactionAbortedException {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		if (!(table instanceof HeapFile)) {
+			throw new DbException("secondary indexes can only be built on heap files");
+		}
+		if (file.exists() && file.length() > 0) {
+			throw new DbException("index file " + file + " already exists");
+		}
+		TupleDesc entryDesc = SecondaryIndex.entryDesc(table.getTupleDesc(), keyFields, includeFields);
+		HashFile hf = new HashFile(file, SecondaryIndex.entryKey(entryDesc, keyFields.length), entryDesc);
+		SecondaryIndex index = new SecondaryIndex(hf, tableid, keyFields, includeFields);
+		BufferPool bp = Database.getBufferPool();
+		return SecondaryIndex.createOnline(tid, tableid, name, snapshot -> {
+			Database.getCatalog().addTable(hf, name);
+			DbFileIterator it = table.iterator(snapshot);
+			it.open();
+			try {
+				while (it.hasNext()) {
+					bp.insertTuple(tid, hf.getId(), index.entryFor(it.next()));
+				}
+			} finally {
+				it.close();
+			}
+			return index;
+		});
+	}
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HashFile
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+	int entry;
+
+	final TransactionId tid;
+	final HashFile f;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this iterator at the first entry of the directory
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		entry = 0;
+		curp = f.bucketAt(tid, 0);
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples or
+	 * from the next overflow page of the bucket, or else from the next bucket
+	 * of the directory.
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			if (it.hasNext()) {
+				return it.next();
+			}
+			HashPageId nextp = curp.getNextId();
+			if (nextp != null) {
+				curp = (HashBucketPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+				continue;
+			}
+			// the next bucket is at the next entry of the directory that is its lowest
+			it = null;
+			for (int depth = f.getDepth(tid); ++entry < 1 << depth; ) {
+				curp = f.bucketAt(tid, entry);
+				if (curp != null) {
+					it = curp.iterator();
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * HashFile
+ */
+class HashSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+	DbFileIterator scan = null;
+
+	final TransactionId tid;
+	final HashFile f;
+	final IndexPredicate ipred;
+	final KeyDesc keyDesc;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on; only EQUALS on a whole key of the
+	 * file is a lookup of one bucket (see KeyDesc#accepts)
+	 */
+	public HashSearchIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.keyDesc = f.getKeyDesc();
+		this.ipred = new IndexPredicate(ipred.getOp(), keyDesc.normalize(ipred.getField()));
+	}
+
+	/**
+	 * Open this iterator on the bucket of the key of the predicate, or on the
+	 * whole file if it cannot be looked up
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if (ipred.getOp() == Op.EQUALS && keyDesc.accepts(ipred.getField())) {
+			curp = f.findBucket(tid, HashFile.hash(ipred.getField()));
+			it = curp.iterator();
+		}
+		else {
+			scan = f.iterator(tid);
+			scan.open();
+		}
+	}
+
+	/**
+	 * Read the next tuple matching the predicate from the chain of the bucket,
+	 * or from the whole file.
+	 *
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (scan != null) {
+			while (scan.hasNext()) {
+				Tuple t = scan.next();
+				if (keyDesc.keyOf(t).compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+			}
+			return null;
+		}
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (keyDesc.keyOf(t).compare(Op.EQUALS, ipred.getField())) {
+					return t;
+				}
+			}
+			HashPageId nextp = curp.getNextId();
+			if (nextp == null) {
+				it = null;
+			}
+			else {
+				curp = (HashBucketPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+		if (scan != null) {
+			scan.close();
+			scan = null;
+		}
+	}
+}
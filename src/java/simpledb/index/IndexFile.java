@@ -0,0 +1,71 @@
+package simpledb.index;
+
+import simpledb.execution.IndexPredicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * IndexFile is a DbFile that finds its tuples by key: a BTreeFile, in key
+ * order, or a HashFile, by equality only. A SecondaryIndex keeps its entries
+ * in one.
+ */
+public interface IndexFile extends DbFile {
+
+	/**
+	 * @return the File backing this file on disk
+	 */
+	File getFile();
+
+	/**
+	 * @return the number of pages in this file
+	 */
+	int numPages();
+
+	/**
+	 * @return the key of this file
+	 */
+	KeyDesc getKeyDesc();
+
+	/**
+	 * @return true if the tuples are kept in key order, so that indexIterator
+	 * finds the tuples of any predicate on the key without reading the others,
+	 * in key order. If not, only EQUALS on a whole key is a lookup.
+	 */
+	boolean isOrdered();
+
+	/**
+	 * Get the tuples whose key satisfies a predicate.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key, a whole key or a prefix of one
+	 * (see KeyDesc#key), or a value of the first field of the key
+	 * @return an iterator for the matching tuples
+	 */
+	DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+
+	/**
+	 * Get the tuples whose key satisfies all of a few predicates, e.g. a lower
+	 * and an upper bound, in key order or in reverse key order. Only a file
+	 * that isOrdered supports more than one predicate or the reverse order.
+	 *
+	 * @param tid - the transaction id
+	 * @param preds - the predicates on the key, as for a single one; none for
+	 * all the tuples
+	 * @param descending - true to return the tuples in reverse key order
+	 * @return an iterator for the matching tuples
+	 * @throws UnsupportedOperationException if the file cannot return them
+	 */
+	default DbFileIterator indexIterator(TransactionId tid, List<IndexPredicate> preds, boolean descending) {
+		if(preds.isEmpty() && !descending) {
+			return iterator(tid);
+		}
+		if(preds.size() == 1 && !descending) {
+			return indexIterator(tid, preds.get(0));
+		}
+		throw new UnsupportedOperationException("only an ordered index scans ranges");
+	}
+}
@@ -0,0 +1,82 @@
+package simpledb.index;
+
+import simpledb.storage.Page;
+import simpledb.storage.PageCodec;
+import simpledb.storage.PageId;
+
+import java.io.*;
+
+/**
+ * IndexPageCodecs registers the page types of this package with PageCodec, so
+ * that the log can hold their images. The pages of a BTreeFile carry the key
+ * of the tree in the log (see PageCodec.Factory#describe), so decoding them
+ * does not look up the file they belong to.
+ *
+ * @see PageCodec#register
+ */
+public class IndexPageCodecs {
+
+	private static final PageCodec.Factory BTREE = new PageCodec.Factory() {
+		public PageId decodeId(int[] data) {
+			return new BTreePageId(data[0], data[1], data[2]);
+		}
+
+		public byte[] describe(Page p) throws IOException {
+			if(!(p instanceof BTreePage)) {
+				return new byte[0];
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			((BTreePage) p).keyDesc.write(new DataOutputStream(bytes));
+			return bytes.toByteArray();
+		}
+
+		public Page decodePage(PageId pid, byte[] data, byte[] description) throws IOException {
+			BTreePageId id = (BTreePageId) pid;
+			switch (id.pgcateg()) {
+			case BTreePageId.ROOT_PTR:
+				return new BTreeRootPtrPage(id, data);
+			case BTreePageId.HEADER:
+				return new BTreeHeaderPage(id, data);
+			}
+			KeyDesc key = KeyDesc.read(new DataInputStream(new ByteArrayInputStream(description)));
+			if(id.pgcateg() == BTreePageId.INTERNAL) {
+				return new BTreeInternalPage(id, data, key);
+			}
+			return new BTreeLeafPage(id, data, key);
+		}
+	};
+
+	private static final PageCodec.Factory HASH = new PageCodec.Factory() {
+		public PageId decodeId(int[] data) {
+			return new HashPageId(data[0], data[1], data[2]);
+		}
+
+		public Page decodePage(PageId pid, byte[] data, byte[] description) throws IOException {
+			HashPageId id = (HashPageId) pid;
+			if(id.pgcateg() == HashPageId.BUCKET) {
+				return new HashBucketPage(id, data);
+			}
+			return new HashDirectoryPage(id, data);
+		}
+	};
+
+	private static final PageCodec.Factory LSM = new PageCodec.Factory() {
+		public PageId decodeId(int[] data) {
+			return new LsmPageId(data[0], data[1], data[2], data[3]);
+		}
+
+		public Page decodePage(PageId pid, byte[] data, byte[] description) throws IOException {
+			return new LsmPage((LsmPageId) pid, data);
+		}
+	};
+
+	/**
+	 * Register the BTree, hash and LSM page types; registering them again does
+	 * nothing.
+	 */
+	public static void register() {
+		PageCodec.register(PageCodec.BTREE_PAGE, BTreePageId.class, BTREE);
+		PageCodec.register(PageCodec.HASH_PAGE, HashPageId.class, HASH);
+		PageCodec.register(PageCodec.LSM_PAGE, LsmPageId.class, LSM);
+	}
+}
@@ -0,0 +1,303 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.PageCodec;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * KeyDesc describes the key of a BTreeFile: the fields of its tuples the tree is
+ * keyed on, in order, and how a key is taken from a tuple, stored in an internal
+ * page and compared.
+ * <p>
+ * A key on a single int field is the IntField itself, as it always was. The key
+ * of a tree on several fields, or on a string field, is a NormalizedKey: the
+ * fields encoded one after the other into bytes that compare in the order of the
+ * key, so that internal pages compare keys with a byte compare instead of
+ * dispatching to Field.compare on each field. Each field has a fixed width, so
+ * the keys of a tree all have the same length:
+ * <ul>
+ * <li>an int is 4 bytes, big-endian with the sign bit flipped, so that negative
+ * numbers sort before positive ones;</li>
+ * <li>a string is its UTF-8 bytes, cut to Type.STRING_LEN and padded with zero
+ * bytes to that length, so a string sorts before the strings it is a prefix of.
+ * This is the order of StringField for strings without NUL characters and
+ * without characters outside the Basic Multilingual Plane.</li>
+ * </ul>
+ *
+ * @see NormalizedKey
+ */
+public class KeyDesc implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int[] fields;
+	private final Type[] types;
+	private final boolean normalized;
+
+	/**
+	 * @param td - the descriptor of the tuples of the tree
+	 * @param fields - the fields the tree is keyed on, most significant first
+	 */
+	public KeyDesc(TupleDesc td, int... fields) {
+		if(fields.length == 0) {
+			throw new IllegalArgumentException("a key needs at least one field");
+		}
+		this.fields = fields.clone();
+		this.types = new Type[fields.length];
+		boolean strings = false;
+		for(int i = 0; i < fields.length; i++) {
+			types[i] = td.getFieldType(fields[i]);
+			strings |= types[i] == Type.STRING_TYPE;
+		}
+		this.normalized = fields.length > 1 || strings;
+	}
+
+	private KeyDesc(int[] fields, Type[] types) {
+		this.fields = fields;
+		this.types = types;
+		boolean strings = false;
+		for(Type type : types) {
+			strings |= type == Type.STRING_TYPE;
+		}
+		this.normalized = fields.length > 1 || strings;
+	}
+
+	/**
+	 * Write this key compactly, e.g. into a log record: the number of fields,
+	 * then each field and its type.
+	 */
+	public void write(DataOutput out) throws IOException {
+		PageCodec.writeVarInt(out, fields.length);
+		for(int i = 0; i < fields.length; i++) {
+			PageCodec.writeVarInt(out, fields[i]);
+			out.writeByte(types[i].ordinal());
+		}
+	}
+
+	/**
+	 * Read a key written by write().
+	 */
+	public static KeyDesc read(DataInput in) throws IOException {
+		int n = PageCodec.readVarInt(in);
+		if(n <= 0) {
+			throw new IOException("a key needs at least one field");
+		}
+		int[] fields = new int[n];
+		Type[] types = new Type[n];
+		for(int i = 0; i < n; i++) {
+			fields[i] = PageCodec.readVarInt(in);
+			int type = in.readUnsignedByte();
+			if(type >= Type.values().length) {
+				throw new IOException("unknown field type " + type);
+			}
+			types[i] = Type.values()[type];
+		}
+		return new KeyDesc(fields, types);
+	}
+
+	/**
+	 * @return the fields the tree is keyed on
+	 */
+	public int[] fields() {
+		return fields.clone();
+	}
+
+	/**
+	 * @return the number of fields of the key
+	 */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/**
+	 * @return true if the keys are NormalizedKeys
+	 */
+	public boolean isNormalized() {
+		return normalized;
+	}
+
+	/**
+	 * @return the number of bytes a key takes in an internal page
+	 */
+	public int getLen() {
+		if(!normalized) {
+			return types[0].getLen();
+		}
+		return prefixLen(fields.length);
+	}
+
+	private int prefixLen(int n) {
+		int len = 0;
+		for(int i = 0; i < n; i++) {
+			len += width(types[i]);
+		}
+		return len;
+	}
+
+	private static int width(Type type) {
+		return type == Type.STRING_TYPE ? Type.STRING_LEN : type.getLen();
+	}
+
+	/**
+	 * @return the key of a tuple of the tree
+	 */
+	public Field keyOf(Tuple t) {
+		if(!normalized) {
+			return t.getField(fields[0]);
+		}
+		Field[] values = new Field[fields.length];
+		for(int i = 0; i < fields.length; i++) {
+			values[i] = t.getField(fields[i]);
+		}
+		return key(values);
+	}
+
+	/**
+	 * Build a key from the values of its first fields, e.g. for an IndexPredicate.
+	 * Giving fewer values than the key has fields makes a prefix, which matches all
+	 * the keys that start with those values.
+	 *
+	 * @param values - the values of the first fields of the key, in order
+	 * @return the key
+	 * @throws IllegalArgumentException if a value does not have the type of its field
+	 */
+	public Field key(Field... values) {
+		if(values.length == 0 || values.length > fields.length) {
+			throw new IllegalArgumentException("a key has between 1 and " + fields.length + " fields");
+		}
+		for(int i = 0; i < values.length; i++) {
+			if(values[i].getType() != types[i]) {
+				throw new IllegalArgumentException("field " + i + " of the key is not a " + types[i]);
+			}
+		}
+		if(!normalized) {
+			return values[0];
+		}
+		byte[] bytes = new byte[prefixLen(values.length)];
+		int off = 0;
+		for(Field value : values) {
+			if(value.getType() == Type.INT_TYPE) {
+				int v = ((IntField) value).getValue() ^ Integer.MIN_VALUE;
+				bytes[off] = (byte) (v >>> 24);
+				bytes[off + 1] = (byte) (v >>> 16);
+				bytes[off + 2] = (byte) (v >>> 8);
+				bytes[off + 3] = (byte) v;
+			}
+			else {
+				byte[] s = ((StringField) value).getValue().getBytes(StandardCharsets.UTF_8);
+				System.arraycopy(s, 0, bytes, off, Math.min(s.length, Type.STRING_LEN));
+			}
+			off += width(value.getType());
+		}
+		return new NormalizedKey(bytes, types[0]);
+	}
+
+	/**
+	 * @return the key to search for to find the tuples whose key matches f: f itself
+	 * if it is already a key of this tree, or else the prefix of the key made of f
+	 */
+	public Field normalize(Field f) {
+		if(f == null || !normalized || f instanceof NormalizedKey) {
+			return f;
+		}
+		return key(f);
+	}
+
+	/**
+	 * @return true if f is a whole key of this tree, that can be stored in an
+	 * internal page
+	 */
+	public boolean accepts(Field f) {
+		if(!normalized) {
+			return f.getType() == types[0] && !(f instanceof NormalizedKey);
+		}
+		return f instanceof NormalizedKey && ((NormalizedKey) f).getLen() == getLen();
+	}
+
+	/**
+	 * Read a key stored in an internal page.
+	 */
+	public Field parse(DataInputStream dis) throws ParseException {
+		if(!normalized) {
+			return types[0].parse(dis);
+		}
+		byte[] bytes = new byte[getLen()];
+		try {
+			dis.readFully(bytes);
+		} catch (IOException e) {
+			throw new ParseException("couldn't parse", 0);
+		}
+		return new NormalizedKey(bytes, types[0]);
+	}
+
+	/**
+	 * Read a key stored without its field boundaries, e.g. by a compressed page.
+	 */
+	NormalizedKey fromBytes(byte[] bytes) {
+		return new NormalizedKey(bytes, types[0]);
+	}
+
+	/**
+	 * Suffix truncation: the shortest key s with left &lt; s &lt;= right, padded
+	 * with zero bytes to the length of a key, to separate two pages whose keys
+	 * end with left and start with right. Any key between the two routes the same
+	 * tuples, and a short one takes fewer bytes in a compressed internal page.
+	 *
+	 * @return the separator, or right if the keys are not normalized or are equal
+	 */
+	public Field separator(Field left, Field right) {
+		if(!normalized || left == null) {
+			return right;
+		}
+		byte[] l = ((NormalizedKey) left).bytes();
+		byte[] r = ((NormalizedKey) right).bytes();
+		int d = 0;
+		while(d < r.length && l[d] == r[d]) {
+			d++;
+		}
+		if(d == r.length) {
+			return right;
+		}
+		byte[] s = new byte[r.length];
+		System.arraycopy(r, 0, s, 0, d + 1);
+		return new NormalizedKey(s, types[0]);
+	}
+
+	/**
+	 * @return a comparator of tuples of the tree by key
+	 */
+	public Comparator<Tuple> tupleComparator() {
+		if(!normalized) {
+			return new BTreeFileEncoder.TupleComparator(fields[0]);
+		}
+		return (t1, t2) -> ((NormalizedKey) keyOf(t1)).compareTo((NormalizedKey) keyOf(t2));
+	}
+
+	public boolean equals(Object o) {
+		if(!(o instanceof KeyDesc)) return false;
+		KeyDesc other = (KeyDesc) o;
+		return Arrays.equals(fields, other.fields) && Arrays.equals(types, other.types);
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	public String toString() {
+		return Arrays.toString(fields);
+	}
+}
@@ -0,0 +1,1495 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * LsmFile is an implementation of a DbFile for write-heavy tables: a
+ * log-structured merge tree. An insert or a delete appends a record to the
+ * memtable, and never reads or rewrites a page of the sorted runs the rest of
+ * the tuples are in, so that the tuples of a table that is mostly written are
+ * written to disk in large sorted batches rather than a page at a time. The
+ * tuples are kept in the order of their key (see KeyDesc), like a B+ tree.
+ * <p>
+ * The memtable is a generation of pages in a file of its own. Its pages are
+ * cached, locked and logged through the BufferPool like those of any file, so
+ * the memtable is made durable by the log and rebuilt by recovery; an
+ * in-memory skip list over its records gives their order. A transaction
+ * appends its records to a page no other transaction is writing, so that
+ * concurrent writers do not wait for each other's page locks. A delete
+ * appends a tombstone for the tuple: a tuple is in the table as many times
+ * as it was put, less the number of its tombstones, whatever the order they
+ * are in, so records need no sequence numbers.
+ * <p>
+ * When a generation reaches setMemtablePages pages, it is frozen and a new one
+ * started; a background task waits for the transactions writing the frozen
+ * one to complete, sorts its records and writes them to a sorted run of level
+ * 0 (see LsmRun), which has a Bloom filter of its keys. Runs are merged by
+ * leveled compaction, also in the background: when level 0 has
+ * L0_COMPACTION_TRIGGER runs they are merged with level 1, and when level i
+ * gets larger than LEVEL_SIZE_RATIO^(i-1) times the size of four memtables it
+ * is merged into level i + 1. Each level from 1 on is a single run, so a
+ * compaction rewrites the whole next level. Tombstones are dropped when they
+ * are merged into the last level.
+ * <p>
+ * The file f given to the constructor is the manifest: the memtable
+ * generations and the runs of each level. A flush or compaction writes its
+ * run, then replaces the manifest atomically. The pages of memtables and runs
+ * that are replaced stay readable until the iterators that were opened on
+ * them are closed.
+ *
+ * @see LsmPage
+ * @see LsmRun
+ */
+public class LsmFile implements DbFile {
+
+	/** Default number of pages of a memtable generation */
+	public final static int DEFAULT_MEMTABLE_PAGES = 64;
+	/** Number of runs in level 0 that triggers their compaction into level 1 */
+	public final static int L0_COMPACTION_TRIGGER = 4;
+	/** Ratio of the maximum sizes of consecutive levels */
+	public final static int LEVEL_SIZE_RATIO = 10;
+
+	// 所有LsmFile共用的后台线程，执行flush和compaction
+	private static final ExecutorService background = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+				Thread t = new Thread(r, "lsm-background");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final KeyDesc keyDesc;
+	private final Comparator<Entry> entryOrder = LsmFile::compareEntries;
+
+	private volatile int memtablePages = DEFAULT_MEMTABLE_PAGES;
+
+	// the current version of the file, guarded by this
+	private volatile boolean loaded = false;
+	private int nextFileNo;
+	private List<Memtable> mems;
+	private List<LsmRun> runs;
+	private boolean flushing = false;
+	private boolean compacting = false;
+	private Throwable failure = null;
+
+	/** the memtable generations whose files exist, current or still used by iterators */
+	private final Map<Integer, Memtable> memFiles = new ConcurrentHashMap<>();
+
+	private final AtomicLong bytesIngested = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong runPagesRead = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong bloomSkips = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+
+	/**
+	 * Constructs an LSM file backed by the specified manifest file; the files of
+	 * its memtables and runs are next to it.
+	 *
+	 * @param f - the manifest of this LSM file
+	 * @param key - the fields which the file is keyed on, see KeyDesc
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public LsmFile(File f, KeyDesc key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyDesc = key;
+		this.td = td;
+	}
+
+	/**
+	 * Constructs an LSM file keyed on one field.
+	 *
+	 * @param key - the field which the file is keyed on
+	 */
+	public LsmFile(File f, int key, TupleDesc td) {
+		this(f, new KeyDesc(td, key), td);
+	}
+
+	/**
+	 * Returns the manifest of this LsmFile.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this LsmFile: the hash of the absolute
+	 * file name of its manifest.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the key of this LSM file
+	 */
+	public KeyDesc getKeyDesc() {
+		return keyDesc;
+	}
+
+	/**
+	 * Set the number of pages a memtable generation may have before it is
+	 * frozen and flushed to a run.
+	 */
+	public void setMemtablePages(int pages) {
+		if (pages < 1) {
+			throw new IllegalArgumentException("a memtable has at least one page");
+		}
+		this.memtablePages = pages;
+	}
+
+	/**
+	 * Returns the number of pages of the current memtables and runs.
+	 */
+	public synchronized int numPages() {
+		if (!loaded) {
+			return 0;
+		}
+		int n = 0;
+		for (Memtable m : mems) {
+			n += m.numPages;
+		}
+		for (LsmRun run : runs) {
+			n += run.numPages;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of runs at each level, from level 0
+	 */
+	public synchronized int[] levels() {
+		int[] n = new int[maxLevel() + 1];
+		for (LsmRun run : runs) {
+			n[run.level]++;
+		}
+		return n;
+	}
+
+	/** @return the number of bytes of the records inserted and deleted */
+	public long getBytesIngested() {
+		return bytesIngested.get();
+	}
+
+	/** @return the number of bytes of runs written by flushes and compactions */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/** @return the number of pages of runs read from disk for scans and lookups */
+	public long getRunPagesRead() {
+		return runPagesRead.get();
+	}
+
+	/** @return the number of lookups of a whole key */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/** @return the number of runs lookups skipped because of their Bloom filters */
+	public long getBloomSkips() {
+		return bloomSkips.get();
+	}
+
+	/** @return the number of memtables flushed to runs */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	/** @return the number of compactions */
+	public long getCompactionCount() {
+		return compactions.get();
+	}
+
+	private File memFile(int gen) {
+		return new File(f.getPath() + ".mem" + gen);
+	}
+
+	private File runFile(int fileNo) {
+		return new File(f.getPath() + ".run" + fileNo);
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage(). A page of a
+	 * memtable that was flushed and removed, or past the end of its file, is
+	 * read as an empty page.
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		LsmPageId id = (LsmPageId) pid;
+		byte[] pageBuf = new byte[BufferPool.getPageSize()];
+		try {
+			File file;
+			if (id.pgcateg() == LsmPageId.MEMTABLE) {
+				load();
+				file = memFiles.containsKey(id.getFileNo()) ? memFile(id.getFileNo()) : null;
+			}
+			else {
+				file = runFile(id.getFileNo());
+				runPagesRead.incrementAndGet();
+			}
+			if (file != null && file.exists()) {
+				try (RandomAccessFile rf = new RandomAccessFile(file, "r")) {
+					long off = (long) id.getPageNumber() * BufferPool.getPageSize();
+					if (off < rf.length()) {
+						rf.seek(off);
+						rf.readFully(pageBuf);
+					}
+					else if (id.pgcateg() == LsmPageId.RUN) {
+						throw new IllegalArgumentException("Read past end of run " + id.getFileNo());
+					}
+				}
+			}
+			else if (id.pgcateg() == LsmPageId.RUN) {
+				throw new IllegalArgumentException("run " + id.getFileNo() + " of LSM file " + tableid
+						+ " does not exist");
+			}
+			Debug.log(1, "LsmFile.readPage: read page %s", id);
+			return new LsmPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk. The pages
+	 * of a memtable that was flushed and removed are not written: their
+	 * records are in a run.
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		LsmPageId id = (LsmPageId) page.getId();
+		if (id.pgcateg() != LsmPageId.MEMTABLE) {
+			// the pages of runs are never changed
+			return;
+		}
+		load();
+		if (!memFiles.containsKey(id.getFileNo())) {
+			return;
+		}
+		try (RandomAccessFile rf = new RandomAccessFile(memFile(id.getFileNo()), "rw")) {
+			rf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * Read the manifest, or create it with an empty memtable generation if the
+	 * file is new, and remove the files of memtables and runs it does not list
+	 * (left by a crash during a flush or compaction).
+	 */
+	private void load() throws IOException {
+		if (loaded) {
+			return;
+		}
+		synchronized(this) {
+			if (loaded) {
+				return;
+			}
+			mems = new ArrayList<>();
+			runs = new ArrayList<>();
+			nextFileNo = 0;
+			if (f.exists() && f.length() > 0) {
+				try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+					nextFileNo = dis.readInt();
+					int n = dis.readInt();
+					for (int i = 0; i < n; i++) {
+						Memtable m = new Memtable(dis.readInt());
+						m.numPages = (int) (memFile(m.gen).length() / BufferPool.getPageSize());
+						m.frozen = i < n - 1;
+						m.indexed = false;
+						mems.add(m);
+					}
+					n = dis.readInt();
+					for (int i = 0; i < n; i++) {
+						int fileNo = dis.readInt();
+						int level = dis.readInt();
+						LsmRun run = LsmRun.open(runFile(fileNo), fileNo, level, keyDesc);
+						run.refs = 1;
+						runs.add(run);
+					}
+				}
+			}
+			else {
+				Memtable m = new Memtable(nextFileNo++);
+				mems.add(m);
+				writeManifest();
+			}
+			for (Memtable m : mems) {
+				m.refs = 1;
+				memFiles.put(m.gen, m);
+			}
+			removeStrayFiles();
+			loaded = true;
+			schedule();
+		}
+	}
+
+	private void removeStrayFiles() {
+		File dir = f.getAbsoluteFile().getParentFile();
+		String prefix = f.getName() + ".";
+		File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+		if (files == null) {
+			return;
+		}
+		Set<String> used = new HashSet<>();
+		for (Memtable m : mems) {
+			used.add(memFile(m.gen).getName());
+		}
+		for (LsmRun run : runs) {
+			used.add(run.file.getName());
+		}
+		for (File file : files) {
+			String suffix = file.getName().substring(prefix.length());
+			if ((suffix.matches("mem\\d+") || suffix.matches("run\\d+")) && !used.contains(file.getName())) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Replace the manifest with one listing the current memtables and runs:
+	 * write it to a temporary file, force it to disk and rename it.
+	 */
+	private void writeManifest() throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeInt(nextFileNo);
+			dos.writeInt(mems.size());
+			for (Memtable m : mems) {
+				dos.writeInt(m.gen);
+			}
+			dos.writeInt(runs.size());
+			for (LsmRun run : runs) {
+				dos.writeInt(run.fileNo);
+				dos.writeInt(run.level);
+			}
+			dos.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Compare two keys of this file, or a key and a prefix of one: a key
+	 * compares equal to its prefixes.
+	 */
+	static int compareKeys(Field a, Field b) {
+		if (a instanceof NormalizedKey) {
+			return ((NormalizedKey) a).compareTo((NormalizedKey) b);
+		}
+		if (a.compare(Op.LESS_THAN, b)) {
+			return -1;
+		}
+		return a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+	}
+
+	/** Order records by key, then by the bytes of their tuples. */
+	private static int compareRecords(Field k1, byte[] r1, Field k2, byte[] r2) {
+		int c = compareKeys(k1, k2);
+		if (c != 0) {
+			return c;
+		}
+		if (r1 == null || r2 == null) {
+			return r1 == null ? (r2 == null ? 0 : -1) : 1;
+		}
+		return LsmPage.compareTuples(r1, r2);
+	}
+
+	private static int compareEntries(Entry e1, Entry e2) {
+		int c = compareRecords(e1.key, e1.record, e2.key, e2.record);
+		if (c != 0) {
+			return c;
+		}
+		c = Integer.compare(e1.pgNo, e2.pgNo);
+		return c != 0 ? c : Integer.compare(e1.slot, e2.slot);
+	}
+
+	private Field keyOf(byte[] record) {
+		return keyDesc.keyOf(LsmPage.tupleOf(td, record, null));
+	}
+
+	/**
+	 * Insert a tuple into this LsmFile: append a put record to the current
+	 * memtable.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in insertTuple");
+		}
+		return append(tid, LsmPage.record(LsmPage.PUT, t), keyDesc.keyOf(t));
+	}
+
+	/**
+	 * Delete a tuple from this LsmFile: append a tombstone for it to the
+	 * current memtable. The tuple must have been read from this file; one of
+	 * the copies of it is deleted.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tried to delete tuple of another table from LSM file " + tableid);
+		}
+		return append(tid, LsmPage.record(LsmPage.TOMBSTONE, t), keyDesc.keyOf(t));
+	}
+
+	/**
+	 * Append a record to a page of the current memtable that no other
+	 * transaction is writing, adding a page to the memtable if they are all
+	 * full or taken, or freezing the memtable and starting a new one if it has
+	 * all its pages.
+	 */
+	private List<Page> append(TransactionId tid, byte[] record, Field key)
+			throws DbException, IOException, TransactionAbortedException {
+		load();
+		while (true) {
+			Memtable m;
+			synchronized(this) {
+				m = mems.get(mems.size() - 1);
+			}
+			index(m);
+			LsmPage page = findRoom(tid, m);
+			if (page == null && !m.retired) {
+				page = newPage(tid, m);
+			}
+			if (page == null) {
+				// the memtable was frozen; its pages may not be written any more
+				continue;
+			}
+			int slot = page.addRecord(record);
+			page.markDirty(true, tid);
+			int pgNo = page.getId().getPageNumber();
+			m.entries.add(new Entry(key, record, pgNo, slot));
+			if (page.getNumEmptySlots() == 0) {
+				m.open.remove(pgNo);
+			}
+			bytesIngested.addAndGet(record.length);
+			return Collections.singletonList(page);
+		}
+	}
+
+	/**
+	 * @return a page of the memtable with room for a record, locked with
+	 * read-write permission: one the transaction is already writing, or else
+	 * one that no other transaction is writing; or null if there is none, or
+	 * if the memtable was flushed while waiting for a lock
+	 */
+	private LsmPage findRoom(TransactionId tid, Memtable m)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		LockManager locks = bp.getLockManager();
+		List<Integer> free = new ArrayList<>();
+		for (int pgNo : m.open) {
+			LsmPageId pid = m.pageId(pgNo);
+			if (tid != null && locks.getMode(tid, pid) == LockManager.Mode.X) {
+				LsmPage page = (LsmPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+				if (page.getNumEmptySlots() > 0) {
+					return page;
+				}
+				m.open.remove(pgNo);
+			}
+			else if (!locks.hasOtherWriters(tid, pid)) {
+				free.add(pgNo);
+			}
+		}
+		for (int pgNo : free) {
+			LsmPageId pid = m.pageId(pgNo);
+			boolean held = tid == null || bp.holdsLock(tid, pid);
+			LsmPage page = (LsmPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+			if (m.retired) {
+				if (!held) {
+					bp.unsafeReleasePage(tid, pid);
+				}
+				return null;
+			}
+			if (page.getNumEmptySlots() > 0) {
+				return page;
+			}
+			m.open.remove(pgNo);
+			if (!held) {
+				bp.unsafeReleasePage(tid, pid);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Append an empty page to a memtable, and return it locked with read-write
+	 * permission; or freeze the memtable, and return null, if it has all its
+	 * pages.
+	 */
+	private LsmPage newPage(TransactionId tid, Memtable m)
+			throws DbException, IOException, TransactionAbortedException {
+		int pgNo;
+		synchronized(this) {
+			if (m.frozen) {
+				return null;
+			}
+			if (m.numPages >= memtablePages) {
+				freeze(m);
+				return null;
+			}
+			try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(memFile(m.gen), true))) {
+				bw.write(LsmPage.createEmptyPageData());
+			}
+			pgNo = m.numPages++;
+		}
+		LsmPageId pid = m.pageId(pgNo);
+		BufferPool bp = Database.getBufferPool();
+		bp.discardPage(pid);
+		LsmPage page = (LsmPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+		m.open.add(pgNo);
+		return page;
+	}
+
+	/**
+	 * Freeze a memtable and start a new generation, which is listed in the
+	 * manifest before any transaction writes to it, and schedule the flush of
+	 * the frozen one.
+	 */
+	private synchronized void freeze(Memtable m) throws IOException {
+		if (m.frozen) {
+			return;
+		}
+		Memtable next = new Memtable(nextFileNo++);
+		next.refs = 1;
+		memFiles.put(next.gen, next);
+		m.frozen = true;
+		mems = new ArrayList<>(mems);
+		mems.add(next);
+		writeManifest();
+		schedule();
+	}
+
+	/**
+	 * Freeze the current memtable, if it has any page, so that its records are
+	 * flushed to a run in the background.
+	 */
+	public void flushMemtable() throws IOException {
+		load();
+		synchronized(this) {
+			Memtable m = mems.get(mems.size() - 1);
+			if (m.numPages > 0) {
+				freeze(m);
+			}
+		}
+	}
+
+	/**
+	 * Wait until the memtables that are frozen are flushed and no compaction
+	 * is needed.
+	 *
+	 * @throws DbException if a flush or compaction failed
+	 */
+	public synchronized void awaitBackgroundWork() throws DbException {
+		try {
+			while (failure == null && (flushing || compacting)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while waiting for LSM file " + tableid);
+		}
+		if (failure != null) {
+			throw new DbException("background work of LSM file " + tableid + " failed: " + failure);
+		}
+	}
+
+	/**
+	 * Start the flush of the oldest frozen memtable and a compaction, if they
+	 * are needed and not already running. Called whenever the version of the
+	 * file changes.
+	 */
+	private synchronized void schedule() {
+		notifyAll();
+		if (failure != null) {
+			return;
+		}
+		if (!flushing) {
+			for (Memtable m : mems) {
+				if (m.frozen) {
+					flushing = true;
+					background.execute(() -> runTask(() -> flush(m), true));
+					break;
+				}
+			}
+		}
+		if (!compacting) {
+			Compaction c = pickCompaction();
+			if (c != null) {
+				compacting = true;
+				background.execute(() -> runTask(() -> compact(c), false));
+			}
+		}
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+	private void runTask(Task task, boolean flush) {
+		Throwable error = null;
+		try {
+			task.run();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			error = e;
+		}
+		synchronized(this) {
+			if (error != null) {
+				failure = error;
+			}
+			if (flush) {
+				flushing = false;
+			}
+			else {
+				compacting = false;
+			}
+			schedule();
+		}
+	}
+
+	/**
+	 * Flush a frozen memtable: wait for the transactions writing it by locking
+	 * all its pages, write its records to a run of level 0, and replace the
+	 * memtable with the run in the manifest.
+	 */
+	private void flush(Memtable m) throws IOException, DbException {
+		BufferPool bp = Database.getBufferPool();
+		LockManager locks = bp.getLockManager();
+		TransactionId sys = new TransactionId();
+		int n;
+		synchronized(this) {
+			n = m.numPages;
+		}
+		try {
+			lockPages(sys, m, n);
+			List<Entry> entries = new ArrayList<>();
+			for (int pgNo = 0; pgNo < n; pgNo++) {
+				LsmPage page;
+				try {
+					page = (LsmPage) bp.getPage(sys, m.pageId(pgNo), Permissions.READ_ONLY);
+				} catch (TransactionAbortedException e) {
+					throw new DbException("flush of memtable " + m.gen + " lost its lock");
+				}
+				for (int slot = 0; slot < page.getSlotCount(); slot++) {
+					if (page.isSlotUsed(slot)) {
+						byte[] record = page.getRecord(slot);
+						entries.add(new Entry(keyOf(record), record, pgNo, slot));
+					}
+				}
+			}
+			entries.sort(entryOrder);
+			LsmRun run = writeRun(new Merger(Collections.singletonList(new ListSource(entries))), 0, false,
+					entries.size());
+			List<Object> dead;
+			synchronized(this) {
+				mems = new ArrayList<>(mems);
+				mems.remove(m);
+				if (run != null) {
+					run.refs = 1;
+					runs = new ArrayList<>(runs);
+					runs.add(run);
+				}
+				writeManifest();
+				m.retired = true;
+				dead = unref(Collections.singletonList(m), Collections.emptyList());
+			}
+			destroy(dead);
+			flushes.incrementAndGet();
+		} finally {
+			locks.releaseAll(sys);
+		}
+	}
+
+	/**
+	 * Lock the first n pages of a memtable for reading, for a transaction that
+	 * does not read anything else; if it is chosen to break a deadlock, it
+	 * gives up its locks and tries again.
+	 */
+	private void lockPages(TransactionId sys, Memtable m, int n) {
+		LockManager locks = Database.getBufferPool().getLockManager();
+		while (true) {
+			try {
+				for (int pgNo = 0; pgNo < n; pgNo++) {
+					locks.acquire(sys, m.pageId(pgNo), false);
+				}
+				return;
+			} catch (TransactionAbortedException e) {
+				locks.releaseAll(sys);
+			}
+		}
+	}
+
+	/**
+	 * A compaction: the runs to merge, and the level of the run they are merged
+	 * into.
+	 */
+	private static class Compaction {
+		final List<LsmRun> inputs;
+		final int level;
+		final boolean last;
+
+		Compaction(List<LsmRun> inputs, int level, boolean last) {
+			this.inputs = inputs;
+			this.level = level;
+			this.last = last;
+		}
+	}
+
+	private int maxLevel() {
+		int max = 0;
+		for (LsmRun run : runs) {
+			max = Math.max(max, run.level);
+		}
+		return max;
+	}
+
+	private List<LsmRun> runsAt(int level) {
+		List<LsmRun> l = new ArrayList<>();
+		for (LsmRun run : runs) {
+			if (run.level == level) {
+				l.add(run);
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * @return the compaction to run next, or null if no level is too large
+	 */
+	private Compaction pickCompaction() {
+		List<LsmRun> l0 = runsAt(0);
+		int max = maxLevel();
+		if (l0.size() >= L0_COMPACTION_TRIGGER) {
+			List<LsmRun> inputs = new ArrayList<>(l0);
+			inputs.addAll(runsAt(1));
+			return new Compaction(inputs, 1, max <= 1);
+		}
+		long maxBytes = (long) L0_COMPACTION_TRIGGER * memtablePages * BufferPool.getPageSize();
+		for (int level = 1; level <= max; level++, maxBytes *= LEVEL_SIZE_RATIO) {
+			List<LsmRun> inputs = runsAt(level);
+			long bytes = 0;
+			for (LsmRun run : inputs) {
+				bytes += run.size();
+			}
+			if (bytes > maxBytes) {
+				inputs.addAll(runsAt(level + 1));
+				return new Compaction(inputs, level + 1, max <= level + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Merge the runs of a compaction, reading them sequentially from disk, into
+	 * a run of the next level, and replace them with it in the manifest.
+	 */
+	private void compact(Compaction c) throws IOException, DbException {
+		List<Source> sources = new ArrayList<>();
+		long expected = 0;
+		LsmRun run;
+		try {
+			for (LsmRun input : c.inputs) {
+				sources.add(new RunSource(input, new DataInputStream(
+						new BufferedInputStream(new FileInputStream(input.file), 1 << 16))));
+				expected += input.numRecords;
+			}
+			run = writeRun(new Merger(sources), c.level, c.last, expected);
+		} finally {
+			for (Source s : sources) {
+				s.close();
+			}
+		}
+		List<Object> dead;
+		synchronized(this) {
+			runs = new ArrayList<>(runs);
+			runs.removeAll(c.inputs);
+			if (run != null) {
+				run.refs = 1;
+				runs.add(run);
+			}
+			writeManifest();
+			dead = unref(Collections.emptyList(), c.inputs);
+		}
+		destroy(dead);
+		compactions.incrementAndGet();
+	}
+
+	/**
+	 * Write the records of a merge to a new run, netting out the puts and
+	 * tombstones of each tuple. Tombstones that are left are kept, unless the
+	 * run is of the last level, where no put they could delete is left.
+	 *
+	 * @return the run, or null if it would be empty
+	 */
+	private LsmRun writeRun(Merger merger, int level, boolean last, long expected)
+			throws IOException, DbException {
+		int fileNo;
+		synchronized(this) {
+			fileNo = nextFileNo++;
+		}
+		File file = runFile(fileNo);
+		LsmRun.Writer w = new LsmRun.Writer(file, td, expected);
+		try {
+			while (merger.next()) {
+				if (merger.net == 0 || (merger.net < 0 && last)) {
+					continue;
+				}
+				byte kind = merger.net > 0 ? LsmPage.PUT : LsmPage.TOMBSTONE;
+				byte[] record = merger.record;
+				if (record[0] != kind) {
+					record = record.clone();
+					record[0] = kind;
+				}
+				for (int i = Math.abs(merger.net); i > 0; i--) {
+					w.add(record, merger.key);
+				}
+			}
+		} catch (IOException | DbException | RuntimeException e) {
+			w.abandon();
+			throw e;
+		} catch (TransactionAbortedException e) {
+			w.abandon();
+			throw new DbException("merge of LSM file " + tableid + " was aborted");
+		}
+		if (w.numRecords() == 0) {
+			w.abandon();
+			return null;
+		}
+		bytesWritten.addAndGet(w.finish());
+		return LsmRun.open(file, fileNo, level, keyDesc);
+	}
+
+	/**
+	 * Drop a reference to memtables and runs; those that are left without any
+	 * are returned, to be destroyed once the caller leaves the monitor. Called
+	 * while holding the monitor of this file.
+	 */
+	private List<Object> unref(List<Memtable> ms, List<LsmRun> rs) {
+		List<Object> dead = new ArrayList<>();
+		for (Memtable m : ms) {
+			if (--m.refs == 0) {
+				memFiles.remove(m.gen);
+				dead.add(m);
+			}
+		}
+		for (LsmRun run : rs) {
+			if (--run.refs == 0) {
+				dead.add(run);
+			}
+		}
+		return dead;
+	}
+
+	/**
+	 * Remove the pages of memtables and runs that are no longer used from the
+	 * BufferPool, and delete their files. The changes logged for the pages of a
+	 * memtable are in a run, so they need not be redone after a crash.
+	 */
+	private void destroy(List<Object> dead) throws IOException {
+		BufferPool bp = Database.getBufferPool();
+		for (Object o : dead) {
+			if (o instanceof Memtable) {
+				Memtable m = (Memtable) o;
+				for (int pgNo = 0; pgNo < m.numPages; pgNo++) {
+					bp.discardPage(m.pageId(pgNo));
+					Database.getLogFile().pageFlushed(m.pageId(pgNo));
+				}
+				Files.deleteIfExists(memFile(m.gen).toPath());
+			}
+			else {
+				LsmRun run = (LsmRun) o;
+				for (int pgNo = 0; pgNo < run.numPages; pgNo++) {
+					bp.discardPage(new LsmPageId(tableid, run.fileNo, pgNo, LsmPageId.RUN));
+				}
+				run.delete();
+			}
+		}
+	}
+
+	/**
+	 * Build the skip list of the records of a memtable from its pages, the
+	 * first time it is used after the file is opened.
+	 */
+	private void index(Memtable m) throws DbException, TransactionAbortedException {
+		if (m.indexed) {
+			return;
+		}
+		synchronized(m) {
+			if (m.indexed) {
+				return;
+			}
+			for (int pgNo = 0; pgNo < m.numPages; pgNo++) {
+				LsmPage page = (LsmPage) Database.getBufferPool().getPage(null, m.pageId(pgNo), Permissions.READ_ONLY);
+				int free = 0;
+				for (int slot = 0; slot < page.getSlotCount(); slot++) {
+					if (page.isSlotUsed(slot)) {
+						byte[] record = page.getRecord(slot);
+						m.entries.add(new Entry(keyOf(record), record, pgNo, slot));
+					}
+					else {
+						free++;
+					}
+				}
+				if (free > 0) {
+					m.open.add(pgNo);
+				}
+			}
+			m.indexed = true;
+		}
+	}
+
+	/**
+	 * A snapshot of the memtables and runs of the file, each referenced so that
+	 * it is not removed until the snapshot is released.
+	 */
+	class Snapshot {
+		final List<Memtable> mems;
+		final int[] memPages;
+		final List<LsmRun> runs;
+
+		Snapshot(List<Memtable> mems, List<LsmRun> runs) {
+			this.mems = mems;
+			this.runs = runs;
+			this.memPages = new int[mems.size()];
+			for (int i = 0; i < memPages.length; i++) {
+				memPages[i] = mems.get(i).numPages;
+			}
+		}
+	}
+
+	Snapshot acquire() throws DbException {
+		try {
+			load();
+		} catch (IOException e) {
+			throw new DbException("could not open LSM file " + f + ": " + e.getMessage());
+		}
+		synchronized(this) {
+			for (Memtable m : mems) {
+				m.refs++;
+			}
+			for (LsmRun run : runs) {
+				run.refs++;
+			}
+			return new Snapshot(mems, runs);
+		}
+	}
+
+	void release(Snapshot s) {
+		List<Object> dead;
+		synchronized(this) {
+			dead = unref(s.mems, s.runs);
+		}
+		try {
+			destroy(dead);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Open the sources of a scan of a snapshot from the records with key lower
+	 * (or all of them, if lower is null). The pages of the memtables are locked
+	 * for reading first.
+	 *
+	 * @param lookup - a whole key, to skip the runs whose Bloom filters do not
+	 * have it, or null
+	 */
+	List<Source> sources(TransactionId tid, Snapshot s, Field lower, Field lookup)
+			throws DbException, TransactionAbortedException {
+		List<Source> sources = new ArrayList<>();
+		LockManager locks = Database.getBufferPool().getLockManager();
+		for (int i = 0; i < s.mems.size(); i++) {
+			Memtable m = s.mems.get(i);
+			index(m);
+			if (tid != null) {
+				for (int pgNo = 0; pgNo < s.memPages[i]; pgNo++) {
+					locks.acquire(tid, m.pageId(pgNo), false);
+				}
+			}
+			sources.add(new MemSource(tid, m, s.memPages[i], lower));
+		}
+		for (LsmRun run : s.runs) {
+			if (lookup != null && !run.mightContain(lookup)) {
+				bloomSkips.incrementAndGet();
+				continue;
+			}
+			if (lower != null && run.endsBefore(lower)) {
+				continue;
+			}
+			sources.add(new RunSource(run, lower));
+		}
+		return sources;
+	}
+
+	void countLookup() {
+		lookups.incrementAndGet();
+	}
+
+	/**
+	 * Get the tuples whose key satisfies a predicate, in key order. The scan
+	 * starts at the first key the predicate accepts and stops after the last,
+	 * and a lookup of a whole key skips the runs whose Bloom filters rule it
+	 * out.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key
+	 * @return an iterator for the matching tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new LsmFileIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this LSM file, in key order. This
+	 * method will acquire a read lock on the pages of the memtables, and may
+	 * block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new LsmFileIterator(this, tid, null);
+	}
+
+	/**
+	 * A memtable generation: its pages, the pages that may have room for a
+	 * record, and the skip list of its records in order.
+	 */
+	class Memtable {
+		final int gen;
+		/** guarded by the LsmFile */
+		int numPages = 0;
+		int refs = 0;
+		volatile boolean frozen = false;
+		volatile boolean retired = false;
+		volatile boolean indexed = true;
+		final ConcurrentSkipListSet<Integer> open = new ConcurrentSkipListSet<>();
+		final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(entryOrder);
+
+		Memtable(int gen) {
+			this.gen = gen;
+		}
+
+		LsmPageId pageId(int pgNo) {
+			return new LsmPageId(tableid, gen, pgNo, LsmPageId.MEMTABLE);
+		}
+	}
+
+	/**
+	 * A record of a memtable and the slot it is in. The skip list of a
+	 * memtable may have entries for records whose insert was rolled back, so
+	 * an entry is only used if its slot still holds the record.
+	 */
+	static class Entry {
+		final Field key;
+		final byte[] record;
+		final int pgNo;
+		final int slot;
+
+		Entry(Field key, byte[] record, int pgNo, int slot) {
+			this.key = key;
+			this.record = record;
+			this.pgNo = pgNo;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * Records in order: the current one is record, with key key and record id
+	 * rid, or record is null once they are all read.
+	 */
+	abstract static class Source {
+		byte[] record;
+		Field key;
+		RecordId rid;
+
+		/** Read the next record. */
+		abstract void advance() throws DbException, TransactionAbortedException;
+
+		void close() {
+		}
+	}
+
+	/** The records of a sorted list of entries. */
+	private static class ListSource extends Source {
+		private final Iterator<Entry> it;
+
+		ListSource(List<Entry> entries) {
+			this.it = entries.iterator();
+			advance();
+		}
+
+		void advance() {
+			if (!it.hasNext()) {
+				record = null;
+				return;
+			}
+			Entry e = it.next();
+			record = e.record;
+			key = e.key;
+		}
+	}
+
+	/** The records of a memtable, read from its pages through the BufferPool. */
+	private class MemSource extends Source {
+		private final TransactionId tid;
+		private final Memtable m;
+		private final int numPages;
+		private final Iterator<Entry> it;
+
+		MemSource(TransactionId tid, Memtable m, int numPages, Field lower)
+				throws DbException, TransactionAbortedException {
+			this.tid = tid;
+			this.m = m;
+			this.numPages = numPages;
+			this.it = (lower == null ? m.entries : m.entries.tailSet(new Entry(lower, null, -1, -1))).iterator();
+			advance();
+		}
+
+		void advance() throws DbException, TransactionAbortedException {
+			while (it.hasNext()) {
+				Entry e = it.next();
+				if (e.pgNo >= numPages) {
+					continue;
+				}
+				LsmPageId pid = m.pageId(e.pgNo);
+				LsmPage page = (LsmPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				if (page.isSlotUsed(e.slot) && Arrays.equals(page.getRecord(e.slot), e.record)) {
+					record = e.record;
+					key = e.key;
+					rid = new RecordId(pid, e.slot);
+					return;
+				}
+			}
+			record = null;
+		}
+	}
+
+	/**
+	 * The records of a run, read through the BufferPool for a scan, or
+	 * sequentially from the file for a compaction.
+	 */
+	private class RunSource extends Source {
+		private final LsmRun run;
+		private final DataInputStream in;
+		private int pgNo;
+		private LsmPage page = null;
+		private int slot;
+
+		RunSource(LsmRun run, Field lower) throws DbException, TransactionAbortedException {
+			this.run = run;
+			this.in = null;
+			this.pgNo = (lower == null ? 0 : run.firstPage(lower)) - 1;
+			nextPage();
+			while (record != null && lower != null && compareKeys(key, lower) < 0) {
+				advance();
+			}
+		}
+
+		RunSource(LsmRun run, DataInputStream in) throws DbException {
+			this.run = run;
+			this.in = in;
+			this.pgNo = -1;
+			try {
+				nextPage();
+			} catch (TransactionAbortedException e) {
+				throw new DbException("unexpected lock wait reading run " + run.fileNo);
+			}
+		}
+
+		private void nextPage() throws DbException, TransactionAbortedException {
+			pgNo++;
+			if (pgNo >= run.numPages) {
+				page = null;
+				record = null;
+				return;
+			}
+			LsmPageId pid = new LsmPageId(tableid, run.fileNo, pgNo, LsmPageId.RUN);
+			if (in == null) {
+				// runs never change, so their pages are read without locks
+				page = (LsmPage) Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY);
+			}
+			else {
+				try {
+					byte[] data = new byte[BufferPool.getPageSize()];
+					in.readFully(data);
+					page = new LsmPage(pid, data);
+				} catch (IOException e) {
+					throw new DbException("could not read run " + run.fileNo + ": " + e.getMessage());
+				}
+			}
+			slot = 0;
+			current();
+		}
+
+		private void current() throws DbException, TransactionAbortedException {
+			if (slot >= page.getSlotCount() || !page.isSlotUsed(slot)) {
+				nextPage();
+				return;
+			}
+			record = page.getRecord(slot);
+			key = keyOf(record);
+			rid = new RecordId(page.getId(), slot);
+		}
+
+		void advance() throws DbException, TransactionAbortedException {
+			slot++;
+			current();
+		}
+
+		void close() {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges sources into groups of equal records: each call to next reads all
+	 * the puts and tombstones of the next tuple in order. net is the number of
+	 * puts of the tuple less the number of its tombstones, and rid the record
+	 * id of one of its puts.
+	 */
+	static class Merger {
+		private final PriorityQueue<Source> queue = new PriorityQueue<>(
+				(s1, s2) -> compareRecords(s1.key, s1.record, s2.key, s2.record));
+		byte[] record;
+		Field key;
+		RecordId rid;
+		int net;
+
+		Merger(List<Source> sources) {
+			for (Source s : sources) {
+				if (s.record != null) {
+					queue.add(s);
+				}
+			}
+		}
+
+		/**
+		 * @return false if there are no more records
+		 */
+		boolean next() throws DbException, TransactionAbortedException {
+			Source s = queue.poll();
+			if (s == null) {
+				return false;
+			}
+			record = s.record;
+			key = s.key;
+			rid = null;
+			net = 0;
+			add(s);
+			while (!queue.isEmpty() && compareRecords(key, record, queue.peek().key, queue.peek().record) == 0) {
+				add(queue.poll());
+			}
+			return true;
+		}
+
+		private void add(Source s) throws DbException, TransactionAbortedException {
+			while (true) {
+				if (LsmPage.isTombstone(s.record)) {
+					net--;
+				}
+				else {
+					net++;
+					if (rid == null) {
+						rid = s.rid;
+					}
+				}
+				s.advance();
+				if (s.record == null) {
+					return;
+				}
+				if (compareRecords(key, record, s.key, s.record) != 0) {
+					queue.add(s);
+					return;
+				}
+			}
+		}
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of an
+ * LsmFile, or those whose key satisfies a predicate, in key order.
+ */
+class LsmFileIterator extends AbstractDbFileIterator {
+
+	final LsmFile f;
+	final TransactionId tid;
+	final IndexPredicate ipred;
+
+	LsmFile.Snapshot snapshot = null;
+	LsmFile.Merger merger = null;
+	byte[] record = null;
+	RecordId rid = null;
+	int pending = 0;
+	boolean done = false;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the LsmFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all the tuples
+	 */
+	public LsmFileIterator(LsmFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred == null ? null
+				: new IndexPredicate(ipred.getOp(), f.getKeyDesc().normalize(ipred.getField()));
+	}
+
+	/**
+	 * Open this iterator at the first key the predicate may accept
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		snapshot = f.acquire();
+		Field lower = null;
+		Field lookup = null;
+		if (ipred != null) {
+			switch (ipred.getOp()) {
+			case EQUALS:
+				if (f.getKeyDesc().accepts(ipred.getField())) {
+					lookup = ipred.getField();
+					f.countLookup();
+				}
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQ:
+				lower = ipred.getField();
+				break;
+			default:
+				break;
+			}
+		}
+		try {
+			merger = new LsmFile.Merger(f.sources(tid, snapshot, lower, lookup));
+		} catch (DbException | TransactionAbortedException | RuntimeException e) {
+			close();
+			throw e;
+		}
+		pending = 0;
+		done = false;
+	}
+
+	/**
+	 * @return true if no key after key can satisfy the predicate
+	 */
+	private boolean pastEnd(Field key) {
+		if (ipred == null) {
+			return false;
+		}
+		int c = LsmFile.compareKeys(key, ipred.getField());
+		switch (ipred.getOp()) {
+		case EQUALS:
+		case LESS_THAN_OR_EQ:
+			return c > 0;
+		case LESS_THAN:
+			return c >= 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Read the next tuple: another copy of the current one, or the first of
+	 * the next tuple that is in the file and satisfies the predicate.
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (merger == null) {
+			return null;
+		}
+		while (pending == 0) {
+			if (done || !merger.next()) {
+				done = true;
+				return null;
+			}
+			if (pastEnd(merger.key)) {
+				done = true;
+				return null;
+			}
+			if (merger.net <= 0 || (ipred != null && !merger.key.compare(ipred.getOp(), ipred.getField()))) {
+				continue;
+			}
+			record = merger.record;
+			rid = merger.rid;
+			pending = merger.net;
+		}
+		pending--;
+		return LsmPage.tupleOf(f.getTupleDesc(), record, rid);
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator, and release the memtables and runs it was reading
+	 */
+	public void close() {
+		super.close();
+		merger = null;
+		if (snapshot != null) {
+			f.release(snapshot);
+			snapshot = null;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package simpledb.index;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Each instance of LsmPage stores data for one page of an LsmFile: a page of
+ * a memtable generation, or a page of a sorted run.
+ * <p>
+ * A page holds records, each the insert of a tuple (a put) or the delete of one
+ * (a tombstone). A record is serialized as one byte for its kind followed by
+ * the fields of the tuple, and a slot of the page holds one record. Memtable
+ * pages hold their records in no particular order; run pages are full pages of
+ * records in the order of the run, and are never changed.
+ *
+ * @see LsmFile
+ */
+public class LsmPage implements SlottedPage {
+
+	public final static byte PUT = 0;
+	public final static byte TOMBSTONE = 1;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final LsmPageId pid;
+	private final TupleDesc td;
+	private final byte[] header;
+	private final byte[][] records;
+	private final int numSlots;
+	private final int recordSize;
+	private int numUsed = 0;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+	private volatile long lsn;
+
+	/**
+	 * Create an LsmPage from a set of bytes of data read from disk.
+	 * The format of an LsmPage is a set of header bytes indicating the slots of
+	 * the page that are in use, followed by the record slots. The number of
+	 * records is equal to:
+	 * <p>
+	 *      floor((BufferPool.getPageSize()*8) / ((tuple size + 1) * 8 + 1))
+	 * <p>
+	 * where tuple size is the size of tuples in this database table, which can
+	 * be determined via {@link Catalog#getTupleDesc}.
+	 * @see Database#getCatalog
+	 * @see Catalog#getTupleDesc
+	 * @see BufferPool#getPageSize()
+	 */
+	public LsmPage(LsmPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.recordSize = td.getSize() + 1;
+		this.numSlots = getMaxRecords(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		header = new byte[getHeaderSize()];
+		dis.readFully(header);
+
+		records = new byte[numSlots][];
+		for (int i=0; i<numSlots; i++) {
+			byte[] record = new byte[recordSize];
+			dis.readFully(record);
+			if (isSlotUsed(i)) {
+				records[i] = record;
+				numUsed++;
+			}
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the maximum number of records a page of a file of tuples of td
+	 * can hold
+	 */
+	public static int getMaxRecords(TupleDesc td) {
+		int bitsPerRecordIncludingHeader = (td.getSize() + 1) * 8 + 1;
+		return (BufferPool.getPageSize() * 8) / bitsPerRecordIncludingHeader;
+	}
+
+	private int getHeaderSize() {
+		int hb = numSlots / 8;
+		if (hb * 8 < numSlots) hb++;
+		return hb;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public LsmPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized(oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new LsmPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public LsmPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #LsmPage
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		return pageData(header, records, recordSize);
+	}
+
+	/**
+	 * @return the bytes of a page holding the given records in its first slots,
+	 * for a file of tuples of td; used to write runs
+	 */
+	static byte[] pageData(TupleDesc td, byte[][] records, int n) {
+		int numSlots = getMaxRecords(td);
+		byte[] header = new byte[(numSlots + 7) / 8];
+		byte[][] slots = new byte[numSlots][];
+		for (int i=0; i<n; i++) {
+			header[i / 8] |= 1 << (i % 8);
+			slots[i] = records[i];
+		}
+		return pageData(header, slots, td.getSize() + 1);
+	}
+
+	private static byte[] pageData(byte[] header, byte[][] records, int recordSize) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		System.arraycopy(header, 0, data, 0, header.length);
+		int off = header.length;
+		for (byte[] record : records) {
+			if (record != null)
+				System.arraycopy(record, 0, data, off, recordSize);
+			off += recordSize;
+		}
+		return data;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * LsmPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * @return a record of the given kind for the tuple t
+	 */
+	public static byte[] record(byte kind, Tuple t) {
+		TupleDesc td = t.getTupleDesc();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize() + 1);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeByte(kind);
+			for (int j=0; j<td.numFields(); j++)
+				t.getField(j).serialize(dos);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return true if the record is a tombstone
+	 */
+	public static boolean isTombstone(byte[] record) {
+		return record[0] == TOMBSTONE;
+	}
+
+	/**
+	 * Compare the tuples of two records by their bytes, whatever their kinds.
+	 */
+	static int compareTuples(byte[] r1, byte[] r2) {
+		return Arrays.compareUnsigned(r1, 1, r1.length, r2, 1, r2.length);
+	}
+
+	/**
+	 * @return the tuple of a record, with the given record id
+	 */
+	public static Tuple tupleOf(TupleDesc td, byte[] record, RecordId rid) {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+		Tuple t = new Tuple(td);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				t.setField(j, td.getFieldType(j).parse(dis));
+		} catch (java.text.ParseException e) {
+			throw new IllegalArgumentException("malformed record", e);
+		}
+		t.setRecordId(rid);
+		return t;
+	}
+
+	/**
+	 * @return the record in slot i, which must be used; callers must not
+	 * change it
+	 */
+	public byte[] getRecord(int i) {
+		if (!isSlotUsed(i))
+			throw new IllegalArgumentException("slot " + i + " is empty");
+		return records[i];
+	}
+
+	/**
+	 * @return the tuple of the record in slot i
+	 */
+	public Tuple getTuple(int i) {
+		return tupleOf(td, getRecord(i), new RecordId(pid, i));
+	}
+
+	/**
+	 * Adds the specified record to the first empty slot of the page.
+	 * @throws DbException if the page is full
+	 * @param record The record to add.
+	 * @return the slot of the record
+	 */
+	public int addRecord(byte[] record) throws DbException {
+		if (record.length != recordSize)
+			throw new DbException("record size mismatch, in addRecord");
+		// slots are filled in order, so the first empty one is usually the next
+		for (int i=numUsed; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				records[i] = record;
+				return i;
+			}
+		}
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				records[i] = record;
+				return i;
+			}
+		}
+		throw new DbException("called addRecord on page with no empty slots.");
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of records currently stored on this page
+	 */
+	public int getNumRecords() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		return numSlots - numUsed;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		return (header[headerbyte] & (1 << headerbit)) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		if (value != isSlotUsed(i))
+			numUsed += value ? 1 : -1;
+		if (value)
+			header[headerbyte] |= 1 << headerbit;
+		else
+			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	}
+
+	public int getSlotCount() {
+		return numSlots;
+	}
+
+	/**
+	 * A slot is serialized as its record, one byte for the kind and
+	 * td.getSize() bytes for the tuple.
+	 */
+	public byte[] getSlot(int i) {
+		return getRecord(i).clone();
+	}
+
+	public void putSlot(int i, byte[] data) {
+		if (data.length != recordSize)
+			throw new IllegalArgumentException("malformed slot data");
+		records[i] = data.clone();
+		markSlotUsed(i, true);
+	}
+
+	public void clearSlot(int i) {
+		markSlotUsed(i, false);
+		records[i] = null;
+	}
+
+	/** An LsmPage has no state besides its slots. */
+	public byte[] getPageState() {
+		return new byte[0];
+	}
+
+	public void setPageState(byte[] state) {
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+}
@@ -0,0 +1,122 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/** Unique identifier for the memtable and run pages of an LsmFile. A page is
+ * identified by its table, the number of the memtable generation or run file
+ * it is in, and its number in that file.
+ */
+public class LsmPageId implements PageId {
+
+	public final static int MEMTABLE = 0;
+	public final static int RUN = 1;
+
+	private final int tableId;
+	private final int fileNo;
+	private final int pgNo;
+	private final int pgcateg;
+
+	static public String categToString(int categ) {
+		switch (categ) {
+			case MEMTABLE:
+				return "MEMTABLE";
+			case RUN:
+				return "RUN";
+			default:
+				throw new IllegalArgumentException("categ");
+		}
+	}
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific file of a specific table.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param fileNo The memtable generation or run of the page
+	 * @param pgNo The page number in that file.
+	 * @param pgcateg MEMTABLE or RUN
+	 */
+	public LsmPageId(int tableId, int fileNo, int pgNo, int pgcateg) {
+		this.tableId = tableId;
+		this.fileNo = fileNo;
+		this.pgNo = pgNo;
+		this.pgcateg = pgcateg;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the number of the memtable generation or run file the page is in
+	 */
+	public int getFileNo() {
+		return fileNo;
+	}
+
+	/**
+	 * @return the page number in its file
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return the category of this page
+	 */
+	public int pgcateg() {
+		return pgcateg;
+	}
+
+	/**
+	 * @return a hash code for this page, represented by the combination of
+	 *   the table number, file number, page number, and pgcateg
+	 * @see BufferPool
+	 */
+	public int hashCode() {
+		return Objects.hash(tableId, fileNo, pgNo, pgcateg);
+	}
+
+	/**
+	 * Compares one PageId to another.
+	 *
+	 * @param o The object to compare against (must be a PageId)
+	 * @return true if the objects are equal
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof LsmPageId))
+			return false;
+		LsmPageId p = (LsmPageId)o;
+		return tableId == p.tableId && fileNo == p.fileNo && pgNo == p.pgNo && pgcateg == p.pgcateg;
+	}
+
+	public String toString() {
+		return "(tableId: " + tableId +
+				", fileNo: " + fileNo +
+				", pgNo: " + pgNo +
+				", pgcateg: " + categToString(pgcateg) +
+				")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.  Size of returned array must contain
+	 *  number of integers that corresponds to number of args to one of the
+	 *  constructors.
+	 */
+	public int[] serialize() {
+		int[] data = new int[4];
+
+		data[0] = tableId;
+		data[1] = fileNo;
+		data[2] = pgNo;
+		data[3] = pgcateg;
+
+		return data;
+	}
+
+}
@@ -0,0 +1,243 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sorted run of an LsmFile: an immutable file of records in the order of
+ * their keys, written once by a flush of a memtable or by a compaction.
+ * <p>
+ * The file is numPages full LsmPages, the records in order from the first slot
+ * of the first page, followed by a footer: the number of pages and of records,
+ * the first key of each page and the last key of the run (the fence keys), and
+ * a Bloom filter of the keys. The last 8 bytes of the file are the offset of
+ * the footer. The footer is read when the run is opened and kept in memory, so
+ * a lookup of a key reads no page of a run that the filter or the fence keys
+ * rule out, and one page (or more, for a key with many records) of the others.
+ *
+ * @see LsmFile
+ */
+class LsmRun {
+
+	/** Bits per key of the Bloom filters of runs: about 1% false positives */
+	final static int BLOOM_BITS_PER_KEY = 10;
+
+	final File file;
+	final int fileNo;
+	final int level;
+	final int numPages;
+	final long numRecords;
+	private final Field[] firstKeys;
+	private final Field lastKey;
+	private final BloomFilter bloom;
+
+	/** the number of versions of the LsmFile and open iterators using the run */
+	int refs = 0;
+
+	private LsmRun(File file, int fileNo, int level, int numPages, long numRecords, Field[] firstKeys,
+			Field lastKey, BloomFilter bloom) {
+		this.file = file;
+		this.fileNo = fileNo;
+		this.level = level;
+		this.numPages = numPages;
+		this.numRecords = numRecords;
+		this.firstKeys = firstKeys;
+		this.lastKey = lastKey;
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Open a run written by a Writer, reading its footer.
+	 */
+	static LsmRun open(File file, int fileNo, int level, KeyDesc keyDesc) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(file, "r")) {
+			rf.seek(rf.length() - 8);
+			long footer = rf.readLong();
+			byte[] buf = new byte[(int) (rf.length() - 8 - footer)];
+			rf.seek(footer);
+			rf.readFully(buf);
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+			int numPages = dis.readInt();
+			long numRecords = dis.readLong();
+			Field[] firstKeys = new Field[numPages];
+			Field lastKey = null;
+			try {
+				for (int i = 0; i < numPages; i++) {
+					firstKeys[i] = keyDesc.parse(dis);
+				}
+				if (numPages > 0) {
+					lastKey = keyDesc.parse(dis);
+				}
+			} catch (ParseException e) {
+				throw new IOException("malformed footer of run " + file);
+			}
+			BloomFilter bloom = BloomFilter.read(dis);
+			return new LsmRun(file, fileNo, level, numPages, numRecords, firstKeys, lastKey, bloom);
+		}
+	}
+
+	/**
+	 * @return the size of the run file in bytes
+	 */
+	long size() {
+		return file.length();
+	}
+
+	/**
+	 * @return false if the run has no record with the given whole key
+	 */
+	boolean mightContain(Field key) {
+		if (numPages == 0 || LsmFile.compareKeys(key, firstKeys[0]) < 0
+				|| LsmFile.compareKeys(key, lastKey) > 0) {
+			return false;
+		}
+		return bloom.mightContain(key);
+	}
+
+	/**
+	 * @return the first page that may hold records with a key at least lower
+	 * (a key or a prefix of one): the last page whose first key is less than
+	 * lower, since its last records may have keys equal to lower, or page 0
+	 */
+	int firstPage(Field lower) {
+		int lo = 0;
+		int hi = numPages - 1;
+		int found = 0;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (LsmFile.compareKeys(firstKeys[mid], lower) < 0) {
+				found = mid;
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return true if the run has no record with a key at least key (a key or
+	 * a prefix of one)
+	 */
+	boolean endsBefore(Field key) {
+		return numPages == 0 || LsmFile.compareKeys(lastKey, key) < 0;
+	}
+
+	/**
+	 * Delete the file of the run.
+	 */
+	void delete() throws IOException {
+		Files.deleteIfExists(file.toPath());
+	}
+
+	public String toString() {
+		return "run " + fileNo + " (level " + level + ", " + numPages + " pages, " + numRecords + " records)";
+	}
+
+	/**
+	 * Writes a run: records are added in order, and fill the pages of the run
+	 * one after the other.
+	 */
+	static class Writer {
+
+		private final File file;
+		private final TupleDesc td;
+		private final BufferedOutputStream out;
+		private final FileOutputStream fos;
+		private final byte[][] page;
+		private final List<Field> firstKeys = new ArrayList<>();
+		private final BloomFilter bloom;
+		private int n = 0;
+		private long numRecords = 0;
+		private Field lastKey = null;
+
+		/**
+		 * @param expectedKeys - an upper bound on the number of keys of the run,
+		 * to size its Bloom filter
+		 */
+		Writer(File file, TupleDesc td, long expectedKeys) throws IOException {
+			this.file = file;
+			this.td = td;
+			this.fos = new FileOutputStream(file);
+			this.out = new BufferedOutputStream(fos, 1 << 16);
+			this.page = new byte[LsmPage.getMaxRecords(td)][];
+			this.bloom = new BloomFilter((int) Math.min(expectedKeys, Integer.MAX_VALUE / BLOOM_BITS_PER_KEY),
+					BLOOM_BITS_PER_KEY);
+		}
+
+		/**
+		 * Add a record, with a key that is not less than the key of the
+		 * previous one.
+		 */
+		void add(byte[] record, Field key) throws IOException {
+			if (n == 0) {
+				firstKeys.add(key);
+			}
+			if (lastKey == null || !lastKey.equals(key)) {
+				bloom.add(key);
+			}
+			page[n++] = record;
+			lastKey = key;
+			numRecords++;
+			if (n == page.length) {
+				writePage();
+			}
+		}
+
+		private void writePage() throws IOException {
+			out.write(LsmPage.pageData(td, page, n));
+			n = 0;
+		}
+
+		long numRecords() {
+			return numRecords;
+		}
+
+		/**
+		 * Write the last page and the footer, and force the file to disk.
+		 *
+		 * @return the number of bytes of the run
+		 */
+		long finish() throws IOException {
+			if (n > 0) {
+				writePage();
+			}
+			long footer = (long) firstKeys.size() * BufferPool.getPageSize();
+			DataOutputStream dos = new DataOutputStream(out);
+			dos.writeInt(firstKeys.size());
+			dos.writeLong(numRecords);
+			for (Field key : firstKeys) {
+				key.serialize(dos);
+			}
+			if (lastKey != null) {
+				lastKey.serialize(dos);
+			}
+			bloom.write(dos);
+			dos.writeLong(footer);
+			dos.flush();
+			fos.getFD().sync();
+			out.close();
+			return file.length();
+		}
+
+		/**
+		 * Give up writing the run, and delete its file.
+		 */
+		void abandon() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			file.delete();
+		}
+	}
+}
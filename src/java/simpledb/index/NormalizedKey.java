@@ -0,0 +1,125 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A NormalizedKey is the key of a BTreeFile on several fields, or on a string
+ * field, encoded as bytes that sort in the order of the key: comparing two keys
+ * is an unsigned byte-by-byte compare of their encodings, whatever the fields.
+ * See KeyDesc for the encoding.
+ * <p>
+ * A key may also be a prefix of the fields of a KeyDesc, e.g. only the first of
+ * two fields, to search for all the tuples with that first field. A prefix is
+ * compared with a longer key on the length of the prefix only, so it is equal to
+ * every key that starts with it.
+ *
+ * @see KeyDesc
+ */
+public class NormalizedKey implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] bytes;
+	private final Type type;
+
+	/**
+	 * @param bytes - the encoded key
+	 * @param type - the type of the first field of the key
+	 */
+	NormalizedKey(byte[] bytes, Type type) {
+		this.bytes = bytes;
+		this.type = type;
+	}
+
+	/**
+	 * @return the number of bytes of the encoded key
+	 */
+	public int getLen() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return a copy of the encoded key
+	 */
+	public byte[] getBytes() {
+		return bytes.clone();
+	}
+
+	/**
+	 * @return the encoded key itself, which must not be changed
+	 */
+	byte[] bytes() {
+		return bytes;
+	}
+
+	public void serialize(DataOutputStream dos) throws IOException {
+		dos.write(bytes);
+	}
+
+	/**
+	 * Compare the encodings of two keys on the length of the shorter one.
+	 *
+	 * @return a negative number, zero, or a positive number as this key is less
+	 * than, equal to, or greater than the other
+	 */
+	public int compareTo(NormalizedKey other) {
+		int n = Math.min(bytes.length, other.bytes.length);
+		return Arrays.compareUnsigned(bytes, 0, n, other.bytes, 0, n);
+	}
+
+	/**
+	 * Compare the specified key to this key.
+	 *
+	 * @throws ClassCastException if val is not a NormalizedKey
+	 * @see Field#compare
+	 */
+	public boolean compare(Predicate.Op op, Field val) {
+		int c = compareTo((NormalizedKey) val);
+		switch (op) {
+		case EQUALS:
+		case LIKE:
+			return c == 0;
+		case NOT_EQUALS:
+			return c != 0;
+		case GREATER_THAN:
+			return c > 0;
+		case GREATER_THAN_OR_EQ:
+			return c >= 0;
+		case LESS_THAN:
+			return c < 0;
+		case LESS_THAN_OR_EQ:
+			return c <= 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the type of the first field of the key
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	public boolean equals(Object field) {
+		if (!(field instanceof NormalizedKey)) return false;
+		return Arrays.equals(bytes, ((NormalizedKey) field).bytes);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,118 @@
+package simpledb.index;
+
+import simpledb.storage.PageCodec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Front coding of the byte strings of a compressed B+ tree page. Each string is
+ * stored as the length of the prefix it shares with the string before it on the
+ * page, then the length of the rest, then the rest:
+ * <pre>
+ *     varint(prefix) varint(suffix length) suffix
+ * </pre>
+ * Keys in an internal page all have the length of the key of the tree; their
+ * trailing zero bytes are dropped too, so a separator shortened by
+ * {@link KeyDesc#separator} only takes the bytes it needs.
+ * <p>
+ * Removing a string never makes the strings of a page longer: the string after
+ * it shares at least the shorter of the two prefixes with the string before it,
+ * and gains at most the suffix of the string that was removed.
+ */
+final class PrefixCoding {
+
+	private PrefixCoding() {
+	}
+
+	/**
+	 * @return the number of bytes v takes as a varint
+	 */
+	static int varIntSize(int v) {
+		int n = 1;
+		while((v & ~0x7f) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the largest number of bytes a string of up to len bytes takes
+	 */
+	static int maxSize(int len) {
+		return 2 * varIntSize(len) + len;
+	}
+
+	private static int commonPrefix(byte[] prev, byte[] cur) {
+		if(prev == null) {
+			return 0;
+		}
+		int n = Math.min(prev.length, cur.length);
+		int i = 0;
+		while(i < n && prev[i] == cur[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the length of cur without its trailing zero bytes if fixed, but no
+	 * less than prefix
+	 */
+	private static int end(byte[] cur, int prefix, boolean fixed) {
+		int end = cur.length;
+		if(fixed) {
+			while(end > prefix && cur[end - 1] == 0) {
+				end--;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @param prev - the string before cur on the page, or null if cur is the first
+	 * @param cur - the string
+	 * @param fixed - true if all the strings have the same length and their
+	 * trailing zero bytes are dropped
+	 * @return the number of bytes cur takes on the page
+	 */
+	static int size(byte[] prev, byte[] cur, boolean fixed) {
+		int prefix = commonPrefix(prev, cur);
+		int suffix = end(cur, prefix, fixed) - prefix;
+		return varIntSize(prefix) + varIntSize(suffix) + suffix;
+	}
+
+	/**
+	 * Write cur, coded against prev.
+	 * @see #size
+	 */
+	static void write(DataOutputStream dos, byte[] prev, byte[] cur, boolean fixed) throws IOException {
+		int prefix = commonPrefix(prev, cur);
+		int end = end(cur, prefix, fixed);
+		PageCodec.writeVarInt(dos, prefix);
+		PageCodec.writeVarInt(dos, end - prefix);
+		dos.write(cur, prefix, end - prefix);
+	}
+
+	/**
+	 * Read a string written by {@link #write}.
+	 * @param prev - the string before it on the page, or null if it is the first
+	 * @param len - the length of the strings if they all have the same length, or
+	 * -1 if the string is as long as it was written
+	 */
+	static byte[] read(DataInputStream dis, byte[] prev, int len) throws IOException {
+		int prefix = PageCodec.readVarInt(dis);
+		int suffix = PageCodec.readVarInt(dis);
+		if(prefix > (prev == null ? 0 : prev.length) || (len >= 0 && prefix + suffix > len)) {
+			throw new IOException("malformed compressed entry");
+		}
+		byte[] cur = new byte[len >= 0 ? len : prefix + suffix];
+		if(prefix > 0) {
+			System.arraycopy(prev, 0, cur, 0, prefix);
+		}
+		dis.readFully(cur, prefix, suffix);
+		return cur;
+	}
+}
@@ -0,0 +1,709 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * SecondaryIndex is a B+ tree index on a field of a HeapFile table. The tree
+ * does not hold the tuples of the table but one entry per tuple: the value of
+ * the indexed field, and the page number and slot of the tuple in the table,
+ * i.e. its RecordId. The entries are kept in a BTreeFile keyed on the first
+ * field, so a lookup finds the matching entries in the tree and then reads
+ * each tuple from its page of the table.
+ * <p>
+ * An index may be on several fields, e.g. (tenant_id, created_at); its entries
+ * then start with all of them and the tree is keyed on them together (see
+ * KeyDesc). A predicate on the first field alone matches the entries with that
+ * first field, whatever the others.
+ * <p>
+ * An index may also include copies of other fields of the table in its
+ * entries, between the key and the RecordId. A query that only needs the
+ * indexed and included fields of a table is then answered from the leaves of
+ * the tree alone (see #scanCovered), without reading the table.
+ * <p>
+ * An index is attached to its table in the Catalog (see Catalog#addIndex),
+ * and the BufferPool adds and removes the entries as tuples are inserted into
+ * and deleted from the table, in the same transaction. The pages of the tree
+ * are locked like those of any BTreeFile, so a lookup cannot see the entries
+ * of transactions that have not committed.
+ * <p>
+ * Entries are not versioned. A read-only transaction, which reads a snapshot
+ * (see VersionStore), still finds the tuples through the current entries and
+ * reads the version of each tuple in its snapshot, but must also read the
+ * tuples whose entries were removed or changed after the snapshot was taken.
+ * The table changes a tuple before its entries, and keeps the older versions a
+ * snapshot may need, so those are among the slots of the table that have older
+ * versions. Its lookups therefore return the tuples in no particular order, and
+ * scanCovered, which does not read the table, cannot serve it.
+ * <p>
+ * A read-only transaction takes no locks, so that it never holds up a writer:
+ * its lookup first copies the slots the entries point to in a short
+ * transaction of its own, which releases its locks on the index as soon as the
+ * copy is made and gives up rather than wait for a writer (see
+ * LockManager#setNoWait), and only then reads the tuples. If writers keep the
+ * entries locked, the lookup scans the table instead.
+ * <p>
+ * A hash index keeps the same entries in a HashFile instead of a tree. A lookup
+ * of one value then reads one bucket of entries, but the entries are in no
+ * order, so any other predicate reads them all.
+ *
+ * @see BTreeBuilder#createIndex
+ * @see HashFile#createIndex
+ */
+public class SecondaryIndex {
+
+	/** the number of times a read-only transaction tries to read the entries of a lookup */
+	static final int SNAPSHOT_ATTEMPTS = 3;
+
+	/** the most rounds an online build catches up without locking the table */
+	static final int CATCH_UP_ROUNDS = 3;
+
+	private final IndexFile file;
+	private final int tableid;
+	private final int[] keyFields;
+	private final int[] includeFields;
+
+	/**
+	 * @param file - the tree of entries, with tuples of entryDesc
+	 * @param tableid - the table the index is on, which must be a HeapFile
+	 * @param keyField - the field of the table that is indexed
+	 */
+	public SecondaryIndex(IndexFile file, int tableid, int keyField) {
+		this(file, tableid, new int[] { keyField }, new int[0]);
+	}
+
+	/**
+	 * @param file - the tree of entries, with tuples of entryDesc, keyed on their
+	 * first keyFields.length fields, or a HashFile of them
+	 * @param tableid - the table the index is on, which must be a HeapFile
+	 * @param keyFields - the fields of the table that are indexed, most significant first
+	 * @param includeFields - the fields of the table copied into each entry
+	 */
+	public SecondaryIndex(IndexFile file, int tableid, int[] keyFields, int[] includeFields) {
+		this.file = file;
+		this.tableid = tableid;
+		this.keyFields = keyFields.clone();
+		this.includeFields = includeFields.clone();
+	}
+
+	/**
+	 * Open an index whose file was built before, e.g. one listed in the catalog
+	 * file.
+	 *
+	 * @param file - the file of the index
+	 * @param tableid - the table the index is on, which must be in the Catalog
+	 * @param keyFields - the fields of the table that are indexed, most significant first
+	 * @param includeFields - the fields of the table copied into each entry
+	 * @param ordered - true for a B+ tree, false for a hash index
+	 * @return the index, not yet attached to its table
+	 */
+	public static SecondaryIndex open(File file, int tableid, int[] keyFields, int[] includeFields,
+			boolean ordered) {
+		TupleDesc entryDesc = entryDesc(Database.getCatalog().getTupleDesc(tableid), keyFields, includeFields);
+		KeyDesc key = entryKey(entryDesc, keyFields.length);
+		IndexFile f = ordered ? new BTreeFile(file, key, entryDesc) : new HashFile(file, key, entryDesc);
+		return new SecondaryIndex(f, tableid, keyFields, includeFields);
+	}
+
+	/**
+	 * @return the descriptor of the entries of an index on a field of the given type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+				new String[] { "key", "page", "slot" });
+	}
+
+	/**
+	 * @param td - the descriptor of the table
+	 * @param keyFields - the fields of the table that are indexed
+	 * @param includeFields - the fields of the table copied into each entry
+	 * @return the descriptor of the entries of the index: the key ("key", or "key0",
+	 * "key1"... for several fields), the included fields under their names in the
+	 * table, then the page and the slot
+	 */
+	public static TupleDesc entryDesc(TupleDesc td, int[] keyFields, int[] includeFields) {
+		int k = keyFields.length;
+		int n = includeFields.length;
+		Type[] types = new Type[k + n + 2];
+		String[] names = new String[k + n + 2];
+		for(int i = 0; i < k; i++) {
+			types[i] = td.getFieldType(keyFields[i]);
+			names[i] = k == 1 ? "key" : "key" + i;
+		}
+		for(int i = 0; i < n; i++) {
+			for(int keyField : keyFields) {
+				if(includeFields[i] == keyField) {
+					throw new IllegalArgumentException("a key field cannot also be included");
+				}
+			}
+			types[k + i] = td.getFieldType(includeFields[i]);
+			names[k + i] = td.getFieldName(includeFields[i]);
+		}
+		types[k + n] = Type.INT_TYPE;
+		names[k + n] = "page";
+		types[k + n + 1] = Type.INT_TYPE;
+		names[k + n + 1] = "slot";
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * @return the key of the tree of entries of an index on keyFields fields
+	 */
+	public static KeyDesc entryKey(TupleDesc entryDesc, int keyFields) {
+		int[] fields = new int[keyFields];
+		for(int i = 0; i < keyFields; i++) {
+			fields[i] = i;
+		}
+		return new KeyDesc(entryDesc, fields);
+	}
+
+	/**
+	 * @return the tree of entries, or the HashFile of them
+	 */
+	public IndexFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true if the entries are kept in key order, so that the index can
+	 * find the tuples of a range of values; a hash index only finds those of
+	 * one value
+	 */
+	public boolean isOrdered() {
+		return file.isOrdered();
+	}
+
+	/**
+	 * @return the id of the tree of entries in the Catalog
+	 */
+	public int getId() {
+		return file.getId();
+	}
+
+	/**
+	 * @return the id of the table the index is on
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the field of the table that is indexed, the first one if several are
+	 */
+	public int keyField() {
+		return keyFields[0];
+	}
+
+	/**
+	 * @return the fields of the table that are indexed
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * @return the fields of the table copied into each entry
+	 */
+	public int[] includeFields() {
+		return includeFields.clone();
+	}
+
+	/**
+	 * @return the fields of the table the entries hold: the indexed field, then
+	 * the included fields
+	 */
+	public int[] coveredFields() {
+		int[] covered = new int[keyFields.length + includeFields.length];
+		System.arraycopy(keyFields, 0, covered, 0, keyFields.length);
+		System.arraycopy(includeFields, 0, covered, keyFields.length, includeFields.length);
+		return covered;
+	}
+
+	/**
+	 * @param t - a tuple of the table, with its RecordId set
+	 * @return the entry for the tuple
+	 */
+	public Tuple entryFor(Tuple t) {
+		return entryFor(t, t.getRecordId());
+	}
+
+	/**
+	 * @return the entry for a version of the tuple in the slot rid, e.g. an
+	 * older version kept by the VersionStore
+	 */
+	private Tuple entryFor(Tuple t, RecordId rid) {
+		Tuple entry = new Tuple(file.getTupleDesc());
+		int[] covered = coveredFields();
+		int n = covered.length;
+		for(int i = 0; i < n; i++) {
+			entry.setField(i, t.getField(covered[i]));
+		}
+		entry.setField(n, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(n + 1, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * @return the RecordId in the table that an entry points to
+	 */
+	public RecordId recordIdOf(Tuple entry) {
+		int n = keyFields.length + includeFields.length;
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(n)).getValue()),
+				((IntField) entry.getField(n + 1)).getValue());
+	}
+
+	/**
+	 * Add the entry for a tuple that was just inserted into the table.
+	 *
+	 * @return the pages of the tree that were dirtied
+	 */
+	public List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, entryFor(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that is being deleted from the table.
+	 *
+	 * @return the pages of the tree that were dirtied
+	 */
+	public List<Page> deleteEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.deleteTuple(tid, findEntry(tid, entryFor(t)));
+	}
+
+	/**
+	 * @param entry - the entry for a tuple, as entryFor makes it
+	 * @return the same entry as stored in the index, with its RecordId in the
+	 * index file set
+	 */
+	private Tuple findEntry(TransactionId tid, Tuple entry)
+			throws DbException, TransactionAbortedException {
+		RecordId rid = recordIdOf(entry);
+		Field key = file.getKeyDesc().keyOf(entry);
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple stored = it.next();
+				if(recordIdOf(stored).equals(rid)) {
+					return stored;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		throw new DbException("index " + getId() + " has no entry for " + rid);
+	}
+
+	/**
+	 * Builds an index from a snapshot of its table.
+	 */
+	interface SnapshotBuild {
+		SecondaryIndex build(TransactionId snapshot) throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * Build an index without keeping writers out of its table for the length of
+	 * the build, and attach it to the table in the Catalog.
+	 * <p>
+	 * The index is built from a snapshot of the table (see VersionStore), which
+	 * takes no locks. The changes committed to the table since are then applied
+	 * to it from the older versions the snapshot keeps alive: a slot whose
+	 * entry differs between the snapshot and a newer one gets its old entry
+	 * removed and its new one added. Each round catches up to a newer snapshot,
+	 * without locks, until a round finds nothing to change or CATCH_UP_ROUNDS
+	 * have run. Only then is the table locked, which waits for the writers that
+	 * are running and keeps new ones out; the last changes are applied and the
+	 * index is attached under that lock, which the building transaction holds
+	 * until it completes. The changes to the index are made by tid, so if it
+	 * aborts they are rolled back with it.
+	 *
+	 * @param tid - the transaction building the index
+	 * @param tableid - the table to index, which must be a HeapFile
+	 * @param name - the name of the index in the Catalog
+	 * @param build - builds the index from a snapshot of the table
+	 * @return the index
+	 */
+	static SecondaryIndex createOnline(TransactionId tid, int tableid, String name, SnapshotBuild build)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		VersionStore versions = bp.getVersionStore();
+		TransactionId snapshot = new TransactionId();
+		versions.beginSnapshot(snapshot);
+		try {
+			SecondaryIndex index = build.build(snapshot);
+			// the BufferPool finds the pages of the index through the Catalog
+			Database.getCatalog().addTable(index.getFile(), name);
+			for(int round = 0; round < CATCH_UP_ROUNDS; round++) {
+				TransactionId next = new TransactionId();
+				versions.beginSnapshot(next);
+				int changed;
+				try {
+					changed = index.catchUp(tid, snapshot, next);
+				} finally {
+					versions.endSnapshot(snapshot);
+					snapshot = next;
+				}
+				if(changed == 0) {
+					break;
+				}
+			}
+			bp.getLockManager().acquireTable(tid, tableid, false);
+			index.catchUp(tid, snapshot, tid);
+			Database.getCatalog().addIndex(tableid, index, name);
+			return index;
+		} finally {
+			versions.endSnapshot(snapshot);
+		}
+	}
+
+	/**
+	 * Change the entries of the slots of the table that have older versions from
+	 * what one transaction sees to what another sees.
+	 *
+	 * @param tid - the transaction that changes the index
+	 * @param from - the snapshot the index is up to date with
+	 * @param to - a newer snapshot, or tid if it holds a lock on the table
+	 * @return the number of slots whose entries were changed
+	 */
+	private int catchUp(TransactionId tid, TransactionId from, TransactionId to)
+			throws DbException, IOException, TransactionAbortedException {
+		HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+		BufferPool bp = Database.getBufferPool();
+		int changed = 0;
+		for(RecordId rid : bp.getVersionStore().versionedRecords(tableid)) {
+			Tuple before = table.readTuple(from, rid);
+			Tuple after = table.readTuple(to, rid);
+			Tuple removed = before == null ? null : entryFor(before, rid);
+			Tuple added = after == null ? null : entryFor(after, rid);
+			if(sameFields(removed, added)) {
+				continue;
+			}
+			if(removed != null) {
+				bp.deleteTuple(tid, findEntry(tid, removed));
+			}
+			if(added != null) {
+				bp.insertTuple(tid, file.getId(), added);
+			}
+			changed++;
+		}
+		return changed;
+	}
+
+	private static boolean sameFields(Tuple a, Tuple b) {
+		if(a == null || b == null) {
+			return a == b;
+		}
+		for(int i = 0; i < a.getTupleDesc().numFields(); i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the tuples of the table whose indexed field satisfies a predicate, in
+	 * the order of the index. Each tuple is read and locked like the HeapFile
+	 * iterator does; a read-only transaction reads the tuples of its snapshot,
+	 * in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed field, or on the indexed fields as a
+	 * key of the tree of entries (see KeyDesc#key)
+	 * @return an iterator over the matching tuples of the table
+	 * @see HeapFile#readTuple(TransactionId, RecordId)
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+		if(Database.getBufferPool().getVersionStore().hasSnapshot(tid)) {
+			return new SnapshotLookupIterator(tid, Collections.singletonList(ipred),
+					reader -> file.indexIterator(reader, ipred));
+		}
+		return new LookupIterator(tid, file.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Find the tuples of the table whose indexed field satisfies all of a few
+	 * predicates, e.g. a range, in the order of the index or in reverse order,
+	 * like lookup(TransactionId, IndexPredicate). The index must be ordered,
+	 * unless there is one predicate and the order is not reversed.
+	 *
+	 * @param tid - the transaction id
+	 * @param preds - the predicates on the indexed field, none for all the tuples
+	 * @param descending - true to return the tuples in reverse order of the index
+	 * @return an iterator over the matching tuples of the table
+	 * @see IndexFile#indexIterator(TransactionId, List, boolean)
+	 */
+	public DbFileIterator lookup(TransactionId tid, List<IndexPredicate> preds, boolean descending) {
+		if(Database.getBufferPool().getVersionStore().hasSnapshot(tid)) {
+			return new SnapshotLookupIterator(tid, preds, reader -> file.indexIterator(reader, preds, descending));
+		}
+		return new LookupIterator(tid, file.indexIterator(tid, preds, descending));
+	}
+
+	/**
+	 * Find the entries whose key satisfies a predicate and return the fields of
+	 * the table they hold, in the order of the index, without reading the
+	 * table. The pages of the tree are locked as they are read, so the entries of
+	 * transactions that have not committed are not seen.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed field, or on the indexed fields as a
+	 * key of the tree of entries, or null for all entries
+	 * @return an iterator over tuples of the coveredFields of the table, in that
+	 * order and under the names of the table
+	 */
+	public DbFileIterator scanCovered(TransactionId tid, IndexPredicate ipred) {
+		return new CoveredIterator(ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Find the entries whose key satisfies all of a few predicates, in the order
+	 * of the index or in reverse order, and return the fields of the table they
+	 * hold, like scanCovered(TransactionId, IndexPredicate).
+	 *
+	 * @param tid - the transaction id
+	 * @param preds - the predicates on the indexed field, none for all entries
+	 * @param descending - true to return the entries in reverse order of the index
+	 * @return an iterator over tuples of the coveredFields of the table
+	 * @see IndexFile#indexIterator(TransactionId, List, boolean)
+	 */
+	public DbFileIterator scanCovered(TransactionId tid, List<IndexPredicate> preds, boolean descending) {
+		return new CoveredIterator(file.indexIterator(tid, preds, descending));
+	}
+
+	/**
+	 * @return the descriptor of the tuples scanCovered returns
+	 */
+	public TupleDesc coveredDesc() {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		int[] covered = coveredFields();
+		Type[] types = new Type[covered.length];
+		String[] names = new String[covered.length];
+		for(int i = 0; i < covered.length; i++) {
+			types[i] = td.getFieldType(covered[i]);
+			names[i] = td.getFieldName(covered[i]);
+		}
+		return new TupleDesc(types, names);
+	}
+
+	private class CoveredIterator extends AbstractDbFileIterator {
+		private final DbFileIterator entries;
+		private final TupleDesc td;
+
+		CoveredIterator(DbFileIterator entries) {
+			this.entries = entries;
+			this.td = coveredDesc();
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if(!entries.hasNext()) {
+				return null;
+			}
+			Tuple entry = entries.next();
+			Tuple t = new Tuple(td);
+			for(int i = 0; i < td.numFields(); i++) {
+				t.setField(i, entry.getField(i));
+			}
+			return t;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			super.close();
+			entries.rewind();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+
+	private class LookupIterator extends AbstractDbFileIterator {
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		LookupIterator(TransactionId tid, DbFileIterator entries) {
+			this.tid = tid;
+			this.entries = entries;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+			while(entries.hasNext()) {
+				Tuple t = table.readTuple(tid, recordIdOf(entries.next()));
+				if(t != null) {
+					return t;
+				}
+			}
+			return null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			super.close();
+			entries.rewind();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+
+	private class SnapshotLookupIterator extends AbstractDbFileIterator {
+		private final TransactionId tid;
+		private final List<IndexPredicate> preds;
+		/** the iterator over the matching entries, for the transaction that reads them */
+		private final Function<TransactionId, DbFileIterator> entries;
+		/** the tuples returned so far */
+		private final Set<RecordId> returned = new HashSet<>();
+		/** the slots left to read, or null before the entries are read */
+		private Iterator<RecordId> rids;
+		/** true once rids are the slots with older versions */
+		private boolean versionsRead;
+		/** the scan of the table, if writers kept the entries locked */
+		private DbFileIterator scan;
+
+		SnapshotLookupIterator(TransactionId tid, List<IndexPredicate> preds,
+				Function<TransactionId, DbFileIterator> entries) {
+			this.tid = tid;
+			this.preds = preds;
+			this.entries = entries;
+		}
+
+		public void open() {
+			returned.clear();
+			rids = null;
+			versionsRead = false;
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+			if(rids == null && scan == null) {
+				List<RecordId> found = readEntries();
+				if(found != null) {
+					rids = found.iterator();
+				}
+				else {
+					scan = table.iterator(tid);
+					scan.open();
+				}
+			}
+			if(scan != null) {
+				while(scan.hasNext()) {
+					Tuple t = scan.next();
+					if(matches(t)) {
+						return t;
+					}
+				}
+				return null;
+			}
+			while(true) {
+				while(rids.hasNext()) {
+					RecordId rid = rids.next();
+					Tuple t = table.readTuple(tid, rid);
+					if(t != null && matches(t) && returned.add(rid)) {
+						return t;
+					}
+				}
+				if(versionsRead) {
+					return null;
+				}
+				// the tuples of the snapshot whose entries are gone or hold another key now
+				versionsRead = true;
+				rids = Database.getBufferPool().getVersionStore().versionedRecords(tableid).iterator();
+			}
+		}
+
+		/**
+		 * Read the slots the matching entries point to, in a transaction of its
+		 * own that holds its locks on the index only while it reads the entries,
+		 * and that gives up instead of waiting for a writer. A copy of the slots
+		 * that writers kept from is tried again a few times.
+		 *
+		 * @return the slots, or null if writers held pages of the index each time
+		 */
+		private List<RecordId> readEntries() throws DbException {
+			LockManager locks = Database.getBufferPool().getLockManager();
+			for(int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+				TransactionId reader = new TransactionId();
+				locks.setNoWait(reader);
+				DbFileIterator it = entries.apply(reader);
+				try {
+					List<RecordId> found = new ArrayList<>();
+					it.open();
+					while(it.hasNext()) {
+						found.add(recordIdOf(it.next()));
+					}
+					return found;
+				} catch(TransactionAbortedException e) {
+					// a writer holds a page of the index
+				} finally {
+					it.close();
+					locks.releaseAll(reader);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return true if the version of a tuple in the snapshot matches the
+		 * predicates: an entry may point to a slot whose tuple in the snapshot has
+		 * another key
+		 */
+		private boolean matches(Tuple t) {
+			KeyDesc keyDesc = file.getKeyDesc();
+			Field[] values = new Field[keyFields.length];
+			for(int i = 0; i < keyFields.length; i++) {
+				values[i] = t.getField(keyFields[i]);
+			}
+			Field key = keyDesc.key(values);
+			for(IndexPredicate pred : preds) {
+				if(!key.compare(pred.getOp(), keyDesc.normalize(pred.getField()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public void rewind() {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			rids = null;
+			if(scan != null) {
+				scan.close();
+				scan = null;
+			}
+		}
+	}
+}
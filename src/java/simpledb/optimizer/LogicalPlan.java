@@ -4,6 +4,9 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -274,6 +277,198 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the constant of a filter as a field of the given type */
+    private static Field filterConstant(LogicalFilterNode lf, Type ftyp) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /**
+     * Replace the scan of a table by an {@link IndexScan} when a filter
+     * compares a field with an index to a constant, and reading the
+     * matching tuples through the index is cheaper than scanning the
+     * table: each matching tuple is counted as one page read.  Without
+     * statistics to tell, only equality filters use an index.  The filters
+     * are still applied on top of the index scan.  On an ordered index, all
+     * the filters on its field are also tried together, as a range scan
+     * between the bounds they set.
+     * <p>
+     * When an index covers every field of the table the query references,
+     * the scan is replaced by an {@link IndexOnlyScan} instead, which reads
+     * the matching share of the pages of the index and none of the table.
+     * Such an index is used even without a filter on its field, if it has
+     * fewer pages than the table.
+     * <p>
+     * When the query reads one table and orders it by a field, without
+     * aggregates, a scan of an ordered index on that field returns the
+     * tuples in the order asked for, reading the index backwards for DESC,
+     * so the plan needs no {@link OrderBy}.  Every other plan is charged the
+     * cost of the sort, n log n comparisons of its n tuples.  Without a
+     * filter, such a scan reads the whole index and every page of the table,
+     * once if the table fits in the buffer pool and else once per tuple.  A
+     * table that is itself a {@link BTreeFile} keyed on that field is read
+     * in the order asked for by a {@link BTreeScan}, at the cost of any scan.
+     * <p>
+     * A hash index is only used for equality filters, on its one field.
+     * <p>
+     * A read-only transaction reads a snapshot of the tables, which the
+     * entries of an index do not keep: an IndexScan still finds its tuples,
+     * but in no particular order (see SecondaryIndex), and an IndexOnlyScan
+     * cannot tell which of them the snapshot sees.  Such a transaction
+     * keeps the sort and never uses an IndexOnlyScan.
+     *
+     * @return true if the chosen scan returns the tuples in the order of the
+     *         ORDER BY clause
+     */
+    private boolean chooseIndexScans(TransactionId t, Map<String,TableStats> statsMap) {
+        boolean snapshot = Database.getBufferPool().getVersionStore().hasSnapshot(t);
+        boolean ordered = false;
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            if (file instanceof BTreeFile) {
+                BTreeFile tree = (BTreeFile) file;
+                if (tree.keyField() == orderByField(table.alias, tree.getTupleDesc())) {
+                    subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias,
+                            Collections.emptyList(), !oByAsc));
+                    ordered = true;
+                }
+                continue;
+            }
+            List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.t);
+            if (indexes.isEmpty())
+                continue;
+            TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+            Set<Integer> referenced = referencedFields(table.alias, td);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            boolean hasStats = s != null && s.estimateScanCost() > 0;
+            int numPages = ((HeapFile) file).numPages();
+            int orderField = orderByField(table.alias, td);
+            double n = hasStats ? s.estimateTableCardinality(1.0)
+                    : (double) numPages * (BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1));
+            double sortCost = 0;
+            if (orderField >= 0 && n > 1)
+                sortCost = n * Math.log(n) / Math.log(2) / TableStats.IOCOSTPERPAGE;
+            double bestCost = (hasStats ? s.estimateScanCost() / TableStats.IOCOSTPERPAGE : numPages) + sortCost;
+            boolean bestCovers = false;
+            for (SecondaryIndex index : indexes) {
+                Set<Integer> covered = new HashSet<>();
+                for (int field : index.coveredFields())
+                    covered.add(field);
+                boolean covers = !snapshot && referenced != null && covered.containsAll(referenced);
+                boolean inOrder = !snapshot && index.isOrdered() && index.keyField() == orderField;
+                List<IndexPredicate> keyPreds = new ArrayList<>();
+                for (LogicalFilterNode lf : filters) {
+                    if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.NOT_EQUALS
+                            || lf.p == Predicate.Op.LIKE)
+                        continue;
+                    if (!index.isOrdered() && (lf.p != Predicate.Op.EQUALS || index.keyFields().length > 1))
+                        continue; // a hash index only looks up whole keys
+                    int field;
+                    try {
+                        field = td.fieldNameToIndex(lf.fieldPureName);
+                    } catch (NoSuchElementException e) {
+                        continue; // reported when the filters are applied
+                    }
+                    if (field == index.keyField())
+                        keyPreds.add(new IndexPredicate(lf.p, filterConstant(lf, td.getFieldType(field))));
+                }
+                // the range first, so that it wins a tie with one of its bounds
+                List<List<IndexPredicate>> candidates = new ArrayList<>();
+                if (index.isOrdered() && keyPreds.size() > 1)
+                    candidates.add(keyPreds);
+                for (IndexPredicate pred : keyPreds)
+                    candidates.add(Collections.singletonList(pred));
+                if (covers || inOrder)
+                    candidates.add(Collections.emptyList());
+                for (List<IndexPredicate> preds : candidates) {
+                    // the share of the entries read, at most that of any one predicate
+                    double sel = 1.0;
+                    for (IndexPredicate pred : preds) {
+                        if (hasStats)
+                            sel = Math.min(sel, s.estimateSelectivity(index.keyField(), pred.getOp(), pred.getField()));
+                        else if (pred.getOp() == Predicate.Op.EQUALS)
+                            sel = 0.0;
+                    }
+                    double cost;
+                    if (covers)
+                        cost = sel * index.getFile().numPages();
+                    else if (preds.isEmpty())
+                        cost = index.getFile().numPages() + (numPages <= BufferPool.getNumPages() ? numPages : n);
+                    else if (hasStats)
+                        cost = s.estimateTableCardinality(sel);
+                    else if (sel == 0.0)
+                        cost = 0.0;
+                    else
+                        continue;
+                    if (!inOrder)
+                        cost += sortCost;
+                    if (cost < bestCost || (cost == bestCost && covers && !bestCovers)) {
+                        bestCost = cost;
+                        bestCovers = covers;
+                        ordered = inOrder;
+                        boolean descending = inOrder && !oByAsc;
+                        subplanMap.put(table.alias, covers
+                                ? new IndexOnlyScan(t, index, preds, descending, table.alias)
+                                : new IndexScan(t, index, preds, descending, table.alias));
+                    }
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * @return the field of the table with the given alias that the query is
+     *         ordered by, if the tuples of its scan are the ones the ORDER BY
+     *         sorts: the query reads this table alone and has no aggregate;
+     *         or -1 if not
+     */
+    private int orderByField(String alias, TupleDesc td) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty()
+                || !oByField.startsWith(alias + "."))
+            return -1;
+        try {
+            return td.fieldNameToIndex(oByField.substring(alias.length() + 1));
+        } catch (NoSuchElementException e) {
+            return -1; // reported when the plan is built
+        }
+    }
+
+    /**
+     * @return the fields of the table with the given alias that the query
+     *         references anywhere, or null if it selects all of them
+     */
+    private Set<Integer> referencedFields(String alias, TupleDesc td) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*") || si.fname.equals(alias + ".*"))
+                return null;
+            names.add(si.fname);
+        }
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        Set<Integer> fields = new HashSet<>();
+        for (String name : names) {
+            if (name == null || !name.startsWith(alias + "."))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(alias.length() + 1)));
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+            }
+        }
+        return fields;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -309,6 +504,8 @@ public class LogicalPlan {
 
         }
 
+        boolean ordered = chooseIndexScans(t, statsMap);
+
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -324,10 +521,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -339,7 +533,10 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // an index-only scan has fewer fields than the table the statistics are on
+            double sel = s.estimateSelectivity(
+                    Database.getCatalog().getTupleDesc(getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName),
+                    lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -471,7 +668,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !ordered) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
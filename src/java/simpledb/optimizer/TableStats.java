@@ -54,13 +54,17 @@ public class TableStats {
 
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            computeStatistics(tableIt.next());
         }
         System.out.println("Done.");
     }
 
+    /** Compute the statistics of one table, e.g. one that was just created. */
+    public static void computeStatistics(int tableid) {
+        TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+        setTableStats(Database.getCatalog().getTableName(tableid), s);
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -0,0 +1,273 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.index.IndexFile;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Backup takes online base backups of the tables of a database and
+ * restores them to a point in time with the help of a log archive.
+ * <p>
+ * The log archive is a shipping directory kept up to date by a
+ * {@link LogShipper}; it must be started before the backup is taken.  A
+ * base backup writes back the dirty pages of the BufferPool, takes a
+ * checkpoint and then copies each table file page by page while
+ * transactions keep running.  Pages are copied under the BufferPool lock,
+ * so a page is never copied while it is being written, but the copy as a
+ * whole is fuzzy: different pages may reflect different points in the
+ * log.  The backup records the checkpoint that recovery starts from and
+ * the end of the log once the copy is done (its stop LSN); a restore must
+ * replay at least that far for the copy to be consistent.
+ * <p>
+ * A restore copies the table files of a backup back to where they were
+ * backed up from, installs the archived log up to the target LSN or time
+ * in place of the database's log, and runs ordinary recovery on it:
+ * transactions that committed before the target are redone, the others
+ * rolled back.  Table files are copied in parallel, and recovery redoes
+ * different pages in parallel.  A restore runs on a freshly reset
+ * database whose Catalog holds the tables of the backup, as for crash
+ * recovery.
+ */
+public class Backup {
+
+    static final String MANIFEST_NAME = "backup";
+
+    /** Number of tables copied at the same time. */
+    static final int COPY_THREADS = LogFile.REDO_THREADS;
+
+    private Backup() {
+    }
+
+    /** What a base backup holds. */
+    public static class Manifest {
+        long checkpointLSN; // recovery starts at this checkpoint
+        long redoFrom; // the oldest LSN recovery reads
+        long stopLSN; // a restore must replay at least this far
+        long time; // when the backup finished
+        final List<String> paths = new ArrayList<>(); // the files backed up, by position in the backup
+
+        public long getStopLSN() {
+            return stopLSN;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        void write(File f) throws IOException {
+            File tmp = new File(f.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                DataOutputStream dos = new DataOutputStream(out);
+                dos.writeLong(checkpointLSN);
+                dos.writeLong(redoFrom);
+                dos.writeLong(stopLSN);
+                dos.writeLong(time);
+                dos.writeInt(paths.size());
+                for (String p : paths)
+                    dos.writeUTF(p);
+                dos.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static Manifest read(File f) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+                Manifest m = new Manifest();
+                m.checkpointLSN = in.readLong();
+                m.redoFrom = in.readLong();
+                m.stopLSN = in.readLong();
+                m.time = in.readLong();
+                for (int n = in.readInt(); n > 0; n--)
+                    m.paths.add(in.readUTF());
+                return m;
+            }
+        }
+    }
+
+    /**
+     * Take a base backup of the tables of the database while transactions
+     * keep running.
+     *
+     * @param log the database's log
+     * @param archive the shipper that archives the log; it must have been
+     *   started before the oldest transaction still running
+     * @param dir the directory to write the backup to
+     * @return the manifest of the backup
+     */
+    public static Manifest take(LogFile log, LogShipper archive, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create backup directory " + dir);
+        // write back what is dirty so that the checkpoint leaves little to redo
+        Database.getBufferPool().writeBack(new ArrayList<>(log.dirtyPages.keySet()));
+        log.logCheckpoint();
+        Manifest m = new Manifest();
+        synchronized (log) {
+            m.checkpointLSN = log.checkpointLSN;
+        }
+        m.redoFrom = m.checkpointLSN;
+        try (LogFile.LogReader in = log.reader(m.checkpointLSN)) {
+            LogFile.LogRecord cp = LogFile.LogRecord.read(in, m.checkpointLSN);
+            for (long lsn : cp.activeTransactions.values())
+                m.redoFrom = Math.min(m.redoFrom, lsn);
+            for (long lsn : cp.dirtyPages.values())
+                m.redoFrom = Math.min(m.redoFrom, lsn);
+        }
+        if (archive.getStartLSN() > m.redoFrom)
+            throw new IOException("the log archive starts at " + archive.getStartLSN()
+                                  + " but the backup needs the log from " + m.redoFrom);
+
+        Catalog catalog = Database.getCatalog();
+        List<File> files = new ArrayList<>();
+        for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext(); ) {
+            File f = fileOf(catalog.getDatabaseFile(it.next()));
+            if (f != null)
+                files.add(f);
+        }
+        List<Callable<Void>> copies = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            File from = files.get(i);
+            File to = new File(dir, i + ".dat");
+            m.paths.add(from.getAbsolutePath());
+            copies.add(() -> {
+                copyPages(from, to);
+                return null;
+            });
+        }
+        runAll(copies);
+
+        // every change in the copy was logged before it was written
+        log.force();
+        m.stopLSN = log.durableEnd();
+        m.time = System.currentTimeMillis();
+        archive.ship();
+        m.write(new File(dir, MANIFEST_NAME));
+        return m;
+    }
+
+    /** @return the file a table is stored in, or null if it has none */
+    private static File fileOf(DbFile f) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getFile();
+        if (f instanceof IndexFile)
+            return ((IndexFile) f).getFile();
+        return null;
+    }
+
+    /** Copy a table file a page at a time, holding the BufferPool lock
+        while each page is read so no page is copied half written. */
+    private static void copyPages(File from, File to) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] page = new byte[pageSize];
+        try (RandomAccessFile in = new RandomAccessFile(from, "r");
+             FileOutputStream out = new FileOutputStream(to)) {
+            for (long pos = 0; ; pos += pageSize) {
+                int n;
+                synchronized (Database.getBufferPool()) {
+                    if (pos >= in.length())
+                        break;
+                    in.seek(pos);
+                    n = in.read(page);
+                }
+                out.write(page, 0, n);
+            }
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Restore a base backup and replay the archived log up to (not
+     * including) the first record at or after targetLSN.
+     *
+     * @return the LSN the database was restored to
+     * @throws IllegalArgumentException if targetLSN is before the stop LSN
+     *   of the backup
+     */
+    public static long restore(File backupDir, File archiveDir, long targetLSN) throws IOException {
+        return restore(backupDir, archiveDir, targetLSN, Long.MAX_VALUE);
+    }
+
+    /**
+     * Restore a base backup and replay the archived log up to the last
+     * transaction that committed at or before time.
+     *
+     * @param time milliseconds since the epoch
+     * @return the LSN the database was restored to
+     * @throws IllegalArgumentException if time is before the end of the
+     *   backup
+     */
+    public static long restoreToTime(File backupDir, File archiveDir, long time) throws IOException {
+        return restore(backupDir, archiveDir, Long.MAX_VALUE, time);
+    }
+
+    private static long restore(File backupDir, File archiveDir, long targetLSN, long time)
+        throws IOException {
+        Manifest m = Manifest.read(new File(backupDir, MANIFEST_NAME));
+        long[] shipped = LogShipper.readShipped(archiveDir);
+        if (shipped == null || shipped[1] < m.stopLSN)
+            throw new IOException("the log archive does not reach the end of the backup at " + m.stopLSN);
+        if (targetLSN < m.stopLSN || time < m.time)
+            throw new IllegalArgumentException("cannot restore to before the end of the backup");
+        long segmentSize = shipped[0];
+        File archive = new File(archiveDir, LogShipper.LOG_NAME);
+
+        // the first record at or after the target, or that commits after
+        // time, or the end of the archive
+        long stop = m.stopLSN;
+        try (LogFile.LogReader in = new LogFile.LogReader(archive, segmentSize, m.stopLSN)) {
+            while (in.hasNext() && in.offset() < Math.min(targetLSN, shipped[1])) {
+                long lsn = in.offset();
+                LogFile.LogRecord r = LogFile.LogRecord.read(in, lsn);
+                if (r.type == LogFile.COMMIT_RECORD && r.time > time)
+                    break;
+                stop = in.offset();
+            }
+        }
+
+        List<Callable<Void>> copies = new ArrayList<>();
+        for (int i = 0; i < m.paths.size(); i++) {
+            File from = new File(backupDir, i + ".dat");
+            File to = new File(m.paths.get(i));
+            copies.add(() -> {
+                Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return null;
+            });
+        }
+        runAll(copies);
+
+        LogFile log = Database.getLogFile();
+        log.installArchive(archive, segmentSize, m.redoFrom, stop, m.checkpointLSN);
+        log.recover();
+        return stop;
+    }
+
+    /** Run tasks on up to COPY_THREADS threads and wait for all of them. */
+    private static void runAll(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.isEmpty())
+            return;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(COPY_THREADS, tasks.size()));
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException("copy failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while copying tables");
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -11,6 +13,11 @@ import java.io.*;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.*;
 
 /**
@@ -21,6 +28,23 @@ import java.util.*;
  * The BufferPool is also responsible for locking; when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Access methods that lock individual tuples fetch pages with
+ * getPageForTuples, which only takes intention locks on the page, and lock
+ * the tuples with lockTuple.  Several transactions can then change the
+ * same page at once, so such a page is modified only while its monitor is
+ * held (its latch), and each change is logged under the latch as it is
+ * made; see logTupleChange.
+ * <p>
+ * Read-only transactions take no locks at all: they read a snapshot of
+ * the committed tuples, using the older versions of changed tuples that
+ * the VersionStore keeps.
+ * <p>
+ * insertTuple and deleteTuple also change the indexes of the table (see
+ * Catalog#addIndex), in the same transaction.
+ * <p>
+ * Scans that know which pages they will read next can have them read into
+ * the cache in the background with prefetchPages.
  * 
  * @Threadsafe, all fields are final
  */
@@ -40,7 +64,24 @@ public class BufferPool {
     // private static Page[] _pages; // 页面数组
     private static ConcurrentHashMap<PageId, Page> _pages; // PageId到页面的map
     private static LinkedList<PageId> _fifo;
+    private final LockManager _locks = new LockManager(); // 表、页面、元组三级的严格两阶段锁
+    private final VersionStore _versions = new VersionStore(); // 只读事务的快照用到的元组旧版本
+
+    /** Number of threads that read pages for prefetchPages */
+    public static final int PREFETCH_THREADS = 4;
+    private static final ExecutorService _prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+        Thread t = new Thread(r, "BufferPool-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ConcurrentHashMap<PageId, Prefetch> _prefetching = new ConcurrentHashMap<>(); // 正在预读的页面
+    private final AtomicLong _pagesPrefetched = new AtomicLong();
 
+    // 一次预读。页面在读的过程中被淘汰或丢弃时置为stale：磁盘上的内容可能已经变了，读到的页面不能放入缓存
+    private static final class Prefetch {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean stale = false;
+    }
 
 
     /**
@@ -59,6 +100,11 @@ public class BufferPool {
         return pageSize;
     }
 
+    /** @return the maximum number of pages in the buffer pool */
+    public static int getNumPages() {
+        return _numPages;
+    }
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
         BufferPool.pageSize = pageSize;
@@ -87,12 +133,215 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // code done
+        // 先加锁（可能阻塞，所以不能持有BufferPool的锁），再取页面
+        if (tid != null) {
+            _locks.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        }
+        awaitPrefetch(pid);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page like getPage, unless another transaction holds a
+     * conflicting lock on it: then return null at once instead of waiting.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (tid != null && !_locks.tryAcquire(tid, pid, perm == Permissions.READ_WRITE)) {
+            return null;
+        }
+        awaitPrefetch(pid);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page for an access method that locks the tuples it reads
+     * and writes: only intention locks are taken on the page and its table,
+     * and the caller locks each tuple with lockTuple before it uses it.
+     * Other transactions may change other tuples of the page at the same
+     * time, so the caller reads and changes the page only while holding its
+     * latch (its monitor), and only if it is still the cached copy (see
+     * isCached).
+     *
+     * @param perm READ_WRITE if the caller is going to change tuples of the
+     *   page
+     */
+    public Page getPageForTuples(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            _locks.acquireIntention(tid, pid, perm == Permissions.READ_WRITE);
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * Lock a tuple for a transaction, waiting for other transactions that
+     * hold conflicting locks on it.  May escalate the transaction's tuple
+     * locks in the table to a lock on the whole table.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        if (tid != null) {
+            _locks.acquireTuple(tid, rid, perm == Permissions.READ_WRITE);
+        }
+    }
+
+    // 插入时在页面锁存器内认领空slot，不能等待，被别的事务锁住的slot直接跳过
+    boolean tryLockNewTuple(TransactionId tid, RecordId rid) {
+        return tid == null || _locks.tryAcquireTuple(tid, rid);
+    }
+
+    // 在锁存器之外做tryLockNewTuple之后可能需要的锁升级
+    void escalateIfNeeded(TransactionId tid, int tableId) throws TransactionAbortedException {
+        if (tid != null) {
+            _locks.escalateIfNeeded(tid, tableId);
+        }
+    }
+
+    // 别的事务是否持有这个元组的锁（比如删除了它还没提交）
+    boolean tupleLockedByOthers(TransactionId tid, RecordId rid) {
+        return _locks.lockedByOthers(tid, rid);
+    }
+
+    // 别的事务是否可能正在修改这个页面上的元组
+    boolean hasOtherWriters(TransactionId tid, PageId pid) {
+        return _locks.hasOtherWriters(tid, pid);
+    }
+
+    /** @return the lock manager, for tests and monitoring */
+    public LockManager getLockManager() {
+        return _locks;
+    }
+
+    /** @return the older tuple versions kept for read-only transactions */
+    public VersionStore getVersionStore() {
+        return _versions;
+    }
+
+    // 修改slot之前记下它原来的内容（空slot为null），调用者必须持有页面的锁存器
+    void recordVersion(TransactionId tid, RecordId rid, Tuple prior) {
+        _versions.recordChange(tid, rid, prior);
+    }
+
+    // 页面对象是否仍然是缓存中的那一份，被淘汰或者被回滚替换的页面不能再修改
+    boolean isCached(Page page) {
+        return _pages.get(page.getId()) == page;
+    }
+
+    // 缓存中是否有这个页面（可能还没有写回磁盘）
+    boolean isCached(PageId pid) {
+        return _pages.containsKey(pid);
+    }
+
+    /**
+     * 行级锁下多个事务可以同时修改同一个页面，不能等到提交时再按页面前像做diff，
+     * 否则会把别的事务的修改记到自己名下。所以每次修改一个slot之后立即在页面锁存器内
+     * 写日志，并把前像中的这个slot推进到当前内容。调用者必须持有页面的锁存器。
+     */
+    void logTupleChange(TransactionId tid, HeapPage page, int slot) throws IOException {
+        PageDelta d = page.slotDelta(slot);
+        if (!d.isEmpty()) {
+            Database.getLogFile().logDelta(tid, page, d);
+            page.setBeforeImage(slot);
+        }
+        page.markDirty(true, tid);
+    }
+
+    /**
+     * Starts reading pages into the cache in the background, for a caller
+     * that is going to ask for them soon, e.g. a scan of the leaves of a B+
+     * tree. No locks are taken: the caller still gets each page with
+     * getPage, which finds it cached, or waits for it to be read. Pages that
+     * are cached or being read already are skipped, and so are the rest once
+     * a quarter of the cache is being read ahead.
+     */
+    public void prefetchPages(List<? extends PageId> pids) {
+        Map<PageId, Page> pages = _pages;
+        for (PageId pid : pids) {
+            if (_prefetching.size() >= Math.max(1, _numPages / 4)) {
+                return;
+            }
+            if (pages.containsKey(pid)) {
+                continue;
+            }
+            Prefetch p = new Prefetch();
+            if (_prefetching.putIfAbsent(pid, p) != null) {
+                continue;
+            }
+            // 上一次预读可能刚刚放入缓存并结束
+            if (pages.containsKey(pid)) {
+                _prefetching.remove(pid, p);
+                p.done.countDown();
+                continue;
+            }
+            try {
+                _prefetcher.execute(() -> prefetch(pages, pid, p));
+            } catch (RejectedExecutionException e) {
+                _prefetching.remove(pid, p);
+                p.done.countDown();
+            }
+        }
+    }
+
+    /** @return the number of pages read into the cache by prefetchPages */
+    public long getPagesPrefetched() {
+        return _pagesPrefetched.get();
+    }
+
+    private void prefetch(Map<PageId, Page> pages, PageId pid, Prefetch p) {
+        try {
+            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            installPrefetched(pages, page, p);
+        } catch (RuntimeException | DbException e) {
+            // 预读失败（比如表已经删除、页面已经不存在）不要紧，getPage时会再读
+        } finally {
+            _prefetching.remove(pid, p);
+            p.done.countDown();
+        }
+    }
+
+    // 把预读的页面放入缓存，除非缓存已经被重置、页面已经在缓存中或者读到的内容已经过时
+    private synchronized void installPrefetched(Map<PageId, Page> pages, Page page, Prefetch p) throws DbException {
+        PageId pid = page.getId();
+        if (pages != _pages || p.stale || _pages.containsKey(pid)) {
+            return;
+        }
+        if (_pages.size() >= _numPages) {
+            evictPage();
+        }
+        _pages.put(pid, page);
+        _fifo.add(pid);
+        _pagesPrefetched.incrementAndGet();
+    }
+
+    // 页面正在预读时等它读完，不要再读一遍
+    private void awaitPrefetch(PageId pid) {
+        Prefetch p = _prefetching.get(pid);
+        if (p == null) {
+            return;
+        }
+        try {
+            p.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 页面离开缓存时，正在进行的预读读到的可能是它写回之前的内容
+    private void invalidatePrefetch(PageId pid) {
+        Prefetch p = _prefetching.get(pid);
+        if (p != null) {
+            p.stale = true;
+        }
+    }
+
+    // 在缓存中查找页面，不存在时从磁盘读入
+    private synchronized Page fetchPage(PageId pid) throws DbException {
         // 如果页面不存在，则创建一个新的页面
         // System.out.println("getPage: " + pid);
         Page page = _pages.get(pid);
         if (page == null) {
             // 页面为空，表明页面不存在，需要从磁盘中读取
-            if(_pages.size() > _numPages) {
+            if(_pages.size() >= _numPages) {
                 // 缓存已满，需要淘汰页面，目前抛出异常
                 // System.out.println("Evict a page, size " + _pages.size());
                 evictPage();
@@ -117,8 +366,8 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        // code done
+        _locks.release(tid, pid);
     }
 
     /**
@@ -127,15 +376,13 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        // code done
+        return _locks.holdsLock(tid, p);
     }
 
     /**
@@ -146,8 +393,47 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (_versions.hasSnapshot(tid)) {
+            // 只读事务没有修改也没有锁，不需要写日志
+            _versions.endSnapshot(tid);
+            _locks.releaseAll(tid);
+            return;
+        }
+        try {
+            if (commit) {
+                logDirtyPages(tid);
+                // COMMIT记录写到磁盘之后才放锁，这样修改同一页面的事务在日志中按提交顺序排列
+                Database.getLogFile().logCommit(tid);
+            } else if (Database.getLogFile().isActive(tid)) {
+                // 没有调用过logAbort的事务：回滚并写ABORT记录
+                Database.getLogFile().logAbort(tid);
+            } else {
+                // logAbort已经回滚过的事务这里不会再做任何事
+                Database.getLogFile().rollback(tid);
+            }
+            // 放锁之前让新的快照看到提交的修改，回滚之后旧版本也就没用了
+            _versions.transactionComplete(tid, commit);
+        } catch (IOException e) {
+            throw new RuntimeException("could not complete transaction " + tid, e);
+        } finally {
+            _locks.releaseAll(tid);
+        }
+    }
+
+    /**
+     * NO-FORCE提交：把tid修改过的页面写入日志，但页面本身留在缓存中，
+     * 之后由淘汰或者checkpoint写回磁盘。
+     */
+    private synchronized void logDirtyPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Page page : _pages.values()) {
+            synchronized (page) {
+                if (tid.equals(page.isDirty())) {
+                    log.logWrite(tid, page.getBeforeImage(), page);
+                    page.setBeforeImage();
+                }
+            }
+        }
     }
 
     /**
@@ -170,18 +456,21 @@ public class BufferPool {
         // code done
         // not necessary for lab1
         // lab2暂时不需要锁
+        checkWritable(tid, tableId);
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId); // 根据tableId获取DbFile
         List<Page> pages;
         pages = dbFile.insertTuple(tid, t); // File插入元组，返回影响的页面，这部分页面会被放入缓存中
+        cacheDirtyPages(tid, pages);
+        // 表上的每个索引加一个指向新元组的条目，和表在同一个事务里修改
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.insertEntry(tid, t));
+        }
+    }
+
+    private void cacheDirtyPages(TransactionId tid, List<Page> pages) throws DbException {
         for (Page page : pages) {
             page.markDirty(true, tid); // 标记页面为脏页面
-            if (_pages.size() > _numPages) {
-                // System.out.println("Evict a page, size " + _pages.size());
-                evictPage();
-            }
-            _pages.put(page.getId(), page); // 将页面放入缓存中
-            // _fifo.add(page.getId()); // 加入fifo队列
-            // System.out.println("Add page " + page.getId() + " Into the _FIFO");
+            cacheDirtyPage(page); // 将页面放入缓存中
         }
     }
 
@@ -201,22 +490,36 @@ public class BufferPool {
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // code done
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        checkWritable(tid, tableId);
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = dbFile.deleteTuple(tid, t);
-        for (Page page : pages) {
-            page.markDirty(true, tid);
-            if (_pages.size() > _numPages) {
-                // System.out.println("Evict a page, size " + _pages.size());
-                evictPage();
-            }
-            _pages.put(page.getId(), page);
-            // _fifo.add(page.getId()); // 加入fifo队列
-            // System.out.println("Add page " + page.getId() + " Into the _FIFO");
-
+        cacheDirtyPages(tid, pages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.deleteEntry(tid, t));
         }
         // not necessary for lab1
     }
 
+    // 只读的表（由Standby维护的副本）不允许修改，只读事务也不允许修改
+    private void checkWritable(TransactionId tid, int tableId) throws DbException {
+        if (_versions.hasSnapshot(tid)) {
+            throw new DbException("transaction " + tid + " is read-only");
+        }
+        if (Database.getCatalog().isReadOnly(tableId)) {
+            throw new DbException("table " + tableId + " is read-only");
+        }
+        // 没有通过Transaction.start()开始的事务（测试里直接用TransactionId）在第一次修改时补写BEGIN，
+        // 否则它的页面被淘汰写回之后回滚找不到要撤销的日志
+        if (tid != null) {
+            try {
+                Database.getLogFile().logXactionBeginIfAbsent(tid);
+            } catch (IOException e) {
+                throw new DbException("could not log the start of " + tid + ": " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -242,6 +545,7 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // code done
         // not necessary for lab1
+        invalidatePrefetch(pid);
         _pages.remove(pid);
     }
 
@@ -254,14 +558,46 @@ public class BufferPool {
         // code done
         // not necessary for lab1
         Page page = _pages.get(pid); // 从PageMap中找到这个page然后写入磁盘 dbfile.writePage(page);
-        if (page != null && page.isDirty() != null) { // 有一个transaction将这个页面标记为脏页面
+        if (page != null) {
+            synchronized (page) { // 别的事务可能正在修改这一页的其它元组
+                flushPage(page);
+            }
+        } else {
+            // 不在缓存中：磁盘上的版本已经是最新的
+            Database.getLogFile().pageFlushed(pid);
+        }
+    }
+
+    private void flushPage(Page page) throws IOException {
+        PageId pid = page.getId();
+        if (page.isDirty() != null) { // 有一个transaction将这个页面标记为脏页面
             DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId()); // 拿到对应的文件
+            // WAL：先写日志并刷到磁盘，再写数据页
+            LogFile log = Database.getLogFile();
+            log.logWrite(page.isDirty(), page.getBeforeImage(), page);
+            log.force();
             file.writePage(page); // 把这一页写入磁盘
             page.markDirty(false, null); // 把这一页标记为干净页面，因为已经刷盘了
-        } 
+            page.setBeforeImage(); // 下一条日志只记录这次刷盘之后的修改
+            log.pageFlushed(pid);
+        } else {
+            // 干净页面：磁盘上的版本已经是最新的
+            Database.getLogFile().pageFlushed(pid);
+        }
 
     }
 
+    /**
+     * Writes the given pages back to disk one at a time, taking the buffer
+     * pool lock for each page only, so that other transactions can run in
+     * between. Used by the background checkpointer.
+     */
+    public void writeBack(Collection<PageId> pids) throws IOException {
+        for (PageId pid : pids) {
+            flushPage(pid);
+        }
+    }
+
     /**
      * Write all pages of the specified transaction to disk.
      */
@@ -277,8 +613,102 @@ public class BufferPool {
     private synchronized void evictPage() throws DbException {
         // code done
         // not necessary for lab1
-        _pages.remove(_fifo.getFirst()); // 淘汰最先加入的页面
-        _fifo.removeFirst(); // 注意在fifo队列中也要去除
+        while (!_fifo.isEmpty()) {
+            PageId pid = _fifo.removeFirst(); // 淘汰最先加入的页面，注意在fifo队列中也要去除
+            Page page = _pages.get(pid);
+            if (page == null) {
+                continue; // 已经被discardPage移除了
+            }
+            // 刷盘和移出缓存都在锁存器内完成，这样修改者在锁存器内看到的页面要么还在缓存中，要么已经被淘汰
+            synchronized (page) {
+                try {
+                    flushPage(page); // 脏页面需要先写回磁盘
+                } catch (IOException e) {
+                    throw new DbException("could not flush page " + pid + " on eviction: " + e.getMessage());
+                }
+                invalidatePrefetch(pid);
+                _pages.remove(pid);
+            }
+            return;
+        }
+        throw new DbException("no page can be evicted from the buffer pool");
+    }
+
+    /**
+     * Returns the cached copy of a page, reading it into the cache if needed.
+     * Used by recovery, which does not take locks.
+     */
+    synchronized Page getPageForRecovery(PageId pid) throws IOException {
+        Page page = _pages.get(pid);
+        if (page == null) {
+            if (_pages.size() >= _numPages) {
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            _pages.put(pid, page);
+            _fifo.add(pid);
+        }
+        return page;
+    }
+
+    /**
+     * Replaces the cached copy of a page with one rebuilt by recovery.
+     */
+    synchronized void installPageForRecovery(Page page) throws IOException {
+        PageId pid = page.getId();
+        if (!_pages.containsKey(pid)) {
+            if (_pages.size() >= _numPages) {
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+            _fifo.add(pid);
+        }
+        _pages.put(pid, page);
+    }
+
+    /**
+     * Throws away the changes tid made to cached pages since they were
+     * last logged, by putting their before images back in the cache.
+     */
+    synchronized void restoreBeforeImages(TransactionId tid) {
+        for (Map.Entry<PageId, Page> entry : _pages.entrySet()) {
+            Page page = entry.getValue();
+            synchronized (page) {
+                if (tid.equals(page.isDirty())) {
+                    Page before = page.getBeforeImage();
+                    if (page instanceof SlottedPage)
+                        ((SlottedPage) before).setLSN(((SlottedPage) page).getLSN());
+                    // 前像可能还没写回磁盘，保守地标为脏页面
+                    before.markDirty(true, tid);
+                    entry.setValue(before);
+                }
+            }
+        }
+    }
+
+    /**
+     * Installs a page dirtied by insertTuple/deleteTuple in the cache,
+     * evicting another page first if the page is new and the pool is full.
+     * A different copy that is already cached is kept: the page was evicted
+     * after it was changed (and written back), and another transaction has
+     * read it in again and may have changed it since.
+     */
+    private synchronized void cacheDirtyPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        if (!_pages.containsKey(pid)) {
+            if (_pages.size() >= _numPages) {
+                evictPage();
+            }
+            _fifo.add(pid); // 加入fifo队列
+            _pages.put(pid, page);
+        }
     }
 
 }
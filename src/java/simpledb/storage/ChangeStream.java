@@ -0,0 +1,301 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreePageId;
+import simpledb.index.HashPageId;
+import simpledb.index.LsmPageId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * ChangeStream tails the write-ahead log and turns the page changes of
+ * committed transactions into row-level insert and delete events, without
+ * going through the BufferPool.  Only pages whose slots hold tuples (heap
+ * pages and BTree leaves) produce events; the tuple of a slot is decoded
+ * with the TupleDesc of its table in the Catalog.
+ * <p>
+ * Events are buffered per transaction and returned by {@link #poll} once
+ * the transaction's COMMIT record is on disk; transactions that abort are
+ * dropped.  A row that a transaction moves from one page to another (a
+ * BTree split, for example) shows up in the log as a delete and an
+ * insert of the same tuple, and the two cancel out.
+ * <p>
+ * The position of a stream is a {@link Cursor}, which a consumer saves
+ * after processing a batch of events and passes back to resume after a
+ * restart; each committed transaction is returned exactly once across
+ * the resume.  While a stream is open, the log keeps the segments it
+ * still has to read.  A cursor is only meaningful for the log it was
+ * taken from: starting a new database without recovery starts LSNs over.
+ */
+public class ChangeStream implements Closeable {
+
+    public enum Kind { INSERT, DELETE }
+
+    /** One row inserted into or deleted from a table by a committed transaction. */
+    public static class Change {
+        private final Kind kind;
+        private final Tuple tuple;
+        private final long tid;
+        private final long commitLSN;
+
+        Change(Kind kind, Tuple tuple, long tid, long commitLSN) {
+            this.kind = kind;
+            this.tuple = tuple;
+            this.tid = tid;
+            this.commitLSN = commitLSN;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /** @return the row; its RecordId is the slot it was inserted into or deleted from */
+        public Tuple getTuple() {
+            return tuple;
+        }
+
+        public int getTableId() {
+            return tuple.getRecordId().getPageId().getTableId();
+        }
+
+        /** @return the id of the transaction that made the change */
+        public long getTransactionId() {
+            return tid;
+        }
+
+        /** @return the LSN of the COMMIT record of the transaction */
+        public long getCommitLSN() {
+            return commitLSN;
+        }
+
+        public String toString() {
+            return kind + " " + getTableId() + " " + tuple;
+        }
+    }
+
+    /**
+     * The position of a stream: the LSN to start reading the log from,
+     * which is the first record of the oldest transaction that had not
+     * committed yet, and the LSN of the last COMMIT already returned.
+     */
+    public static class Cursor {
+        private final long restartLSN;
+        private final long committedLSN;
+
+        public Cursor(long restartLSN, long committedLSN) {
+            this.restartLSN = restartLSN;
+            this.committedLSN = committedLSN;
+        }
+
+        public long getRestartLSN() {
+            return restartLSN;
+        }
+
+        public long getCommittedLSN() {
+            return committedLSN;
+        }
+
+        /** Write this cursor to f, replacing the old cursor atomically once
+            the new one is on disk. */
+        public void save(File f) throws IOException {
+            File tmp = new File(f.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                DataOutputStream dos = new DataOutputStream(out);
+                dos.writeLong(restartLSN);
+                dos.writeLong(committedLSN);
+                dos.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /** Read a cursor written by save. */
+        public static Cursor load(File f) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+                return new Cursor(in.readLong(), in.readLong());
+            }
+        }
+    }
+
+    private final LogFile log;
+    private long position; // LSN of the next record to read
+    private long committedLSN; // transactions that committed at or before this were returned
+    // transactions that have not finished yet: their first record and changes so far
+    private final Map<Long, Long> firstLSN = new HashMap<>();
+    private final Map<Long, List<Change>> pending = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * Open a stream that returns the transactions that commit from now on.
+     */
+    public ChangeStream(LogFile log) throws IOException {
+        this.log = log;
+        log.ensureStarted();
+        position = log.oldestActiveLSN();
+        committedLSN = log.endOfLog();
+        log.retain(this, position);
+    }
+
+    /**
+     * Open a stream at a cursor taken from an earlier stream on the same log.
+     */
+    public ChangeStream(LogFile log, Cursor cursor) {
+        this.log = log;
+        position = cursor.getRestartLSN();
+        committedLSN = cursor.getCommittedLSN();
+        log.retain(this, position);
+    }
+
+    /**
+     * Read the log as far as it is on disk and return the changes of the
+     * transactions whose COMMIT record was read, in commit order.
+     */
+    public synchronized List<Change> poll() throws IOException {
+        if (closed)
+            throw new IllegalStateException("stream is closed");
+        List<Change> out = new ArrayList<>();
+        long limit = log.durableEnd();
+        if (position >= limit)
+            return out;
+        // a new reader each time: one left open would have buffered the
+        // unwritten tail of the log
+        try (LogFile.LogReader in = log.reader(position)) {
+            while (in.hasNext() && in.offset() < limit) {
+                long lsn = in.offset();
+                LogFile.LogRecord r = LogFile.LogRecord.read(in, lsn);
+                position = in.offset();
+                switch (r.type) {
+                case LogFile.BEGIN_RECORD:
+                    firstLSN.put(r.tid, lsn);
+                    break;
+                case LogFile.UPDATE_RECORD:
+                case LogFile.DELTA_RECORD:
+                    // pages written back on behalf of recovery or of a
+                    // finished transaction belong to no transaction we follow
+                    if (firstLSN.containsKey(r.tid))
+                        decode(r, pending.computeIfAbsent(r.tid, k -> new ArrayList<>()));
+                    break;
+                case LogFile.COMMIT_RECORD:
+                    firstLSN.remove(r.tid);
+                    List<Change> changes = pending.remove(r.tid);
+                    if (lsn > committedLSN) {
+                        if (changes != null)
+                            addNet(changes, r.tid, lsn, out);
+                        committedLSN = lsn;
+                    }
+                    break;
+                case LogFile.ABORT_RECORD:
+                    firstLSN.remove(r.tid);
+                    pending.remove(r.tid);
+                    break;
+                default:
+                    // CLRs only belong to transactions that end with an
+                    // ABORT; checkpoints carry no changes
+                }
+            }
+        }
+        log.retain(this, getCursor().getRestartLSN());
+        return out;
+    }
+
+    /** @return the position to resume from once the changes returned so far are processed */
+    public synchronized Cursor getCursor() {
+        long restart = position;
+        for (long lsn : firstLSN.values())
+            restart = Math.min(restart, lsn);
+        return new Cursor(restart, committedLSN);
+    }
+
+    /** Stop reading; the log no longer keeps segments for this stream. */
+    public synchronized void close() {
+        closed = true;
+        log.release(this);
+    }
+
+    /** Append the row changes of an UPDATE or DELTA record to changes. */
+    private void decode(LogFile.LogRecord r, List<Change> changes) throws IOException {
+        PageDelta d = r.delta;
+        if (d == null) {
+            Page after = r.after.decode();
+            if (!(after instanceof SlottedPage) || !((SlottedPage) after).holdsTuples())
+                return;
+            d = PageDelta.diff((SlottedPage) r.before.decode(), (SlottedPage) after);
+        }
+        PageId pid = d.getPageId();
+        if (pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() != BTreePageId.LEAF)
+            return;
+        if (pid instanceof HashPageId && ((HashPageId) pid).pgcateg() != HashPageId.BUCKET)
+            return;
+        // LSM pages hold appended puts and tombstones, not rows
+        if (pid instanceof LsmPageId)
+            return;
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        for (PageDelta.Op op : d.getOps()) {
+            RecordId rid = new RecordId(pid, op.getSlot());
+            switch (op.getKind()) {
+            case PageDelta.INSERT:
+                changes.add(new Change(Kind.INSERT, tuple(td, rid, op.getNewData()), r.tid, 0));
+                break;
+            case PageDelta.DELETE:
+                changes.add(new Change(Kind.DELETE, tuple(td, rid, op.getOldData()), r.tid, 0));
+                break;
+            case PageDelta.UPDATE:
+                // the whole slot, since the page holds tuples
+                changes.add(new Change(Kind.DELETE, tuple(td, rid, op.getOldData()), r.tid, 0));
+                changes.add(new Change(Kind.INSERT, tuple(td, rid, op.getNewData()), r.tid, 0));
+                break;
+            }
+        }
+    }
+
+    private static Tuple tuple(TupleDesc td, RecordId rid, byte[] data) {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(dis));
+        } catch (java.text.ParseException e) {
+            throw new IllegalArgumentException("malformed tuple in log", e);
+        }
+        t.setRecordId(rid);
+        return t;
+    }
+
+    /** Add the changes of a committed transaction to out, leaving out
+        deletes and inserts of the same row that cancel each other. */
+    private static void addNet(List<Change> changes, long tid, long commitLSN, List<Change> out) {
+        Map<Object, Integer> net = new HashMap<>();
+        for (Change c : changes)
+            net.merge(key(c), c.kind == Kind.INSERT ? 1 : -1, Integer::sum);
+        for (Change c : changes) {
+            Object k = key(c);
+            int n = net.get(k);
+            if (n > 0 && c.kind == Kind.INSERT) {
+                net.put(k, n - 1);
+                out.add(new Change(c.kind, c.tuple, tid, commitLSN));
+            } else if (n < 0 && c.kind == Kind.DELETE) {
+                net.put(k, n + 1);
+                out.add(new Change(c.kind, c.tuple, tid, commitLSN));
+            }
+        }
+    }
+
+    /** @return a key that is equal for the same row of the same table */
+    private static Object key(Change c) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        try {
+            dos.writeInt(c.getTableId());
+            for (int i = 0; i < c.tuple.getTupleDesc().numFields(); i++)
+                c.tuple.getField(i).serialize(dos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -22,8 +22,13 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages the file is extended by each time it runs out of room. */
+    private static final int PREALLOCATE_PAGES = 16;
+
     private File _file; // 文件
     private TupleDesc _td; // 对于Tuple的描述
+    private volatile int _numPages = -1; // 逻辑页数，第一次使用时根据文件长度初始化
+    private int _allocatedPages; // 磁盘上已经分配（包括预分配）的页数，protected by this
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -107,15 +112,91 @@ public class HeapFile implements DbFile {
         raf.write(page.getPageData());
         raf.close();
         // not necessary for lab1
+        synchronized (this) {
+            // 直接写入文件末尾之后的页面也算作文件的一部分
+            if (pid >= numPages()) {
+                _numPages = pid + 1;
+                _allocatedPages = Math.max(_allocatedPages, pid + 1);
+            }
+        }
     }
 
     /**
      * Returns the number of pages in this HeapFile.
+     * <p>
+     * The count is tracked in memory; the file is only consulted the first
+     * time this is called. Pages preallocated past the logical end of the
+     * file are not counted until they are handed out by insertTuple. The
+     * count is not stored, so when the file is opened again the trailing
+     * pages that are still all zeros, as preallocated pages are, are not
+     * counted either: at most PREALLOCATE_PAGES - 1 of them are checked,
+     * such a page holds no tuples, and pages in the BufferPool are kept.
      */
     public int numPages() {
         // code done
         // 这个Heap文件一共有多少页
-        return (int) Math.ceil((_file.length() / BufferPool.getPageSize())); // 文件的大小除以每个页的大小，就是页的数目
+        int numPages = _numPages;
+        if (numPages < 0) {
+            numPages = initNumPages();
+        }
+        return numPages;
+    }
+
+    private synchronized int initNumPages() {
+        if (_numPages < 0) {
+            _allocatedPages = (int) (_file.length() / BufferPool.getPageSize()); // 文件的大小除以每个页的大小，就是页的数目
+            int numPages = _allocatedPages;
+            // 从文件末尾往前跳过还是全零的预分配页面，缓存中的页面可能还没写回磁盘，不能跳过
+            BufferPool bp = Database.getBufferPool();
+            try (RandomAccessFile raf = new RandomAccessFile(_file, "r")) {
+                byte[] data = new byte[BufferPool.getPageSize()];
+                while (numPages > 0 && _allocatedPages - numPages < PREALLOCATE_PAGES - 1
+                        && !bp.isCached(new HeapPageId(getId(), numPages - 1))) {
+                    raf.seek((long) (numPages - 1) * BufferPool.getPageSize());
+                    raf.readFully(data);
+                    if (!isZero(data)) {
+                        break;
+                    }
+                    numPages--;
+                }
+            } catch (IOException e) {
+                // 读不了就按文件长度计算
+                numPages = _allocatedPages;
+            }
+            _numPages = numPages;
+        }
+        return _numPages;
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a new, empty page to the logical end of this file and returns
+     * its id. When the file has no preallocated room left it is extended by
+     * PREALLOCATE_PAGES zeroed pages at once, so appends do not grow the file
+     * one page at a time.
+     */
+    private synchronized HeapPageId allocatePage() throws IOException {
+        int pgNo = numPages();
+        if (pgNo >= _allocatedPages) {
+            // 一次性扩展多个页面，全零的页面就是合法的空HeapPage
+            RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+            try {
+                raf.setLength((long) (pgNo + PREALLOCATE_PAGES) * BufferPool.getPageSize());
+            } finally {
+                raf.close();
+            }
+            _allocatedPages = pgNo + PREALLOCATE_PAGES;
+        }
+        _numPages = pgNo + 1;
+        return new HeapPageId(getId(), pgNo);
     }
 
     // see DbFile.java for javadocs
@@ -124,34 +205,125 @@ public class HeapFile implements DbFile {
         // code done
         // 插入
         // not necessary for lab1
-        HeapPageId pid = null;
-        for (int i = 0; i < numPages(); i++) {
-            pid = new HeapPageId(getId(), i); // 从第一页开始遍历,注意，这个地方要注意一下getId()返回的是不是HeapFile的table id
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE); // 可读可写
-            if (page.getNumEmptySlots() != 0) {
-                page.insertTuple(t); // 插入
+        // 页面只加意向锁，元组锁在页面锁存器内认领空slot时再加，这样多个事务可以同时往同一页插入
+        int numPages = numPages();
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(getId(), i); // 从第一页开始遍历,注意，这个地方要注意一下getId()返回的是不是HeapFile的table id
+            boolean locked = bp.holdsLock(tid, pid);
+            HeapPage page = insertInto(tid, pid, t);
+            if (page != null) {
                 return Arrays.asList(page); // 返回一个List，修改了一个page
             }
+            if (!locked) {
+                // 这一页没有被读取也没有被修改，提前放锁不破坏两阶段锁
+                bp.unsafeReleasePage(tid, pid);
+            }
+        }
+        // 如果没有空闲的slot，就在文件末尾分配一个新的page，通过BufferPool获取，由BufferPool负责刷盘
+        while (true) {
+            // 新页面可能先被并发插入的事务填满，那就再分配一页
+            HeapPage page = insertInto(tid, allocatePage(), t);
+            if (page != null) {
+                return Arrays.asList(page);
+            }
+        }
+    }
+
+    /**
+     * Inserts t into an empty slot of the page that no other transaction
+     * holds a lock on, and logs the change, all under the page's latch.
+     *
+     * @return the page, or null if it has no free slot
+     */
+    private HeapPage insertInto(TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            HeapPage page = (HeapPage) bp.getPageForTuples(tid, pid, Permissions.READ_WRITE);
+            boolean inserted = false;
+            synchronized (page) {
+                if (!bp.isCached(page)) {
+                    continue; // 刚被淘汰或者被回滚替换了，重新获取
+                }
+                if (page.getNumEmptySlots() == 0) {
+                    return null;
+                }
+                // 别的事务删除了但还没提交的slot还被锁着，不能重用
+                for (int slot = 0; slot < page.getSlotCount() && !inserted; slot++) {
+                    RecordId rid = new RecordId(pid, slot);
+                    if (!page.isSlotUsed(slot) && bp.tryLockNewTuple(tid, rid)) {
+                        page.insertTuple(t, slot);
+                        bp.recordVersion(tid, rid, null); // 快照读在提交之前看到的还是空slot
+                        bp.logTupleChange(tid, page, slot);
+                        inserted = true;
+                    }
+                }
+            }
+            if (!inserted) {
+                return null;
+            }
+            bp.escalateIfNeeded(tid, getId());
+            return page;
         }
-        // 如果没有空闲的slot，就新建一个page
-        HeapPage page = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
-        // 在新建的page中插入tuple，然后把这个pageflush到磁盘上
-        page.insertTuple(t);
-        writePage(page);
-        return Arrays.asList(page);
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         // code done
-        PageId pid = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        return new ArrayList<Page>(Arrays.asList(page));
+        RecordId rid = t.getRecordId();
+        BufferPool bp = Database.getBufferPool();
+        bp.lockTuple(tid, rid, Permissions.READ_WRITE); // 只锁这一个元组，同一页的其它元组别的事务还可以修改
+        while (true) {
+            HeapPage page = (HeapPage) bp.getPageForTuples(tid, rid.getPageId(), Permissions.READ_WRITE);
+            synchronized (page) {
+                if (!bp.isCached(page)) {
+                    continue;
+                }
+                Tuple prior = page.getTuple(rid.getTupleNumber());
+                page.deleteTuple(t);
+                bp.recordVersion(tid, rid, prior);
+                bp.logTupleChange(tid, page, rid.getTupleNumber());
+                return new ArrayList<Page>(Arrays.asList(page));
+            }
+        }
         // not necessary for lab1
     }
 
+    /**
+     * Read one tuple of the file, e.g. one an index points to, the same way
+     * the iterator reads the tuples of a page: a read-only transaction reads
+     * the version in its snapshot without locks, any other transaction locks
+     * the tuple first.
+     *
+     * @return the tuple, or null if its slot is empty
+     */
+    public Tuple readTuple(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        PageId pid = rid.getPageId();
+        VersionStore versions = bp.getVersionStore();
+        boolean snapshot = versions.hasSnapshot(tid);
+        if (!snapshot) {
+            bp.getPageForTuples(tid, pid, Permissions.READ_ONLY); // 先加页面上的意向锁，再加元组的锁
+            bp.lockTuple(tid, rid, Permissions.READ_ONLY);
+        }
+        while (true) {
+            HeapPage page = (HeapPage) bp.getPageForTuples(snapshot ? null : tid, pid, Permissions.READ_ONLY);
+            synchronized (page) {
+                if (!bp.isCached(page)) {
+                    continue;
+                }
+                Tuple t = page.getTuple(rid.getTupleNumber());
+                if (snapshot && versions.hasVersions(pid)) {
+                    t = versions.visible(tid, rid, t);
+                }
+                return t;
+            }
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // code done
@@ -165,8 +337,69 @@ public class HeapFile implements DbFile {
                 // 不能将整个表都读入内存，遇到大表会导致OOM
                 // 所以需要一个迭代器，每次将一页放入内存
                 _pid = new HeapPageId(getId(), 0); // 从第一页开始
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(_tid, _pid, Permissions.READ_ONLY);
-                _it = page.iterator(); // 获取当前页面的迭代器
+                _it = readPage(_pid); // 获取当前页面的迭代器
+            }
+
+            // 只读事务什么锁都不加，在页面锁存器内读出每个slot在它的快照中的版本
+            private Iterator<Tuple> readSnapshot(PageId pid) throws DbException, TransactionAbortedException {
+                BufferPool bp = Database.getBufferPool();
+                VersionStore versions = bp.getVersionStore();
+                while (true) {
+                    HeapPage page = (HeapPage) bp.getPageForTuples(null, pid, Permissions.READ_ONLY);
+                    List<Tuple> tuples = new ArrayList<>();
+                    synchronized (page) {
+                        if (!bp.isCached(page)) {
+                            continue;
+                        }
+                        boolean versioned = versions.hasVersions(pid);
+                        for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                            Tuple t = page.getTuple(slot);
+                            if (versioned) {
+                                t = versions.visible(_tid, new RecordId(pid, slot), t);
+                            }
+                            if (t != null) {
+                                tuples.add(t);
+                            }
+                        }
+                    }
+                    return tuples.iterator();
+                }
+            }
+
+            // 页面只加意向锁，每个元组加了共享锁之后再读，这样既看不到别的事务还没提交的插入，
+            // 也不会漏掉别的事务删除了但还没提交的元组（等它提交或回滚之后再读这个slot）
+            private Iterator<Tuple> readPage(PageId pid) throws DbException, TransactionAbortedException {
+                BufferPool bp = Database.getBufferPool();
+                if (bp.getVersionStore().hasSnapshot(_tid)) {
+                    return readSnapshot(pid);
+                }
+                HeapPage page = (HeapPage) bp.getPageForTuples(_tid, pid, Permissions.READ_ONLY);
+                boolean writers = _tid != null && bp.hasOtherWriters(_tid, pid);
+                List<Tuple> tuples = new ArrayList<>();
+                for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                    RecordId rid = new RecordId(pid, slot);
+                    Tuple t;
+                    synchronized (page) {
+                        t = page.getTuple(slot);
+                    }
+                    if (t == null && !(writers && bp.tupleLockedByOthers(_tid, rid))) {
+                        continue;
+                    }
+                    bp.lockTuple(_tid, rid, Permissions.READ_ONLY);
+                    while (true) {
+                        synchronized (page) {
+                            if (bp.isCached(page)) {
+                                t = page.getTuple(slot);
+                                break;
+                            }
+                        }
+                        page = (HeapPage) bp.getPageForTuples(_tid, pid, Permissions.READ_ONLY);
+                    }
+                    if (t != null) {
+                        tuples.add(t);
+                    }
+                }
+                return tuples.iterator();
             }
 
             @Override
@@ -178,12 +411,11 @@ public class HeapFile implements DbFile {
                     if (_it.hasNext())
                         return true; // 如果当前页还有元素，返回true
                     // 当前页没有元素了，需要判断是否还有下一页
-                    if (_pid.getPageNumber() == numPages() - 1)
-                        return false; // 如果当前页是最后一页，返回false
+                    if (_pid.getPageNumber() >= numPages() - 1)
+                        return false; // 如果当前页是最后一页（或者文件没有页面），返回false
                     // 如果不是最后一页，需要获取下一页
                     _pid = new HeapPageId(getId(), _pid.getPageNumber() + 1); // 获取下一页的PageId
-                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(_tid, _pid, Permissions.READ_ONLY);
-                    _it = page.iterator(); // 获取下一页的迭代器
+                    _it = readPage(_pid); // 获取下一页的迭代器
                 }
             }
             
@@ -17,7 +17,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
@@ -26,10 +26,11 @@ public class HeapPage implements Page {
     final int numSlots;
 
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
     
     private TransactionId _tid; // 最后一个修改该页的事务ID
     private boolean _dirty; // 该页是否被修改过
+    private volatile long _lsn; // 最后一条描述该页的日志记录，只保存在内存中
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -68,7 +69,8 @@ public class HeapPage implements Page {
         }
         dis.close();
 
-        setBeforeImage();
+        // 刚读入的页面前像就是读入的数据，不用再序列化一遍
+        oldData = data.clone();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -116,7 +118,45 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the change to one slot since the before image was set; the
+     *   caller knows no other slot has changed, so the whole page does not
+     *   have to be diffed against getBeforeImage
+     */
+    public PageDelta slotDelta(int slot) {
+        byte[] old;
+        synchronized (oldDataLock) {
+            old = oldData;
+        }
+        byte[] before = null;
+        if ((old[slot / 8] & (1 << (slot % 8))) != 0) {
+            int offset = header.length + slot * td.getSize();
+            before = Arrays.copyOfRange(old, offset, offset + td.getSize());
+        }
+        return PageDelta.ofSlot(pid, slot, before, isSlotUsed(slot) ? getSlot(slot) : null);
+    }
+
+    /**
+     * Brings one slot of the before image up to date with this page, after
+     * the change to that slot has been logged.
+     */
+    public void setBeforeImage(int slot) {
+        int size = td.getSize();
+        int offset = header.length + slot * size;
+        byte[] data = isSlotUsed(slot) ? getSlot(slot) : new byte[size];
+        synchronized (oldDataLock) {
+            // 前像可能正在被别人读取，复制一份再修改
+            byte[] old = oldData.clone();
+            if (isSlotUsed(slot))
+                old[slot / 8] |= (1 << (slot % 8));
+            else
+                old[slot / 8] &= ~(1 << (slot % 8));
+            System.arraycopy(data, 0, old, offset, size);
+            oldData = old;
         }
     }
 
@@ -136,12 +176,10 @@ public class HeapPage implements Page {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+            try {
+                dis.readFully(new byte[td.getSize()]);
+            } catch (IOException e) {
+                throw new NoSuchElementException("error reading empty tuple");
             }
             return null;
         }
@@ -180,27 +218,23 @@ public class HeapPage implements Page {
         DataOutputStream dos = new DataOutputStream(baos);
 
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+        try {
+            dos.write(header);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
         }
 
         // create the tuples
+        byte[] emptySlot = new byte[td.getSize()];
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+                try {
+                    dos.write(emptySlot, 0, emptySlot.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 continue;
             }
@@ -259,7 +293,7 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // code done
         // not necessary for lab1
-        if (t.getRecordId().getPageId() != this.pid) {
+        if (!this.pid.equals(t.getRecordId().getPageId())) {
             // 如果tuple不在这个page上，抛出异常
             throw new DbException("this tuple is not on this page");
         }
@@ -295,13 +329,35 @@ public class HeapPage implements Page {
         while (isSlotUsed(nextEmptySlot)) {
             nextEmptySlot++;
         }
+        insertTuple(t, nextEmptySlot);
+    }
+
+    /**
+     * Adds the specified tuple to the given empty slot of the page, for
+     * callers that have to lock the slot before they use it.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if (isSlotUsed(slot)) {
+            throw new DbException("slot " + slot + " is in use");
+        }
+        if (!t.getTupleDesc().equals(this.td)) {
+            throw new DbException("tuple description mismatch");
+        }
         // 更新header
-        header[nextEmptySlot / 8] |= (1 << (nextEmptySlot % 8));
+        header[slot / 8] |= (1 << (slot % 8));
         // 设置RID
-        RecordId rid = new RecordId(pid, nextEmptySlot);
+        RecordId rid = new RecordId(pid, slot);
         t.setRecordId(rid);
         // 把tuple放到slot中
-        tuples[nextEmptySlot] = t;
+        tuples[slot] = t;
+    }
+
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
     }
 
     /**
@@ -371,6 +427,65 @@ public class HeapPage implements Page {
         }
     }
 
+    public int getSlotCount() {
+        return numSlots;
+    }
+
+    /**
+     * A slot is serialized as the fields of its tuple, td.getSize() bytes.
+     */
+    public byte[] getSlot(int i) {
+        if (!isSlotUsed(i))
+            throw new IllegalArgumentException("slot " + i + " is empty");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                tuples[i].getField(j).serialize(dos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    public void putSlot(int i, byte[] data) {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        Tuple t = new Tuple(td);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(dis));
+        } catch (java.text.ParseException e) {
+            throw new IllegalArgumentException("malformed slot data", e);
+        }
+        t.setRecordId(new RecordId(pid, i));
+        tuples[i] = t;
+        markSlotUsed(i, true);
+    }
+
+    public void clearSlot(int i) {
+        markSlotUsed(i, false);
+    }
+
+    public boolean holdsTuples() {
+        return true;
+    }
+
+    /** HeapPage has no state outside its slots. */
+    public byte[] getPageState() {
+        return new byte[0];
+    }
+
+    public void setPageState(byte[] state) {
+    }
+
+    public long getLSN() {
+        return _lsn;
+    }
+
+    public void setLSN(long lsn) {
+        _lsn = lsn;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -6,8 +6,17 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongConsumer;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -18,8 +27,8 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
+Rollback, recovery and truncation are synchronized (appends are not,
+see the log buffer note below); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
@@ -36,64 +45,249 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+Checkpoints are the exception: logCheckpoint only takes the LogFile
+monitor while it updates the checkpoint pointer, because checkpoints are
+fuzzy and never write pages themselves.  A background
+checkpointer thread, woken once enough log has been written (see
+setCheckpointInterval), writes old dirty pages back one at a time
+through the BufferPool and then takes a checkpoint.
+
+<u> Log buffer: </u>
+<p>
+
+Appending a record does not take the LogFile monitor.  Each appender
+serializes its record into a buffer of its own, reserves space for it
+by advancing the log tail with a compare-and-set, and copies the record
+into an in-memory ring buffer at the position given by its LSN, so
+appenders only contend on the tail.  An appender that finishes copying
+advances the published mark over every record that is completely
+copied; records may finish out of order, and the published mark waits
+for the gaps.  Only the flusher thread writes the ring to the segment
+files.  An appender whose record would overwrite ring space that is not
+on disk yet waits for the flusher.  Reserving a record and updating the
+transaction and dirty page tables for it happen under the shared side of
+a read-write lock that checkpoints take exclusively, so a checkpoint
+never sees a record without its table entries.
+
+<u> Group commit: </u>
+<p>
+
+logCommit does not force the log itself.  It appends the COMMIT record
+and then waits until the flusher reports that the record is on disk.
+The flusher waits up to the configured batch window (or until enough
+commits are waiting) and then writes out and forces everything
+published so far with a single fsync, so concurrent committers share
+one fsync.  The window is skipped when no other transaction is active,
+since no one could join the batch.  Other waiters (force(), rollback,
+appenders waiting for ring space) do not wait for the window.  The flusher never takes the
+LogFile monitor.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The log is stored as a sequence of fixed-size segment files next to
+the log file, named after it with a dot and the hexadecimal LSN at which
+the segment starts (log.0000000000000000, log.0000000001000000, ...).
+The format is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a small control file.  Its first long
+integer is the LSN of the last written checkpoint, or -1 if there are no
+checkpoints, and its second long integer is the segment size.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The LSN of a record is its logical offset in the log: the starting
+LSN of its segment plus its position in the segment file.  LSNs only
+grow; truncating the log deletes whole segments and never moves a
+record, so the LSNs stored in records, in the dirty page table and in
+pages stay valid.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each segment begins with a long integer holding the LSN just past
+the last record of the previous segment, so the log can be read
+backwards across segments.  All additional data in a segment consists
+of log records.  Log records are variable length and never span two
+segments; a record that does not fit in the rest of the current
+segment starts the next one.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Segments are created at their full size and zero filled, and the
+next segment is created as soon as the previous one is started, so
+appending a record never extends a file.  A zero type byte marks the
+unused tail of a segment; at the start of a segment it marks the end of
+the log.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record begins with a one byte type and a varint
+transaction id (see PageCodec for the varint encoding).
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> Each log record ends with a long integer holding the LSN of the
+record.
+
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
+
+<li> ABORT and BEGIN records contain no additional data
+
+<li> COMMIT records hold the commit time, as a varint number of
+milliseconds since the epoch, so a backup can be restored to a point in
+time (see Backup)
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  These images are written with PageCodec.writePage():
+a numeric page type tag, the varint-encoded page id, the page
+bytes and what else the page type needs to rebuild the page, such as
+the key of a B+ tree.  They are read back with PageCodec.readPage(), which builds
+the page through the factory registered for the tag.  See
+LogFile.print() for an example.
+
+<li> DELTA records describe a change to a SlottedPage as the slots that
+were filled, emptied or modified and any change to the page state, with
+the old and new values of each (see PageDelta).  logWrite uses them
+instead of UPDATE records whenever both images are SlottedPages and the
+delta is smaller than the two images; a single tuple insert costs a few
+dozen bytes instead of two whole pages.  Pages remember the offset of
+the last record that describes them as their LSN (see
+SlottedPage.getLSN()).
+
+<li> CLR (compensation log) records are written while a transaction is
+rolled back, one for each UPDATE or DELTA record that is undone.  They
+hold the offset of the record they compensate (the "undo next" pointer:
+every record of the transaction at or after it has been undone), the
+type of that record, and what must be redone to repeat the undo: the
+inverse PageDelta, or the before image of an UPDATE.  CLRs are never
+undone themselves.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table: the pages whose logged changes might not be on
+disk yet, each with the offset of the first such record (its recLSN).
+The format of the record is a varint count of the number of
+transactions, as well as a varint transaction id and a varint first
+record offset for each active transaction, then a varint count of dirty
+pages and a page id (see PageCodec.writePageId) and varint recLSN for
+each.
+
+<li> Each record is assembled in memory and appended to the log buffer
+with a single copy (see the log buffer note above).
+
+</ul>
+
+<p> Recovery follows ARIES:
+
+<ul>
+
+<li> Analysis scans forward from the last checkpoint, rebuilding the
+active transaction table and the dirty page table.
+
+<li> Redo repeats history from the smallest recLSN, skipping records
+for pages that are not in the dirty page table or that precede the
+page's recLSN.  Records are handed to a pool of worker threads
+partitioned by page id, so each page is rebuilt by one thread in log
+order while different pages are rebuilt in parallel.  Page formats have
+no room for an LSN, so pages only carry one in memory; the checks
+against the dirty page table are what skip work that is already on
+disk, and redo operations set state rather than increment it, so
+repeating one that is already on disk is harmless.
+
+<li> Undo rolls back the transactions that were still active at the
+crash, newest record first, writing a CLR for each record undone and
+then an ABORT record.  Records already compensated by a CLR (from a
+rollback that was interrupted by the crash) are skipped.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    private final RandomAccessFile control;
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Default time the flusher waits for more commits to join a batch, in microseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 200;
+    /** Default number of waiting commits that closes a batch before the window ends. */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 32;
+    /** The flusher thread exits after being idle this long; it is restarted on demand. */
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+    /** Default amount of log written between background checkpoints. */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_BYTES = 16L << 20;
+    /** Default size of a log segment file. */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    /** Size of the in-memory ring buffer that records are appended to. */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+    /** Number of threads that redo log records during recovery. */
+    static final int REDO_THREADS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** Size of the header at the start of each segment. */
+    final static int SEGMENT_HEADER_SIZE = LONG_SIZE;
 
-    long currentOffset = -1;//protected by this
+    volatile long segmentSize = DEFAULT_SEGMENT_SIZE; // only changes before the log is started
+    long firstSegmentStart = -1; // LSN of the oldest segment kept; protected by this
+    long checkpointLSN = NO_CHECKPOINT_ID; //protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
-
-    final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    final Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<>();
+    // dirty page table: pages with logged changes that may not be on disk
+    // yet, and the LSN of the first such record
+    final Map<PageId,Long> dirtyPages = new ConcurrentHashMap<>();
+
+    // the log buffer.  Byte lsn of the log lives at ring[lsn % ring.length]
+    // until the flusher has written it out.
+    private final byte[] ring = new byte[LOG_BUFFER_SIZE];
+    // end of the space reserved by appenders
+    private final AtomicLong tail = new AtomicLong(-1);
+    // end of the records copied into the ring; every byte before it is
+    // ready to be written out
+    private final AtomicLong published = new AtomicLong(-1);
+    // filled regions of the ring that published has not reached yet
+    private final Map<Long, Long> completed = new ConcurrentHashMap<>();
+    // held shared from reserving a record to updating the transaction and
+    // dirty page tables for it, and exclusively by checkpoints
+    private final ReadWriteLock appendGate = new ReentrantReadWriteLock();
+    // each appender assembles its record in its own buffer
+    private final ThreadLocal<RecordBuffer> recordBuffer = ThreadLocal.withInitial(RecordBuffer::new);
+
+    // the segment files, touched only while holding channelLock
+    private final Object channelLock = new Object(); // never held while acquiring this
+    private RandomAccessFile raf; // the segment being written; protected by channelLock
+    private long segmentStart = -1; // LSN of the segment raf holds; protected by channelLock
+    private long written = -1; // end of the bytes written to raf; protected by channelLock
+    private RandomAccessFile reader; // segment read by undo; protected by this
+    private long readerStart = -1; //protected by this
+
+    // group commit state
+    private final Object flushLock = new Object(); // never held while acquiring this or channelLock
+    private long requestedLSN = 0; //protected by flushLock
+    private volatile long durableLSN = 0; // written under flushLock
+    private int waitingCommits = 0; //protected by flushLock
+    private int urgentWaiters = 0; //protected by flushLock
+    private int forceCount = 0; //protected by flushLock
+    private IOException flushError = null; //protected by flushLock
+    private Thread flusher = null; //protected by flushLock
+    private volatile boolean awaitingPublish = false; // written under flushLock
+    private volatile long groupCommitWindowMicros = DEFAULT_GROUP_COMMIT_WINDOW_MICROS;
+    private volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+
+    // LSNs that readers of the log still need, by reader
+    private final Map<Object, Long> retained = new ConcurrentHashMap<>();
+
+    // background checkpoint state
+    final AtomicLong bytesSinceCheckpoint = new AtomicLong();
+    private final Object checkpointLock = new Object(); // never held while acquiring this
+    private boolean checkpointRequested = false; //protected by checkpointLock
+    private boolean checkpointerStopped = false; //protected by checkpointLock
+    private int checkpointCount = 0; //protected by checkpointLock
+    private Thread checkpointer = null; //protected by checkpointLock
+    private volatile long checkpointIntervalBytes = DEFAULT_CHECKPOINT_INTERVAL_BYTES;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,7 +302,7 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -126,19 +320,231 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
+        ensureStarted();
+    }
+
+    /** Start an empty log unless recover() or an append already decided
+        what to do with the old one. */
+    void ensureStarted() throws IOException {
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    startEmptyLog();
+                    recoveryUndecided = false;
+                }
+            }
+        }
+    }
+
+    /** Replace this log with the part of an archived log (see
+        LogShipper) that ends at stop, so that recover() rebuilds the
+        database as of that LSN.  Must be called before recover() or any
+        append.
+        @param archive the log file whose segments hold the archive
+        @param archiveSegmentSize the segment size of the archived log
+        @param from the oldest LSN recovery will read
+        @param stop the LSN at which a record starts; it and every later
+          record are left out
+        @param checkpoint the checkpoint that recovery starts from
+    */
+    synchronized void installArchive(File archive, long archiveSegmentSize,
+                                     long from, long stop, long checkpoint) throws IOException {
+        if (!recoveryUndecided)
+            throw new IllegalStateException("the log has already been started");
+        for (long start : listSegments())
+            segmentFile(start).delete();
+        segmentSize = archiveSegmentSize;
+        long last = segmentOf(stop - 1);
+        for (long start = segmentOf(from); start <= last; start += segmentSize)
+            Files.copy(segmentFile(archive, start).toPath(), segmentFile(start).toPath());
+        // recovery appends after the last record kept, over a zeroed tail
+        try (RandomAccessFile f = new RandomAccessFile(segmentFile(last), "rw")) {
+            f.setLength(stop - last);
+            f.setLength(segmentSize);
+            f.getChannel().force(true);
+        }
+        control.setLength(0);
+        control.writeLong(checkpoint);
+        control.writeLong(segmentSize);
+        control.getChannel().force(true);
+    }
+
+    /** Throw away all segments and start a new, empty log. */
+    private void startEmptyLog() throws IOException {
+        for (long start : listSegments())
+            segmentFile(start).delete();
+        control.setLength(0);
+        control.writeLong(NO_CHECKPOINT_ID);
+        control.writeLong(segmentSize);
+        control.getChannel().force(true);
+        checkpointLSN = NO_CHECKPOINT_ID;
+        firstSegmentStart = 0;
+        synchronized (channelLock) {
+            openSegment(0);
+            raf.writeLong(0);
+        }
+        resetAppendPosition(SEGMENT_HEADER_SIZE);
+    }
+
+    /** Make end the LSN at which the next record is appended.  Everything
+        before it must already be on disk. */
+    private void resetAppendPosition(long end) {
+        synchronized (channelLock) {
+            written = end;
+        }
+        synchronized (flushLock) {
+            durableLSN = end;
+            requestedLSN = end;
+        }
+        published.set(end);
+        tail.set(end);
+    }
+
+    /** Make raf the segment beginning at LSN start, and preallocate the
+        segment after it.  Caller holds channelLock. */
+    private void openSegment(long start) throws IOException {
+        if (raf != null) {
+            raf.getChannel().force(false);
+            raf.close();
+        }
+        raf = new RandomAccessFile(segmentFile(start), "rw");
+        if (raf.length() != segmentSize)
+            raf.setLength(segmentSize);
+        segmentStart = start;
+        preallocate(start + segmentSize);
+    }
+
+    /** Create the zero filled segment file beginning at LSN start, if it
+        does not exist yet. */
+    private void preallocate(long start) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(segmentFile(start), "rw")) {
+            if (f.length() != segmentSize)
+                f.setLength(segmentSize);
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** @return the file holding the segment that begins at LSN start */
+    File segmentFile(long start) {
+        return segmentFile(logFile, start);
+    }
+
+    /** @return the file holding the segment of the log logFile that
+        begins at LSN start */
+    static File segmentFile(File logFile, long start) {
+        return new File(logFile.getAbsoluteFile().getParentFile(),
+                        logFile.getName() + "." + String.format("%016x", start));
+    }
+
+    /** @return a reader positioned at the record that starts at lsn */
+    LogReader reader(long lsn) throws IOException {
+        return new LogReader(logFile, segmentSize, lsn);
+    }
+
+    /** @return the starting LSNs of the segment files on disk, in order */
+    List<Long> listSegments() {
+        List<Long> starts = new ArrayList<>();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.length() == prefix.length() + 16) {
+                    try {
+                        starts.add(Long.parseUnsignedLong(name.substring(prefix.length()), 16));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    /** @return the LSN at which the segment holding lsn begins */
+    long segmentOf(long lsn) {
+        return lsn - lsn % segmentSize;
+    }
+
+    /** Set the size of the log segment files.  This only affects a log
+        that has not been started yet; a recovered log keeps the segment
+        size it was written with.
+        @param bytes the segment size; every log record must fit in one
+          segment
+    */
+    public synchronized void setSegmentSize(long bytes) {
+        if (bytes <= SEGMENT_HEADER_SIZE)
+            throw new IllegalArgumentException("segment size too small");
+        if (!recoveryUndecided)
+            throw new IllegalStateException("the log has already been started");
+        segmentSize = bytes;
+    }
+
+    /** @return the end of the part of the log that is on disk; every
+        record before it is complete */
+    long durableEnd() {
+        return durableLSN;
+    }
+
+    /** @return the LSN of the first record of the oldest active
+        transaction, or the end of the log if there is none */
+    long oldestActiveLSN() {
+        appendGate.writeLock().lock();
+        try {
+            long min = tail.get();
+            for (long lsn : tidToFirstLogRecord.values())
+                min = Math.min(min, lsn);
+            return min;
+        } finally {
+            appendGate.writeLock().unlock();
+        }
+    }
+
+    /** @return the LSN at which the next record will be appended */
+    long endOfLog() {
+        return tail.get();
+    }
+
+    /** Keep the segments from lsn on, on behalf of a reader of the log
+        such as a ChangeStream, until the reader calls it again with a
+        later LSN or calls release. */
+    void retain(Object reader, long lsn) {
+        retained.put(reader, lsn);
+    }
+
+    void release(Object reader) {
+        retained.remove(reader);
+    }
+
+    /** Return the number of bytes between the start of the oldest segment
+        still kept and the end of the log. */
+    public synchronized long getLogSize() {
+        return recoveryUndecided ? 0 : tail.get() - firstSegmentStart;
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    /** Return the number of times the log has been forced to disk. */
+    public int getForceCount() {
+        synchronized (flushLock) {
+            return forceCount;
+        }
+    }
+
+    /** Configure group commit.
+        @param windowMicros how long the flusher waits for more commits
+          to join a batch before forcing the log
+        @param batchSize number of waiting commits that closes a batch
+          early
+    */
+    public void setGroupCommit(long windowMicros, int batchSize) {
+        if (windowMicros < 0 || batchSize < 1)
+            throw new IllegalArgumentException("invalid group commit parameters");
+        groupCommitWindowMicros = windowMicros;
+        groupCommitSize = batchSize;
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -160,139 +566,468 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord(lsn -> tidToFirstLogRecord.remove(tid.getId()));
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log has been forced to disk past it.
+        The force is shared with other transactions committing
+        at the same time (see the group commit note above).
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        DataOutputStream out = beginRecord(COMMIT_RECORD, tid.getId());
+        PageCodec.writeVarLong(out, System.currentTimeMillis());
+        endRecord(lsn -> tidToFirstLogRecord.remove(tid.getId()));
+        awaitDurable(recordBuffer.get().end, true);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Block until every byte of the log before lsn is on disk.
+        @param commit true if a committing transaction is waiting; other
+          waiters do not wait for a batch of commits to fill up
+    */
+    private void awaitDurable(long lsn, boolean commit) throws IOException {
+        if (durableLSN >= lsn)
+            return;
+        synchronized (flushLock) {
+            if (durableLSN >= lsn)
+                return;
+            if (flushError != null)
+                throw new IOException("log flush failed", flushError);
+            if (lsn > requestedLSN)
+                requestedLSN = lsn;
+            if (commit)
+                waitingCommits++;
+            else
+                urgentWaiters++;
+            if (flusher == null) {
+                flusher = new Thread(this::runFlusher, "LogFile-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushLock.notifyAll();
+            try {
+                while (durableLSN < lsn) {
+                    if (flushError != null)
+                        throw new IOException("log flush failed", flushError);
+                    flushLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for log flush");
+            } finally {
+                if (commit)
+                    waitingCommits--;
+                else
+                    urgentWaiters--;
+            }
+        }
+    }
+
+    /** Body of the flusher thread: wait for a batch of commits, then
+        write out the log buffer and force once.  A force only happens
+        once there is something published past the durable end: when the
+        records asked for are still being copied by their appenders, the
+        flusher waits for them to publish instead of forcing again.  It
+        stops for good after a failed force; the waiters then fail too. */
+    private void runFlusher() {
+        try {
+            while (true) {
+                synchronized (flushLock) {
+                    long idleUntil = System.currentTimeMillis() + FLUSHER_IDLE_MILLIS;
+                    while (requestedLSN <= durableLSN && flushError == null) {
+                        long idle = idleUntil - System.currentTimeMillis();
+                        if (idle <= 0) {
+                            flusher = null;
+                            return;
+                        }
+                        flushLock.wait(idle);
+                    }
+                    // give other committers a chance to join this batch, as long as
+                    // there are other transactions that could still commit
+                    long deadline = System.nanoTime() + groupCommitWindowMicros * 1000;
+                    while (waitingCommits < groupCommitSize && urgentWaiters == 0 && flushError == null
+                            && !tidToFirstLogRecord.isEmpty()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            break;
+                        flushLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                    // wait for the appenders still copying the records before
+                    // the requested ones rather than forcing nothing new
+                    try {
+                        awaitingPublish = true;
+                        while (published.get() <= durableLSN && flushError == null)
+                            flushLock.wait();
+                    } finally {
+                        awaitingPublish = false;
+                    }
+                    if (flushError != null) {
+                        flusher = null;
+                        flushLock.notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    forceBatch();
+                } catch (IOException e) {
+                    synchronized (flushLock) {
+                        flushError = e;
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (flushLock) {
+                flusher = null;
+            }
+        }
+    }
+
+    /** Write out everything published to the log buffer so far and force
+        it, without holding the LogFile monitor. */
+    private void forceBatch() throws IOException {
+        synchronized (channelLock) {
+            long upTo = published.get();
+            while (written < upTo) {
+                long start = segmentOf(written);
+                if (start != segmentStart)
+                    openSegment(start);
+                int pos = (int) (written % ring.length);
+                long n = Math.min(upTo, start + segmentSize) - written;
+                ByteBuffer b = ByteBuffer.wrap(ring, pos, (int) Math.min(n, ring.length - pos));
+                FileChannel channel = raf.getChannel();
+                long filePos = written - start;
+                while (b.hasRemaining())
+                    filePos += channel.write(b, filePos);
+                written = start + filePos;
+            }
+            raf.getChannel().force(false);
+            markDurable(upTo);
+        }
+    }
+
+    private void markDurable(long lsn) {
+        synchronized (flushLock) {
+            forceCount++;
+            if (lsn > durableLSN) {
+                durableLSN = lsn;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /** Write a record describing the change from before to after for
+        the specified tid and page.  If both images are SlottedPages and
+        their delta is smaller than the images themselves, this is a DELTA
+        record; otherwise it is an UPDATE record with both images.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + tail.get());
+        PageDelta d = null;
+        if (before instanceof SlottedPage && after instanceof SlottedPage) {
+            d = PageDelta.diff((SlottedPage) before, (SlottedPage) after);
+            if (d.isEmpty())
+                return;
+        }
         preAppend();
-        /* update record conists of
+        /* delta record consists of
 
            record type
            transaction id
-           before page data (see writePageData)
+           page delta (see PageDelta.write)
+           start offset
+
+           update record consists of
+
+           record type
+           transaction id
+           before page data (see PageCodec.writePage)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        boolean delta = false;
+        if (d != null) {
+            DataOutputStream rec = beginRecord(DELTA_RECORD, tid.getId());
+            d.write(rec);
+            delta = recordBuffer.get().size() < 2 * BufferPool.getPageSize();
+        }
+        if (!delta) {
+            DataOutputStream rec = beginRecord(UPDATE_RECORD, tid.getId());
+            PageCodec.writePage(rec, before);
+            PageCodec.writePage(rec, after);
+        }
+        long start = endRecord(lsn -> dirtyPages.putIfAbsent(after.getId(), lsn));
+        if (after instanceof SlottedPage)
+            ((SlottedPage) after).setLSN(start);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE OFFSET = " + tail.get());
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write a DELTA record for a change to a page that the caller
+        already has as a delta, so no before image has to be diffed.
+        @param tid The transaction performing the write
+        @param page The page, with the change applied
+        @param d The change
+    */
+    public void logDelta(TransactionId tid, SlottedPage page, PageDelta d)
+        throws IOException {
+        preAppend();
+        d.write(beginRecord(DELTA_RECORD, tid.getId()));
+        PageId pid = page.getId();
+        page.setLSN(endRecord(lsn -> dirtyPages.putIfAbsent(pid, lsn)));
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /** Note that the buffer pool has written pid to disk, so its logged
+        changes no longer need to be redone after a crash.
+        @param pid The page that was written
+    */
+    public void pageFlushed(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Start assembling a record of the given type in this thread's
+        record buffer.  The caller writes the body to the returned stream
+        and then calls endRecord(). */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        RecordBuffer rec = recordBuffer.get();
+        rec.reset();
+        rec.out.writeByte(type);
+        PageCodec.writeVarLong(rec.out, tid);
+        return rec.out;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    private long endRecord() throws IOException {
+        return endRecord(null);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Finish the record started by beginRecord() and append it to the
+        log buffer.  Space is reserved with a compare-and-set on the tail,
+        so concurrent appenders only contend on that one word; they then
+        copy their records into the ring in parallel and publish them in
+        LSN order.  A record that does not fit in the rest of the current
+        segment starts the next one, together with that segment's header.
+        @param onReserve called with the record's LSN while no checkpoint
+          can be taken, to update the transaction and dirty page tables
+        @return the LSN at which the record starts
+    */
+    private long endRecord(LongConsumer onReserve) throws IOException {
+        RecordBuffer rec = recordBuffer.get();
+        long segSize = segmentSize;
+        int size = rec.size() + LONG_SIZE;
+        if (size > segSize - SEGMENT_HEADER_SIZE || size > ring.length / 2 - SEGMENT_HEADER_SIZE)
+            throw new IOException("log record of " + size + " bytes is too large");
+
+        long from, start;
+        appendGate.readLock().lock();
+        try {
+            do {
+                from = tail.get();
+                long used = from % segSize;
+                start = from;
+                if (used == 0 || used + size > segSize)
+                    start = from - used + (used == 0 ? 0 : segSize) + SEGMENT_HEADER_SIZE;
+            } while (!tail.compareAndSet(from, start + size));
+            if (onReserve != null)
+                onReserve.accept(start);
+        } finally {
+            appendGate.readLock().unlock();
+        }
+        rec.out.writeLong(start);
+        rec.end = start + size;
+
+        // wait until the ring space we are about to overwrite is on disk
+        awaitDurable(rec.end - ring.length, false);
+        if (start != from) {
+            // zero the unused tail of the segment and write the header of
+            // the next one, which points back at the end of this one
+            long header = start - SEGMENT_HEADER_SIZE;
+            copyToRing(from, new byte[(int) (header - from)], (int) (header - from));
+            copyToRing(header, longBytes(from), LONG_SIZE);
+        }
+        copyToRing(start, rec.buf(), size);
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+        publish(from, rec.end);
+
+        if (bytesSinceCheckpoint.addAndGet(rec.end - from) >= checkpointIntervalBytes) {
+            bytesSinceCheckpoint.set(0);
+            requestCheckpoint();
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        return start;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Mark [from, end) of the ring as filled and advance published over
+        every filled region that now follows it.  An appender never waits
+        for the ones before it: whoever fills the last gap advances
+        published past the regions filled after it. */
+    private void publish(long from, long end) {
+        completed.put(from, end);
+        while (true) {
+            long p = published.get();
+            Long next = completed.get(p);
+            if (next == null)
+                return;
+            if (published.compareAndSet(p, next)) {
+                completed.remove(p);
+                if (awaitingPublish) {
+                    synchronized (flushLock) {
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    private void copyToRing(long lsn, byte[] b, int len) {
+        int pos = (int) (lsn % ring.length);
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(b, 0, ring, pos, first);
+        System.arraycopy(b, first, ring, 0, len - first);
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+    private static byte[] longBytes(long v) {
+        return ByteBuffer.allocate(LONG_SIZE).putLong(v).array();
+    }
+
+    /** The buffer a thread assembles its records in. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        long end; // end of the last record appended from this buffer
+
+        RecordBuffer() {
+            super(256);
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+    }
+
+    /** A buffered, sequential reader over the log that tracks the LSN of
+        the next byte it will return and moves from one segment to the next.
+        Callers check hasNext() before reading each record.  It reads
+        through its own file descriptors and only sees what the flusher
+        has written out. */
+    static class LogReader extends DataInputStream {
+        private final SegmentStream segments;
+
+        /** Open a reader on the segments of the log logFile, which were
+            written with the given segment size. */
+        LogReader(File logFile, long segmentSize, long lsn) throws IOException {
+            this(new SegmentStream(logFile, segmentSize, lsn));
+        }
+
+        private LogReader(SegmentStream segments) {
+            super(segments);
+            this.segments = segments;
+        }
+
+        long offset() {
+            return segments.offset;
+        }
+
+        /** @return true if a record starts at offset(), skipping the unused
+            tail of a segment if needed; false at the end of the log */
+        boolean hasNext() throws IOException {
+            while (true) {
+                if (segments.peek() > 0)
+                    return true;
+                if (segments.offset == segments.start + SEGMENT_HEADER_SIZE
+                    || !segments.next())
+                    return false;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Reads the segment files in order; a read never crosses the end of a
+        segment. */
+    private static class SegmentStream extends InputStream {
+        private final File logFile;
+        private final long size;
+        long start;
+        long offset;
+        private InputStream in;
+
+        SegmentStream(File logFile, long size, long lsn) throws IOException {
+            this.logFile = logFile;
+            this.size = size;
+            start = lsn - lsn % size;
+            // a record that ends a segment is followed by the next
+            // segment's header
+            offset = lsn == start ? lsn + SEGMENT_HEADER_SIZE : lsn;
+            in = open(segmentFile(logFile, start), offset - start);
+        }
+
+        private InputStream open(File f, long position) throws IOException {
+            FileInputStream fis = new FileInputStream(f);
+            fis.getChannel().position(position);
+            return new BufferedInputStream(fis, 1 << 16);
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        int peek() throws IOException {
+            in.mark(1);
+            int b = in.read();
+            in.reset();
+            return b;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        /** Move to the first record of the next segment.
+            @return false if there is no next segment */
+        boolean next() throws IOException {
+            File f = segmentFile(logFile, start + size);
+            if (!f.exists())
+                return false;
+            in.close();
+            start += size;
+            offset = start + SEGMENT_HEADER_SIZE;
+            in = open(f, SEGMENT_HEADER_SIZE);
+            return true;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        public int read() throws IOException {
+            if (offset >= start + size)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                offset++;
+            return b;
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+        public int read(byte[] b, int off, int len) throws IOException {
+            len = (int) Math.min(len, start + size - offset);
+            if (len <= 0)
+                return -1;
+            int n = in.read(b, off, len);
+            if (n > 0)
+                offset += n;
+            return n;
         }
-        return newPage;
 
+        public void close() throws IOException {
+            in.close();
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -300,150 +1035,233 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        endRecord(lsn -> tidToFirstLogRecord.put(tid.getId(), lsn));
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + tail.get());
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a BEGIN record for the specified transaction unless it
+        already has one.  The buffer pool calls this before a transaction
+        changes a page, for transactions that were not started through
+        Transaction.start(): without a BEGIN record rollback would not
+        undo the logged changes of their pages that were stolen.
+        @param tid The transaction about to change a page
+    */
+    public void logXactionBeginIfAbsent(TransactionId tid)
+        throws IOException {
+        if (!isActive(tid))
+            logXactionBegin(tid);
+    }
+
+    /** @return true if tid has written a BEGIN record and has not
+        committed or aborted yet */
+    public boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: it records the active transactions and
+        the dirty page table as they are, without writing any pages, and
+        only holds the LogFile monitor while the record is appended.
+        Recovery redoes from the oldest recLSN in the table, so pages
+        never have to be on disk at checkpoint time; the background
+        checkpointer writes old pages back so that the log can be
+        truncated. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long startCpOffset, end;
+        preAppend();
+        // keep appenders from changing the tables between the snapshot
+        // and reserving the checkpoint record
+        appendGate.writeLock().lock();
+        try {
+            //Debug.log("CHECKPOINT, offset = " + tail.get());
+            Map<Long, Long> active = new HashMap<>(tidToFirstLogRecord);
+            Map<PageId, Long> dirty = new HashMap<>(dirtyPages);
+            DataOutputStream rec = beginRecord(CHECKPOINT_RECORD, NO_CHECKPOINT_ID); //no tid
+
+            //write list of outstanding transactions
+            PageCodec.writeVarInt(rec, active.size());
+            for (Map.Entry<Long, Long> e : active.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                PageCodec.writeVarLong(rec, e.getKey());
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + e.getValue());
+                PageCodec.writeVarLong(rec, e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            PageCodec.writeVarInt(rec, dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                PageCodec.writePageId(rec, e.getKey());
+                PageCodec.writeVarLong(rec, e.getValue());
+            }
+            startCpOffset = endRecord();
+            end = recordBuffer.get().end;
+        } finally {
+            appendGate.writeLock().unlock();
+        }
+        bytesSinceCheckpoint.set(0);
+
+        // the checkpoint pointer may only refer to a record that is on disk
+        awaitDurable(end, false);
+
+        synchronized (this) {
+            //once the CP is written, make sure the CP location in the
+            // control file is updated.  It must be on disk before
+            // logTruncate deletes the segments an older checkpoint needs.
+            if (startCpOffset > checkpointLSN) {
+                control.seek(0);
+                control.writeLong(startCpOffset);
+                control.getChannel().force(false);
+                checkpointLSN = startCpOffset;
             }
+            //Debug.log("CP OFFSET = " + tail.get());
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+    /** Configure how much log (in bytes) is written between automatic
+        checkpoints taken by the background checkpointer. */
+    public void setCheckpointInterval(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        checkpointIntervalBytes = bytes;
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Return the number of checkpoints taken by the background checkpointer. */
+    public int getCheckpointCount() {
+        synchronized (checkpointLock) {
+            return checkpointCount;
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Wake up the background checkpointer, starting it if needed. */
+    private void requestCheckpoint() {
+        synchronized (checkpointLock) {
+            if (checkpointerStopped)
+                return;
+            checkpointRequested = true;
+            if (checkpointer == null) {
+                checkpointer = new Thread(this::runCheckpointer, "LogFile-checkpointer");
+                checkpointer.setDaemon(true);
+                checkpointer.start();
             }
+            checkpointLock.notifyAll();
+        }
+    }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+    /** Body of the checkpointer thread: once enough log has been written,
+        write back the dirty pages that are older than the last checkpoint
+        (one page at a time, so transactions keep running in between),
+        then take a fuzzy checkpoint and truncate the log. */
+    private void runCheckpointer() {
+        try {
+            while (true) {
+                synchronized (checkpointLock) {
+                    long idleUntil = System.currentTimeMillis() + FLUSHER_IDLE_MILLIS;
+                    while (!checkpointRequested && !checkpointerStopped) {
+                        long idle = idleUntil - System.currentTimeMillis();
+                        if (idle <= 0) {
+                            checkpointer = null;
+                            return;
+                        }
+                        checkpointLock.wait(idle);
+                    }
+                    if (checkpointerStopped)
+                        break;
+                    checkpointRequested = false;
+                }
+                if (Database.getLogFile() != this)
+                    break; // the database was reset; this log is no longer in use
+
+                List<PageId> old = new ArrayList<>();
+                synchronized (this) {
+                    long cpLoc = checkpointLSN;
+                    List<Map.Entry<PageId, Long>> entries = new ArrayList<>(dirtyPages.entrySet());
+                    entries.sort(Map.Entry.comparingByValue());
+                    for (Map.Entry<PageId, Long> e : entries)
+                        if (cpLoc == NO_CHECKPOINT_ID || e.getValue() < cpLoc)
+                            old.add(e.getKey());
+                }
+                Database.getBufferPool().writeBack(old);
+                logCheckpoint();
+                synchronized (checkpointLock) {
+                    checkpointCount++;
                 }
             }
+        } catch (InterruptedException e) {
+            // fall through
+        } catch (IOException e) {
+            System.err.println("background checkpoint failed");
+            e.printStackTrace();
         }
+        synchronized (checkpointLock) {
+            checkpointer = null;
+        }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+    /** Stop the background checkpointer for good, waiting for a
+        checkpoint in progress to finish.  Database.reset() calls this so
+        that the log of a database that is thrown away stops writing back
+        pages and deleting segments under the database that recovers from
+        the same files. */
+    public void stopCheckpointer() {
+        Thread t;
+        synchronized (checkpointLock) {
+            checkpointerStopped = true;
+            t = checkpointer;
+            checkpointLock.notifyAll();
+        }
+        if (t != null && t != Thread.currentThread()) {
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  This deletes the segments that lie entirely before
+        the last checkpoint, the first record of every transaction active
+        at that checkpoint, the oldest recLSN in its dirty page table and
+        the positions that readers of the log retain. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        long cpLoc = checkpointLSN;
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return; // nothing is known to be obsolete
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        long minLogRecord = cpLoc;
 
-            } catch (EOFException e) {
-                break;
+        try (LogReader in = reader(cpLoc)) {
+            LogRecord cp = LogRecord.read(in, cpLoc);
+            if (cp.type != CHECKPOINT_RECORD) {
+                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
+            for (long firstLogRecord : cp.activeTransactions.values())
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
+            for (long recLSN : cp.dirtyPages.values())
+                minLogRecord = Math.min(minLogRecord, recLSN);
         }
+        for (long lsn : retained.values())
+            minLogRecord = Math.min(minLogRecord, lsn);
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can delete every segment before the one holding minLogRecord
+        long keep = segmentOf(minLogRecord);
+        for (long start : listSegments()) {
+            if (start >= keep)
+                break;
+            if (!segmentFile(start).delete())
+                throw new IOException("could not delete log segment " + segmentFile(start));
+        }
+        if (keep > firstSegmentStart) {
+            Debug.log("TRUNCATING LOG; NEW START: " + keep);
+            firstSegmentStart = keep;
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -457,21 +1275,138 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            // changes made since the pages were last logged were never
+            // logged, so they are undone by restoring the before images;
+            // this latches pages, which writers hold while appending, so
+            // it is done before taking the LogFile monitor
+            Database.getBufferPool().restoreBeforeImages(tid);
             synchronized(this) {
-                preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first != null)
+                    undo(Collections.singletonMap(tid.getId(), first), tid);
             }
         }
     }
 
+    /** Undo the logged changes of the given transactions, newest first,
+        writing a CLR for each record undone.  Records that an earlier CLR
+        already compensated are skipped.
+        @param losers maps each transaction to the offset of its first record
+        @param dirtier the transaction that the undone pages are marked
+          dirty by
+    */
+    private void undo(Map<Long, Long> losers, TransactionId dirtier) throws IOException {
+        if (losers.isEmpty())
+            return;
+        long stop = Collections.min(losers.values());
+        // tid -> every record of tid at or after this offset is undone
+        Map<Long, Long> undoneFrom = new HashMap<>();
+        long end = tail.get();
+        // the records we read back must have left the log buffer
+        awaitDurable(end, false);
+        while (end > stop) {
+            if (end - segmentOf(end) == SEGMENT_HEADER_SIZE) {
+                // continue at the last record of the previous segment
+                end = readLongAt(segmentOf(end));
+                continue;
+            }
+            long start = readLongAt(end - LONG_SIZE);
+            LogRecord r = readRecordAt(start, end);
+            end = start;
+            if (!losers.containsKey(r.tid))
+                continue;
+            Long undone = undoneFrom.get(r.tid);
+            if (r.type == CLR_RECORD) {
+                if (undone == null || r.undoNext < undone)
+                    undoneFrom.put(r.tid, r.undoNext);
+            } else if (r.isPageRecord() && (undone == null || r.lsn < undone)) {
+                compensate(r, dirtier);
+            }
+        }
+    }
+
+    /** Undo one UPDATE or DELTA record on the cached page and log a CLR.
+        The page is latched, since other transactions may be changing
+        other tuples on it. */
+    private void compensate(LogRecord r, TransactionId dirtier) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        fileOf(r.pageId());
+        Page cached = bp.getPageForRecovery(r.pageId());
+        synchronized (cached) {
+            compensate(r, dirtier, cached);
+        }
+    }
+
+    private void compensate(LogRecord r, TransactionId dirtier, Page page) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        Page before = r.type == DELTA_RECORD ? null : r.before.decode();
+        preAppend();
+        DataOutputStream rec = beginRecord(CLR_RECORD, r.tid);
+        PageCodec.writeVarLong(rec, r.lsn);
+        rec.writeByte(r.type);
+        if (r.type == DELTA_RECORD) {
+            PageDelta inverse = r.delta.inverse();
+            inverse.write(rec);
+            inverse.redo((SlottedPage) page);
+        } else {
+            PageCodec.writePage(rec, before);
+            page = before;
+        }
+        PageId pid = page.getId();
+        long lsn = endRecord(l -> dirtyPages.putIfAbsent(pid, l));
+        if (page instanceof SlottedPage)
+            ((SlottedPage) page).setLSN(lsn);
+        page.setBeforeImage();
+        page.markDirty(true, dirtier);
+        bp.installPageForRecovery(page);
+    }
+
+    /** Read the long at LSN pos of the log without moving the append position. */
+    private long readLongAt(long pos) throws IOException {
+        byte[] buf = new byte[LONG_SIZE];
+        readAt(pos, buf);
+        return new DataInputStream(new ByteArrayInputStream(buf)).readLong();
+    }
+
+    /** Read and decode the record occupying [start, end) of the log. */
+    private LogRecord readRecordAt(long start, long end) throws IOException {
+        byte[] buf = new byte[(int) (end - start)];
+        readAt(start, buf);
+        return LogRecord.read(new DataInputStream(new ByteArrayInputStream(buf)), start);
+    }
+
+    /** Fill buf from the log starting at LSN pos, which must not cross a
+        segment boundary and must have been written out. */
+    private void readAt(long pos, byte[] buf) throws IOException {
+        long start = segmentOf(pos);
+        if (reader == null || readerStart != start) {
+            if (reader != null)
+                reader.close();
+            reader = new RandomAccessFile(segmentFile(start), "r");
+            readerStart = start;
+        }
+        reader.seek(pos - start);
+        reader.readFully(buf);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write everything back so that the checkpoint leaves nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                synchronized (channelLock) {
+                    if (raf != null)
+                        raf.close();
+                }
+                if (reader != null)
+                    reader.close();
+                control.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,94 +1416,403 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The tables and indexes the log changes must be in the catalog.
+        @throws IOException if the log cannot be read, or changes a table
+          that is not in the catalog
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                tidToFirstLogRecord.clear();
+                dirtyPages.clear();
+                List<Long> segments = listSegments();
+                if (control.length() < 2 * LONG_SIZE || segments.isEmpty()) {
+                    // nothing was ever logged
+                    startEmptyLog();
+                    return;
+                }
+                control.seek(0);
+                checkpointLSN = control.readLong();
+                segmentSize = control.readLong();
+                firstSegmentStart = segments.get(0);
+
+                // analysis
+                Map<Long, Long> active = new HashMap<>();
+                Map<PageId, Long> dpt = new HashMap<>();
+                long end = analyze(checkpointLSN == NO_CHECKPOINT_ID
+                                   ? firstSegmentStart + SEGMENT_HEADER_SIZE
+                                   : checkpointLSN, active, dpt);
+                // fail before changing any page if the log changes a table
+                // that is not in the catalog
+                for (PageId pid : dpt.keySet())
+                    fileOf(pid);
+                // append after the last complete record, zeroing anything a
+                // torn write left behind it
+                long last = segmentOf(end - 1);
+                for (long start : segments)
+                    if (start > last)
+                        segmentFile(start).delete();
+                try (RandomAccessFile f = new RandomAccessFile(segmentFile(last), "rw")) {
+                    f.setLength(end - last);
+                    f.setLength(segmentSize);
+                }
+                synchronized (channelLock) {
+                    openSegment(last);
+                }
+                resetAppendPosition(end);
+
+                redo(dpt, end);
+
+                // undo the losers and mark them aborted
+                tidToFirstLogRecord.putAll(active);
+                // the losers' TransactionIds belong to the crashed run; mark
+                // the pages they touch dirty on behalf of recovery instead
+                undo(active, new TransactionId());
+                for (Long tid : active.keySet()) {
+                    preAppend();
+                    beginRecord(ABORT_RECORD, tid);
+                    endRecord();
+                }
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    /** Scan the log forward from offset from, filling in the transactions
+        that are still active and the dirty page table.
+        @return the offset just past the last complete record
+    */
+    private long analyze(long from, Map<Long, Long> active, Map<PageId, Long> dpt)
+        throws IOException {
+        long end = from;
+        try (LogReader in = reader(from)) {
+            while (in.hasNext()) {
+                LogRecord r = LogRecord.read(in, in.offset());
+                end = in.offset();
+                switch (r.type) {
+                case BEGIN_RECORD:
+                    active.put(r.tid, r.lsn);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    active.remove(r.tid);
+                    break;
+                case CHECKPOINT_RECORD:
+                    active.putAll(r.activeTransactions);
+                    for (Map.Entry<PageId, Long> e : r.dirtyPages.entrySet())
+                        dpt.putIfAbsent(e.getKey(), e.getValue());
+                    break;
+                default:
+                    dpt.putIfAbsent(r.pageId(), r.lsn);
+                }
+            }
+        } catch (IOException e) {
+            // a garbled record at the end of the log; everything before it is good
+        }
+        return end;
+    }
 
-        raf.seek(0);
+    /** @return the file of the table pid belongs to
+        @throws IOException if the table is not in the catalog */
+    static DbFile fileOf(PageId pid) throws IOException {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            throw new IOException("the log changes page " + pid.getPageNumber() + " of table "
+                                  + pid.getTableId() + ", which is not in the catalog");
+        }
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    /** Repeat history for the pages in dpt, using REDO_THREADS workers
+        partitioned by page id, and write the rebuilt pages to disk. */
+    private void redo(Map<PageId, Long> dpt, long end) throws IOException {
+        if (dpt.isEmpty())
+            return;
+        RedoWorker[] workers = RedoWorker.startAll();
+        try (LogReader in = reader(Collections.min(dpt.values()))) {
+            while (in.hasNext() && in.offset() < end) {
+                LogRecord r = LogRecord.read(in, in.offset());
+                if (!r.isPageRecord() && r.type != CLR_RECORD)
+                    continue;
+                Long recLSN = dpt.get(r.pageId());
+                if (recLSN == null || r.lsn < recLSN)
+                    continue;
+                RedoWorker.add(workers, r);
+            }
+        } finally {
+            RedoWorker.finish(workers);
+        }
+        for (PageId pid : dpt.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
 
-        while (true) {
+    /** Redoes the records for one partition of the pages, in log order,
+        then writes those pages back to disk. */
+    static class RedoWorker extends Thread {
+        static final LogRecord DONE = new LogRecord();
+
+        /** Start REDO_THREADS workers. */
+        static RedoWorker[] startAll() {
+            RedoWorker[] workers = new RedoWorker[REDO_THREADS];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new RedoWorker(i);
+                workers[i].start();
+            }
+            return workers;
+        }
+
+        /** Hand r to the worker that owns its page. */
+        static void add(RedoWorker[] workers, LogRecord r) {
+            workers[Math.floorMod(r.pageId().hashCode(), workers.length)].add(r);
+        }
+
+        /** Wait for the workers to redo the records they were given and
+            write their pages. */
+        static void finish(RedoWorker[] workers) throws IOException {
+            for (RedoWorker w : workers)
+                w.add(DONE);
+            IOException error = null;
+            for (RedoWorker w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during redo");
+                }
+                if (w.error != null && error == null)
+                    error = new IOException("redo failed", w.error);
+            }
+            if (error != null)
+                throw error;
+        }
+
+        private final java.util.concurrent.BlockingQueue<LogRecord> queue =
+            new java.util.concurrent.LinkedBlockingQueue<>();
+        private final Map<PageId, Page> pages = new HashMap<>();
+        volatile Throwable error;
+
+        RedoWorker(int n) {
+            super("LogFile-redo-" + n);
+            setDaemon(true);
+        }
+
+        void add(LogRecord r) {
+            queue.add(r);
+        }
+
+        public void run() {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                LogRecord r;
+                while ((r = queue.take()) != DONE) {
+                    if (error == null)
+                        apply(r);
+                }
+                if (error == null)
+                    for (Page p : pages.values())
+                        fileOf(p.getId()).writePage(p);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+        private void apply(LogRecord r) {
+            try {
+                PageId pid = r.pageId();
+                Page page = pages.get(pid);
+                if (page == null) {
+                    page = fileOf(pid).readPage(pid);
+                    pages.put(pid, page);
+                }
+                if (page instanceof SlottedPage && ((SlottedPage) page).getLSN() >= r.lsn)
+                    return; // already redone
+                if (r.delta != null) {
+                    r.delta.redo((SlottedPage) page);
+                } else {
+                    page = r.after.decode();
+                    pages.put(pid, page);
+                }
+                if (page instanceof SlottedPage)
+                    ((SlottedPage) page).setLSN(r.lsn);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
+    /** A decoded log record. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        /** DELTA: the delta; CLR of a DELTA: the inverse delta to redo */
+        PageDelta delta;
+        /** UPDATE: the before image */
+        PageCodec.Image before;
+        /** UPDATE: the after image; CLR of an UPDATE: the image to install */
+        PageCodec.Image after;
+        /** CLR: the offset of the record it compensates */
+        long undoNext;
+        /** COMMIT: the commit time in milliseconds since the epoch */
+        long time;
+        /** CHECKPOINT: active transactions and their first records */
+        Map<Long, Long> activeTransactions;
+        /** CHECKPOINT: the dirty page table */
+        Map<PageId, Long> dirtyPages;
+
+        /** @return true for UPDATE and DELTA records */
+        boolean isPageRecord() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
+
+        /** @return the page an UPDATE, DELTA or CLR record describes */
+        PageId pageId() {
+            return delta != null ? delta.getPageId() : after.getId();
+        }
+
+        /** Read a whole record, including its trailing start offset, which
+            must equal lsn. */
+        static LogRecord read(DataInput in, long lsn) throws IOException {
+            return read(in, lsn, IntUnaryOperator.identity());
+        }
+
+        /** Read a whole record, mapping the table ids of the pages it
+            describes with tableIds. */
+        static LogRecord read(DataInput in, long lsn, IntUnaryOperator tableIds) throws IOException {
+            LogRecord r = new LogRecord();
+            r.lsn = lsn;
+            r.type = in.readUnsignedByte();
+            r.tid = PageCodec.readVarLong(in);
+            switch (r.type) {
+            case ABORT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            case COMMIT_RECORD:
+                r.time = PageCodec.readVarLong(in);
+                break;
+            case UPDATE_RECORD:
+                r.before = PageCodec.readImage(in, tableIds);
+                r.after = PageCodec.readImage(in, tableIds);
+                break;
+            case DELTA_RECORD:
+                r.delta = PageDelta.read(in, tableIds);
+                break;
+            case CLR_RECORD:
+                r.undoNext = PageCodec.readVarLong(in);
+                if (in.readUnsignedByte() == DELTA_RECORD)
+                    r.delta = PageDelta.read(in, tableIds);
+                else
+                    r.after = PageCodec.readImage(in, tableIds);
+                break;
+            case CHECKPOINT_RECORD:
+                r.activeTransactions = new HashMap<>();
+                int n = PageCodec.readVarInt(in);
+                while (n-- > 0)
+                    r.activeTransactions.put(PageCodec.readVarLong(in), PageCodec.readVarLong(in));
+                r.dirtyPages = new HashMap<>();
+                n = PageCodec.readVarInt(in);
+                while (n-- > 0)
+                    r.dirtyPages.put(PageCodec.readPageId(in, tableIds), PageCodec.readVarLong(in));
+                break;
+            default:
+                throw new IOException("unknown record type " + r.type + " at offset " + lsn);
+            }
+            if (in.readLong() != lsn)
+                throw new IOException("bad record trailer at offset " + lsn);
+            return r;
+        }
+    }
+
+    /** Print out a human readable represenation of the log */
+    public synchronized void print() throws IOException {
+        System.out.println("checkpoint record at offset " + checkpointLSN);
+        if (recoveryUndecided)
+            return;
+        awaitDurable(tail.get(), false);
+
+        try (LogReader in = reader(firstSegmentStart + SEGMENT_HEADER_SIZE)) {
+            while (in.hasNext()) {
+                long start = in.offset();
+                int cpType = in.read();
+                long cpTid = PageCodec.readVarLong(in);
+
+                System.out.println(start + ": RECORD TYPE " + cpType);
+                System.out.println((start + 1) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.offset() + ": TIME: " + PageCodec.readVarLong(in));
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = PageCodec.readVarInt(in);
+                    System.out.println(in.offset() + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = PageCodec.readVarLong(in);
+                        long firstRecord = PageCodec.readVarLong(in);
+                        System.out.println(in.offset() + ": TID: " + tid + " FIRST LOG RECORD: " + firstRecord);
+                    }
+                    int numDirty = PageCodec.readVarInt(in);
+                    System.out.println(in.offset() + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        PageId pid = PageCodec.readPageId(in);
+                        long recLSN = PageCodec.readVarLong(in);
+                        System.out.println(in.offset() + ": PAGE: " + pid.getTableId() + ":" + pid.getPageNumber()
+                                           + " RECLSN: " + recLSN);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    long beforeStart = in.offset();
+                    Page before = PageCodec.readPage(in);
+                    long afterStart = in.offset();
+                    Page after = PageCodec.readPage(in);
 
+                    System.out.println(beforeStart + ": before image table id " + before.getId().getTableId()
+                                       + " page number " + before.getId().getPageNumber());
+                    System.out.println(afterStart + ": after image table id " + after.getId().getTableId()
+                                       + " page number " + after.getId().getPageNumber());
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+
+                    long deltaStart = in.offset();
+                    PageDelta d = PageDelta.read(in);
+                    System.out.println(deltaStart + ": delta table id " + d.getPageId().getTableId()
+                                       + " page number " + d.getPageId().getPageNumber()
+                                       + " operations " + d.getOps().size());
+                    break;
+                case CLR_RECORD:
+                    System.out.println(" (CLR)");
+                    System.out.println(in.offset() + ": UNDO NEXT: " + PageCodec.readVarLong(in));
+                    if (in.readUnsignedByte() == DELTA_RECORD)
+                        PageDelta.read(in);
+                    else
+                        PageCodec.readPage(in);
                     break;
                 }
-
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
+                System.out.println(in.offset() + ": RECORD START OFFSET: " + in.readLong());
             }
+        } catch (EOFException e) {
+            // a partially written record at the end of the log
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Wait until everything appended so far is on disk. */
+    public void force() throws IOException {
+        awaitDurable(tail.get(), false);
     }
 
 }
@@ -0,0 +1,239 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * LogShipper copies the write-ahead log of a primary database, as it
+ * reaches disk, into a shipping directory that a {@link Standby} reads.
+ * The directory can be on the same host or on a shared file system.
+ * <p>
+ * The directory holds:
+ * <ul>
+ * <li> copies of the log segments, named like the segments of a log file
+ *      called <tt>log</tt> in that directory; each one grows until it is
+ *      full, and holds the same bytes at the same offsets as the
+ *      segment it copies,
+ * <li> <tt>shipped</tt>: the segment size and the LSN up to which the
+ *      segments are complete, replaced atomically after the segment bytes
+ *      are on disk,
+ * <li> <tt>start</tt>: the {@link ChangeStream.Cursor} a standby starts
+ *      from when it has no state of its own,
+ * <li> <tt>tables</tt>: the id and name of each table of the primary, one
+ *      per line, so that a standby can find its copy of a table by name.
+ * </ul>
+ * Shipping starts at the first record of the oldest transaction running
+ * when the shipper is created; the transactions that committed before
+ * that are not shipped and must already be in the standby's copy of the
+ * tables (take the copy while the primary is idle, after
+ * {@link BufferPool#flushAllPages}).  The log keeps the segments that have
+ * not been shipped yet.
+ */
+public class LogShipper implements Closeable {
+
+    static final String LOG_NAME = "log";
+    static final String SHIPPED_NAME = "shipped";
+    static final String START_NAME = "start";
+    static final String TABLES_NAME = "tables";
+
+    private final LogFile log;
+    private final File dir;
+    private final long startLSN; // the first LSN shipped
+    private long shipped; // the log before this is in dir; protected by this
+    private long bytesShipped = 0; //protected by this
+    private int tableCount = -1; // tables in the last manifest written; protected by this
+    private volatile boolean closed = false;
+    private Thread thread = null; //protected by this
+
+    /**
+     * Create a shipper for the log of a running database.
+     *
+     * @param log the primary's log
+     * @param dir the shipping directory; it must not hold the log of
+     *   another primary
+     */
+    public LogShipper(LogFile log, File dir) throws IOException {
+        this.log = log;
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create shipping directory " + dir);
+        log.ensureStarted();
+        log.retain(this, 0); // nothing is truncated while we look for the start
+        long restart = log.oldestActiveLSN();
+        log.retain(this, restart);
+        shipped = startLSN = log.segmentOf(restart);
+        new ChangeStream.Cursor(restart, log.endOfLog()).save(new File(dir, START_NAME));
+        ship();
+    }
+
+    /**
+     * Copy the log that has reached disk since the last call into the
+     * shipping directory.
+     *
+     * @return the number of bytes copied
+     */
+    public synchronized long ship() throws IOException {
+        if (closed)
+            throw new IllegalStateException("shipper is closed");
+        writeTables();
+        long durable = log.durableEnd();
+        long from = shipped;
+        while (shipped < durable) {
+            long start = log.segmentOf(shipped);
+            long end = Math.min(durable, start + log.segmentSize);
+            copy(start, shipped - start, end - shipped);
+            shipped = end;
+        }
+        if (shipped == from)
+            return 0;
+        writeShipped();
+        bytesShipped += shipped - from;
+        log.retain(this, shipped);
+        return shipped - from;
+    }
+
+    /** Copy len bytes at offset of the segment that starts at start,
+        and force the copy to disk. */
+    private void copy(long start, long offset, long len) throws IOException {
+        File to = LogFile.segmentFile(new File(dir, LOG_NAME), start);
+        try (FileChannel in = FileChannel.open(log.segmentFile(start).toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.WRITE,
+                                                StandardOpenOption.CREATE)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(len, 1 << 16));
+            long done = 0;
+            while (done < len) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), len - done));
+                int n = in.read(buf, offset + done);
+                if (n < 0)
+                    throw new EOFException("log segment " + start + " is shorter than the durable log");
+                buf.flip();
+                while (buf.hasRemaining())
+                    out.write(buf, offset + done + buf.position());
+                done += n;
+            }
+            out.force(false);
+        }
+    }
+
+    private void writeShipped() throws IOException {
+        File f = new File(dir, SHIPPED_NAME);
+        File tmp = new File(dir, SHIPPED_NAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeLong(log.segmentSize);
+            dos.writeLong(shipped);
+            dos.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Read the marker written by a shipper into dir.
+        @return the segment size and the LSN up to which the log is
+          shipped, or null if nothing has been shipped */
+    static long[] readShipped(File dir) throws IOException {
+        File f = new File(dir, SHIPPED_NAME);
+        if (!f.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return new long[] { in.readLong(), in.readLong() };
+        }
+    }
+
+    /** Rewrite the table manifest if tables were added since it was written. */
+    private void writeTables() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext(); n++) {
+            int id = it.next();
+            sb.append(id).append(' ').append(catalog.getTableName(id)).append('\n');
+        }
+        if (n == tableCount)
+            return;
+        File tmp = new File(dir, TABLES_NAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, TABLES_NAME).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tableCount = n;
+    }
+
+    /**
+     * Ship the log every intervalMillis milliseconds from a background
+     * thread until close is called.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (thread != null)
+            return;
+        thread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    ship();
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IllegalStateException e) {
+                    break; // closed
+                } catch (IOException e) {
+                    System.err.println("log shipping failed");
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }, "LogShipper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return the LSN at which the shipped log starts */
+    public long getStartLSN() {
+        return startLSN;
+    }
+
+    /** @return the LSN up to which the log has been shipped */
+    public synchronized long getShippedLSN() {
+        return shipped;
+    }
+
+    /** @return the number of bytes of log on disk at the primary that
+        are not shipped yet */
+    public synchronized long getLagBytes() {
+        return Math.max(0, log.durableEnd() - shipped);
+    }
+
+    /** @return the number of bytes shipped since the shipper was created */
+    public synchronized long getBytesShipped() {
+        return bytesShipped;
+    }
+
+    /** Stop shipping; the log no longer keeps segments for the standby. */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.release(this);
+    }
+}
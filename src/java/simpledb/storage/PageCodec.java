@@ -0,0 +1,263 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * PageCodec encodes page ids and page images in the compact binary form used
+ * by the log.
+ * <p>
+ * A page id is written as a one byte type tag, the number of integers
+ * returned by {@link PageId#serialize()}, and each of those integers as a
+ * zig-zag varint.  A page image is its page id followed by a varint length
+ * and the raw page bytes, then a varint length and whatever else the
+ * factory of the page type needs to rebuild the page (see
+ * {@link Factory#describe}), e.g. the key of a B+ tree.  Decoding goes through
+ * a {@link Factory} registered for the tag, so no class names are stored and
+ * no reflection is needed.  HeapPage is registered here; each other page type
+ * registers its factory from its own package with {@link #register} (see
+ * simpledb.index.IndexPageCodecs), so decoding a page never looks up the
+ * file it belongs to.  The log reads page images as {@link Image}s and
+ * decodes them only when it applies them.
+ */
+public class PageCodec {
+
+    /** Builds page ids and pages of one registered page type from their logged form. */
+    public interface Factory {
+        /** Rebuild a page id from the integers returned by PageId.serialize(). */
+        PageId decodeId(int[] data);
+
+        /**
+         * @return what decodePage needs to rebuild p besides its id and its
+         *   data, logged with the image; nothing by default
+         */
+        default byte[] describe(Page p) throws IOException {
+            return new byte[0];
+        }
+
+        /** Rebuild a page from its id, the bytes returned by Page.getPageData()
+            and the description returned by describe(). */
+        Page decodePage(PageId pid, byte[] data, byte[] description) throws IOException;
+    }
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_PAGE = 2;
+    public static final int HASH_PAGE = 3;
+    public static final int LSM_PAGE = 4;
+
+    private static final Map<Integer, Factory> factories = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Integer> tags = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPageId.class, new Factory() {
+            public PageId decodeId(int[] data) {
+                return new HeapPageId(data[0], data[1]);
+            }
+
+            public Page decodePage(PageId pid, byte[] data, byte[] description) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+    }
+
+    /**
+     * Register a page type.
+     *
+     * @param tag the tag written for page ids of this type; must fit in a byte
+     * @param idClass the PageId implementation this factory decodes
+     * @param factory builds page ids and pages of this type
+     */
+    public static void register(int tag, Class<? extends PageId> idClass, Factory factory) {
+        if (tag <= 0 || tag > 0xff)
+            throw new IllegalArgumentException("page type tag out of range: " + tag);
+        Factory prev = factories.putIfAbsent(tag, factory);
+        if (prev != null && prev != factory)
+            throw new IllegalArgumentException("page type tag " + tag + " already registered");
+        tags.put(idClass, tag);
+    }
+
+    static int tagOf(PageId pid) {
+        Integer tag = tags.get(pid.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("no page codec registered for " + pid.getClass().getName());
+        return tag;
+    }
+
+    private static Factory factoryFor(int tag) throws IOException {
+        Factory factory = factories.get(tag);
+        if (factory == null)
+            throw new IOException("unknown page type tag " + tag + " in log");
+        return factory;
+    }
+
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] data = pid.serialize();
+        out.writeByte(tagOf(pid));
+        writeVarInt(out, data.length);
+        for (int d : data)
+            writeSignedVarInt(out, d);
+    }
+
+    public static PageId readPageId(DataInput in) throws IOException {
+        return readPageId(in, IntUnaryOperator.identity());
+    }
+
+    /**
+     * Read a page id, replacing its table id (the first integer of its
+     * serialized form) with tableIds.applyAsInt(table id).  This lets a log
+     * written for tables at one set of paths be applied to copies of them
+     * at another.
+     */
+    public static PageId readPageId(DataInput in, IntUnaryOperator tableIds) throws IOException {
+        Factory factory = factoryFor(in.readUnsignedByte());
+        return factory.decodeId(readIdData(in, tableIds));
+    }
+
+    private static int[] readIdData(DataInput in, IntUnaryOperator tableIds) throws IOException {
+        int[] data = new int[readVarInt(in)];
+        for (int i = 0; i < data.length; i++)
+            data[i] = readSignedVarInt(in);
+        if (data.length > 0)
+            data[0] = tableIds.applyAsInt(data[0]);
+        return data;
+    }
+
+    /** Write the id and contents of page p. */
+    public static void writePage(DataOutput out, Page p) throws IOException {
+        PageId pid = p.getId();
+        writePageId(out, pid);
+        byte[] data = p.getPageData();
+        writeVarInt(out, data.length);
+        out.write(data);
+        byte[] description = factoryFor(tagOf(pid)).describe(p);
+        writeVarInt(out, description.length);
+        out.write(description);
+    }
+
+    /** Read a page written by {@link #writePage}. */
+    public static Page readPage(DataInput in) throws IOException {
+        return readPage(in, IntUnaryOperator.identity());
+    }
+
+    /** Read a page written by {@link #writePage}, mapping its table id
+        as {@link #readPageId(DataInput, IntUnaryOperator)} does. */
+    public static Page readPage(DataInput in, IntUnaryOperator tableIds) throws IOException {
+        return readImage(in, tableIds).decode();
+    }
+
+    /** Read a page written by {@link #writePage} without decoding it,
+        mapping its table id as {@link #readPageId(DataInput, IntUnaryOperator)} does. */
+    public static Image readImage(DataInput in, IntUnaryOperator tableIds) throws IOException {
+        Factory factory = factoryFor(in.readUnsignedByte());
+        PageId pid = factory.decodeId(readIdData(in, tableIds));
+        byte[] data = new byte[readVarInt(in)];
+        in.readFully(data);
+        byte[] description = new byte[readVarInt(in)];
+        in.readFully(description);
+        return new Image(factory, pid, data, description);
+    }
+
+    /**
+     * A page image read from the log, decoded only when it is needed.  A
+     * HeapPage looks up the schema of its table when it is decoded, so a
+     * log can be read as far as page ids even when it holds pages of
+     * tables that are not in the catalog.
+     */
+    public static class Image {
+        private final Factory factory;
+        private final PageId pid;
+        private final byte[] data;
+        private final byte[] description;
+
+        Image(Factory factory, PageId pid, byte[] data, byte[] description) {
+            this.factory = factory;
+            this.pid = pid;
+            this.data = data;
+            this.description = description;
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        /**
+         * @return a new page with the logged contents
+         * @throws IOException if the page cannot be rebuilt, e.g. because its
+         *   table is not in the catalog
+         */
+        public Page decode() throws IOException {
+            try {
+                return factory.decodePage(pid, data, description);
+            } catch (NoSuchElementException e) {
+                throw new IOException("cannot decode page " + pid.getPageNumber() + " of table "
+                                      + pid.getTableId() + ", which is not in the catalog", e);
+            }
+        }
+    }
+
+    /** Copy a page written by {@link #writePage} from in to out without decoding it. */
+    public static void copyPage(DataInput in, DataOutput out) throws IOException {
+        writePageId(out, readPageId(in));
+        for (int i = 0; i < 2; i++) {
+            // the page data, then its description
+            byte[] data = new byte[readVarInt(in)];
+            in.readFully(data);
+            writeVarInt(out, data.length);
+            out.write(data);
+        }
+    }
+
+    // varint helpers: 7 bits per byte, low bits first, high bit set on all
+    // but the last byte. Signed values are zig-zag encoded first so that
+    // small negative numbers stay short.
+
+    public static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("malformed varint in log");
+    }
+
+    public static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("malformed varlong in log");
+    }
+
+    public static void writeSignedVarInt(DataOutput out, int v) throws IOException {
+        writeVarInt(out, (v << 1) ^ (v >> 31));
+    }
+
+    public static int readSignedVarInt(DataInput in) throws IOException {
+        int v = readVarInt(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,309 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * PageDelta describes the change between two versions of a SlottedPage as a
+ * list of slot-level operations: a slot was filled (INSERT), emptied
+ * (DELETE), had some of its bytes changed (UPDATE), or the page state
+ * outside the slots changed (STATE).  Each operation carries both the old
+ * and the new values it touches, so a delta can be redone on the before
+ * version of the page and undone on the after version.
+ * <p>
+ * A delta is written to the log as the page id (see
+ * {@link PageCodec#writePageId}), a varint operation count and the
+ * operations; an UPDATE only stores the range of bytes that differ,
+ * except on pages whose slots hold tuples (see
+ * {@link SlottedPage#holdsTuples}), where it stores the whole slot.
+ *
+ * @see SlottedPage
+ * @see LogFile
+ */
+public class PageDelta {
+
+    public static final int INSERT = 1;
+    public static final int DELETE = 2;
+    public static final int UPDATE = 3;
+    public static final int STATE = 4;
+
+    /** One slot-level change. */
+    public static class Op {
+        final int kind;
+        final int slot;
+        final int offset;
+        final byte[] oldData;
+        final byte[] newData;
+
+        Op(int kind, int slot, int offset, byte[] oldData, byte[] newData) {
+            this.kind = kind;
+            this.slot = slot;
+            this.offset = offset;
+            this.oldData = oldData;
+            this.newData = newData;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        /** @return the bytes of the slot (or page state) before the change */
+        public byte[] getOldData() {
+            return oldData;
+        }
+
+        /** @return the bytes of the slot (or page state) after the change */
+        public byte[] getNewData() {
+            return newData;
+        }
+
+        /** @return the position in the slot of an UPDATE's bytes */
+        public int getOffset() {
+            return offset;
+        }
+
+        void redo(SlottedPage p) {
+            switch (kind) {
+            case INSERT:
+                p.putSlot(slot, newData);
+                break;
+            case DELETE:
+                p.clearSlot(slot);
+                break;
+            case UPDATE:
+                // during restart the page may already reflect a later
+                // delete of this slot, which will be redone as well
+                if (p.isSlotUsed(slot))
+                    p.putSlot(slot, patch(p.getSlot(slot), newData));
+                break;
+            case STATE:
+                p.setPageState(newData);
+                break;
+            }
+        }
+
+        void undo(SlottedPage p) {
+            switch (kind) {
+            case INSERT:
+                p.clearSlot(slot);
+                break;
+            case DELETE:
+                p.putSlot(slot, oldData);
+                break;
+            case UPDATE:
+                if (p.isSlotUsed(slot))
+                    p.putSlot(slot, patch(p.getSlot(slot), oldData));
+                break;
+            case STATE:
+                p.setPageState(oldData);
+                break;
+            }
+        }
+
+        Op inverse() {
+            switch (kind) {
+            case INSERT:
+                return new Op(DELETE, slot, 0, newData, null);
+            case DELETE:
+                return new Op(INSERT, slot, 0, null, oldData);
+            default:
+                return new Op(kind, slot, offset, newData, oldData);
+            }
+        }
+
+        private byte[] patch(byte[] slotData, byte[] bytes) {
+            System.arraycopy(bytes, 0, slotData, offset, bytes.length);
+            return slotData;
+        }
+    }
+
+    private final PageId pid;
+    private final List<Op> ops;
+
+    private PageDelta(PageId pid, List<Op> ops) {
+        this.pid = pid;
+        this.ops = ops;
+    }
+
+    /**
+     * Compute the delta that turns before into after.
+     *
+     * @param before the page as it was when the changes started
+     * @param after the same page with the changes applied
+     */
+    public static PageDelta diff(SlottedPage before, SlottedPage after) {
+        if (!before.getId().equals(after.getId()))
+            throw new IllegalArgumentException("cannot diff different pages");
+        List<Op> ops = new ArrayList<>();
+        byte[] oldState = before.getPageState();
+        byte[] newState = after.getPageState();
+        if (!Arrays.equals(oldState, newState))
+            ops.add(new Op(STATE, 0, 0, oldState, newState));
+
+        int slots = after.getSlotCount();
+        for (int i = 0; i < slots; i++) {
+            boolean wasUsed = before.isSlotUsed(i);
+            boolean isUsed = after.isSlotUsed(i);
+            if (!wasUsed && isUsed) {
+                ops.add(new Op(INSERT, i, 0, null, after.getSlot(i)));
+            } else if (wasUsed && !isUsed) {
+                ops.add(new Op(DELETE, i, 0, before.getSlot(i), null));
+            } else if (wasUsed) {
+                byte[] oldData = before.getSlot(i);
+                byte[] newData = after.getSlot(i);
+                int first = 0;
+                while (first < newData.length && oldData[first] == newData[first])
+                    first++;
+                if (first == newData.length)
+                    continue;
+                int last = newData.length - 1;
+                if (after.holdsTuples())
+                    first = 0;
+                else
+                    while (oldData[last] == newData[last])
+                        last--;
+                ops.add(new Op(UPDATE, i, first,
+                        Arrays.copyOfRange(oldData, first, last + 1),
+                        Arrays.copyOfRange(newData, first, last + 1)));
+            }
+        }
+        return new PageDelta(after.getId(), ops);
+    }
+
+    /**
+     * The delta of a change to a single slot of a page that holds tuples.
+     *
+     * @param oldData the slot's bytes before the change, or null if it was empty
+     * @param newData the slot's bytes after the change, or null if it is empty
+     */
+    public static PageDelta ofSlot(PageId pid, int slot, byte[] oldData, byte[] newData) {
+        List<Op> ops = new ArrayList<>(1);
+        if (oldData == null && newData != null)
+            ops.add(new Op(INSERT, slot, 0, null, newData));
+        else if (oldData != null && newData == null)
+            ops.add(new Op(DELETE, slot, 0, oldData, null));
+        else if (oldData != null && !Arrays.equals(oldData, newData))
+            ops.add(new Op(UPDATE, slot, 0, oldData, newData));
+        return new PageDelta(pid, ops);
+    }
+
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the operations of this delta, in the order they are redone */
+    public List<Op> getOps() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    /** Apply this delta to the before version of its page. */
+    public void redo(SlottedPage p) {
+        for (Op op : ops)
+            op.redo(p);
+    }
+
+    /** Reverse this delta on the after version of its page. */
+    public void undo(SlottedPage p) {
+        for (int i = ops.size() - 1; i >= 0; i--)
+            ops.get(i).undo(p);
+    }
+
+    /**
+     * @return the delta that reverses this one; redoing it has the same
+     *   effect as undoing this delta
+     */
+    public PageDelta inverse() {
+        List<Op> inv = new ArrayList<>(ops.size());
+        for (int i = ops.size() - 1; i >= 0; i--)
+            inv.add(ops.get(i).inverse());
+        return new PageDelta(pid, inv);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        PageCodec.writePageId(out, pid);
+        PageCodec.writeVarInt(out, ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.kind);
+            PageCodec.writeVarInt(out, op.slot);
+            switch (op.kind) {
+            case INSERT:
+                writeBytes(out, op.newData);
+                break;
+            case DELETE:
+                writeBytes(out, op.oldData);
+                break;
+            case UPDATE:
+                PageCodec.writeVarInt(out, op.offset);
+                PageCodec.writeVarInt(out, op.newData.length);
+                out.write(op.oldData);
+                out.write(op.newData);
+                break;
+            case STATE:
+                writeBytes(out, op.oldData);
+                writeBytes(out, op.newData);
+                break;
+            }
+        }
+    }
+
+    public static PageDelta read(DataInput in) throws IOException {
+        return read(in, IntUnaryOperator.identity());
+    }
+
+    /** Read a delta, mapping the table id of its page with tableIds (see
+        {@link PageCodec#readPageId(DataInput, IntUnaryOperator)}). */
+    public static PageDelta read(DataInput in, IntUnaryOperator tableIds) throws IOException {
+        PageId pid = PageCodec.readPageId(in, tableIds);
+        int n = PageCodec.readVarInt(in);
+        List<Op> ops = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int kind = in.readUnsignedByte();
+            int slot = PageCodec.readVarInt(in);
+            switch (kind) {
+            case INSERT:
+                ops.add(new Op(kind, slot, 0, null, readBytes(in)));
+                break;
+            case DELETE:
+                ops.add(new Op(kind, slot, 0, readBytes(in), null));
+                break;
+            case UPDATE:
+                int offset = PageCodec.readVarInt(in);
+                byte[] oldData = new byte[PageCodec.readVarInt(in)];
+                byte[] newData = new byte[oldData.length];
+                in.readFully(oldData);
+                in.readFully(newData);
+                ops.add(new Op(kind, slot, offset, oldData, newData));
+                break;
+            case STATE:
+                ops.add(new Op(kind, slot, 0, readBytes(in), readBytes(in)));
+                break;
+            default:
+                throw new IOException("unknown page delta operation " + kind + " in log");
+            }
+        }
+        return new PageDelta(pid, ops);
+    }
+
+    private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        PageCodec.writeVarInt(out, b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] b = new byte[PageCodec.readVarInt(in)];
+        in.readFully(b);
+        return b;
+    }
+}
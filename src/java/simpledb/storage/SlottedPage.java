@@ -0,0 +1,58 @@
+package simpledb.storage;
+
+/**
+ * SlottedPage is implemented by pages that consist of a fixed number of
+ * fixed-size slots plus a small amount of page-level state (parent and
+ * sibling pointers, for example).  It lets the log describe a change to a
+ * page as the slots that were filled, emptied or modified instead of as
+ * whole before and after images, and gives recovery the functions it needs
+ * to redo and undo those changes.
+ * <p>
+ * The slot and page state encodings are private to each page type; the
+ * log only stores them and hands them back to the same page type.
+ *
+ * @see PageDelta
+ */
+public interface SlottedPage extends Page {
+
+    /** @return the number of slots on this page */
+    int getSlotCount();
+
+    /** @return true if slot i holds a tuple or entry */
+    boolean isSlotUsed(int i);
+
+    /** @return the serialized contents of the used slot i */
+    byte[] getSlot(int i);
+
+    /**
+     * Store data (as returned by getSlot) in slot i and mark the slot used.
+     * Used to redo an insert and to undo a delete.
+     */
+    void putSlot(int i, byte[] data);
+
+    /**
+     * Mark slot i unused.  Used to redo a delete and to undo an insert.
+     */
+    void clearSlot(int i);
+
+    /** @return the serialized page-level state that is not part of any slot */
+    byte[] getPageState();
+
+    /** Restore page-level state returned by getPageState. */
+    void setPageState(byte[] state);
+
+    /**
+     * @return true if every used slot holds one tuple, serialized as its
+     *   fields.  A change to such a slot is logged with the whole old and
+     *   new slot, so the log can be read back as row changes.
+     */
+    default boolean holdsTuples() {
+        return false;
+    }
+
+    /** @return the LSN of the last log record that describes this page, or 0 */
+    long getLSN();
+
+    /** Record that the log record at lsn is the latest one describing this page. */
+    void setLSN(long lsn);
+}
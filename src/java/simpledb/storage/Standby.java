@@ -0,0 +1,329 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Standby keeps copies of the tables of a primary database up to date by
+ * reading the log that a {@link LogShipper} copies into a shipping
+ * directory, so that it can serve read-only queries and take over after a
+ * failure of the primary without replaying the log from scratch.
+ * <p>
+ * The standby reads the shipped log like {@link ChangeStream} does: the
+ * page records of each transaction are held back until its COMMIT record
+ * is read, and are then redone with the workers recovery uses, one
+ * committed transaction after another, writing the pages to the standby's
+ * table files and dropping them from its BufferPool.  Transactions that
+ * abort are never applied, so queries against the standby see committed
+ * transactions only.  This relies on the primary holding its page locks
+ * until commit, so that no two transactions in flight change the same
+ * page.  Each committed transaction is applied page by page; a query that
+ * reads during the apply may see some of its pages and not others.
+ * <p>
+ * The tables of the primary are found in the standby's Catalog by name
+ * (see the <tt>tables</tt> manifest of LogShipper), or through an explicit
+ * mapping of table ids; the copies are marked read-only in the Catalog.
+ * Their contents must match the tables of the primary at the start of the
+ * shipped log.  The position of the standby is saved after each apply in
+ * a state file, from which it resumes after a restart; shipped segments
+ * that lie entirely before that position are deleted.
+ */
+public class Standby implements Closeable {
+
+    private final File dir;
+    private final File stateFile;
+    private final IntUnaryOperator tableIds;
+    private long position; // LSN of the next record to read; protected by this
+    private long committedLSN; // transactions that committed at or before this are applied; protected by this
+    // transactions that have not finished yet: their first record and page records
+    private final Map<Long, Long> firstLSN = new HashMap<>();
+    private final Map<Long, List<LogFile.LogRecord>> pending = new HashMap<>();
+
+    // statistics
+    private volatile long receivedLSN = -1;
+    private volatile long lagSince = 0; // when the standby last fell behind, or 0 if caught up
+    private long appliedRecords = 0; //protected by this
+    private long appliedTransactions = 0; //protected by this
+    private long applyNanos = 0; //protected by this
+
+    private volatile boolean closed = false;
+    private Thread thread = null; //protected by this
+
+    /**
+     * Create a standby for the tables of the Catalog whose names match the
+     * tables of the primary.
+     *
+     * @param dir the shipping directory a LogShipper writes to
+     * @param stateFile where the standby keeps its position; if it does
+     *   not exist, the standby starts at the start of the shipped log
+     */
+    public Standby(File dir, File stateFile) throws IOException {
+        this(dir, stateFile, byName(dir, Database.getCatalog()));
+    }
+
+    /**
+     * Create a standby with an explicit mapping of table ids.
+     *
+     * @param dir the shipping directory a LogShipper writes to
+     * @param stateFile where the standby keeps its position
+     * @param tableIds maps the id of a table of the primary to the id of
+     *   its copy in this database; every table the primary changes must
+     *   have a copy
+     */
+    public Standby(File dir, File stateFile, IntUnaryOperator tableIds) throws IOException {
+        this.dir = dir;
+        this.stateFile = stateFile;
+        this.tableIds = id -> {
+            int local = tableIds.applyAsInt(id);
+            Database.getCatalog().setReadOnly(local, true);
+            return local;
+        };
+        ChangeStream.Cursor c = ChangeStream.Cursor.load(
+            stateFile.exists() ? stateFile : new File(dir, LogShipper.START_NAME));
+        position = c.getRestartLSN();
+        committedLSN = c.getCommittedLSN();
+    }
+
+    /**
+     * @return a mapping from the table ids of the primary, read from the
+     *   manifest in dir, to the ids of the tables with the same names in
+     *   catalog.  It throws NoSuchElementException for a table that has no
+     *   copy.
+     */
+    public static IntUnaryOperator byName(File dir, Catalog catalog) {
+        Map<Integer, Integer> ids = new HashMap<>();
+        return primaryId -> {
+            synchronized (ids) {
+                Integer id = ids.get(primaryId);
+                if (id == null) {
+                    // the table may be new; read the manifest again
+                    readManifest(dir, catalog, ids);
+                    id = ids.get(primaryId);
+                    if (id == null)
+                        throw new NoSuchElementException("table " + primaryId + " of the primary has no copy");
+                }
+                return id;
+            }
+        };
+    }
+
+    private static void readManifest(File dir, Catalog catalog, Map<Integer, Integer> ids) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                 new FileInputStream(new File(dir, LogShipper.TABLES_NAME)), "UTF-8"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int sp = line.indexOf(' ');
+                String name = line.substring(sp + 1);
+                try {
+                    ids.put(Integer.parseInt(line.substring(0, sp)), catalog.getTableId(name));
+                } catch (NoSuchElementException e) {
+                    // not copied to this database
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Apply the transactions that committed in the log shipped so far.
+     *
+     * @return the number of transactions applied
+     */
+    public synchronized int catchUp() throws IOException {
+        if (closed)
+            throw new IllegalStateException("standby is closed");
+        long[] shipped = LogShipper.readShipped(dir);
+        if (shipped == null)
+            return 0;
+        long segmentSize = shipped[0];
+        long limit = shipped[1];
+        receivedLSN = limit;
+        if (position >= limit) {
+            lagSince = 0;
+            return 0;
+        }
+        if (lagSince == 0)
+            lagSince = System.currentTimeMillis();
+
+        long started = System.nanoTime();
+        List<List<LogFile.LogRecord>> committed = new ArrayList<>();
+        try (LogFile.LogReader in = new LogFile.LogReader(
+                 new File(dir, LogShipper.LOG_NAME), segmentSize, position)) {
+            while (in.hasNext() && in.offset() < limit) {
+                long lsn = in.offset();
+                LogFile.LogRecord r = LogFile.LogRecord.read(in, lsn, tableIds);
+                position = in.offset();
+                switch (r.type) {
+                case LogFile.BEGIN_RECORD:
+                    firstLSN.put(r.tid, lsn);
+                    pending.put(r.tid, new ArrayList<>());
+                    break;
+                case LogFile.UPDATE_RECORD:
+                case LogFile.DELTA_RECORD:
+                    List<LogFile.LogRecord> records = pending.get(r.tid);
+                    if (records != null)
+                        records.add(r);
+                    break;
+                case LogFile.COMMIT_RECORD:
+                    firstLSN.remove(r.tid);
+                    records = pending.remove(r.tid);
+                    if (lsn > committedLSN) {
+                        if (records != null)
+                            committed.add(records);
+                        committedLSN = lsn;
+                    }
+                    break;
+                case LogFile.ABORT_RECORD:
+                    firstLSN.remove(r.tid);
+                    pending.remove(r.tid);
+                    break;
+                default:
+                    // CLRs only belong to transactions that end with an
+                    // ABORT; checkpoints carry no changes
+                }
+            }
+        }
+        apply(committed);
+
+        long restart = position;
+        for (long lsn : firstLSN.values())
+            restart = Math.min(restart, lsn);
+        new ChangeStream.Cursor(restart, committedLSN).save(stateFile);
+        deleteSegmentsBefore(restart - restart % segmentSize);
+        applyNanos += System.nanoTime() - started;
+        appliedTransactions += committed.size();
+        if (position >= limit)
+            lagSince = 0;
+        return committed.size();
+    }
+
+    /** Redo the records of the committed transactions, in commit order. */
+    private void apply(List<List<LogFile.LogRecord>> committed) throws IOException {
+        if (committed.isEmpty())
+            return;
+        Set<PageId> touched = new HashSet<>();
+        LogFile.RedoWorker[] workers = LogFile.RedoWorker.startAll();
+        try {
+            for (List<LogFile.LogRecord> records : committed) {
+                for (LogFile.LogRecord r : records) {
+                    LogFile.RedoWorker.add(workers, r);
+                    touched.add(r.pageId());
+                    appliedRecords++;
+                }
+            }
+        } finally {
+            LogFile.RedoWorker.finish(workers);
+        }
+        for (PageId pid : touched)
+            Database.getBufferPool().discardPage(pid);
+    }
+
+    /** Delete the shipped segments that start before lsn; the standby
+        will not read them again. */
+    private void deleteSegmentsBefore(long lsn) {
+        String prefix = LogShipper.LOG_NAME + ".";
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || name.length() != prefix.length() + 16)
+                continue;
+            try {
+                if (Long.parseUnsignedLong(name.substring(prefix.length()), 16) < lsn)
+                    f.delete();
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+    }
+
+    /**
+     * Apply newly shipped log every intervalMillis milliseconds from a
+     * background thread until close is called.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (thread != null)
+            return;
+        thread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    catchUp();
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IllegalStateException e) {
+                    break; // closed
+                } catch (IOException e) {
+                    System.err.println("standby apply failed");
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }, "Standby");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return the LSN up to which the shipped log has been read and its
+        committed transactions applied */
+    public synchronized long getAppliedLSN() {
+        return position;
+    }
+
+    /** @return the LSN up to which the log had been shipped when the
+        standby last looked */
+    public long getReceivedLSN() {
+        return receivedLSN;
+    }
+
+    /** @return the number of bytes of shipped log not applied yet */
+    public synchronized long getLagBytes() {
+        return Math.max(0, receivedLSN - position);
+    }
+
+    /** @return how long the standby has been behind the shipped log, in
+        milliseconds, or 0 if it has applied all of it */
+    public long getLagMillis() {
+        long since = lagSince;
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    /** @return the number of page records applied */
+    public synchronized long getAppliedRecords() {
+        return appliedRecords;
+    }
+
+    /** @return the number of committed transactions applied */
+    public synchronized long getAppliedTransactions() {
+        return appliedTransactions;
+    }
+
+    /** @return the page records applied per second of time spent reading
+        and applying the log */
+    public synchronized double getApplyRate() {
+        return applyNanos == 0 ? 0 : appliedRecords * 1e9 / applyNanos;
+    }
+
+    /** Stop applying the shipped log. */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
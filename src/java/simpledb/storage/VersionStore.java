@@ -0,0 +1,244 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * VersionStore keeps the older versions of tuples that read-only
+ * transactions need to read a consistent snapshot without taking locks.
+ * <p>
+ * Pages only ever hold the newest version of each tuple.  Before a
+ * transaction changes a slot of a HeapPage, the slot's previous contents
+ * are pushed onto an undo chain for the slot's RecordId, tagged with the
+ * writing transaction.  When a transaction commits it gets a commit
+ * timestamp from a logical clock; a read-only transaction takes the
+ * current value of the clock as its snapshot when it starts.  A reader
+ * sees the version written by the newest writer that committed at or
+ * before its snapshot: it starts at the slot's contents on the page and
+ * walks down the chain past the versions of writers that are still
+ * running, aborted, or committed after its snapshot.
+ * <p>
+ * A slot and its chain are only changed under the page's latch (see
+ * BufferPool#getPageForTuples), so readers that hold the latch see them
+ * consistently.  Chains are immutable once built; garbage collection
+ * replaces a chain with a shorter copy.  A version is garbage once its
+ * writer committed at or before the oldest running snapshot, since every
+ * reader stops there or earlier, or once its writer aborted and was
+ * rolled back.  Collection runs as transactions complete, for the writers
+ * that completed, in commit order.
+ * <p>
+ * Versions live in memory only: after a restart there are no snapshots
+ * that could need them.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /** A transaction that has changed tuples. */
+    private static final class Writer {
+        final Queue<RecordId> rids = new ConcurrentLinkedQueue<>();
+        volatile long commitTs = PENDING;
+        volatile boolean aborted = false;
+
+        boolean visibleTo(long snapshot) {
+            return commitTs <= snapshot;
+        }
+    }
+
+    /** The contents of a slot before writer changed it (null if it was empty). */
+    private static final class Version {
+        final Writer writer;
+        final Tuple prior;
+        final Version older;
+
+        Version(Writer writer, Tuple prior, Version older) {
+            this.writer = writer;
+            this.prior = prior;
+            this.older = older;
+        }
+    }
+
+    private final Object clockLock = new Object();
+    private long clock = 0; // protected by clockLock
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Writer> writers = new ConcurrentHashMap<>();
+    private final Map<RecordId, Version> heads = new ConcurrentHashMap<>();
+    // page -> number of its slots that have a chain, so readers skip the
+    // chain lookups on pages nobody changed recently
+    private final Map<PageId, Integer> versionedPages = new ConcurrentHashMap<>();
+    // completed writers whose versions may still be needed, in commit order; protected by itself
+    private final Deque<Writer> completed = new ArrayDeque<>();
+
+    /**
+     * Give a read-only transaction a snapshot of everything committed so
+     * far.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        synchronized (clockLock) {
+            snapshots.put(tid, clock);
+        }
+    }
+
+    /** @return true if tid is a read-only transaction with a snapshot */
+    public boolean hasSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /** End a read-only transaction, and collect what its snapshot kept alive. */
+    public void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            prune();
+    }
+
+    /**
+     * Remember the contents of a slot before tid changes it.  The caller
+     * holds the page's latch and an exclusive lock on the slot.
+     *
+     * @param prior the tuple in the slot, or null if it is empty
+     */
+    void recordChange(TransactionId tid, RecordId rid, Tuple prior) {
+        Writer w = writers.computeIfAbsent(tid, k -> new Writer());
+        Version head = heads.get(rid);
+        heads.put(rid, new Version(w, prior, head));
+        if (head == null)
+            versionedPages.merge(rid.getPageId(), 1, Integer::sum);
+        w.rids.add(rid);
+    }
+
+    /**
+     * Note that a transaction committed or aborted; an aborted transaction
+     * must already have been rolled back.  Its changes become visible to
+     * snapshots taken from now on.
+     */
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        Writer w = writers.remove(tid);
+        if (w == null)
+            return;
+        synchronized (completed) {
+            if (commit) {
+                synchronized (clockLock) {
+                    w.commitTs = ++clock;
+                }
+            } else {
+                w.aborted = true;
+            }
+            completed.add(w);
+        }
+        prune();
+    }
+
+    /** @return true if some slot of the page has older versions */
+    boolean hasVersions(PageId pid) {
+        return versionedPages.containsKey(pid);
+    }
+
+    /**
+     * The version of a slot that a read-only transaction sees.  The caller
+     * holds the page's latch.
+     *
+     * @param current the tuple in the slot on the page, or null if it is
+     *   empty
+     * @return the visible tuple, or null if the slot is empty in the
+     *   transaction's snapshot
+     */
+    Tuple visible(TransactionId tid, RecordId rid, Tuple current) {
+        long snapshot = snapshots.get(tid);
+        Tuple value = current;
+        for (Version v = heads.get(rid); v != null; v = v.older) {
+            if (v.writer.visibleTo(snapshot))
+                return value;
+            value = v.prior;
+        }
+        return value;
+    }
+
+    /**
+     * @return the slots of a table that have older versions, e.g. for an
+     *   index lookup to find the tuples a snapshot sees whose index entries
+     *   were changed since the snapshot was taken
+     */
+    public List<RecordId> versionedRecords(int tableid) {
+        List<RecordId> rids = new ArrayList<>();
+        for (RecordId rid : heads.keySet())
+            if (rid.getPageId().getTableId() == tableid)
+                rids.add(rid);
+        return rids;
+    }
+
+    /** @return the oldest snapshot still in use, or the clock if there is none */
+    private long horizon() {
+        synchronized (clockLock) {
+            long min = clock;
+            for (long s : snapshots.values())
+                min = Math.min(min, s);
+            return min;
+        }
+    }
+
+    /**
+     * Drop the versions no snapshot can see any more, for the completed
+     * writers in commit order up to the first one a running snapshot may
+     * still need.
+     */
+    public void prune() {
+        synchronized (completed) {
+            long horizon = horizon();
+            while (!completed.isEmpty()) {
+                Writer w = completed.peek();
+                if (!w.aborted && w.commitTs > horizon)
+                    break;
+                completed.poll();
+                for (RecordId rid : w.rids)
+                    pruneChain(rid, horizon);
+            }
+        }
+    }
+
+    private void pruneChain(RecordId rid, long horizon) {
+        while (true) {
+            Version head = heads.get(rid);
+            if (head == null)
+                return;
+            Version pruned = prune(head, horizon);
+            if (pruned == head)
+                return;
+            // a writer may have pushed a new version meanwhile; then try again
+            if (pruned == null) {
+                if (heads.remove(rid, head)) {
+                    versionedPages.computeIfPresent(rid.getPageId(), (p, n) -> n == 1 ? null : n - 1);
+                    return;
+                }
+            } else if (heads.replace(rid, head, pruned)) {
+                return;
+            }
+        }
+    }
+
+    /** @return the chain starting at v without aborted versions and
+        without the versions below the first writer every snapshot sees */
+    private static Version prune(Version v, long horizon) {
+        if (v == null)
+            return null;
+        // a rolled back slot holds prior again, so the version is transparent
+        if (v.writer.aborted)
+            return prune(v.older, horizon);
+        if (v.writer.commitTs <= horizon)
+            return null;
+        Version older = prune(v.older, horizon);
+        return older == v.older ? v : new Version(v.writer, v.prior, older);
+    }
+
+    /** @return the number of older tuple versions kept */
+    public int getVersionCount() {
+        int n = 0;
+        for (Version head : heads.values())
+            for (Version v = head; v != null; v = v.older)
+                n++;
+        return n;
+    }
+}
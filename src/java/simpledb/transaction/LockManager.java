@@ -0,0 +1,459 @@
+package simpledb.transaction;
+
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager grants locks on tables, pages and tuples to transactions for
+ * strict two-phase locking: locks are taken as data is accessed and
+ * released all at once when the transaction completes.
+ * <p>
+ * Locks are hierarchical.  Before a transaction locks a page it takes an
+ * intention lock (IS or IX) on the page's table, and before it locks a
+ * tuple it takes intention locks on the tuple's page and table, so a
+ * lock on a table or page conflicts with the locks of other transactions
+ * below it without looking at them.  Transactions that write different
+ * tuples of the same page hold compatible IX locks on the page and run
+ * at the same time.  A lock on a table or page covers the tuples below
+ * it, and a transaction that holds more than the escalation threshold of
+ * tuple locks in one table trades them for a single lock on the table.
+ * <p>
+ * The lock table is split into partitions by resource, each with its own
+ * monitor, so transactions locking different resources rarely contend on
+ * the same monitor.  A transaction that holds a lock can upgrade it when
+ * no other holder's mode conflicts with the stronger mode.
+ * <p>
+ * A transaction that has to wait records the transactions it waits for in
+ * a wait-for graph and checks the graph for a cycle through itself before
+ * it waits, and again each time it wakes up.  A transaction that finds
+ * itself on a cycle gives up with a TransactionAbortedException and is
+ * expected to abort, which releases its locks and breaks the deadlock.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Default number of partitions of the lock table. */
+    public static final int DEFAULT_PARTITIONS = 64;
+
+    /** Default number of tuple locks a transaction may hold in one table before they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** How long a waiting transaction sleeps before it checks its lock and the wait-for graph again. */
+    static final long WAIT_MILLIS = 10;
+
+    /** Lock modes, from intention shared to exclusive. */
+    public enum Mode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if one transaction may hold this mode while another holds other */
+        public boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode grants everything other does */
+        public boolean covers(Mode other) {
+            switch (this) {
+            case X:
+                return true;
+            case SIX:
+                return other != X;
+            case S:
+                return other == S || other == IS;
+            case IX:
+                return other == IX || other == IS;
+            default:
+                return other == IS;
+            }
+        }
+
+        /** @return the weakest mode that covers both this and other */
+        public Mode combine(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return SIX; // S and IX
+        }
+    }
+
+    /** The holders of the lock on one resource and their modes. */
+    private static final class Lock {
+        final Map<TransactionId, Mode> holders = new HashMap<>(2);
+
+        /** @return the other holders whose modes conflict with want, or null if there are none */
+        Set<TransactionId> conflicts(TransactionId tid, Mode want) {
+            Set<TransactionId> blockers = null;
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().compatibleWith(want)) {
+                    if (blockers == null)
+                        blockers = new HashSet<>();
+                    blockers.add(e.getKey());
+                }
+            }
+            return blockers;
+        }
+    }
+
+    /** One partition of the lock table; its monitor protects its locks. */
+    private static final class Partition {
+        final Map<Object, Lock> locks = new HashMap<>();
+    }
+
+    /** The locks one transaction holds. */
+    private static final class Held {
+        // resource (table id, PageId or RecordId) -> mode
+        final Map<Object, Mode> locks = new ConcurrentHashMap<>();
+        // table id -> number of tuple locks held in the table
+        final Map<Integer, Integer> tuples = new ConcurrentHashMap<>();
+    }
+
+    private final Partition[] partitions;
+    private final Map<TransactionId, Held> held = new ConcurrentHashMap<>();
+    // wait-for graph: the transactions each waiting transaction waits for
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new ConcurrentHashMap<>();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    // transactions whose lock requests fail instead of waiting
+    private final Set<TransactionId> noWait = ConcurrentHashMap.newKeySet();
+
+    public LockManager() {
+        this(DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * @param numPartitions the number of partitions of the lock table; 1
+     *   puts every lock under a single monitor
+     */
+    public LockManager(int numPartitions) {
+        partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++)
+            partitions[i] = new Partition();
+    }
+
+    private Partition partitionOf(Object resource) {
+        return partitions[Math.floorMod(resource.hashCode(), partitions.length)];
+    }
+
+    /**
+     * Set the number of tuple locks a transaction may hold in one table;
+     * taking one more escalates them to a lock on the table.
+     */
+    public void setEscalationThreshold(int threshold) {
+        escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Acquire a lock on a page for a transaction, with an intention lock on
+     * its table, waiting until no other transaction holds a conflicting
+     * lock.
+     *
+     * @param tid the transaction
+     * @param pid the page
+     * @param exclusive true for an exclusive (write) lock, false for a
+     *   shared (read) lock
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException {
+        lock(tid, pid.getTableId(), exclusive ? Mode.IX : Mode.IS, true);
+        lock(tid, pid, exclusive ? Mode.X : Mode.S, true);
+    }
+
+    /**
+     * Acquire a lock on a page like acquire, but give up instead of waiting
+     * for other transactions.
+     *
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, boolean exclusive) {
+        try {
+            return lock(tid, pid.getTableId(), exclusive ? Mode.IX : Mode.IS, false)
+                    && lock(tid, pid, exclusive ? Mode.X : Mode.S, false);
+        } catch (TransactionAbortedException e) {
+            throw new IllegalStateException(e); // not thrown without waiting
+        }
+    }
+
+    /**
+     * Acquire intention locks on a page and its table, for a transaction
+     * that is going to lock tuples on the page.
+     *
+     * @param write true if the transaction is going to write tuples (IX),
+     *   false if it is only going to read them (IS)
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void acquireIntention(TransactionId tid, PageId pid, boolean write)
+            throws TransactionAbortedException {
+        Mode mode = write ? Mode.IX : Mode.IS;
+        lock(tid, pid.getTableId(), mode, true);
+        lock(tid, pid, mode, true);
+    }
+
+    /**
+     * Acquire a shared or exclusive lock on a whole table.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void acquireTable(TransactionId tid, int tableId, boolean exclusive)
+            throws TransactionAbortedException {
+        lock(tid, tableId, exclusive ? Mode.X : Mode.S, true);
+    }
+
+    /**
+     * Acquire a lock on a tuple, with intention locks on its page and
+     * table, unless a lock the transaction holds on the page or table
+     * already covers it.  Escalates the transaction's tuple locks in the
+     * table to a table lock if this one puts it over the threshold.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void acquireTuple(TransactionId tid, RecordId rid, boolean exclusive)
+            throws TransactionAbortedException {
+        Mode mode = exclusive ? Mode.X : Mode.S;
+        if (covered(tid, rid, mode))
+            return;
+        acquireIntention(tid, rid.getPageId(), exclusive);
+        lock(tid, rid, mode, true);
+        counted(tid, rid);
+        escalateIfNeeded(tid, rid.getPageId().getTableId());
+    }
+
+    /**
+     * Take an exclusive lock on a tuple only if no other transaction holds
+     * a lock on it; used to claim an empty slot for an insert.  The caller
+     * must already hold an IX lock on the tuple's page.  Never escalates,
+     * since that may wait; the caller calls escalateIfNeeded once it can.
+     *
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryAcquireTuple(TransactionId tid, RecordId rid) {
+        if (covered(tid, rid, Mode.X))
+            return true;
+        try {
+            if (!lock(tid, rid, Mode.X, false))
+                return false;
+        } catch (TransactionAbortedException e) {
+            throw new IllegalStateException(e); // not thrown without waiting
+        }
+        counted(tid, rid);
+        return true;
+    }
+
+    /** @return true if the transaction's locks on the table or page of rid grant mode on rid */
+    private boolean covered(TransactionId tid, RecordId rid, Mode mode) {
+        Held h = held.get(tid);
+        if (h == null)
+            return false;
+        Mode m = h.locks.get(rid.getPageId().getTableId());
+        if (m != null && m.covers(mode))
+            return true;
+        m = h.locks.get(rid.getPageId());
+        if (m != null && m.covers(mode))
+            return true;
+        m = h.locks.get(rid);
+        return m != null && m.covers(mode);
+    }
+
+    /** Count a tuple lock tid was just granted against its table. */
+    private void counted(TransactionId tid, RecordId rid) {
+        held.get(tid).tuples.merge(rid.getPageId().getTableId(), 1, Integer::sum);
+    }
+
+    /**
+     * Escalate the tuple locks tid holds in a table to one lock on the
+     * table if there are more of them than the threshold.  The table lock
+     * is exclusive if any of the tuple locks is.
+     *
+     * @return true if the locks were escalated
+     * @throws TransactionAbortedException if waiting for the table lock
+     *   would deadlock
+     */
+    public boolean escalateIfNeeded(TransactionId tid, int tableId) throws TransactionAbortedException {
+        Held h = held.get(tid);
+        if (h == null || h.tuples.getOrDefault(tableId, 0) <= escalationThreshold)
+            return false;
+        boolean exclusive = false;
+        List<RecordId> rows = new ArrayList<>();
+        for (Map.Entry<Object, Mode> e : h.locks.entrySet()) {
+            if (e.getKey() instanceof RecordId
+                && ((RecordId) e.getKey()).getPageId().getTableId() == tableId) {
+                rows.add((RecordId) e.getKey());
+                exclusive |= e.getValue() == Mode.X;
+            }
+        }
+        lock(tid, tableId, exclusive ? Mode.X : Mode.S, true);
+        // the table lock covers the tuples now
+        for (RecordId rid : rows) {
+            h.locks.remove(rid);
+            unlock(tid, rid);
+        }
+        h.tuples.remove(tableId);
+        return true;
+    }
+
+    /**
+     * Grant tid a lock on resource that covers mode, upgrading a lock it
+     * already holds if needed.
+     *
+     * @param wait false to give up instead of waiting for other holders
+     * @return true if the lock was granted, false if it would have to wait
+     *   and wait is false
+     */
+    private boolean lock(TransactionId tid, Object resource, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        Held h = held.computeIfAbsent(tid, k -> new Held());
+        Mode cur = h.locks.get(resource);
+        if (cur != null && cur.covers(mode))
+            return true;
+        Mode want = cur == null ? mode : cur.combine(mode);
+        Partition part = partitionOf(resource);
+        synchronized (part) {
+            try {
+                while (true) {
+                    Lock lock = part.locks.computeIfAbsent(resource, k -> new Lock());
+                    Set<TransactionId> blockers = lock.conflicts(tid, want);
+                    if (blockers == null) {
+                        lock.holders.put(tid, want);
+                        h.locks.put(resource, want);
+                        return true;
+                    }
+                    if (!wait)
+                        return false;
+                    if (noWait.contains(tid))
+                        throw new TransactionAbortedException();
+                    waitsFor.put(tid, blockers);
+                    if (deadlocked(tid))
+                        throw new TransactionAbortedException();
+                    try {
+                        part.wait(WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+            } finally {
+                waitsFor.remove(tid);
+            }
+        }
+    }
+
+    /** @return true if some transaction that tid waits for waits, directly or not, for tid */
+    private boolean deadlocked(TransactionId tid) {
+        Set<TransactionId> seen = new HashSet<>();
+        Deque<TransactionId> stack = new ArrayDeque<>(waitsFor.getOrDefault(tid, Collections.emptySet()));
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            if (t.equals(tid))
+                return true;
+            if (seen.add(t))
+                stack.addAll(waitsFor.getOrDefault(t, Collections.emptySet()));
+        }
+        return false;
+    }
+
+    /**
+     * Make the lock requests of a transaction fail at once with a
+     * TransactionAbortedException when they would have to wait, until it
+     * releases its locks.  Used by short transactions that only copy a few
+     * pages and must never wait for writers, e.g. the index lookups of
+     * read-only transactions (see SecondaryIndex); they never deadlock.
+     */
+    public void setNoWait(TransactionId tid) {
+        noWait.add(tid);
+    }
+
+    /** Release the lock a transaction holds on a page, if any. */
+    public void release(TransactionId tid, PageId pid) {
+        Held h = held.get(tid);
+        if (h != null)
+            h.locks.remove(pid);
+        unlock(tid, pid);
+    }
+
+    /** Release every lock a transaction holds. */
+    public void releaseAll(TransactionId tid) {
+        noWait.remove(tid);
+        Held h = held.remove(tid);
+        if (h != null)
+            for (Object resource : h.locks.keySet())
+                unlock(tid, resource);
+    }
+
+    private void unlock(TransactionId tid, Object resource) {
+        Partition part = partitionOf(resource);
+        synchronized (part) {
+            Lock lock = part.locks.get(resource);
+            if (lock != null && lock.holders.remove(tid) != null) {
+                if (lock.holders.isEmpty())
+                    part.locks.remove(resource);
+                part.notifyAll();
+            }
+        }
+    }
+
+    /** @return true if the transaction holds a lock of any mode on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return getMode(tid, pid) != null;
+    }
+
+    /**
+     * @param resource an Integer table id, a PageId or a RecordId
+     * @return the mode of the lock tid holds on resource, or null if it
+     *   holds none
+     */
+    public Mode getMode(TransactionId tid, Object resource) {
+        Held h = held.get(tid);
+        return h == null ? null : h.locks.get(resource);
+    }
+
+    /** @return true if a transaction other than tid holds a lock on the tuple */
+    public boolean lockedByOthers(TransactionId tid, RecordId rid) {
+        Partition part = partitionOf(rid);
+        synchronized (part) {
+            Lock lock = part.locks.get(rid);
+            return lock != null && (lock.holders.size() > 1 || !lock.holders.containsKey(tid));
+        }
+    }
+
+    /** @return true if a transaction other than tid may be writing tuples on the page */
+    public boolean hasOtherWriters(TransactionId tid, PageId pid) {
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            Lock lock = part.locks.get(pid);
+            if (lock == null)
+                return false;
+            for (Map.Entry<TransactionId, Mode> e : lock.holders.entrySet())
+                if (!e.getKey().equals(tid) && e.getValue() != Mode.IS && e.getValue() != Mode.S)
+                    return true;
+            return false;
+        }
+    }
+
+    /** @return the pages the transaction holds locks of any mode on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Held h = held.get(tid);
+        if (h == null)
+            return Collections.emptySet();
+        Set<PageId> pages = new HashSet<>();
+        for (Object resource : h.locks.keySet())
+            if (resource instanceof PageId)
+                pages.add((PageId) resource);
+        return pages;
+    }
+}
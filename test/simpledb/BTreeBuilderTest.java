@@ -0,0 +1,149 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.*;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBuilderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile table;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static File emptyFile() throws Exception {
+		File f = File.createTempFile("btreebuild", ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * @return the tuples of the file in the order its iterator returns them
+	 */
+	private List<List<Integer>> scan(BTreeFile bf, TransactionId tid) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * A tree built from several sorted runs holds every tuple of the table in
+	 * key order and passes the checker, occupancy included.
+	 */
+	@Test
+	public void buildFromRuns() throws Exception {
+		BTreeFile bf = BTreeBuilder.build(tid, table.getId(), 1, emptyFile(), 0.9, 3000);
+		Database.getCatalog().addTable(bf);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<List<Integer>> result = scan(bf, tid);
+		assertEquals(tuples.size(), result.size());
+		for(int i = 1; i < result.size(); i++) {
+			assertTrue(result.get(i - 1).get(1) <= result.get(i).get(1));
+		}
+		assertEquals(SystemTestUtil.sortedOn(tuples, 1, 0), SystemTestUtil.sortedOn(result, 1, 0));
+	}
+
+	/**
+	 * A lower fill factor leaves room in each page, so the tree has more pages.
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile full = BTreeBuilder.build(tid, table.getId(), 1, emptyFile(), 1.0, 100000);
+		BTreeFile half = BTreeBuilder.build(tid, table.getId(), 1, emptyFile(), 0.5, 100000);
+		assertTrue(half.numPages() > 1.8 * full.numPages());
+		Database.getCatalog().addTable(half);
+		BTreeChecker.checkRep(half, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * The entries of an index built from several runs are in key order and each
+	 * points to a tuple of the table with that key.
+	 */
+	@Test
+	public void buildIndex() throws Exception {
+		SecondaryIndex index = BTreeBuilder.buildIndex(tid, table.getId(), 1, emptyFile(), 0.9, 3000);
+		Database.getCatalog().addTable(index.getFile());
+		BTreeChecker.checkRep((BTreeFile) index.getFile(), tid, new HashMap<>(), true);
+
+		DbFileIterator it = index.getFile().iterator(tid);
+		it.open();
+		int count = 0;
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			Tuple entry = it.next();
+			int key = ((IntField) entry.getField(0)).getValue();
+			assertTrue(prev <= key);
+			prev = key;
+			Tuple t = table.readTuple(tid, index.recordIdOf(entry));
+			assertEquals(key, ((IntField) t.getField(1)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.size(), count);
+	}
+
+	/**
+	 * The tuples of a BTreeFile move as its pages split and merge, so they
+	 * cannot have a secondary index.
+	 */
+	@Test(expected = DbException.class)
+	public void indexOnBTreeFile() throws Exception {
+		BTreeFile bf = BTreeBuilder.build(tid, table.getId(), 1, emptyFile(), 0.9, 100000);
+		Database.getCatalog().addTable(bf);
+		BTreeBuilder.buildIndex(tid, bf.getId(), 0, emptyFile(), 0.9, 100000);
+	}
+
+	/**
+	 * An index file that already has content is not overwritten.
+	 */
+	@Test(expected = DbException.class)
+	public void existingFile() throws Exception {
+		File f = emptyFile();
+		BTreeBuilder.build(tid, table.getId(), 1, f, 0.9, 100000);
+		BTreeBuilder.build(tid, table.getId(), 1, f, 0.9, 100000);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBuilderTest.class);
+	}
+}
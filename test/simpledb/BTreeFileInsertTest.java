@@ -86,6 +86,43 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertEquals(1, parent.getNumEntries());
 	}
 
+	@Test
+	public void testSplitLeafPageAppend() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// create the right-most leaf page
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.LEAF);
+		BTreeLeafPage leftPage = BTreeUtility.createRandomLeafPage(leftPageId, 2, keyField,
+				0, BTreeUtility.MAX_RAND_VALUE);
+				
+		// create the parent page
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		leftPage.setParentId(parentId);
+		
+		// a key larger than all others goes to a new page to the right, and only a
+		// tenth of the tuples moves along with it
+		Field field = new IntField(BTreeUtility.MAX_RAND_VALUE);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		BTreeLeafPage page = empty.splitLeafPage(tid, dirtypages, leftPage, field);
+		assertEquals(leftPageId, page.getLeftSiblingId());
+		assertNull(page.getRightSiblingId());
+		
+		int tuplesPerPage = BTreeUtility.getNumTuplesPerPage(2);
+		assertEquals(tuplesPerPage / 10, page.getNumTuples());
+		assertEquals(tuplesPerPage - tuplesPerPage / 10, leftPage.getNumTuples());
+		assertTrue(field.compare(Op.GREATER_THAN_OR_EQ, page.iterator().next().getField(keyField)));
+		assertEquals(1, parent.getNumEntries());
+	}
+
 	@Test
 	public void testSplitInternalPages() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -174,6 +174,36 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with an
+	 * empty slot between two entries
+	 */
+	@Test public void reverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		page.deleteKeyAndRightChild(entries.get(entries.size() / 2));
+
+		List<BTreeEntry> forward = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			forward.add(it.next());
+		Collections.reverse(forward);
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(forward.get(row).getKey(), e.getKey());
+			assertEquals(forward.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(forward.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(forward.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
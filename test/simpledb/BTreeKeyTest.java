@@ -0,0 +1,280 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(
+			new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+			new String[] { "tenant", "name", "created" });
+
+	private TransactionId tid;
+	private final Random rand = new Random(4);
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private Tuple tuple(int tenant, String name, int created) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new IntField(tenant));
+		t.setField(1, new StringField(name, Type.STRING_LEN));
+		t.setField(2, new IntField(created));
+		return t;
+	}
+
+	private String randomName() {
+		char[] name = new char[rand.nextInt(6)];
+		for(int i = 0; i < name.length; i++) {
+			name[i] = (char) ('a' + rand.nextInt(3));
+		}
+		return new String(name);
+	}
+
+	private static int compare(Tuple t1, Tuple t2, int... fields) {
+		for(int f : fields) {
+			if(t1.getField(f).compare(Op.LESS_THAN, t2.getField(f))) {
+				return -1;
+			}
+			if(t1.getField(f).compare(Op.GREATER_THAN, t2.getField(f))) {
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	private BTreeFile emptyTree(int... keyFields) throws Exception {
+		File f = File.createTempFile("btreekey", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, new KeyDesc(TD, keyFields), TD);
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	private static List<Tuple> scan(DbFileIterator it) throws Exception {
+		List<Tuple> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			result.add(it.next());
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Normalized keys compare like the fields they are made of, one after the
+	 * other, negative ints and strings that are prefixes of others included.
+	 */
+	@Test
+	public void normalizedOrder() {
+		KeyDesc key = new KeyDesc(TD, 0, 1, 2);
+		assertTrue(key.isNormalized());
+		assertEquals(4 + Type.STRING_LEN + 4, key.getLen());
+		int[] ints = { Integer.MIN_VALUE, -70000, -1, 0, 1, 255, 256, 70000, Integer.MAX_VALUE };
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 300; i++) {
+			tuples.add(tuple(ints[rand.nextInt(ints.length)], randomName(), ints[rand.nextInt(ints.length)]));
+		}
+		for(Tuple t1 : tuples) {
+			Tuple t2 = tuples.get(rand.nextInt(tuples.size()));
+			int expected = compare(t1, t2, 0, 1, 2);
+			int actual = ((NormalizedKey) key.keyOf(t1)).compareTo((NormalizedKey) key.keyOf(t2));
+			assertEquals(expected, Integer.signum(actual));
+		}
+	}
+
+	/**
+	 * A prefix of a key is equal to all the keys that start with it.
+	 */
+	@Test
+	public void prefix() {
+		KeyDesc key = new KeyDesc(TD, 0, 2);
+		Field full = key.keyOf(tuple(5, "x", -3));
+		assertTrue(full.compare(Op.EQUALS, key.key(new IntField(5))));
+		assertTrue(full.compare(Op.EQUALS, key.normalize(new IntField(5))));
+		assertTrue(full.compare(Op.LESS_THAN, key.key(new IntField(6))));
+		assertTrue(full.compare(Op.GREATER_THAN, key.key(new IntField(5), new IntField(-4))));
+		assertTrue(key.accepts(full));
+		assertFalse(key.accepts(key.key(new IntField(5))));
+
+		// a key on a single int is the field itself
+		KeyDesc single = new KeyDesc(TD, 0);
+		assertFalse(single.isNormalized());
+		assertEquals(new IntField(5), single.keyOf(tuple(5, "x", -3)));
+	}
+
+	/**
+	 * A tree keyed on two int fields keeps its tuples in the order of both, and
+	 * finds the tuples of a value of the first field or of a range of keys.
+	 */
+	@Test
+	public void compositeKey() throws Exception {
+		BTreeFile bf = emptyTree(0, 2);
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 3000; i++) {
+			Tuple t = tuple(rand.nextInt(10), "", rand.nextInt(2000) - 1000);
+			tuples.add(t);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		tuples.sort((t1, t2) -> compare(t1, t2, 0, 2));
+
+		List<Tuple> all = scan(bf.iterator(tid));
+		assertEquals(tuples.size(), all.size());
+		for(int i = 0; i < all.size(); i++) {
+			assertEquals(0, compare(tuples.get(i), all.get(i), 0, 2));
+		}
+
+		List<Tuple> tenant = scan(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(3))));
+		List<Tuple> expected = new ArrayList<>();
+		for(Tuple t : tuples) {
+			if(((IntField) t.getField(0)).getValue() == 3) {
+				expected.add(t);
+			}
+		}
+		assertEquals(expected.size(), tenant.size());
+		for(int i = 0; i < tenant.size(); i++) {
+			assertEquals(0, compare(expected.get(i), tenant.get(i), 0, 2));
+		}
+
+		Field from = bf.getKeyDesc().key(new IntField(3), new IntField(0));
+		List<Tuple> range = scan(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, from)));
+		int count = 0;
+		for(Tuple t : tuples) {
+			if(compare(t, tuple(3, "", 0), 0, 2) >= 0) {
+				count++;
+			}
+		}
+		assertEquals(count, range.size());
+		assertEquals(0, compare(range.get(range.size() - 1), tuples.get(tuples.size() - 1), 0, 2));
+	}
+
+	/**
+	 * A tree keyed on a string field is several levels deep, in string order, and
+	 * finds a string with a StringField predicate.
+	 */
+	@Test
+	public void stringKey() throws Exception {
+		BTreeFile bf = emptyTree(1);
+		List<String> names = new ArrayList<>();
+		for(int i = 0; i < 2000; i++) {
+			String name = randomName() + i;
+			names.add(name);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(i, name, 0));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		Collections.sort(names);
+
+		List<Tuple> all = scan(bf.iterator(tid));
+		assertEquals(names.size(), all.size());
+		for(int i = 0; i < all.size(); i++) {
+			assertEquals(names.get(i), ((StringField) all.get(i).getField(1)).getValue());
+		}
+
+		String name = names.get(1234);
+		List<Tuple> found = scan(bf.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new StringField(name, Type.STRING_LEN))));
+		assertEquals(1, found.size());
+		assertEquals(name, ((StringField) found.get(0).getField(1)).getValue());
+	}
+
+	/**
+	 * The separator of two keys is the shortest key above the left one that is
+	 * no greater than the right one.
+	 */
+	@Test
+	public void separator() {
+		KeyDesc key = new KeyDesc(TD, 1);
+		Field left = key.keyOf(tuple(0, "customer-0417", 0));
+		Field right = key.keyOf(tuple(0, "customer-0502", 0));
+		Field sep = key.separator(left, right);
+		assertTrue(sep.compare(Op.GREATER_THAN, left));
+		assertTrue(sep.compare(Op.LESS_THAN_OR_EQ, right));
+		assertEquals(key.keyOf(tuple(0, "customer-05", 0)), sep);
+
+		// no shorter key separates a key from one it is a prefix of
+		Field longer = key.keyOf(tuple(0, "customer-0417a", 0));
+		assertEquals(longer, key.separator(left, longer));
+		assertEquals(right, key.separator(null, right));
+
+		// keys on a single int are not truncated
+		KeyDesc single = new KeyDesc(TD, 0);
+		assertEquals(new IntField(7), single.separator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * Leaves of a tree with string keys that share long prefixes hold several
+	 * times the tuples of an uncompressed page, and stay consistent as tuples
+	 * are deleted again.
+	 */
+	@Test
+	public void compressedPages() throws Exception {
+		BTreeFile bf = emptyTree(1, 0);
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 4000; i++) {
+			Tuple t = tuple(i, String.format("customer-%05d", rand.nextInt(20000)), i);
+			tuples.add(t);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+
+		// an uncompressed page holds about 29 of these tuples, at least half full
+		int fixedTuples = (BufferPool.getPageSize() * 8 - 3 * Type.INT_TYPE.getLen() * 8) / (TD.getSize() * 8 + 1);
+		assertTrue(bf.numPages() * fixedTuples < tuples.size() / 2);
+
+		tuples.sort((t1, t2) -> compare(t1, t2, 1, 0));
+		List<Tuple> all = scan(bf.iterator(tid));
+		assertEquals(tuples.size(), all.size());
+		for(int i = 0; i < all.size(); i++) {
+			assertEquals(0, compare(tuples.get(i), all.get(i), 1, 0, 2));
+		}
+
+		for(Tuple t : all) {
+			if(((IntField) t.getField(0)).getValue() % 8 != 0) {
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertEquals(tuples.size() / 8, scan(bf.iterator(tid)).size());
+		for(Tuple t : tuples) {
+			if(((IntField) t.getField(0)).getValue() % 8 != 0) {
+				continue;
+			}
+			String name = ((StringField) t.getField(1)).getValue();
+			List<Tuple> found = scan(bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, bf.getKeyDesc().key(new StringField(name, Type.STRING_LEN), t.getField(0)))));
+			assertEquals(1, found.size());
+			assertEquals(t.getField(2), found.get(0).getField(2));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyTest.class);
+	}
+}
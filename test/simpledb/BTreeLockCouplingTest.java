@@ -0,0 +1,285 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.index.BTreeUtility.BTreeDeleter;
+import simpledb.index.BTreeUtility.BTreeInserter;
+import simpledb.index.BTreeUtility.BTreeWriter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeLockCouplingTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	private static final int POLL_INTERVAL = 100;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A scan keeps its lock on the leaf it reads, but not those on the root
+	 * pointer and the internal nodes it passed on the way down, so a writer
+	 * can split a leaf elsewhere in the tree, which changes the root, while
+	 * the scan is open.
+	 */
+	@Test
+	public void readerDoesNotBlockSplit() throws Exception {
+		// This should create a B+ tree with 100 full leaf pages under the root
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		PageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		Tuple first = it.next();
+		assertTrue(Database.getBufferPool().holdsLock(tid, first.getRecordId().getPageId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+
+		TransactionId tid2 = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid2, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		Database.getBufferPool().transactionComplete(tid2);
+
+		// insert a key larger than all others, which splits the right-most leaf
+		TransactionId tid3 = new TransactionId();
+		BTreeWriter bw = new BTreeWriter(tid3, bigFile, BTreeUtility.MAX_RAND_VALUE, 1);
+		bw.start();
+		int waited = 0;
+		while(!bw.succeeded() && bw.getError() == null && waited < 50) {
+			Thread.sleep(POLL_INTERVAL);
+			waited++;
+		}
+		assertNull(bw.getError());
+		assertTrue(bw.succeeded());
+		assertTrue(bigFile.numPages() > 101);
+		Database.getBufferPool().transactionComplete(tid3);
+
+		it.close();
+	}
+
+	/**
+	 * Appending a key larger than all others goes straight to the right-most
+	 * leaf, so it does not wait for a writer holding a lock on the root, as
+	 * long as the leaf does not have to be split.
+	 */
+	@Test(timeout = 20000)
+	public void appendSkipsDescent() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+
+		// the first append splits the full right-most leaf
+		TransactionId tid2 = new TransactionId();
+		Database.getBufferPool().insertTuple(tid2, bigFile.getId(),
+				BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2));
+		Database.getBufferPool().transactionComplete(tid2);
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_WRITE);
+
+		TransactionId tid3 = new TransactionId();
+		Database.getBufferPool().insertTuple(tid3, bigFile.getId(),
+				BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + 1, 2));
+		assertFalse(Database.getBufferPool().holdsLock(tid3, rootPtr.getRootId()));
+		Database.getBufferPool().transactionComplete(tid3);
+	}
+
+	/**
+	 * A split locks the pages it changes on the way down from the root, and
+	 * lets go of the full leaf until it has them. A search that has reached
+	 * the root before the split can therefore still get to the leaf,
+	 * instead of deadlocking with a split that holds the leaf and waits for
+	 * the root.
+	 */
+	@Test(timeout = 20000)
+	public void splitDoesNotLockUpwards() throws Exception {
+		// 100 full leaf pages under the root
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		int key = BTreeUtility.MAX_RAND_VALUE / 2;
+
+		// a search that has locked the root
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+
+		// an insert that splits the leaf the search is heading for waits for the root
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw = new BTreeWriter(tid2, bigFile, key, 1);
+		bw.start();
+		Thread.sleep(POLL_INTERVAL * 5);
+		assertFalse(bw.succeeded());
+
+		// the search goes on to the leaf
+		DbFileIterator it = bigFile.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+
+		bw.join();
+		assertNull(bw.getError());
+		assertTrue(bw.succeeded());
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
+	/**
+	 * A delete that leaves a leaf less than half full locks the parent and the
+	 * sibling it merges with from the top down too, and lets go of the leaf
+	 * until it has them, so a search that has reached the root before the
+	 * delete can still get to the leaf.
+	 */
+	@Test(timeout = 20000)
+	public void mergeDoesNotLockUpwards() throws Exception {
+		// one full leaf page and two half-full ones under the root
+		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1005,
+				null, null, 0);
+
+		// delete the last tuple, which leaves the last leaf exactly half full
+		TransactionId tid2 = new TransactionId();
+		DbFileIterator it = threeLeafPageFile.iterator(tid2);
+		it.open();
+		Tuple secondToLast = null;
+		Tuple last = null;
+		while(it.hasNext()) {
+			secondToLast = last;
+			last = it.next();
+		}
+		it.close();
+		Database.getBufferPool().deleteTuple(tid2, last);
+		Database.getBufferPool().transactionComplete(tid2);
+
+		// a search that has locked the root
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(threeLeafPageFile.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+
+		// a delete that merges the leaf with its left sibling waits for the root
+		BlockingQueue<List<Integer>> deleted = new ArrayBlockingQueue<>(1);
+		deleted.put(BTreeUtility.tupleToList(secondToLast));
+		BTreeDeleter bd = new BTreeDeleter(threeLeafPageFile, deleted);
+		bd.start();
+		Thread.sleep(POLL_INTERVAL * 5);
+		assertFalse(bd.succeeded());
+
+		// the search goes on to the leaf
+		it = threeLeafPageFile.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, secondToLast.getField(0)));
+		it.open();
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+
+		bd.join();
+		assertNull(bd.getError());
+		assertTrue(bd.succeeded());
+		TransactionId tid3 = new TransactionId();
+		BTreeChecker.checkRep(threeLeafPageFile, tid3, new HashMap<>(), true);
+		rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid3, BTreeRootPtrPage.getId(threeLeafPageFile.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid3, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(1, root.getNumEntries());
+		Database.getBufferPool().transactionComplete(tid3);
+	}
+
+	/**
+	 * A scan from right to left that finds the next leaf locked lets go of the
+	 * leaf it is on while it waits, so an insert that splits the next leaf, and
+	 * then needs the leaf the scan is on to link the new page in, finishes
+	 * instead of deadlocking with the scan. The scan still returns every tuple,
+	 * including the new one.
+	 */
+	@Test(timeout = 20000)
+	public void descendingScanDoesNotDeadlockWithSplit() throws Exception {
+		// 100 full leaf pages under the root
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+
+		// scan the last three leaves; the new key goes to the second to last one
+		TransactionId tid2 = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid2, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid2, rootPtr.getRootId(), Permissions.READ_ONLY);
+		Iterator<BTreeEntry> entries = root.reverseIterator();
+		IntField key = (IntField) entries.next().getKey();
+		entries.next();
+		IndexPredicate from = new IndexPredicate(Op.GREATER_THAN, entries.next().getKey());
+		int expected = 1;
+		DbFileIterator it = bigFile.indexIterator(tid2, from);
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			expected++;
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid2);
+
+		// the scan is on the last leaf
+		it = bigFile.indexIterator(tid, Collections.singletonList(from), true);
+		it.open();
+		Tuple t = it.next();
+		int count = 1;
+
+		// the insert splits the second to last leaf and waits for the last one
+		BlockingQueue<List<Integer>> inserted = new ArrayBlockingQueue<>(1);
+		BTreeInserter bi = new BTreeInserter(bigFile, new int[] { key.getValue(), 0 }, inserted);
+		bi.start();
+		Thread.sleep(POLL_INTERVAL * 5);
+		assertFalse(bi.succeeded());
+
+		while(it.hasNext()) {
+			Tuple next = it.next();
+			assertTrue(next.getField(0).compare(Op.LESS_THAN_OR_EQ, t.getField(0)));
+			t = next;
+			count++;
+		}
+		it.close();
+		assertEquals(expected, count);
+
+		bi.join();
+		assertNull(bi.getError());
+		assertTrue(bi.succeeded());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLockCouplingTest.class);
+	}
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.Backup;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogShipper;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class BackupTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private File archiveDir;
+    private File backupDir;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("backup", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        archiveDir = Files.createTempDirectory("archive").toFile();
+        backupDir = Files.createTempDirectory("backup").toFile();
+        Database.getLogFile().setSegmentSize(16 * 1024);
+    }
+
+    private void insert(Transaction t, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    private void insertAndCommit(int first, int count) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, first, count);
+        t.commit();
+    }
+
+    private int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    /** Lose the table file and start a new database on it. */
+    private void loseTable() throws Exception {
+        Database.reset();
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(0);
+        }
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    /**
+     * A backup taken while a transaction is running restores to the end
+     * of the backup, to a point in time and to the end of the archive.
+     */
+    @Test public void pointInTimeRestore() throws Exception {
+        LogShipper archive = new LogShipper(Database.getLogFile(), archiveDir);
+        insertAndCommit(0, 100);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 1000, 100);
+        Database.getBufferPool().flushAllPages();
+
+        Backup.Manifest m = Backup.take(Database.getLogFile(), archive, backupDir);
+        t2.commit();
+        for (int i = 0; i < 3; i++)
+            insertAndCommit(2000 + i * 100, 100);
+        Thread.sleep(20);
+        long time = System.currentTimeMillis();
+        Thread.sleep(20);
+        for (int i = 0; i < 4; i++)
+            insertAndCommit(3000 + i * 100, 100);
+        archive.ship();
+        archive.close();
+
+        loseTable();
+        assertEquals(m.getStopLSN(), Backup.restore(backupDir, archiveDir, m.getStopLSN()));
+        assertEquals(100, count());
+
+        loseTable();
+        Backup.restoreToTime(backupDir, archiveDir, time);
+        assertEquals(500, count());
+
+        loseTable();
+        Backup.restore(backupDir, archiveDir, Long.MAX_VALUE);
+        assertEquals(900, count());
+    }
+
+    /**
+     * A restore cannot stop before the end of the backup.
+     */
+    @Test public void targetBeforeBackup() throws Exception {
+        LogShipper archive = new LogShipper(Database.getLogFile(), archiveDir);
+        insertAndCommit(0, 10);
+        Backup.Manifest m = Backup.take(Database.getLogFile(), archive, backupDir);
+        archive.close();
+
+        loseTable();
+        try {
+            Backup.restore(backupDir, archiveDir, m.getStopLSN() - 1);
+            fail("restored to before the end of the backup");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackupTest.class);
+    }
+}
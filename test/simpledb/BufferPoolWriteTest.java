@@ -46,7 +46,10 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
                 byte[] emptyData = HeapPage.createEmptyPageData();
                 bw.write(emptyData);
                 bw.close();
-    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1),
+    			// the page was appended behind HeapFile's back, so use the file
+    			// length rather than the cached numPages()
+    			int pgNo = (int) (super.getFile().length() / BufferPool.getPageSize()) - 1;
+    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), pgNo),
     					HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
     			dirtypages.add(p);
@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.ChangeStream;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class ChangeStreamTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("cdc", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+    }
+
+    private void insert(Transaction t, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    private static int value(ChangeStream.Change c) {
+        return ((IntField) c.getTuple().getField(0)).getValue();
+    }
+
+    /**
+     * Only committed transactions produce events, in commit order.
+     */
+    @Test public void committedOnly() throws Exception {
+        ChangeStream cdc = new ChangeStream(Database.getLogFile());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 3);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 100, 2);
+        t2.abort();
+
+        List<ChangeStream.Change> changes = cdc.poll();
+        assertEquals(3, changes.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ChangeStream.Kind.INSERT, changes.get(i).getKind());
+            assertEquals(hf.getId(), changes.get(i).getTableId());
+            assertEquals(i, value(changes.get(i)));
+        }
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        SeqScan scan = new SeqScan(t3.getId(), hf.getId(), "");
+        scan.open();
+        Tuple first = scan.next();
+        scan.close();
+        Database.getBufferPool().deleteTuple(t3.getId(), first);
+        t3.commit();
+
+        changes = cdc.poll();
+        assertEquals(1, changes.size());
+        assertEquals(ChangeStream.Kind.DELETE, changes.get(0).getKind());
+        assertEquals(value(changes.get(0)), ((IntField) first.getField(0)).getValue());
+        assertTrue(cdc.poll().isEmpty());
+        cdc.close();
+    }
+
+    /**
+     * A stream resumed from a saved cursor returns each committed
+     * transaction once, including one that was running when the cursor
+     * was saved.
+     */
+    @Test public void resumeFromCursor() throws Exception {
+        File cursorFile = File.createTempFile("cdc", ".cursor");
+        cursorFile.deleteOnExit();
+        ChangeStream cdc = new ChangeStream(Database.getLogFile());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 2);
+        t1.commit();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 10, 2);
+        Database.getBufferPool().flushAllPages();
+
+        assertEquals(2, cdc.poll().size());
+        cdc.getCursor().save(cursorFile);
+        cdc.close();
+
+        t2.commit();
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3, 20, 1);
+        t3.commit();
+
+        cdc = new ChangeStream(Database.getLogFile(), ChangeStream.Cursor.load(cursorFile));
+        List<ChangeStream.Change> changes = cdc.poll();
+        assertEquals(3, changes.size());
+        assertEquals(10, value(changes.get(0)));
+        assertEquals(11, value(changes.get(1)));
+        assertEquals(20, value(changes.get(2)));
+        cdc.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ChangeStreamTest.class);
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.HashFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private HashFile hf;
+    /** the first fields of the tuples of hf, by their second field */
+    private Map<Integer, List<Integer>> contents;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(1000);
+        contents = new HashMap<>();
+    }
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    /** Create an empty hash file of two int fields keyed on the second one. */
+    private void create() throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        hf = new HashFile(f, 1, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "hash_t");
+    }
+
+    /** Insert (value, key) into hf, 200 tuples per transaction. */
+    private void insert(int[] values, int[] keys) throws Exception {
+        for (int i = 0; i < values.length; i += 200) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = i; j < Math.min(values.length, i + 200); j++) {
+                Tuple tup = new Tuple(hf.getTupleDesc());
+                tup.setField(0, new IntField(values[j]));
+                tup.setField(1, new IntField(keys[j]));
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+                contents.computeIfAbsent(keys[j], k -> new ArrayList<>()).add(values[j]);
+            }
+            t.commit();
+        }
+    }
+
+    /** @return the sorted first fields of the tuples of hf with the key */
+    private List<Integer> lookup(TransactionId tid, int key) throws Exception {
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(key), t.getField(1));
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    private List<Integer> expected(int key) {
+        List<Integer> values = new ArrayList<>(contents.getOrDefault(key, Collections.emptyList()));
+        Collections.sort(values);
+        return values;
+    }
+
+    /** Check every key of contents, and that a scan of hf returns them all. */
+    private void check() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int key : contents.keySet())
+            assertEquals(expected(key), lookup(tid, key));
+        assertEquals(Collections.emptyList(), lookup(tid, Integer.MIN_VALUE));
+
+        int count = 0;
+        int total = 0;
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        for (List<Integer> values : contents.values())
+            total += values.size();
+        assertEquals(total, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Lookups find the tuples with a key after buckets have been split and
+     * the directory doubled past its first page.
+     */
+    @Test public void insertAndLookup() throws Exception {
+        BufferPool.setPageSize(128);
+        create();
+        Random r = new Random(7);
+        int n = 3000;
+        int[] values = new int[n];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            keys[i] = r.nextInt(800) - 400;
+        }
+        insert(values, keys);
+        check();
+        // 3000 tuples of 8 bytes are in at least 3000 / 14 buckets, so the
+        // directory has more than one page of 16 entries
+        assertTrue(hf.numPages() > 3000 / 14);
+    }
+
+    /**
+     * The tuples of a key that fill more than a bucket go to overflow pages,
+     * without splitting the bucket.
+     */
+    @Test public void duplicates() throws Exception {
+        create();
+        int n = 2000;
+        int[] values = new int[n];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            keys[i] = i < 1900 ? 42 : i;
+        }
+        insert(values, keys);
+        check();
+        // 1900 tuples of one key fill four pages of 500
+        assertTrue(hf.numPages() < 12);
+    }
+
+    /**
+     * Deleted tuples are not found, and an abort takes back inserts that
+     * split buckets.
+     */
+    @Test public void deleteAndAbort() throws Exception {
+        BufferPool.setPageSize(256);
+        create();
+        int n = 1000;
+        int[] values = new int[n];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            keys[i] = i % 300;
+        }
+        insert(values, keys);
+
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.indexIterator(t.getId(), new IndexPredicate(Predicate.Op.EQUALS, new IntField(7)));
+        it.open();
+        List<Tuple> found = new ArrayList<>();
+        while (it.hasNext())
+            found.add(it.next());
+        it.close();
+        for (Tuple tup : found)
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+        t.commit();
+        contents.remove(7);
+        check();
+
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++) {
+            Tuple tup = new Tuple(hf.getTupleDesc());
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(1000 + i));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        }
+        t.abort();
+        check();
+    }
+
+    /**
+     * CREATE INDEX ... USING HASH builds a hash index, which the planner uses
+     * for an equality filter but not for a range.
+     */
+    @Test public void hashIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, tuples, "c");
+        Database.getCatalog().addTable(table, "hash_idx_t");
+        TableStats.computeStatistics(table.getId());
+        new Parser().processNextStatement("CREATE INDEX hash_idx_t_c1 ON hash_idx_t USING HASH (c1);");
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.getId());
+        assertEquals(1, indexes.size());
+        SecondaryIndex index = indexes.get(0);
+        index.getFile().getFile().deleteOnExit();
+        assertTrue(index.getFile() instanceof HashFile);
+        assertFalse(index.isOrdered());
+
+        Parser p = new Parser();
+        Transaction t = new Transaction();
+        t.start();
+        int key = tuples.get(0).get(1);
+        int count = 0;
+        for (List<Integer> tup : tuples)
+            if (tup.get(1) == key)
+                count++;
+
+        LogicalPlan lp = p.generateLogicalPlan(t.getId(),
+                "SELECT * FROM hash_idx_t WHERE hash_idx_t.c1 = " + key + ";");
+        OpIterator plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexScan.class));
+        plan.open();
+        int found = 0;
+        while (plan.hasNext()) {
+            assertEquals(new IntField(key), plan.next().getField(1));
+            found++;
+        }
+        plan.close();
+        assertEquals(count, found);
+
+        lp = p.generateLogicalPlan(t.getId(), "SELECT * FROM hash_idx_t WHERE hash_idx_t.c1 < 5;");
+        plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertFalse(SystemTestUtil.uses(plan, IndexScan.class));
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
@@ -7,6 +7,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
@@ -50,6 +51,31 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.numPages() when new pages are preallocated:
+     * the file may grow past the pages in use, but numPages() only counts
+     * the pages that insertTuple has handed out, also once the file is
+     * opened again.
+     */
+    @Test public void numPagesIgnoresPreallocatedPages() throws Exception {
+        int perPage = BufferPool.getPageSize() * 8 / (empty.getTupleDesc().getSize() * 8 + 1);
+        for (int i = 0; i < perPage + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertTrue(empty.getFile().length() > 2L * BufferPool.getPageSize());
+
+        // the new page lives in the buffer pool, not only on disk
+        HeapPageId pid = new HeapPageId(empty.getId(), 1);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(perPage - 1, p.getNumEmptySlots());
+
+        // the preallocated pages are still zeros on disk
+        Database.getBufferPool().flushAllPages();
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
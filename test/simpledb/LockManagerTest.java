@@ -0,0 +1,182 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockManager.Mode;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class LockManagerTest {
+    private final LockManager lm = new LockManager();
+    private final PageId[] pages = { new HeapPageId(1, 0), new HeapPageId(1, 1), new HeapPageId(1, 2) };
+
+    /** Acquires a lock in a thread of its own and releases everything on
+        abort, or once it has the lock if it completes. */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+        final AtomicInteger aborted;
+        boolean complete = false;
+        volatile boolean acquired = false;
+
+        Acquirer(TransactionId tid, PageId pid, boolean exclusive, AtomicInteger aborted) {
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+            this.aborted = aborted;
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, exclusive);
+                acquired = true;
+                if (complete)
+                    lm.releaseAll(tid);
+            } catch (TransactionAbortedException e) {
+                aborted.incrementAndGet();
+                lm.releaseAll(tid);
+            }
+        }
+    }
+
+    /**
+     * Three transactions waiting for each other in a cycle: one of them is
+     * aborted and the others get their locks.
+     */
+    @Test public void threeWayCycle() throws Exception {
+        TransactionId[] tids = { new TransactionId(), new TransactionId(), new TransactionId() };
+        for (int i = 0; i < 3; i++)
+            lm.acquire(tids[i], pages[i], true);
+        AtomicInteger aborted = new AtomicInteger();
+        Acquirer[] waiters = new Acquirer[3];
+        for (int i = 0; i < 3; i++) {
+            waiters[i] = new Acquirer(tids[i], pages[(i + 1) % 3], true, aborted);
+            waiters[i].complete = true;
+            waiters[i].start();
+        }
+        for (Acquirer a : waiters)
+            a.join(5000);
+        // usually exactly one is aborted, but two can find the cycle at once
+        assertTrue(aborted.get() >= 1);
+        int acquired = 0;
+        for (Acquirer a : waiters)
+            if (a.acquired)
+                acquired++;
+        assertEquals(3 - aborted.get(), acquired);
+    }
+
+    /**
+     * Two readers of a page that both try to upgrade deadlock; one is
+     * aborted and the other upgrades.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, pages[0], false);
+        lm.acquire(t2, pages[0], false);
+        AtomicInteger aborted = new AtomicInteger();
+        Acquirer a1 = new Acquirer(t1, pages[0], true, aborted);
+        Acquirer a2 = new Acquirer(t2, pages[0], true, aborted);
+        a1.start();
+        a2.start();
+        a1.join(5000);
+        a2.join(5000);
+        assertEquals(1, aborted.get());
+        assertTrue(a1.acquired != a2.acquired);
+        TransactionId winner = a1.acquired ? t1 : t2;
+        assertTrue(lm.holdsLock(winner, pages[0]));
+    }
+
+    /**
+     * Releasing all locks of a transaction wakes up a waiter.
+     */
+    @Test public void releaseWakesWaiter() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, pages[0], true);
+        lm.acquire(t1, pages[1], false);
+        Acquirer a = new Acquirer(t2, pages[0], false, new AtomicInteger());
+        a.start();
+        Thread.sleep(50);
+        assertFalse(a.acquired);
+        lm.releaseAll(t1);
+        a.join(5000);
+        assertTrue(a.acquired);
+        assertFalse(lm.holdsLock(t1, pages[0]));
+        assertFalse(lm.holdsLock(t1, pages[1]));
+    }
+
+    /**
+     * Writers of different tuples of a page hold IX locks on it at the same
+     * time; a shared lock on the page waits for both.
+     */
+    @Test public void tuplesOfOnePage() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireTuple(t1, new RecordId(pages[0], 0), true);
+        lm.acquireTuple(t2, new RecordId(pages[0], 1), true);
+        assertEquals(Mode.IX, lm.getMode(t1, pages[0]));
+        assertEquals(Mode.IX, lm.getMode(t2, 1));
+        assertFalse(lm.tryAcquireTuple(t2, new RecordId(pages[0], 0)));
+        assertTrue(lm.tryAcquireTuple(t2, new RecordId(pages[0], 2)));
+
+        Acquirer reader = new Acquirer(new TransactionId(), pages[0], false, new AtomicInteger());
+        reader.start();
+        Thread.sleep(50);
+        assertFalse(reader.acquired);
+        lm.releaseAll(t1);
+        Thread.sleep(50);
+        assertFalse(reader.acquired);
+        lm.releaseAll(t2);
+        reader.join(5000);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Tuple locks past the threshold are traded for a table lock, which
+     * covers the tuples and keeps out writers of other pages.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(10);
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < 10; i++)
+            lm.acquireTuple(t1, new RecordId(pages[i % 2], i), false);
+        assertEquals(Mode.IS, lm.getMode(t1, 1));
+        lm.acquireTuple(t1, new RecordId(pages[0], 10), false);
+        assertEquals(Mode.S, lm.getMode(t1, 1));
+        assertNull(lm.getMode(t1, new RecordId(pages[0], 0)));
+
+        // the table lock covers further reads, but not writes
+        lm.acquireTuple(t1, new RecordId(pages[1], 11), false);
+        assertNull(lm.getMode(t1, new RecordId(pages[1], 11)));
+        lm.acquireTuple(t1, new RecordId(pages[1], 12), true);
+        assertEquals(Mode.SIX, lm.getMode(t1, 1));
+        assertEquals(Mode.X, lm.getMode(t1, new RecordId(pages[1], 12)));
+
+        Acquirer writer = new Acquirer(new TransactionId(), pages[2], true, new AtomicInteger());
+        writer.start();
+        Thread.sleep(50);
+        assertFalse(writer.acquired);
+        lm.releaseAll(t1);
+        writer.join(5000);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
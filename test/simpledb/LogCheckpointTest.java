@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class LogCheckpointTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insertAndCommit(int first, int count) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = first; i < first + count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        t.commit();
+    }
+
+    private int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A checkpoint does not write pages, and recovery still redoes the
+     * changes logged before it.
+     */
+    @Test public void checkpointDoesNotFlush() throws Exception {
+        insertAndCommit(0, 10);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData()[0]);
+        insertAndCommit(10, 10);
+
+        crash();
+        assertEquals(20, count());
+    }
+
+    /**
+     * Once enough log is written, the background checkpointer writes old
+     * pages back and checkpoints, which lets old log segments be deleted.
+     */
+    @Test public void backgroundCheckpoints() throws Exception {
+        Database.getLogFile().setSegmentSize(16 * 1024);
+        Database.getLogFile().setCheckpointInterval(4096);
+        for (int i = 0; i < 500; i++)
+            insertAndCommit(i * 10, 10);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Database.getLogFile().getCheckpointCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(Database.getLogFile().getCheckpointCount() >= 2);
+        assertTrue(Database.getLogFile().getLogSize() < 3 * 16 * 1024);
+
+        crash();
+        assertEquals(5000, count());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogCheckpointTest.class);
+    }
+}
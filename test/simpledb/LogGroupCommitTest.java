@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class LogGroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 50;
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+    }
+
+    /** Run COMMITS_PER_THREAD empty transactions on each of threads clients. */
+    private void runClients(int threads) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] clients = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            clients[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < COMMITS_PER_THREAD; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            clients[i].start();
+        }
+        start.countDown();
+        for (Thread client : clients)
+            client.join();
+        if (error.get() != null)
+            throw new RuntimeException(error.get());
+    }
+
+    /**
+     * A single client commits one transaction per force.
+     */
+    @Test public void singleClientForcesEveryCommit() throws Exception {
+        log.setGroupCommit(0, 1);
+        runClients(1);
+        assertEquals(COMMITS_PER_THREAD, log.getForceCount());
+    }
+
+    /**
+     * With no other transaction running, nothing can join the batch, so
+     * a commit should not wait out the window.
+     */
+    @Test public void loneCommitSkipsWindow() throws Exception {
+        log.setGroupCommit(2000000, THREADS);
+        long start = System.currentTimeMillis();
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("commit waited " + elapsed + "ms", elapsed < 1000);
+    }
+
+    /**
+     * Concurrent committers should share forces.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        log.setGroupCommit(5000, THREADS);
+        runClients(THREADS);
+        int commits = THREADS * COMMITS_PER_THREAD;
+        assertTrue("expected fewer forces than commits, got " + log.getForceCount(),
+                log.getForceCount() < commits / 2);
+    }
+
+    /**
+     * Many threads appending at once, across segment boundaries, should
+     * leave a log that recovery reads back completely.
+     */
+    @Test public void concurrentAppendersRecover() throws Exception {
+        final int threads = 32;
+        log.setSegmentSize(16 * 1024);
+        final File[] files = new File[threads];
+        final HeapFile[] tables = new HeapFile[threads];
+        for (int i = 0; i < threads; i++) {
+            files[i] = File.createTempFile("append", ".dat");
+            files[i].deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] clients = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final HeapFile table = tables[i];
+            clients[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < 20; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        for (int k = 0; k < 5; k++)
+                            Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                    Utility.getHeapTuple(j * 5 + k, 2));
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            clients[i].start();
+        }
+        start.countDown();
+        for (Thread client : clients)
+            client.join();
+        if (error.get() != null)
+            throw new RuntimeException(error.get());
+
+        Database.reset();
+        for (int i = 0; i < threads; i++)
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        Database.getLogFile().recover();
+        for (int i = 0; i < threads; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            SeqScan scan = new SeqScan(t.getId(), tables[i].getId(), "");
+            scan.open();
+            int n = 0;
+            while (scan.hasNext()) {
+                scan.next();
+                n++;
+            }
+            scan.close();
+            t.commit();
+            assertEquals(100, n);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogGroupCommitTest.class);
+    }
+}
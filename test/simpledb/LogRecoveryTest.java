@@ -0,0 +1,206 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeBuilder;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class LogRecoveryTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insert(Transaction t, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    /** Count the rows with first field >= min. */
+    private int count(int min) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext())
+            if (((IntField) scan.next().getField(0)).getValue() >= min)
+                n++;
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Committed inserts that were never written to the heap file, spread
+     * over several pages, are redone after a crash.
+     */
+    @Test public void redoCommittedPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 2000);
+        t.commit();
+        // NO-FORCE: the pages are still only in the buffer pool
+        assertEquals(0, hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData()[0]);
+
+        crash();
+        assertEquals(2000, count(0));
+        crash();
+        assertEquals(2000, count(0));
+    }
+
+    /**
+     * A rollback that was cut short by a crash is finished by recovery
+     * without undoing the same records twice.
+     */
+    @Test public void finishInterruptedRollback() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 10);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 100, 10);
+        Database.getBufferPool().flushAllPages();
+        // roll back without writing the ABORT record, as if we crashed
+        // right after the CLRs were written
+        Database.getLogFile().rollback(t2.getId());
+        Database.getBufferPool().flushAllPages();
+        insert(t2, 200, 10);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(10, count(0));
+        crash();
+        assertEquals(10, count(0));
+    }
+
+    /**
+     * A transaction whose records span several log segments is rolled back
+     * by recovery, which has to read the log backwards across segment
+     * boundaries.
+     */
+    @Test public void undoAcrossSegments() throws Exception {
+        Database.getLogFile().setSegmentSize(16 * 1024);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 10);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 20; i++) {
+            insert(t2, 100 + i * 200, 200);
+            Database.getBufferPool().flushAllPages();
+        }
+        assertTrue(Database.getLogFile().getLogSize() > 2 * 16 * 1024);
+
+        crash();
+        assertEquals(10, count(0));
+        crash();
+        assertEquals(10, count(0));
+    }
+
+    /**
+     * An index created on a table of a catalog file is added to the file, so
+     * that it is attached again after a crash and its pages are recovered.
+     */
+    @Test public void indexSurvivesRestart() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        File schema = new File(dir, "catalog.txt");
+        Files.write(schema.toPath(), "t (a int, b int)\n".getBytes(StandardCharsets.UTF_8));
+        new File(dir, "t.dat").createNewFile();
+        Database.getCatalog().loadSchema(schema.getPath());
+        int tableid = Database.getCatalog().getTableId("t");
+
+        Transaction t = new Transaction();
+        t.start();
+        BTreeBuilder.createIndex(t.getId(), tableid, 0, "t_a", BTreeBuilder.indexFile(tableid, "t_a"),
+                                 BTreeBuilder.DEFAULT_FILL_FACTOR);
+        t.commit();
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), tableid, Utility.getHeapTuple(i, 2));
+        t.commit();
+
+        Database.reset();
+        Database.getCatalog().loadSchema(schema.getPath());
+        Database.getLogFile().recover();
+        tableid = Database.getCatalog().getTableId("t");
+        assertEquals(1, Database.getCatalog().getIndexes(tableid).size());
+        SecondaryIndex index = Database.getCatalog().getIndexes(tableid).get(0);
+        assertTrue(index.isOrdered());
+
+        t = new Transaction();
+        t.start();
+        DbFileIterator it = index.lookup(t.getId(), new IndexPredicate(Predicate.Op.EQUALS, new IntField(700)));
+        it.open();
+        assertTrue(it.hasNext());
+        assertEquals(new IntField(700), it.next().getField(0));
+        assertFalse(it.hasNext());
+        it.close();
+        t.commit();
+    }
+
+    /**
+     * Recovery reports changes to a table that is not in the catalog, and
+     * finishes once the table is added back.
+     */
+    @Test public void unknownTableFailsRecovery() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+
+        Database.reset();
+        try {
+            Database.getLogFile().recover();
+            fail("recovered changes to a table that is not in the catalog");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not in the catalog"));
+        }
+        crash();
+        assertEquals(10, count(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecoveryTest.class);
+    }
+}
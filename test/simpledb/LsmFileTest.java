@@ -0,0 +1,243 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.LsmFile;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class LsmFileTest extends SimpleDbTestBase {
+    private File file;
+    private LsmFile lf;
+    /** the (value, key) tuples of lf */
+    private List<int[]> contents;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(1000);
+        contents = new ArrayList<>();
+        file = File.createTempFile("lsm", ".dat");
+        file.delete();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (lf != null)
+            lf.awaitBackgroundWork();
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles(
+                (d, name) -> name.startsWith(file.getName()));
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    /** Open the LSM file of two int fields keyed on the second one. */
+    private void open(int memtablePages) {
+        lf = new LsmFile(file, 1, Utility.getTupleDesc(2));
+        lf.setMemtablePages(memtablePages);
+        Database.getCatalog().addTable(lf, "lsm_t");
+    }
+
+    private Tuple tuple(int value, int key) {
+        Tuple t = new Tuple(lf.getTupleDesc());
+        t.setField(0, new IntField(value));
+        t.setField(1, new IntField(key));
+        return t;
+    }
+
+    /** Insert (value, key) into lf, 200 tuples per transaction. */
+    private void insert(int[] values, int[] keys) throws Exception {
+        for (int i = 0; i < values.length; i += 200) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = i; j < Math.min(values.length, i + 200); j++) {
+                Database.getBufferPool().insertTuple(t.getId(), lf.getId(), tuple(values[j], keys[j]));
+                contents.add(new int[] { values[j], keys[j] });
+            }
+            t.commit();
+        }
+    }
+
+    /** @return the (value, key) tuples an iterator returns, checking that they are in key order */
+    private static List<List<Integer>> read(DbFileIterator it) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        it.open();
+        int last = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(1)).getValue();
+            assertTrue(key >= last);
+            last = key;
+            tuples.add(Arrays.asList(((IntField) t.getField(0)).getValue(), key));
+        }
+        it.close();
+        return tuples;
+    }
+
+    /** @return the sorted (value, key) tuples of contents whose key satisfies op value */
+    private List<List<Integer>> expected(Predicate.Op op, int key) {
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int[] t : contents)
+            if (new IntField(t[1]).compare(op, new IntField(key)))
+                tuples.add(Arrays.asList(t[0], t[1]));
+        return SystemTestUtil.sortedOn(tuples, 1, 0);
+    }
+
+    /** Check a scan of lf and lookups and ranges of some keys. */
+    private void check(int... keys) throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(expected(Predicate.Op.GREATER_THAN_OR_EQ, Integer.MIN_VALUE),
+                SystemTestUtil.sortedOn(read(lf.iterator(tid)), 1, 0));
+        for (int key : keys)
+            for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                    Predicate.Op.GREATER_THAN_OR_EQ })
+                assertEquals(expected(op, key), SystemTestUtil.sortedOn(read(lf.indexIterator(tid,
+                        new IndexPredicate(op, new IntField(key)))), 1, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples inserted through many flushes and compactions are all found, in
+     * key order.
+     */
+    @Test public void insertFlushAndCompact() throws Exception {
+        BufferPool.setPageSize(256);
+        open(4);
+        Random r = new Random(3);
+        int n = 6000;
+        int[] values = new int[n];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            keys[i] = r.nextInt(2000);
+        }
+        insert(values, keys);
+        lf.awaitBackgroundWork();
+        assertTrue(lf.getFlushCount() > 10);
+        assertTrue(lf.getCompactionCount() > 0);
+        int[] levels = lf.levels();
+        assertTrue(levels.length > 1);
+        assertTrue(levels[0] < LsmFile.L0_COMPACTION_TRIGGER);
+        check(0, 7, 999, 1999, 5000);
+    }
+
+    /**
+     * Deleted tuples are gone whether their puts are in the memtable or in
+     * runs, and a lookup of a missing key skips runs by their Bloom filters.
+     */
+    @Test public void deleteAndLookup() throws Exception {
+        BufferPool.setPageSize(256);
+        open(4);
+        int n = 2000;
+        int[] values = new int[n];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            keys[i] = (i * 7) % 500;
+        }
+        insert(values, keys);
+        lf.awaitBackgroundWork();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int key : new int[] { 3, 250, 499 }) {
+            List<Tuple> found = new ArrayList<>();
+            DbFileIterator it = lf.indexIterator(t.getId(), new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+            it.open();
+            while (it.hasNext())
+                found.add(it.next());
+            it.close();
+            assertEquals(4, found.size());
+            for (Tuple tup : found)
+                Database.getBufferPool().deleteTuple(t.getId(), tup);
+        }
+        t.commit();
+        contents.removeIf(tup -> tup[1] == 3 || tup[1] == 250 || tup[1] == 499);
+        check(3, 250, 499, 100);
+
+        lf.flushMemtable();
+        lf.awaitBackgroundWork();
+        check(3, 250, 499, 100);
+
+        long skips = lf.getBloomSkips();
+        TransactionId tid = new TransactionId();
+        for (int key = 1000; key < 1100; key++)
+            assertEquals(0, read(lf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)))).size());
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(lf.getBloomSkips() > skips);
+    }
+
+    /**
+     * An aborted transaction's puts and tombstones are not in the file, even
+     * after its memtable is flushed.
+     */
+    @Test public void abort() throws Exception {
+        open(8);
+        insert(new int[] { 1, 2, 3 }, new int[] { 10, 20, 30 });
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(t.getId(), lf.getId(), tuple(i, 1000 + i));
+        DbFileIterator it = lf.indexIterator(t.getId(), new IndexPredicate(Predicate.Op.EQUALS, new IntField(20)));
+        it.open();
+        Tuple found = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(t.getId(), found);
+        t.abort();
+        check(20, 1000);
+
+        lf.flushMemtable();
+        lf.awaitBackgroundWork();
+        check(20, 1000);
+    }
+
+    /**
+     * The file is opened again from its manifest, with the records of the
+     * memtable read back from its pages.
+     */
+    @Test public void reopen() throws Exception {
+        BufferPool.setPageSize(512);
+        open(4);
+        int n = 1500;
+        int[] values = new int[n];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            keys[i] = n - i;
+        }
+        insert(values, keys);
+        lf.awaitBackgroundWork();
+        Database.getBufferPool().flushAllPages();
+
+        Database.resetBufferPool(1000);
+        open(4);
+        check(1, 750, 1500);
+        insert(new int[] { -1 }, new int[] { 750 });
+        check(750);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LsmFileTest.class);
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageCodecTest extends SimpleDbTestBase {
+
+    private static byte[] encode(Page p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageCodec.writePage(new DataOutputStream(bytes), p);
+        return bytes.toByteArray();
+    }
+
+    private static Page decode(byte[] data) throws IOException {
+        return PageCodec.readPage(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Varints should round trip for boundary values.
+     */
+    @Test public void varints() throws IOException {
+        int[] ints = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+        long[] longs = { 0, 1, 127, 128, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i : ints)
+            PageCodec.writeSignedVarInt(out, i);
+        for (long l : longs)
+            PageCodec.writeVarLong(out, l);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i : ints)
+            assertEquals(i, PageCodec.readSignedVarInt(in));
+        for (long l : longs)
+            assertEquals(l, PageCodec.readVarLong(in));
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * A HeapPage image should only carry a few bytes on top of the page data.
+     */
+    @Test public void heapPage() throws Exception {
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 3), HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+
+        byte[] encoded = encode(page);
+        assertTrue(encoded.length - BufferPool.getPageSize() < 16);
+
+        Page decoded = decode(encoded);
+        assertTrue(decoded instanceof HeapPage);
+        assertEquals(page.getId(), decoded.getId());
+        assertArrayEquals(page.getPageData(), decoded.getPageData());
+    }
+
+    /**
+     * BTree leaf pages carry the key of their tree in the log.
+     */
+    @Test public void btreeLeafPage() throws Exception {
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 1);
+        BTreePageId pid = new BTreePageId(bf.getId(), 2, BTreePageId.LEAF);
+        BTreeLeafPage page = BTreeUtility.createRandomLeafPage(pid, 2, 1, 0, BTreeUtility.MAX_RAND_VALUE);
+
+        Page decoded = decode(encode(page));
+        assertTrue(decoded instanceof BTreeLeafPage);
+        assertEquals(pid, decoded.getId());
+        assertArrayEquals(page.getPageData(), decoded.getPageData());
+    }
+
+    /**
+     * Decoding a BTree page does not look up its file: here the table id
+     * belongs to a HeapFile with the same tuples.
+     */
+    @Test public void btreePageWithoutItsFile() throws Exception {
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        BTreePageId pid = new BTreePageId(hf.getId(), 2, BTreePageId.LEAF);
+        BTreeLeafPage page = BTreeUtility.createRandomLeafPage(pid, 2, 1, 0, BTreeUtility.MAX_RAND_VALUE);
+
+        Page decoded = decode(encode(page));
+        assertTrue(decoded instanceof BTreeLeafPage);
+        assertArrayEquals(page.getPageData(), decoded.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecTest.class);
+    }
+}
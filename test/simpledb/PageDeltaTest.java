@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private static PageDelta roundTrip(PageDelta d) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        d.write(new DataOutputStream(bytes));
+        return PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static int encodedSize(PageDelta d) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        d.write(new DataOutputStream(bytes));
+        return bytes.size();
+    }
+
+    /**
+     * Inserting and deleting heap tuples should produce small deltas that
+     * redo and undo exactly.
+     */
+    @Test public void heapPage() throws Exception {
+        File f = File.createTempFile("delta", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        Tuple first = Utility.getHeapTuple(1, 2);
+        page.insertTuple(first);
+        page.setBeforeImage();
+        byte[] before = page.getPageData();
+
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        page.deleteTuple(first);
+        byte[] after = page.getPageData();
+
+        PageDelta d = roundTrip(PageDelta.diff(page.getBeforeImage(), page));
+        assertEquals(2, d.getOps().size());
+        assertTrue(encodedSize(d) < 64);
+
+        d.undo(page);
+        assertArrayEquals(before, page.getPageData());
+        d.redo(page);
+        assertArrayEquals(after, page.getPageData());
+    }
+
+    /**
+     * Changes to BTree leaf slots and sibling pointers should redo and undo
+     * exactly.
+     */
+    @Test public void btreeLeafPage() throws Exception {
+        File f = File.createTempFile("delta", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        BTreePageId pid = new BTreePageId(bf.getId(), 2, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+        for (int i = 0; i < 10; i += 2)
+            page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { i, i }));
+        page.setBeforeImage();
+        byte[] before = page.getPageData();
+
+        page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 5, 5 }));
+        page.setRightSiblingId(new BTreePageId(bf.getId(), 3, BTreePageId.LEAF));
+        byte[] after = page.getPageData();
+
+        PageDelta d = roundTrip(PageDelta.diff(page.getBeforeImage(), page));
+        assertFalse(d.isEmpty());
+
+        d.undo(page);
+        assertArrayEquals(before, page.getPageData());
+        d.redo(page);
+        assertArrayEquals(after, page.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
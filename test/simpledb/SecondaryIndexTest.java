@@ -0,0 +1,553 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.BTreeBuilder;
+import simpledb.index.HashFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private HeapFile table;
+    private List<List<Integer>> tuples;
+    private SecondaryIndex index;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, tuples, "c");
+        Database.getCatalog().addTable(table, "sec_t");
+        TableStats.computeStatistics(table.getId());
+        File f = File.createTempFile("secidx", ".dat");
+        f.deleteOnExit();
+        Transaction t = new Transaction();
+        t.start();
+        index = BTreeBuilder.createIndex(t.getId(), table.getId(), 1, "sec_t_c1", f, 0.9);
+        t.commit();
+    }
+
+    /** @return the sorted first fields of the tuples whose second field is key */
+    private List<Integer> expected(int key) {
+        List<Integer> values = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            if (t.get(1) == key)
+                values.add(t.get(0));
+        Collections.sort(values);
+        return values;
+    }
+
+    /** @return the sorted first fields of the tuples an iterator returns */
+    private List<Integer> firstFields(OpIterator it) throws Exception {
+        List<Integer> values = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    private List<Integer> lookup(TransactionId tid, int key) throws Exception {
+        return firstFields(new IndexScan(tid, index,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)), "sec_t"));
+    }
+
+    /**
+     * An index scan returns the tuples with the key.
+     */
+    @Test public void indexScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int key : new int[] { tuples.get(0).get(1), tuples.get(1).get(1), 501 })
+            assertEquals(expected(key), lookup(tid, key));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts and deletes on the table change the index in the same
+     * transaction, and an abort takes the changes back.
+     */
+    @Test public void maintained() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(table.getTupleDesc());
+        tup.setField(0, new IntField(-1));
+        tup.setField(1, new IntField(-7));
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+        assertEquals(Collections.singletonList(-1), lookup(t.getId(), -7));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().deleteTuple(t.getId(), tup);
+        assertEquals(Collections.emptyList(), lookup(t.getId(), -7));
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(Collections.singletonList(-1), lookup(t.getId(), -7));
+        Database.getBufferPool().deleteTuple(t.getId(), tup);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(Collections.emptyList(), lookup(t.getId(), -7));
+        t.commit();
+    }
+
+    /**
+     * The optimizer reads the table through the index for an equality
+     * filter on the indexed field, also for a read-only transaction, which
+     * reads a snapshot.
+     */
+    @Test public void optimizerUsesIndex() throws Exception {
+        int key = tuples.get(0).get(1);
+        String sql = "SELECT * FROM sec_t WHERE sec_t.c1 = " + key + ";";
+        Parser p = new Parser();
+
+        Transaction t = new Transaction();
+        t.start();
+        LogicalPlan lp = p.generateLogicalPlan(t.getId(), sql);
+        OpIterator plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexScan.class));
+        assertEquals(expected(key), firstFields(plan));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        lp = p.generateLogicalPlan(t.getId(), "SELECT * FROM sec_t WHERE sec_t.c0 = " + key + ";");
+        assertFalse(SystemTestUtil.uses(lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false), IndexScan.class));
+        t.commit();
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        lp = p.generateLogicalPlan(reader.getId(), sql);
+        plan = lp.physicalPlan(reader.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexScan.class));
+        assertEquals(expected(key), firstFields(plan));
+        reader.commit();
+    }
+
+    /**
+     * A SELECT on its own, which the Parser runs as a read-only
+     * transaction, reads the table through the index.
+     */
+    @Test public void parserQueryUsesIndex() throws Exception {
+        int key = tuples.get(0).get(1);
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, "UTF-8"));
+        try {
+            new Parser().processNextStatement("SELECT * FROM sec_t WHERE sec_t.c1 = " + key + ";");
+        } finally {
+            System.setOut(out);
+        }
+        String printed = captured.toString("UTF-8");
+        assertTrue(printed, printed.contains("index_scan(sec_t)"));
+        assertTrue(printed, printed.contains(" " + expected(key).size() + " rows."));
+    }
+
+    /** Insert (-1, key) into the table and commit, in another thread. */
+    private Future<?> insertConcurrently(ExecutorService pool, int key) {
+        return pool.submit(() -> {
+            Transaction t = new Transaction();
+            t.start();
+            Tuple tup = new Tuple(table.getTupleDesc());
+            tup.setField(0, new IntField(-1));
+            tup.setField(1, new IntField(key));
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+            t.commit();
+            return null;
+        });
+    }
+
+    /**
+     * A writer of the key a read-only transaction is looking up finishes
+     * while the lookup is still open, and the lookup does not see it.
+     */
+    @Test public void snapshotLookupDoesNotBlockWriters() throws Exception {
+        int key = tuples.get(0).get(1);
+        Transaction reader = new Transaction(true);
+        reader.start();
+        IndexScan scan = new IndexScan(reader.getId(), index,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)), "sec_t");
+        scan.open();
+        List<Integer> found = new ArrayList<>();
+        assertTrue(scan.hasNext());
+        found.add(((IntField) scan.next().getField(0)).getValue());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            insertConcurrently(pool, key).get(10, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        while (scan.hasNext())
+            found.add(((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        reader.commit();
+        Collections.sort(found);
+        assertEquals(expected(key), found);
+    }
+
+    /**
+     * A read-only transaction looking up a key whose entries a writer has
+     * locked does not wait for the writer.
+     */
+    @Test public void snapshotLookupDuringWrite() throws Exception {
+        int key = tuples.get(0).get(1);
+        Transaction writer = new Transaction();
+        writer.start();
+        Tuple tup = new Tuple(table.getTupleDesc());
+        tup.setField(0, new IntField(-1));
+        tup.setField(1, new IntField(key));
+        Database.getBufferPool().insertTuple(writer.getId(), table.getId(), tup);
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(expected(key), pool.submit(() -> lookup(reader.getId(), key)).get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        reader.commit();
+        writer.commit();
+    }
+
+    /**
+     * A read-only transaction finds the tuples of its snapshot through the
+     * index, also those whose entries were deleted since, once each, and
+     * not the ones inserted since.
+     */
+    @Test public void snapshotLookup() throws Exception {
+        int key = tuples.get(0).get(1);
+        Transaction reader = new Transaction(true);
+        reader.start();
+
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        List<Tuple> deleted = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tup = scan.next();
+            if (((IntField) tup.getField(1)).getValue() == key)
+                deleted.add(tup);
+        }
+        scan.close();
+        for (Tuple tup : deleted)
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+        // may take the slot of a deleted tuple, with the same key
+        Tuple tup = new Tuple(table.getTupleDesc());
+        tup.setField(0, new IntField(-1));
+        tup.setField(1, new IntField(key));
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+        t.commit();
+
+        assertEquals(expected(key), lookup(reader.getId(), key));
+        reader.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(Collections.singletonList(-1), lookup(t.getId(), key));
+        t.commit();
+    }
+
+    /**
+     * CREATE INDEX builds the index and attaches it to the table.
+     */
+    @Test public void createIndexStatement() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX sec_t_c0 ON sec_t (c0) WITH (FILLFACTOR = 70);");
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.getId());
+        assertEquals(2, indexes.size());
+        SecondaryIndex created = indexes.get(1);
+        assertEquals("sec_t_c0", Database.getCatalog().getTableName(created.getId()));
+        assertEquals(0, created.keyField());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = created.getFile().iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(tuples.size(), count);
+        created.getFile().getFile().delete();
+    }
+
+    /** @return the first field of each tuple of the table, by RecordId */
+    private Map<RecordId, Integer> tableContents() throws Exception {
+        Map<RecordId, Integer> contents = new HashMap<>();
+        Transaction t = new Transaction(true);
+        t.start();
+        DbFileIterator it = table.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            contents.put(tup.getRecordId(), ((IntField) tup.getField(0)).getValue());
+        }
+        it.close();
+        t.commit();
+        return contents;
+    }
+
+    /** @return the key of each entry of an index on the first field, by the RecordId it points to */
+    private Map<RecordId, Integer> indexContents(SecondaryIndex created) throws Exception {
+        Map<RecordId, Integer> contents = new HashMap<>();
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = created.getFile().iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple entry = it.next();
+            assertNull(contents.put(created.recordIdOf(entry), ((IntField) entry.getField(0)).getValue()));
+        }
+        it.close();
+        t.commit();
+        return contents;
+    }
+
+    /**
+     * Build an index on the first field while a writer is changing the
+     * table: the build does not wait for the writer, and the index ends up
+     * with the changes the writer made during the build.
+     */
+    private void buildDuringWrites(boolean hash) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction writer = new Transaction();
+        writer.start();
+        Tuple tup = new Tuple(table.getTupleDesc());
+        tup.setField(0, new IntField(-2));
+        tup.setField(1, new IntField(-8));
+        bp.insertTuple(writer.getId(), table.getId(), tup);
+
+        File f = File.createTempFile("secidx", ".dat");
+        f.deleteOnExit();
+        Transaction builder = new Transaction();
+        builder.start();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<SecondaryIndex> build = pool.submit(() -> hash
+                    ? HashFile.createIndex(builder.getId(), table.getId(), new int[] { 0 }, new int[0], "sec_t_c0", f)
+                    : BTreeBuilder.createIndex(builder.getId(), table.getId(), 0, "sec_t_c0", f, 0.9));
+            // the index is written while the writer still holds the table
+            for (int i = 0; i < 1000 && f.length() == 0; i++)
+                Thread.sleep(10);
+            assertTrue(f.length() > 0);
+
+            DbFileIterator it = table.iterator(writer.getId());
+            it.open();
+            Tuple victim = it.next();
+            it.close();
+            bp.deleteTuple(writer.getId(), victim);
+            writer.commit();
+
+            SecondaryIndex created = build.get(10, TimeUnit.SECONDS);
+            builder.commit();
+            Map<RecordId, Integer> contents = tableContents();
+            assertEquals(tuples.size(), contents.size());
+            assertEquals(contents, indexContents(created));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A B+ tree index built by CREATE INDEX catches up with the changes
+     * made to the table during the build.
+     */
+    @Test public void createIndexOnline() throws Exception {
+        buildDuringWrites(false);
+    }
+
+    /**
+     * So does a hash index.
+     */
+    @Test public void createHashIndexOnline() throws Exception {
+        buildDuringWrites(true);
+    }
+
+    /**
+     * An index on two fields finds the tuples with a value of the first one.
+     */
+    @Test public void compositeIndex() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX sec_t_c1_c0 ON sec_t (c1, c0);");
+        SecondaryIndex composite = Database.getCatalog().getIndexes(table.getId()).get(1);
+        composite.getFile().getFile().deleteOnExit();
+        assertArrayEquals(new int[] { 1, 0 }, composite.keyFields());
+
+        TransactionId tid = new TransactionId();
+        int key = tuples.get(0).get(1);
+        assertEquals(expected(key), firstFields(new IndexScan(tid, composite,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)), "sec_t")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An index that includes the other field answers a query on both fields
+     * from its entries, with the tuples of the table, including those just
+     * inserted.
+     */
+    @Test public void coveringIndex() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX sec_t_cover ON sec_t (c1) INCLUDE (c0);");
+        SecondaryIndex covering = Database.getCatalog().getIndexes(table.getId()).get(1);
+        covering.getFile().getFile().deleteOnExit();
+        assertArrayEquals(new int[] { 1, 0 }, covering.coveredFields());
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(table.getTupleDesc());
+        tup.setField(0, new IntField(-1));
+        tup.setField(1, new IntField(-7));
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+        OpIterator scan = new IndexOnlyScan(t.getId(), covering,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(-7)), "sec_t");
+        assertEquals("sec_t.c1", scan.getTupleDesc().getFieldName(0));
+        assertEquals("sec_t.c0", scan.getTupleDesc().getFieldName(1));
+        scan.open();
+        assertTrue(scan.hasNext());
+        Tuple found = scan.next();
+        assertEquals(new IntField(-7), found.getField(0));
+        assertEquals(new IntField(-1), found.getField(1));
+        assertFalse(scan.hasNext());
+        scan.close();
+        t.abort();
+
+        int key = tuples.get(0).get(1);
+        Parser p = new Parser();
+        t = new Transaction();
+        t.start();
+        LogicalPlan lp = p.generateLogicalPlan(t.getId(),
+                "SELECT sec_t.c0 FROM sec_t WHERE sec_t.c1 = " + key + ";");
+        OpIterator plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexOnlyScan.class));
+        assertEquals(expected(key), firstFields(plan));
+
+        // the index does not have every field
+        lp = p.generateLogicalPlan(t.getId(), "SELECT * FROM sec_t WHERE sec_t.c1 = " + key + ";");
+        plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexScan.class));
+        assertFalse(SystemTestUtil.uses(plan, IndexOnlyScan.class));
+        t.commit();
+    }
+
+    /**
+     * A query ordered by the field of a covering index reads the index in that
+     * order, backwards for DESC, instead of sorting; a range on the field is
+     * read between its bounds.
+     */
+    @Test public void orderByFromIndex() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX sec_t_ordered ON sec_t (c1) INCLUDE (c0);");
+        Database.getCatalog().getIndexes(table.getId()).get(1).getFile().getFile().deleteOnExit();
+
+        Parser p = new Parser();
+        Transaction t = new Transaction();
+        t.start();
+        LogicalPlan lp = p.generateLogicalPlan(t.getId(),
+                "SELECT sec_t.c1, sec_t.c0 FROM sec_t ORDER BY sec_t.c1 DESC;");
+        OpIterator plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexOnlyScan.class));
+        assertFalse(SystemTestUtil.uses(plan, OrderBy.class));
+        List<Integer> keys = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            keys.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> tup : tuples)
+            expected.add(tup.get(1));
+        expected.sort(Collections.reverseOrder());
+        assertEquals(expected, keys);
+
+        lp = p.generateLogicalPlan(t.getId(), "SELECT sec_t.c1, sec_t.c0 FROM sec_t "
+                + "WHERE sec_t.c1 > 100 AND sec_t.c1 <= 200 ORDER BY sec_t.c1;");
+        plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexOnlyScan.class));
+        assertFalse(SystemTestUtil.uses(plan, OrderBy.class));
+        keys.clear();
+        plan.open();
+        while (plan.hasNext())
+            keys.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        expected.clear();
+        for (List<Integer> tup : tuples)
+            if (tup.get(1) > 100 && tup.get(1) <= 200)
+                expected.add(tup.get(1));
+        Collections.sort(expected);
+        assertEquals(expected, keys);
+
+        // the order of the other field is not that of any index
+        lp = p.generateLogicalPlan(t.getId(), "SELECT sec_t.c1, sec_t.c0 FROM sec_t ORDER BY sec_t.c0 DESC;");
+        plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, OrderBy.class));
+        t.commit();
+    }
+
+    /**
+     * An ORDER BY on the field of an ordered index that does not cover the
+     * query reads the whole table in the order of the index, without a sort.
+     */
+    @Test public void orderByFromIndexScan() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        LogicalPlan lp = new Parser().generateLogicalPlan(t.getId(),
+                "SELECT * FROM sec_t ORDER BY sec_t.c1 DESC;");
+        OpIterator plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+        assertTrue(SystemTestUtil.uses(plan, IndexScan.class));
+        assertFalse(SystemTestUtil.uses(plan, IndexOnlyScan.class));
+        assertFalse(SystemTestUtil.uses(plan, OrderBy.class));
+        List<Integer> keys = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            keys.add(((IntField) plan.next().getField(1)).getValue());
+        plan.close();
+        t.commit();
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> tup : tuples)
+            expected.add(tup.get(1));
+        expected.sort(Collections.reverseOrder());
+        assertEquals(expected, keys);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 10; i++)
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        t.commit();
+    }
+
+    /** @return the sorted values of the first field */
+    private List<Integer> scan(Transaction t) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), empty.getId(), "");
+        scan.open();
+        List<Integer> values = new ArrayList<>();
+        while (scan.hasNext())
+            values.add(((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    private List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            values.add(i);
+        return values;
+    }
+
+    /**
+     * A read-only transaction neither waits for a writer that has not
+     * committed nor sees its changes, and it keeps its snapshot when the
+     * writer commits.
+     */
+    @Test(timeout = 10000) public void readersDoNotBlock() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        Transaction reader = new Transaction(true);
+        reader.start();
+
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), empty.getId(), "");
+        scan.open();
+        Tuple first = scan.next();
+        scan.close();
+        t.commit();
+        bp.deleteTuple(writer.getId(), first);
+        bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(10, 2));
+        assertEquals(range(0, 10), scan(reader));
+
+        writer.commit();
+        assertEquals(range(0, 10), scan(reader));
+        assertFalse(bp.holdsLock(reader.getId(), new HeapPageId(empty.getId(), 0)));
+        reader.commit();
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(range(1, 11), scan(later));
+        later.commit();
+    }
+
+    /**
+     * A snapshot taken while a writer runs does not see the writer's
+     * changes after it aborts either.
+     */
+    @Test public void abortedWriter() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        for (int i = 10; i < 20; i++)
+            bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        Transaction reader = new Transaction(true);
+        reader.start();
+        writer.abort();
+        assertEquals(range(0, 10), scan(reader));
+        reader.commit();
+    }
+
+    /**
+     * Older versions are kept while a snapshot may need them and collected
+     * when it ends.
+     */
+    @Test public void garbageCollection() throws Exception {
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        Transaction reader = new Transaction(true);
+        reader.start();
+        for (int round = 0; round < 3; round++) {
+            Transaction writer = new Transaction();
+            writer.start();
+            bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(100 + round, 2));
+            writer.commit();
+        }
+        assertEquals(3, bp.getVersionStore().getVersionCount());
+        assertEquals(range(0, 10), scan(reader));
+        reader.commit();
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    /**
+     * A read-only transaction cannot change tuples.
+     */
+    @Test public void readOnly() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        try {
+            bp.insertTuple(reader.getId(), empty.getId(), Utility.getHeapTuple(10, 2));
+            fail("a read-only transaction inserted a tuple");
+        } catch (DbException expected) {
+        }
+        reader.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogShipper;
+import simpledb.storage.Standby;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class StandbyTest extends SimpleDbTestBase {
+    private HeapFile primary;
+    private HeapFile copy;
+    private File shipDir;
+    private File state;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("primary", ".dat");
+        f.deleteOnExit();
+        primary = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        File c = File.createTempFile("standby", ".dat");
+        c.deleteOnExit();
+        copy = Utility.createEmptyHeapFile(c.getAbsolutePath(), 2);
+        shipDir = Files.createTempDirectory("ship").toFile();
+        shipDir.deleteOnExit();
+        state = new File(shipDir, "standby.state");
+        Database.getLogFile().setSegmentSize(16 * 1024);
+    }
+
+    private Standby standby() throws Exception {
+        return new Standby(shipDir, state, id -> {
+            assertEquals(primary.getId(), id);
+            return copy.getId();
+        });
+    }
+
+    private void insert(int first, int count, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = first; i < first + count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), primary.getId(), Utility.getHeapTuple(i, 2));
+        if (commit)
+            t.commit();
+        else
+            t.abort();
+    }
+
+    private int count(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * The standby applies committed transactions, spread over several log
+     * segments, and not aborted ones; its copy is read-only.
+     */
+    @Test public void appliesCommitted() throws Exception {
+        LogShipper shipper = new LogShipper(Database.getLogFile(), shipDir);
+        Standby standby = standby();
+
+        for (int i = 0; i < 20; i++)
+            insert(i * 200, 200, true);
+        insert(10000, 50, false);
+        shipper.ship();
+        assertEquals(0, shipper.getLagBytes());
+        assertTrue(shipper.getShippedLSN() > 2 * 16 * 1024);
+
+        assertEquals(20, standby.catchUp());
+        assertEquals(4000, count(copy));
+        assertEquals(0, standby.getLagBytes());
+        assertEquals(0, standby.getLagMillis());
+        assertEquals(shipper.getShippedLSN(), standby.getAppliedLSN());
+        assertTrue(standby.getAppliedRecords() > 0);
+
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            Database.getBufferPool().insertTuple(t.getId(), copy.getId(), Utility.getHeapTuple(1, 2));
+            fail("the standby's copy should be read-only");
+        } catch (DbException expected) {
+        }
+        t.commit();
+        standby.close();
+        shipper.close();
+    }
+
+    /**
+     * A restarted standby resumes from its state file, including a
+     * transaction that was running when it stopped.
+     */
+    @Test public void resumeFromState() throws Exception {
+        LogShipper shipper = new LogShipper(Database.getLogFile(), shipDir);
+        Standby standby = standby();
+        insert(0, 10, true);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 100; i < 110; i++)
+            Database.getBufferPool().insertTuple(t.getId(), primary.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        shipper.ship();
+        assertEquals(1, standby.catchUp());
+        standby.close();
+
+        t.commit();
+        insert(200, 10, true);
+        shipper.ship();
+        standby = standby();
+        assertEquals(0, standby.getAppliedTransactions());
+        assertEquals(2, standby.catchUp());
+        assertEquals(30, count(copy));
+        standby.close();
+        shipper.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StandbyTest.class);
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+
+public class TupleLockingTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private List<Tuple> scan(Transaction t) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), empty.getId(), "");
+        scan.open();
+        List<Tuple> tuples = new ArrayList<>();
+        while (scan.hasNext())
+            tuples.add(scan.next());
+        scan.close();
+        return tuples;
+    }
+
+    /**
+     * Two transactions change the same page without waiting for each
+     * other; aborting one undoes only its own changes, and an insert does
+     * not reuse the slot of a delete that has not committed.
+     */
+    @Test public void writersShareAPage() throws Exception {
+        Transaction t0 = new Transaction();
+        t0.start();
+        for (int i = 0; i < 3; i++)
+            bp.insertTuple(t0.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        t0.commit();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Tuple first = scan(t1).get(0);
+        bp.deleteTuple(t1.getId(), first);
+        Tuple mine = Utility.getHeapTuple(20, 2);
+        bp.insertTuple(t2.getId(), empty.getId(), mine);
+        bp.insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(10, 2));
+
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0);
+        assertEquals(p0, mine.getRecordId().getPageId());
+        assertNotEquals(first.getRecordId(), mine.getRecordId());
+        assertTrue(bp.holdsLock(t1.getId(), p0));
+        assertTrue(bp.holdsLock(t2.getId(), p0));
+
+        t1.abort();
+        t2.commit();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        List<Tuple> tuples = scan(t3);
+        t3.commit();
+        assertEquals(4, tuples.size());
+        List<RecordId> rids = new ArrayList<>();
+        for (Tuple t : tuples)
+            rids.add(t.getRecordId());
+        assertTrue(rids.contains(first.getRecordId()));
+        assertTrue(rids.contains(mine.getRecordId()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleLockingTest.class);
+    }
+}
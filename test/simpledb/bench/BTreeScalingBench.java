@@ -0,0 +1,109 @@
+package simpledb.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how B+ tree throughput scales with the number of clients under
+ * the lock-coupled descent of BTreeFile.  Each operation is its own
+ * transaction on a random key of a two-column tree:
+ * <ul>
+ * <li>read: an equality lookup,</li>
+ * <li>mixed: 80% lookups, 10% inserts and 10% deletes,</li>
+ * <li>write: half inserts and half deletes, so leaves split and merge.</li>
+ * </ul>
+ * Each workload starts from a fresh database and tree.  Commits still
+ * force the log, so point bench.dir at a fast device (or a tmpfs) to see
+ * the tree rather than the disk.  Usage:
+ * <pre>
+ *   ant bench -Dbench=BTreeScaling [-Dbench.args="1 2 4 8 16"] [-Dbench.dir=/dev/shm/simpledb]
+ * </pre>
+ */
+public class BTreeScalingBench {
+
+    private static final int ROWS = 50000;
+    private static final int MAX_KEY = 1 << 20;
+    private static final int PAGES = 1000;
+
+    private enum Workload {
+        READ(100, 0), MIXED(80, 10), WRITE(0, 50);
+
+        /** percentage of lookups */
+        final int lookups;
+        /** percentage of inserts; the rest are deletes */
+        final int inserts;
+
+        Workload(int lookups, int inserts) {
+            this.lookups = lookups;
+            this.inserts = inserts;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> counts = BenchRunner.clientCounts(args, 1, 2, 4, 8, 16);
+        BenchRunner.printHeader("BTreeScalingBench");
+        for (Workload w : Workload.values()) {
+            System.out.println(w.name().toLowerCase() + ":");
+            for (int clients : counts) {
+                BTreeFile bf = freshTree();
+                // let the JIT and the buffer pool warm up before measuring
+                BenchRunner.run(clients, BenchRunner.DEFAULT_MILLIS / 5, (c, rnd) -> operation(bf, w, rnd));
+                System.out.println("  " + BenchRunner.run(clients, BenchRunner.DEFAULT_MILLIS,
+                        (c, rnd) -> operation(bf, w, rnd)));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static BTreeFile freshTree() throws Exception {
+        Database.reset();
+        Database.resetBufferPool(PAGES);
+        // force each commit at once instead of waiting for a batch, so the
+        // numbers are not those of the group commit window
+        Database.getLogFile().setGroupCommit(0, 1);
+        return BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_KEY, null, null, 0);
+    }
+
+    /** Run one operation of workload w in its own transaction. */
+    private static void operation(BTreeFile bf, Workload w, Random rnd) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        int p = rnd.nextInt(100);
+        IntField key = new IntField(rnd.nextInt(MAX_KEY));
+        try {
+            if (p < w.lookups) {
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+                it.open();
+                while (it.hasNext())
+                    it.next();
+                it.close();
+            } else if (p < w.lookups + w.inserts) {
+                bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { key.getValue(), 0 }));
+            } else {
+                // delete the first tuple at or after a random key
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, key));
+                it.open();
+                Tuple t = it.hasNext() ? it.next() : null;
+                it.close();
+                if (t != null)
+                    bp.deleteTuple(tid, t);
+            }
+            bp.transactionComplete(tid);
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Runs one operation in a loop on a number of client threads for a fixed
+ * time and counts how many completed and how many were aborted.  The
+ * benchmarks in this package are plain main() programs rather than tests,
+ * so their numbers can be collected on whatever hardware is at hand:
+ * <pre>
+ *   ant bench -Dbench=BTreeScaling -Dbench.args="1 2 4 8 16"
+ * </pre>
+ * runs simpledb.bench.BTreeScalingBench with the listed client counts, in
+ * bench.dir (bin/scratch by default), where the log files go.
+ */
+final class BenchRunner {
+
+    /** How long each configuration runs unless the benchmark says otherwise. */
+    static final long DEFAULT_MILLIS = 5000;
+
+    /** One operation of a client. */
+    interface Operation {
+        /**
+         * Run one operation.
+         * @param client the number of the calling client, from 0
+         * @param rnd the calling client's random number generator
+         * @throws TransactionAbortedException if the operation was aborted;
+         *   it is counted as an abort and the client goes on with the next one
+         */
+        void run(int client, Random rnd) throws Exception;
+    }
+
+    /** What one run measured. */
+    static final class Result {
+        final int clients;
+        final long ops;
+        final long aborts;
+        final long nanos;
+
+        Result(int clients, long ops, long aborts, long nanos) {
+            this.clients = clients;
+            this.ops = ops;
+            this.aborts = aborts;
+            this.nanos = nanos;
+        }
+
+        double opsPerSecond() {
+            return ops * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%3d clients %12.0f ops/s %8d aborts", clients, opsPerSecond(), aborts);
+        }
+    }
+
+    private BenchRunner() {
+    }
+
+    /**
+     * Run op on the given number of clients for millis milliseconds.
+     */
+    static Result run(int clients, long millis, Operation op) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final long[] ops = new long[clients];
+        final long[] aborts = new long[clients];
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            threads[i] = new Thread(() -> {
+                Random rnd = new Random(client);
+                try {
+                    start.await();
+                    while (!stop.get()) {
+                        try {
+                            op.run(client, rnd);
+                            ops[client]++;
+                        } catch (TransactionAbortedException e) {
+                            aborts[client]++;
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                    stop.set(true);
+                }
+            });
+            threads[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread t : threads)
+            t.join();
+        long nanos = System.nanoTime() - begin;
+        if (error.get() != null)
+            throw new RuntimeException(error.get());
+        long totalOps = 0, totalAborts = 0;
+        for (int i = 0; i < clients; i++) {
+            totalOps += ops[i];
+            totalAborts += aborts[i];
+        }
+        return new Result(clients, totalOps, totalAborts, nanos);
+    }
+
+    /**
+     * @return the client counts given on the command line, or defaults if
+     *   there are none
+     */
+    static List<Integer> clientCounts(String[] args, int... defaults) {
+        List<Integer> counts = new ArrayList<>();
+        if (args.length == 0) {
+            for (int n : defaults)
+                counts.add(n);
+        } else {
+            for (String a : args)
+                counts.add(Integer.parseInt(a));
+        }
+        return counts;
+    }
+
+    /** Print the machine the numbers were taken on. */
+    static void printHeader(String name) {
+        System.out.println(name + ": " + Runtime.getRuntime().availableProcessors()
+                + " processors, " + System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.version"));
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.bench;
+
+import java.util.List;
+
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures lock table throughput.  Each transaction locks LOCKS random
+ * pages out of PAGES, one in ten of them exclusively, and then releases
+ * everything, without touching the buffer pool.  Each client count is
+ * run with the default number of lock table partitions and with a single
+ * partition, whose monitor every lock request goes through:
+ * <pre>
+ *   ant bench -Dbench=LockManager [-Dbench.args="1 4 16"]
+ * </pre>
+ */
+public class LockManagerBench {
+
+    private static final int PAGES = 1000;
+    private static final int LOCKS = 8;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> counts = BenchRunner.clientCounts(args, 1, 4, 16);
+        BenchRunner.printHeader("LockManagerBench");
+        for (int clients : counts) {
+            run(LockManager.DEFAULT_PARTITIONS, clients);
+            run(1, clients);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int partitions, int clients) throws Exception {
+        LockManager locks = new LockManager(partitions);
+        BenchRunner.Operation txn = (c, rnd) -> {
+            TransactionId tid = new TransactionId();
+            try {
+                for (int i = 0; i < LOCKS; i++) {
+                    locks.acquire(tid, new HeapPageId(0, rnd.nextInt(PAGES)), rnd.nextInt(10) == 0);
+                }
+            } catch (TransactionAbortedException e) {
+                locks.releaseAll(tid);
+                throw e;
+            }
+            locks.releaseAll(tid);
+        };
+        // let the JIT warm up before measuring
+        BenchRunner.run(clients, BenchRunner.DEFAULT_MILLIS / 5, txn);
+        BenchRunner.Result r = BenchRunner.run(clients, BenchRunner.DEFAULT_MILLIS, txn);
+        System.out.println(String.format("%2d partitions %s %12.0f locks/s",
+                partitions, r, r.opsPerSecond() * LOCKS));
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.List;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures commit throughput of the log with and without group commit.
+ * Each client inserts one tuple into a table of its own per transaction,
+ * so the clients only share the log.  For each client count the run is
+ * repeated with the default group commit settings and with one force per
+ * commit, and the commits per second and forces per commit are reported.
+ * The log goes to bench.dir, which should be on the device being measured:
+ * <pre>
+ *   ant bench -Dbench=LogGroupCommit [-Dbench.args="1 4 16 32"]
+ * </pre>
+ */
+public class LogGroupCommitBench {
+
+    private static final int PAGES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> counts = BenchRunner.clientCounts(args, 1, 4, 16, 32);
+        BenchRunner.printHeader("LogGroupCommitBench");
+        for (int clients : counts) {
+            run("group commit", clients, LogFile.DEFAULT_GROUP_COMMIT_WINDOW_MICROS,
+                    LogFile.DEFAULT_GROUP_COMMIT_SIZE);
+            run("force per commit", clients, 0, 1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, int clients, long windowMicros, int batchSize) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(PAGES);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(windowMicros, batchSize);
+        HeapFile[] tables = new HeapFile[clients];
+        for (int i = 0; i < clients; i++) {
+            File f = File.createTempFile("commit", ".dat");
+            f.deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        BenchRunner.Operation commit = (c, rnd) -> {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), tables[c].getId(),
+                    Utility.getHeapTuple(rnd.nextInt(), 2));
+            t.commit();
+        };
+        // let the JIT warm up before measuring
+        BenchRunner.run(clients, BenchRunner.DEFAULT_MILLIS / 5, commit);
+        int forces = log.getForceCount();
+        BenchRunner.Result r = BenchRunner.run(clients, BenchRunner.DEFAULT_MILLIS, commit);
+        forces = log.getForceCount() - forces;
+        System.out.println(String.format("%-17s %s %6.2f forces/commit", name, r,
+                r.ops == 0 ? 0.0 : (double) forces / r.ops));
+    }
+}
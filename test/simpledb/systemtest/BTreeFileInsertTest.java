@@ -56,16 +56,17 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			assertEquals(1, empty.numPages());
 		}
 
-		// the next 251 tuples should live on page 2 since they are greater than
-		// all existing tuples in the file
-		for (int i = 502; i < 753; ++i) {
+		// the next 452 tuples should live on page 2 since they are greater than
+		// all existing tuples in the file: appending to the right-most page only
+		// moves 50 tuples to the new page, and leaves the first page 90% full
+		for (int i = 502; i < 954; ++i) {
 			tup = BTreeUtility.getBTreeTuple(i, 2);
 			empty.insertTuple(tid, tup);
 			assertEquals(3, empty.numPages());
 		}
 
-		// one more insert greater than 502 should cause page 2 to split
-		tup = BTreeUtility.getBTreeTuple(753, 2);
+		// one more insert greater than 953 should cause page 2 to split
+		tup = BTreeUtility.getBTreeTuple(954, 2);
 		empty.insertTuple(tid, tup);
 		assertEquals(4, empty.numPages());
 
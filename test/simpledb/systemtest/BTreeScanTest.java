@@ -11,13 +11,19 @@ import java.util.*;
 
 import org.junit.Test;
 
+import simpledb.Parser;
 import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
 import simpledb.execution.Predicate.Op;
 import simpledb.index.BTreeFile;
 import simpledb.index.BTreeScan;
 import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -74,11 +80,14 @@ public class BTreeScanTest extends SimpleDbTestBase {
 
         @Override
         public Page readPage(PageId pid) throws NoSuchElementException {
-            readCount += 1;
+            // pages may be read ahead by the buffer pool's prefetch threads
+            synchronized (this) {
+                readCount += 1;
+            }
             return super.readPage(pid);
         }
 
-        public int readCount = 0;
+        public volatile int readCount = 0;
     }
     
     /** Scan 1-4 columns. */
@@ -284,6 +293,174 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /**
+     * Test that a range scan reads the next leaves ahead without reading any page twice,
+     * and returns the tuples of each leaf in one batch
+     */
+    @Test public void testPrefetchAndBatches() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        tuples.sort(new TupleComparator(keyField));
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(tuples.get(tuples.size()/4).get(keyField)));
+        List<List<Integer>> tuplesFiltered = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(keyField) >= ((IntField) ipred.getField()).getValue()) {
+                tuplesFiltered.add(tup);
+            }
+        }
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred);
+        scan.open();
+        List<List<Integer>> scanned = new ArrayList<>();
+        int batches = 0;
+        for (List<Tuple> batch = scan.nextBatch(); !batch.isEmpty(); batch = scan.nextBatch()) {
+            assertTrue(batch.size() <= 502);
+            batches++;
+            for (Tuple t : batch) {
+                scanned.add(SystemTestUtil.tupleToList(t));
+            }
+        }
+        scan.close();
+
+        List<Integer> keys = new ArrayList<>();
+        for (List<Integer> tup : scanned) {
+            keys.add(tup.get(keyField));
+        }
+        List<Integer> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys);
+        assertEquals(sortedKeys, keys);
+        scanned.sort(new TupleComparator(keyField).thenComparing(Object::toString));
+        tuplesFiltered.sort(new TupleComparator(keyField).thenComparing(Object::toString));
+        assertEquals(tuplesFiltered, scanned);
+
+        int leafPageCount = tuplesFiltered.size()/502;
+        if(leafPageCount < LEAF_PAGES)
+            leafPageCount++;
+        assertTrue(batches <= leafPageCount);
+        assertTrue(Database.getBufferPool().getPagesPrefetched() > 0);
+        // root pointer page + root + leaf pages, each read once
+        assertEquals(leafPageCount + 2, table.readCount);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that a scan in reverse key order between two bounds returns the tuples in
+     * between, and reads only the leaves they are on; and that a scan in reverse order
+     * that stops early reads only the last leaves
+     */
+    @Test public void testDescendingRange() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        tuples.sort(new TupleComparator(keyField));
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int lower = tuples.get(tuples.size()/4).get(keyField);
+        int upper = tuples.get(tuples.size()/2).get(keyField);
+        List<IndexPredicate> preds = Arrays.asList(
+                new IndexPredicate(Op.GREATER_THAN, new IntField(lower)),
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(upper)),
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(upper + 502)));
+        List<List<Integer>> tuplesFiltered = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(keyField) > lower && tup.get(keyField) <= upper) {
+                tuplesFiltered.add(tup);
+            }
+        }
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        DbFileIterator it = table.indexIterator(tid, preds, true);
+        it.open();
+        List<List<Integer>> scanned = new ArrayList<>();
+        while (it.hasNext()) {
+            scanned.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+
+        List<Integer> keys = new ArrayList<>();
+        for (List<Integer> tup : scanned) {
+            keys.add(tup.get(keyField));
+        }
+        List<Integer> sortedKeys = new ArrayList<>(keys);
+        sortedKeys.sort(Collections.reverseOrder());
+        assertEquals(sortedKeys, keys);
+        scanned.sort(new TupleComparator(keyField).thenComparing(Object::toString));
+        tuplesFiltered.sort(new TupleComparator(keyField).thenComparing(Object::toString));
+        assertEquals(tuplesFiltered, scanned);
+        // root pointer page + root + the leaves of the range, with those of its two ends
+        assertTrue(table.readCount <= tuplesFiltered.size()/502 + 2 + 2);
+
+        // the last tuples only, as for ORDER BY ... DESC LIMIT 10
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        it = table.indexIterator(tid, Collections.emptyList(), true);
+        it.open();
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(it.hasNext());
+            int key = ((IntField) it.next().getField(keyField)).getValue();
+            assertEquals((int) tuples.get(tuples.size() - i).get(keyField), key);
+        }
+        it.close();
+        // root pointer page + root + the last leaves, and at most a few read ahead
+        assertTrue(table.readCount < LEAF_PAGES/2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that the planner reads a table that is a B+ tree in the order of an ORDER BY
+     * on its key, forwards or backwards, without sorting it
+     */
+    @Test public void testOrderByKey() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 1;
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 3000, null, tuples, keyField);
+        BTreeFile table = new BTreeFile(f.getFile(), keyField, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(table, "btree_scan_t");
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            expected.add(tup.get(keyField));
+        }
+        Collections.sort(expected);
+
+        Parser p = new Parser();
+        Transaction t = new Transaction();
+        t.start();
+        for (boolean asc : new boolean[] { true, false }) {
+            LogicalPlan lp = p.generateLogicalPlan(t.getId(),
+                    "SELECT * FROM btree_scan_t ORDER BY btree_scan_t.c1" + (asc ? ";" : " DESC;"));
+            OpIterator plan = lp.physicalPlan(t.getId(), TableStats.getStatsMap(), false);
+            assertTrue(SystemTestUtil.uses(plan, BTreeScan.class));
+            assertFalse(SystemTestUtil.uses(plan, OrderBy.class));
+            List<Integer> keys = new ArrayList<>();
+            plan.open();
+            while (plan.hasNext()) {
+                keys.add(((IntField) plan.next().getField(keyField)).getValue());
+            }
+            plan.close();
+            assertEquals(expected, keys);
+            Collections.reverse(expected);
+        }
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
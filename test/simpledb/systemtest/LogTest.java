@@ -126,10 +126,10 @@ public class LogTest extends SimpleDbTestBase {
 
         // empty heap files w/ 2 columns.
         // adds to the catalog.
-        file1 = new File("simple1.db");
-        file1.delete();
-        file2 = new File("simple2.db");
-        file2.delete();
+        file1 = File.createTempFile("simple1", ".db");
+        file1.deleteOnExit();
+        file2 = File.createTempFile("simple2", ".db");
+        file2.deleteOnExit();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
@@ -12,6 +12,7 @@ import org.junit.Assert;
 
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
@@ -99,6 +100,34 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return a copy of tuples sorted on the given fields, the first one
+     *   first
+     */
+    public static List<List<Integer>> sortedOn(List<List<Integer>> tuples, int... fields) {
+        List<List<Integer>> copy = new ArrayList<>(tuples);
+        copy.sort((t1, t2) -> {
+            for (int field : fields) {
+                int c = Integer.compare(t1.get(field), t2.get(field));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        });
+        return copy;
+    }
+
+    /** @return true if the plan has an operator of the given class */
+    public static boolean uses(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren())
+                if (uses(child, c))
+                    return true;
+        return false;
+    }
+
     public static void matchTuples(DbFile f, List<List<Integer>> tuples)
             throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();